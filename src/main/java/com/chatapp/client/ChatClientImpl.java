@@ -3,62 +3,373 @@ package com.chatapp.client;
 import com.chatapp.common.ChatClient;
 import com.chatapp.common.ChatService;
 import com.chatapp.common.ClientInfo;
+import com.chatapp.common.HistoryDelta;
 import com.chatapp.common.Message;
+import com.chatapp.media.BandwidthEstimator;
+import com.chatapp.media.MediaQuality;
 
+import java.io.IOException;
 import java.rmi.RemoteException;
+import java.rmi.ServerException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ChatClientImpl extends UnicastRemoteObject implements ChatClient {
     private static final long serialVersionUID = 1L;
     private static final Logger LOGGER = Logger.getLogger(ChatClientImpl.class.getName());
+    private static final int MIN_TIMED_PAYLOAD_BYTES = 16 * 1024;
+    private static final int OUTBOX_BATCH_SIZE = Integer.getInteger("chatapp.outbox.batchSize", 20);
+    private static final long RETRY_INITIAL_MILLIS = 1000;
+    private static final long RETRY_MAX_MILLIS = Long.getLong("chatapp.outbox.maxRetrySeconds", 60) * 1000;
+    private static final long SENDER_DRAIN_MILLIS = 5000;
+    private static final long HEARTBEAT_MILLIS = Long.getLong("chatapp.heartbeat.intervalSeconds", 5) * 1000;
+    private static final long HEARTBEAT_TIMEOUT_MILLIS = Long.getLong("chatapp.heartbeat.timeoutSeconds", 15) * 1000;
+    private static final long RECONNECT_MAX_MILLIS = Long.getLong("chatapp.reconnect.maxDelaySeconds", 30) * 1000;
     
     private final ClientInfo clientInfo;
-    private final ChatService chatService;
-    private String clientId;
+    private volatile ChatService chatService;
+    private ServiceLocator serviceLocator;
+    private final BandwidthEstimator linkEstimator = new BandwidthEstimator();
+    private volatile String clientId;
+    private String resumeToken;
+    // Where the history stands when there is no HistoryStore to say so
+    private volatile String historyId;
+    private final AtomicLong lastSequence = new AtomicLong();
     
     private final List<MessageListener> messageListeners = new CopyOnWriteArrayList<>();
     private final List<ClientStatusListener> clientStatusListeners = new CopyOnWriteArrayList<>();
-    private final List<Message> receivedMessages = Collections.synchronizedList(new ArrayList<>());
+    private final MessageCache messageCache = new MessageCache();
+    private final HistoryStore historyStore;
+    private final Roster roster = new Roster();
+    
+    // One thread, so messages reach the server in the order they were written
+    private final ScheduledExecutorService sender = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "message-sender");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Outbox outbox;
+    private final Map<String, Message> pendingSends = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Message>> sendResults = new ConcurrentHashMap<>();
+    // Touched only on the sender thread
+    private long retryDelayMillis = RETRY_INITIAL_MILLIS;
+    private ScheduledFuture<?> retry;
+    
+    private final ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "connection-monitor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Runs liveness calls, so one stuck on a half-open connection cannot hold up the monitor
+    private final ExecutorService probes = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "connection-probe");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final List<ConnectionListener> connectionListeners = new CopyOnWriteArrayList<>();
+    // Touched only on the monitor thread
+    private boolean connected;
+    private long reconnectDelayMillis = RETRY_INITIAL_MILLIS;
     
-    private final Map<String, Message> messagesById = new HashMap<>();
     private String replyToMessageId = null;
     private final List<ProfileListener> profileListeners = new CopyOnWriteArrayList<>();
     private final List<PresenceStatusListener> presenceStatusListeners = new CopyOnWriteArrayList<>();
+    private final List<CallListener> callListeners = new CopyOnWriteArrayList<>();
     
     public ChatClientImpl(ClientInfo clientInfo, ChatService chatService) throws RemoteException {
+        this(clientInfo, chatService, null, new Outbox(null));
+    }
+    
+    /**
+     * With a {@link HistoryStore} the history is kept locally and only what is new is
+     * fetched on connect; messages that could not be sent wait in {@code outbox}.
+     */
+    public ChatClientImpl(ClientInfo clientInfo, ChatService chatService, HistoryStore historyStore, Outbox outbox) throws RemoteException {
         super();
         this.clientInfo = clientInfo;
         this.chatService = chatService;
+        this.historyStore = historyStore;
+        this.outbox = outbox;
     }
     
     public void connect() throws RemoteException {
-        clientId = chatService.registerClient(this);
+        // Local history first, so messages arriving as soon as we register come after it
+        boolean synced = false;
+        if (historyStore != null) {
+            try {
+                for (Message message : historyStore.open()) {
+                    messageCache.put(message);
+                    notifyMessageReceived(message);
+                }
+                synced = true;
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not open local history, fetching it from the server", e);
+            }
+        }
+        
+        // Unsent messages from the last run; any the server did take are acknowledged by the sync
+        try {
+            for (Outbox.Entry entry : outbox.open()) {
+                Message message = entry.getMessage();
+                pendingSends.put(message.getMessageId(), message);
+                messageCache.put(message);
+                notifyMessageReceived(message);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not open outbox", e);
+        }
+        
+        String[] session = chatService.registerSession(this);
+        clientId = session[0];
+        resumeToken = session[1];
+        historyId = session[2];
         clientInfo.setId(clientId);
+        adoptPendingSends();
         
-        List<Message> history = chatService.getChatHistory(clientId);
-        for (Message message : history) {
-            receiveMessage(message);
+        if (synced) {
+            syncHistory();
+        } else {
+            List<Message> history = chatService.getChatHistory(clientId);
+            for (Message message : history) {
+                receiveMessage(message);
+            }
         }
         
         LOGGER.info("Connected to chat server with ID: " + clientId);
+        flushOutbox();
+        
+        monitor.execute(() -> connected = true);
+        monitor.scheduleWithFixedDelay(this::checkConnection, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Lets the client find the server again after it restarted, when the old stub no longer
+     * works. Without one, reconnecting keeps using the stub it was created with.
+     */
+    public void setServiceLocator(ServiceLocator serviceLocator) {
+        this.serviceLocator = serviceLocator;
+    }
+    
+    // Heartbeats double as round-trip samples for the link estimate
+    private void checkConnection() {
+        if (!connected) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            boolean alive = withTimeout(() -> chatService.heartbeat(clientId));
+            linkEstimator.recordRoundTrip((System.nanoTime() - start) / 1e6);
+            if (alive) {
+                return;
+            }
+            LOGGER.warning("Server suspended our session, resuming it");
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Lost connection to the chat server", e);
+        }
+        connected = false;
+        notifyConnectionChanged(false);
+        reconnect();
+    }
+    
+    private void reconnect() {
+        try {
+            restoreSession();
+        } catch (Exception e) {
+            // Jittered, so clients cut off together do not all come back at the same moment
+            long delay = reconnectDelayMillis / 2 + ThreadLocalRandom.current().nextLong(reconnectDelayMillis / 2 + 1);
+            LOGGER.log(Level.WARNING, "Reconnect failed, retrying in " + delay + " ms", e);
+            monitor.schedule(this::reconnect, delay, TimeUnit.MILLISECONDS);
+            reconnectDelayMillis = Math.min(RECONNECT_MAX_MILLIS, reconnectDelayMillis * 2);
+            return;
+        }
+        connected = true;
+        reconnectDelayMillis = RETRY_INITIAL_MILLIS;
+        notifyConnectionChanged(true);
+        flushOutbox();
+    }
+    
+    /**
+     * Picks up where the session left off: same client ID and only the messages sent while
+     * we were away. If the server no longer knows the session, registers afresh.
+     */
+    private void restoreSession() throws Exception {
+        if (serviceLocator != null) {
+            chatService = withTimeout(serviceLocator::lookup);
+        }
+        if (withTimeout(() -> chatService.resumeSession(this, clientId, resumeToken))) {
+            LOGGER.info("Session resumed as " + clientId);
+        } else {
+            // A registration that times out but did reach the server expires there without heartbeats
+            String[] session = withTimeout(() -> chatService.registerSession(this));
+            clientId = session[0];
+            resumeToken = session[1];
+            clientInfo.setId(clientId);
+            adoptPendingSends();
+            LOGGER.info("Session could not be resumed, registered again as " + clientId);
+        }
+        
+        refreshRoster();
+        if (historyStore != null) {
+            syncHistory();
+        } else {
+            HistoryDelta delta = chatService.getChatHistorySince(clientId, historyId, lastSequence.get());
+            if (!delta.getHistoryId().equals(historyId)) {
+                historyId = delta.getHistoryId();
+                lastSequence.set(0);
+            }
+            for (Message message : delta.getMessages()) {
+                receiveMessage(message);
+            }
+            LOGGER.info("Fetched " + delta.getMessages().size() + " messages missed while disconnected");
+        }
+    }
+    
+    /**
+     * Runs a call to the server, giving up after {@code chatapp.heartbeat.timeoutSeconds}.
+     * RMI has no call timeout of its own, and over a half-open connection a call only fails
+     * once TCP gives up, which can take minutes.
+     */
+    private <T> T withTimeout(Callable<T> call) throws Exception {
+        Future<T> future = probes.submit(call);
+        try {
+            return future.get(HEARTBEAT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new RemoteException("No answer from the server within " + HEARTBEAT_TIMEOUT_MILLIS + " ms");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+    
+    // Joins and leaves while we were away were never called back to us
+    private void refreshRoster() throws RemoteException {
+        Map<String, ClientInfo> online = new HashMap<>();
+        for (ClientInfo peer : chatService.getOnlineClients()) {
+            if (peer.isOnline() && !peer.getId().equals(clientId)) {
+                online.put(peer.getId(), peer);
+            }
+        }
+        for (ClientInfo known : roster.getClients()) {
+            if (!online.containsKey(known.getId())) {
+                roster.remove(known.getId());
+                notifyClientDisconnected(known.getId());
+            }
+        }
+        for (ClientInfo peer : online.values()) {
+            boolean added = roster.get(peer.getId()) == null;
+            roster.put(peer);
+            if (added) {
+                notifyClientConnected(peer);
+            }
+        }
+    }
+    
+    private void notifyConnectionChanged(boolean up) {
+        for (ConnectionListener listener : connectionListeners) {
+            try {
+                if (up) {
+                    listener.connectionRestored();
+                } else {
+                    listener.connectionLost();
+                }
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Error notifying connection listener", e);
+            }
+        }
+    }
+    
+    // Messages still waiting to be sent were written under an earlier client ID
+    private void adoptPendingSends() {
+        for (Message message : pendingSends.values()) {
+            if (!clientId.equals(message.getSenderId())) {
+                message.setSenderId(clientId);
+                messageCache.markChanged(message.getMessageId());
+            }
+        }
+    }
+    
+    private void syncHistory() throws RemoteException {
+        long start = System.nanoTime();
+        HistoryDelta delta = chatService.getChatHistorySince(clientId, historyStore.getHistoryId(), historyStore.getLastSequence());
+        if (!delta.isComplete()) {
+            LOGGER.warning("Messages were dropped from the server history before they could be synced");
+        }
+        long lastSequence = 0;
+        for (Message message : delta.getMessages()) {
+            receiveMessage(message);
+            lastSequence = message.getSequence();
+        }
+        try {
+            historyStore.markSynced(delta.getHistoryId(), lastSequence);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not record history sync point", e);
+        }
+        LOGGER.info("History synced: " + delta.getMessages().size() + " new messages in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
     }
     
     public void disconnect() throws RemoteException {
+        monitor.shutdownNow();
+        stopSender();
+        probes.shutdownNow();
         if (clientId != null) {
             chatService.unregisterClient(clientId);
             LOGGER.info("Disconnected from chat server");
         }
+        messageCache.close();
+        roster.clear();
+        if (historyStore != null) {
+            historyStore.close();
+        }
     }
     
-    public void sendMessage(String content, String recipientId) throws RemoteException {
+    /**
+     * Lets the sender finish what it was handed, so queued messages are in the outbox (or
+     * with the server) before the cache and history behind them close. A pending retry is
+     * dropped; whatever is still queued is sent on the next start.
+     */
+    private void stopSender() {
+        try {
+            sender.submit(() -> {
+                if (retry != null) {
+                    retry.cancel(false);
+                    retry = null;
+                }
+            }).get(SENDER_DRAIN_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            LOGGER.log(Level.WARNING, "Message sender did not finish, " + outbox.size() + " messages stay queued", e);
+        }
+        sender.shutdownNow();
+    }
+    
+    /*
+     * The send methods return at once: the message is shown with SENDING status straight
+     * away and handed to the sender thread, and the future completes when the server has
+     * taken it.
+     */
+    
+    public CompletableFuture<Message> sendMessage(String content, String recipientId) {
         Message message;
         if (replyToMessageId != null) {
             message = Message.createReplyMessage(content, clientId, clientInfo.getName(), replyToMessageId);
@@ -66,34 +377,315 @@ public class ChatClientImpl extends UnicastRemoteObject implements ChatClient {
         } else {
             message = new Message(content, clientId, clientInfo.getName(), Message.MessageType.TEXT);
         }
-        chatService.sendMessage(message, clientId, recipientId);
+        return send(message, recipientId);
     }
     
-    public void sendFileMessage(String content, Message.FileAttachment attachment, String recipientId) throws RemoteException {
+    public CompletableFuture<Message> sendFileMessage(String content, Message.FileAttachment attachment, String recipientId) {
         Message message = Message.createFileMessage(content, clientId, clientInfo.getName(), attachment);
         if (replyToMessageId != null) {
             message.setReplyToMessageId(replyToMessageId);
             replyToMessageId = null;
         }
-        chatService.sendMessage(message, clientId, recipientId);
+        return send(message, recipientId);
     }
     
-    public void sendVoiceMessage(byte[] audioData, int durationSeconds, String recipientId) throws RemoteException {
+    public CompletableFuture<Message> sendVoiceMessage(byte[] audioData, String format, byte[] waveform, int durationSeconds, String recipientId) {
         Message message = Message.createVoiceMessage(clientId, clientInfo.getName(), audioData, durationSeconds);
+        message.getVoiceAttachment().setFormat(format);
+        message.getVoiceAttachment().setWaveform(waveform);
         if (replyToMessageId != null) {
             message.setReplyToMessageId(replyToMessageId);
             replyToMessageId = null;
         }
-        chatService.sendMessage(message, clientId, recipientId);
+        return send(message, recipientId);
     }
     
-    public void sendVideoMessage(byte[] videoData, byte[] thumbnailData, int durationSeconds, String recipientId) throws RemoteException {
+    /**
+     * Sends a voice message whose audio was already streamed into an upload session. If the
+     * server cannot turn the upload into a file, the same message is sent again with
+     * {@code audioData} inline, so the chat still shows a single message.
+     */
+    public CompletableFuture<Message> sendUploadedVoiceMessage(ChunkedUpload upload, byte[] audioData, String format, byte[] waveform, int durationSeconds, String recipientId) {
+        Message message = new Message("Voice message", clientId, clientInfo.getName(), Message.MessageType.VOICE);
+        Message.VoiceAttachment attachment = Message.VoiceAttachment.fromUpload(upload.getUploadId(), durationSeconds);
+        attachment.setFormat(format);
+        attachment.setWaveform(waveform);
+        message.setVoiceAttachment(attachment);
+        if (replyToMessageId != null) {
+            message.setReplyToMessageId(replyToMessageId);
+            replyToMessageId = null;
+        }
+        return send(message, recipientId)
+                .handle((sent, error) -> {
+                    if (error == null) {
+                        return CompletableFuture.completedFuture(sent);
+                    }
+                    LOGGER.log(Level.WARNING, "Could not finish voice upload, sending the audio inline", error);
+                    attachment.setUploadId(null);
+                    attachment.setAudioData(audioData);
+                    return resend(message, recipientId);
+                })
+                .thenCompose(future -> future);
+    }
+    
+    public ChunkedUpload beginUpload(String fileName, String contentType) throws RemoteException {
+        return new ChunkedUpload(chatService, chatService.beginUpload(clientId, fileName, contentType), linkEstimator);
+    }
+    
+    public CompletableFuture<Message> sendVideoMessage(byte[] videoData, byte[] thumbnailData, String format, int durationSeconds, String recipientId) {
         Message message = Message.createVideoMessage(clientId, clientInfo.getName(), videoData, thumbnailData, durationSeconds);
+        message.getVideoAttachment().setFormat(format);
         if (replyToMessageId != null) {
             message.setReplyToMessageId(replyToMessageId);
             replyToMessageId = null;
         }
-        chatService.sendMessage(message, clientId, recipientId);
+        return send(message, recipientId);
+    }
+    
+    /**
+     * Rings the recipient; returns the call ID. {@code mediaPort} is the local UDP port the
+     * call's {@link com.chatapp.media.MediaChannel} listens on.
+     */
+    public String startCall(String recipientId, boolean video, int mediaPort) throws RemoteException {
+        return chatService.startCall(clientId, recipientId, video, mediaPort);
+    }
+    
+    /**
+     * Answers an incoming call; on accept returns the caller's media endpoint.
+     */
+    public String answerCall(String callId, boolean accept, int mediaPort) throws RemoteException {
+        return chatService.answerCall(callId, clientId, accept, mediaPort);
+    }
+    
+    public void endCall(String callId) throws RemoteException {
+        chatService.endCall(callId, clientId);
+    }
+    
+    private CompletableFuture<Message> send(Message message, String recipientId) {
+        message.setStatus(Message.MessageStatus.SENDING);
+        pendingSends.put(message.getMessageId(), message);
+        messageCache.put(message);
+        notifyMessageReceived(message);
+        return enqueue(message, recipientId);
+    }
+    
+    // A message that failed goes out again under its own ID, in place of its bubble
+    private CompletableFuture<Message> resend(Message message, String recipientId) {
+        message.setStatus(Message.MessageStatus.SENDING);
+        pendingSends.put(message.getMessageId(), message);
+        messageCache.put(message);
+        notifyStatusUpdated(message.getMessageId(), Message.MessageStatus.SENDING);
+        return enqueue(message, recipientId);
+    }
+    
+    private CompletableFuture<Message> enqueue(Message message, String recipientId) {
+        CompletableFuture<Message> result = new CompletableFuture<>();
+        sendResults.put(message.getMessageId(), result);
+        // Serialized and written on the sender thread rather than the caller's, which is usually the EDT
+        sender.execute(() -> {
+            try {
+                outbox.add(message, recipientId);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not persist message " + message.getMessageId() + ", it is queued in memory only", e);
+            }
+            flush();
+        });
+        return result;
+    }
+    
+    /**
+     * Sends whatever is waiting in the outbox, e.g. after the connection came back.
+     */
+    public void flushOutbox() {
+        sender.execute(this::flush);
+    }
+    
+    public int getQueuedMessageCount() {
+        return outbox.size();
+    }
+    
+    private void flush() {
+        if (retry != null) {
+            retry.cancel(false);
+            retry = null;
+        }
+        while (true) {
+            List<Outbox.Entry> batch = outbox.peek(OUTBOX_BATCH_SIZE);
+            if (batch.isEmpty()) {
+                retryDelayMillis = RETRY_INITIAL_MILLIS;
+                return;
+            }
+            
+            long[] sequences;
+            try {
+                sequences = deliver(batch);
+            } catch (ServerException | RuntimeException e) {
+                // The server got the request and refused it; sending it again will not help
+                for (Outbox.Entry entry : batch) {
+                    failed(entry.getMessage(), e);
+                }
+                continue;
+            } catch (RemoteException e) {
+                LOGGER.log(Level.WARNING, "Server unreachable, " + outbox.size() + " messages queued; retrying in "
+                        + retryDelayMillis / 1000 + " s", e);
+                retry = sender.schedule(this::flush, retryDelayMillis, TimeUnit.MILLISECONDS);
+                retryDelayMillis = Math.min(RETRY_MAX_MILLIS, retryDelayMillis * 2);
+                return;
+            }
+            
+            for (int i = 0; i < batch.size(); i++) {
+                Message message = batch.get(i).getMessage();
+                if (sequences[i] < 0) {
+                    failed(message, new RemoteException("Message rejected by the server"));
+                } else {
+                    sent(message, sequences[i]);
+                }
+            }
+        }
+    }
+    
+    private void sent(Message message, long sequence) {
+        outbox.remove(message.getMessageId());
+        Message unechoed = pendingSends.remove(message.getMessageId());
+        if (unechoed != null) {
+            // Nothing came back to us, e.g. a direct message to someone offline or a resend
+            unechoed.setSequence(sequence);
+            unechoed.setStatus(Message.MessageStatus.SENT);
+            acknowledge(unechoed, unechoed);
+        }
+        CompletableFuture<Message> result = sendResults.remove(message.getMessageId());
+        if (result != null) {
+            result.complete(message);
+        }
+    }
+    
+    private void failed(Message message, Exception cause) {
+        LOGGER.log(Level.WARNING, "Failed to send message " + message.getMessageId(), cause);
+        outbox.remove(message.getMessageId());
+        Message local = pendingSends.remove(message.getMessageId());
+        if (local == null) {
+            local = message;
+        }
+        local.setStatus(Message.MessageStatus.FAILED);
+        messageCache.markChanged(local.getMessageId());
+        notifyStatusUpdated(local.getMessageId(), Message.MessageStatus.FAILED);
+        CompletableFuture<Message> result = sendResults.remove(message.getMessageId());
+        if (result != null) {
+            result.completeExceptionally(cause);
+        }
+    }
+    
+    /**
+     * Copies what the server assigned onto our own copy of a message we sent, so bubbles
+     * holding on to it keep working, and records it as part of the history.
+     */
+    private void acknowledge(Message local, Message acked) {
+        local.setSequence(acked.getSequence());
+        local.setStatus(acked.getStatus());
+        if (local.getFileAttachment() != null && acked.getFileAttachment() != null) {
+            local.getFileAttachment().setFileId(acked.getFileAttachment().getFileId());
+        }
+        if (local.getVoiceAttachment() != null && acked.getVoiceAttachment() != null) {
+            Message.VoiceAttachment voiceAttachment = local.getVoiceAttachment();
+            voiceAttachment.setFileId(acked.getVoiceAttachment().getFileId());
+            voiceAttachment.setUploadId(acked.getVoiceAttachment().getUploadId());
+            if (acked.getVoiceAttachment().getWaveform() != null) {
+                voiceAttachment.setWaveform(acked.getVoiceAttachment().getWaveform());
+            }
+        }
+        if (local.getVideoAttachment() != null && acked.getVideoAttachment() != null) {
+            local.getVideoAttachment().setFileId(acked.getVideoAttachment().getFileId());
+        }
+        
+        messageCache.put(local);
+        lastSequence.accumulateAndGet(local.getSequence(), Math::max);
+        if (historyStore != null) {
+            try {
+                historyStore.append(local);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not store message " + local.getMessageId() + " locally", e);
+            }
+        }
+        notifyStatusUpdated(local.getMessageId(), local.getStatus());
+    }
+    
+    // Sends carrying a large attachment double as throughput samples for the link estimate
+    private long[] deliver(List<Outbox.Entry> batch) throws RemoteException {
+        long payloadBytes = 0;
+        List<Message> messages = new ArrayList<>(batch.size());
+        List<String> recipientIds = new ArrayList<>(batch.size());
+        for (Outbox.Entry entry : batch) {
+            if (!clientId.equals(entry.getMessage().getSenderId())) {
+                entry.getMessage().setSenderId(clientId);
+            }
+            messages.add(entry.getMessage());
+            recipientIds.add(entry.getRecipientId());
+            payloadBytes += payloadSize(entry.getMessage());
+        }
+        
+        long start = System.nanoTime();
+        long[] sequences;
+        if (batch.size() == 1) {
+            sequences = new long[] {chatService.sendMessage(messages.get(0), clientId, recipientIds.get(0))};
+        } else {
+            sequences = chatService.sendMessages(messages, clientId, recipientIds);
+        }
+        if (payloadBytes >= MIN_TIMED_PAYLOAD_BYTES) {
+            linkEstimator.recordTransfer(payloadBytes, System.nanoTime() - start);
+        }
+        return sequences;
+    }
+    
+    private static long payloadSize(Message message) {
+        long size = 0;
+        if (message.getFileAttachment() != null && message.getFileAttachment().getEncodedContent() != null) {
+            size += message.getFileAttachment().getEncodedContent().length();
+        }
+        if (message.getVoiceAttachment() != null && message.getVoiceAttachment().getAudioData() != null) {
+            size += message.getVoiceAttachment().getAudioData().length;
+        }
+        if (message.getVideoAttachment() != null) {
+            if (message.getVideoAttachment().getVideoData() != null) {
+                size += message.getVideoAttachment().getVideoData().length;
+            }
+            if (message.getVideoAttachment().getThumbnailData() != null) {
+                size += message.getVideoAttachment().getThumbnailData().length;
+            }
+        }
+        return size;
+    }
+    
+    /**
+     * Throughput and RTT estimate of the connection to the server.
+     */
+    public BandwidthEstimator getLinkEstimator() {
+        return linkEstimator;
+    }
+    
+    /**
+     * Encoding settings for media recorded now, based on the current link estimate.
+     */
+    public MediaQuality getMediaQuality() {
+        return MediaQuality.forLink(linkEstimator);
+    }
+    
+    /**
+     * Picks the server-side rendition of a voice or video file to download for a display
+     * {@code maxDimension} pixels wide and the current link. Returns {@code {fileId, contentType}};
+     * the original file if the server has nothing better or cannot be asked.
+     */
+    public String[] findRendition(String fileId, String contentType, int maxDimension) {
+        MediaQuality quality = getMediaQuality();
+        int width = maxDimension > 0 ? Math.min(maxDimension, quality.getVideoWidth()) : 0;
+        try {
+            String[] rendition = chatService.getRendition(fileId, width, quality.getVoiceFormat().getSampleRate());
+            if (rendition != null) {
+                return rendition;
+            }
+        } catch (RemoteException e) {
+            LOGGER.log(Level.FINE, "Could not look up renditions of " + fileId, e);
+        }
+        return new String[] {fileId, contentType};
     }
     
     public void updateProfile(byte[] profilePicture, String statusMessage, String email) throws RemoteException {
@@ -120,7 +712,7 @@ public class ChatClientImpl extends UnicastRemoteObject implements ChatClient {
     }
     
     public Message getMessageById(String messageId) {
-        return messagesById.get(messageId);
+        return messageCache.get(messageId);
     }
     
     public boolean isReplyingToMessage() {
@@ -135,8 +727,18 @@ public class ChatClientImpl extends UnicastRemoteObject implements ChatClient {
         replyToMessageId = null;
     }
     
-    public List<ClientInfo> getOnlineClients() throws RemoteException {
-        return chatService.getOnlineClients();
+    /**
+     * The other users currently online, from the local roster.
+     */
+    public List<ClientInfo> getOnlineClients() {
+        return roster.getClients();
+    }
+    
+    /**
+     * A user on the roster, or null if they are not online.
+     */
+    public ClientInfo getOnlineClient(String clientId) {
+        return roster.get(clientId);
     }
     
     public String getClientId() {
@@ -180,15 +782,65 @@ public class ChatClientImpl extends UnicastRemoteObject implements ChatClient {
         presenceStatusListeners.remove(listener);
     }
     
+    public void addCallListener(CallListener listener) {
+        callListeners.add(listener);
+    }
+    
+    public void removeCallListener(CallListener listener) {
+        callListeners.remove(listener);
+    }
+    
+    public void addConnectionListener(ConnectionListener listener) {
+        connectionListeners.add(listener);
+    }
+    
+    public void removeConnectionListener(ConnectionListener listener) {
+        connectionListeners.remove(listener);
+    }
+    
+    /**
+     * Every message received this session, in arrival order. Older messages are read back
+     * from the cache's spill file, so this is not for per-message use.
+     */
     public List<Message> getReceivedMessages() {
-        return new ArrayList<>(receivedMessages);
+        return messageCache.getAll();
+    }
+    
+    public MessageCache getMessageCache() {
+        return messageCache;
     }
     
     @Override
     public void receiveMessage(Message message) {
-        receivedMessages.add(message);
-        messagesById.put(message.getMessageId(), message);
-        
+        // The server hands our own messages back to us with what it filled in
+        Message pending = pendingSends.remove(message.getMessageId());
+        if (pending != null) {
+            // Also how a message queued in an earlier run turns out to have been taken already
+            outbox.remove(message.getMessageId());
+            acknowledge(pending, message);
+            CompletableFuture<Message> result = sendResults.remove(message.getMessageId());
+            if (result != null) {
+                result.complete(pending);
+            }
+            return;
+        }
+        // A message broadcast while the history sync was running arrives both ways
+        if (message.getSequence() > 0 && messageCache.contains(message.getMessageId())) {
+            return;
+        }
+        messageCache.put(message);
+        lastSequence.accumulateAndGet(message.getSequence(), Math::max);
+        if (historyStore != null) {
+            try {
+                historyStore.append(message);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not store message " + message.getMessageId() + " locally", e);
+            }
+        }
+        notifyMessageReceived(message);
+    }
+    
+    private void notifyMessageReceived(Message message) {
         for (MessageListener listener : messageListeners) {
             try {
                 listener.messageReceived(message);
@@ -200,13 +852,8 @@ public class ChatClientImpl extends UnicastRemoteObject implements ChatClient {
     
     @Override
     public void clientConnected(ClientInfo clientInfo) {
-        for (ClientStatusListener listener : clientStatusListeners) {
-            try {
-                listener.clientConnected(clientInfo);
-            } catch (Exception e) {
-                LOGGER.log(Level.WARNING, "Error notifying client status listener", e);
-            }
-        }
+        roster.put(clientInfo);
+        notifyClientConnected(clientInfo);
         
         Message message = Message.createNotificationMessage(clientInfo.getName() + " has joined the chat");
         receiveMessage(message);
@@ -214,19 +861,25 @@ public class ChatClientImpl extends UnicastRemoteObject implements ChatClient {
     
     @Override
     public void clientDisconnected(String clientId) {
-        ClientInfo clientInfo = null;
-        try {
-            List<ClientInfo> onlineClients = chatService.getOnlineClients();
-            for (ClientInfo info : onlineClients) {
-                if (info.getId().equals(clientId)) {
-                    clientInfo = info;
-                    break;
-                }
+        ClientInfo clientInfo = roster.remove(clientId);
+        notifyClientDisconnected(clientId);
+        
+        String name = clientInfo != null ? clientInfo.getName() : "Unknown user";
+        Message message = Message.createNotificationMessage(name + " has left the chat");
+        receiveMessage(message);
+    }
+    
+    private void notifyClientConnected(ClientInfo clientInfo) {
+        for (ClientStatusListener listener : clientStatusListeners) {
+            try {
+                listener.clientConnected(clientInfo);
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Error notifying client status listener", e);
             }
-        } catch (RemoteException e) {
-            LOGGER.log(Level.WARNING, "Error getting online clients", e);
         }
-        
+    }
+    
+    private void notifyClientDisconnected(String clientId) {
         for (ClientStatusListener listener : clientStatusListeners) {
             try {
                 listener.clientDisconnected(clientId);
@@ -234,29 +887,33 @@ public class ChatClientImpl extends UnicastRemoteObject implements ChatClient {
                 LOGGER.log(Level.WARNING, "Error notifying client status listener", e);
             }
         }
-        
-        String name = clientInfo != null ? clientInfo.getName() : "Unknown user";
-        Message message = Message.createNotificationMessage(name + " has left the chat");
-        receiveMessage(message);
     }
     
     @Override
     public void receiveMessageStatusUpdate(String messageId, Message.MessageStatus status) throws RemoteException {
-        Message message = messagesById.get(messageId);
+        Message message = messageCache.get(messageId);
         if (message != null) {
             message.setStatus(status);
-            for (MessageListener listener : messageListeners) {
-                try {
-                    listener.messageStatusUpdated(messageId, status);
-                } catch (Exception e) {
-                    LOGGER.log(Level.WARNING, "Error notifying message status listener", e);
-                }
+            messageCache.markChanged(messageId);
+            notifyStatusUpdated(messageId, status);
+        }
+    }
+    
+    private void notifyStatusUpdated(String messageId, Message.MessageStatus status) {
+        for (MessageListener listener : messageListeners) {
+            try {
+                listener.messageStatusUpdated(messageId, status);
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Error notifying message status listener", e);
             }
         }
     }
     
     @Override
     public void clientProfileUpdated(ClientInfo updatedClientInfo) throws RemoteException {
+        if (!updatedClientInfo.getId().equals(clientId)) {
+            roster.update(updatedClientInfo);
+        }
         for (ProfileListener listener : profileListeners) {
             try {
                 listener.profileUpdated(updatedClientInfo);
@@ -278,6 +935,7 @@ public class ChatClientImpl extends UnicastRemoteObject implements ChatClient {
     
     @Override
     public void clientPresenceUpdated(String clientId, ClientInfo.PresenceStatus status) throws RemoteException {
+        roster.updatePresence(clientId, status);
         for (PresenceStatusListener listener : presenceStatusListeners) {
             try {
                 listener.presenceStatusUpdated(clientId, status);
@@ -288,19 +946,56 @@ public class ChatClientImpl extends UnicastRemoteObject implements ChatClient {
     }
     
     @Override
-    public void receiveVoiceCall(String callerId) throws RemoteException {
+    public void receiveVoiceCall(String callerId, String callId) throws RemoteException {
+        notifyIncomingCall(callerId, callId, false);
     }
     
     @Override
-    public void receiveVideoCall(String callerId) throws RemoteException {
+    public void receiveVideoCall(String callerId, String callId) throws RemoteException {
+        notifyIncomingCall(callerId, callId, true);
+    }
+    
+    private void notifyIncomingCall(String callerId, String callId, boolean video) {
+        for (CallListener listener : callListeners) {
+            try {
+                listener.incomingCall(callerId, callId, video);
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Error notifying call listener", e);
+            }
+        }
     }
     
     @Override
-    public void callAccepted(String clientId, String callId) throws RemoteException {
+    public void callAccepted(String clientId, String callId, String mediaEndpoint) throws RemoteException {
+        for (CallListener listener : callListeners) {
+            try {
+                listener.callAccepted(clientId, callId, mediaEndpoint);
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Error notifying call listener", e);
+            }
+        }
     }
     
     @Override
     public void callRejected(String clientId, String reason) throws RemoteException {
+        for (CallListener listener : callListeners) {
+            try {
+                listener.callRejected(clientId, reason);
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Error notifying call listener", e);
+            }
+        }
+    }
+    
+    @Override
+    public void callEnded(String clientId, String callId) throws RemoteException {
+        for (CallListener listener : callListeners) {
+            try {
+                listener.callEnded(clientId, callId);
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Error notifying call listener", e);
+            }
+        }
     }
     
     public ChatService getChatService() {
@@ -314,6 +1009,19 @@ public class ChatClientImpl extends UnicastRemoteObject implements ChatClient {
         }
     }
     
+    public interface ServiceLocator {
+        ChatService lookup() throws Exception;
+    }
+    
+    /**
+     * Called on the connection monitor thread when the server stops answering heartbeats
+     * and again once the session has been resumed or re-registered.
+     */
+    public interface ConnectionListener {
+        void connectionLost();
+        void connectionRestored();
+    }
+    
     public interface ClientStatusListener {
         void clientConnected(ClientInfo clientInfo);
         void clientDisconnected(String clientId);
@@ -326,4 +1034,18 @@ public class ChatClientImpl extends UnicastRemoteObject implements ChatClient {
     public interface PresenceStatusListener {
         void presenceStatusUpdated(String clientId, ClientInfo.PresenceStatus status);
     }
+    
+    public interface CallListener {
+        default void incomingCall(String callerId, String callId, boolean video) {
+        }
+        
+        default void callAccepted(String clientId, String callId, String mediaEndpoint) {
+        }
+        
+        default void callRejected(String clientId, String reason) {
+        }
+        
+        default void callEnded(String clientId, String callId) {
+        }
+    }
 }
\ No newline at end of file
@@ -28,7 +28,10 @@ public class ChatClientMain {
             
             ClientInfo clientInfo = new ClientInfo(clientName, hostAddress);
             
-            chatClient = new ChatClientImpl(clientInfo, chatService);
+            chatClient = new ChatClientImpl(clientInfo, chatService,
+                    HistoryStore.forServer(serverHost, serverPort, clientName),
+                    Outbox.forServer(serverHost, serverPort, clientName));
+            chatClient.setServiceLocator(() -> (ChatService) LocateRegistry.getRegistry(serverHost, serverPort).lookup(SERVICE_NAME));
             chatClient.connect();
             
             clientGUI = new ClientGUI(chatClient);
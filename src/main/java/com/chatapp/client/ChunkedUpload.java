@@ -0,0 +1,128 @@
+package com.chatapp.client;
+
+import com.chatapp.common.ChatService;
+import com.chatapp.media.BandwidthEstimator;
+
+import java.io.ByteArrayOutputStream;
+import java.rmi.RemoteException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Client side of a server upload session. Data written here is batched into chunks and
+ * pushed from a background thread, so the producer (the audio capture loop) never waits
+ * on the network. A failed chunk marks the whole upload as failed; the caller then falls
+ * back to sending the content inline.
+ */
+public class ChunkedUpload {
+    private static final Logger LOGGER = Logger.getLogger(ChunkedUpload.class.getName());
+    
+    private static final int CHUNK_BYTES = Integer.getInteger("chatapp.upload.chunkBytes", 8 * 1024);
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long FINISH_TIMEOUT_SECONDS = 10;
+    
+    private final ChatService chatService;
+    private final String uploadId;
+    private final BandwidthEstimator linkEstimator;
+    private final ExecutorService sender;
+    
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream(CHUNK_BYTES);
+    private long queuedBytes;
+    private volatile long acknowledgedBytes;
+    private volatile boolean failed;
+    
+    ChunkedUpload(ChatService chatService, String uploadId, BandwidthEstimator linkEstimator) {
+        this.chatService = chatService;
+        this.uploadId = uploadId;
+        this.linkEstimator = linkEstimator;
+        this.sender = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "upload-" + uploadId.substring(0, 8));
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    public String getUploadId() {
+        return uploadId;
+    }
+    
+    public synchronized void write(byte[] data) {
+        if (failed || data.length == 0) {
+            return;
+        }
+        pending.write(data, 0, data.length);
+        if (pending.size() >= CHUNK_BYTES) {
+            flush();
+        }
+    }
+    
+    private void flush() {
+        if (pending.size() == 0) {
+            return;
+        }
+        byte[] chunk = pending.toByteArray();
+        long offset = queuedBytes;
+        queuedBytes += chunk.length;
+        pending = new ByteArrayOutputStream(CHUNK_BYTES);
+        sender.execute(() -> sendChunk(offset, chunk));
+    }
+    
+    private void sendChunk(long offset, byte[] chunk) {
+        if (failed) {
+            return;
+        }
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try {
+                long start = System.nanoTime();
+                acknowledgedBytes = chatService.appendUpload(uploadId, offset, chunk);
+                linkEstimator.recordTransfer(chunk.length, System.nanoTime() - start);
+                return;
+            } catch (RemoteException e) {
+                LOGGER.log(Level.WARNING, "Upload chunk at " + offset + " failed (attempt " + attempt + ")", e);
+            }
+        }
+        failed = true;
+    }
+    
+    /**
+     * Sends whatever is still buffered and waits until the server has acknowledged every
+     * byte. Returns false if the upload failed and the content has to be sent another way.
+     */
+    public boolean finish() {
+        synchronized (this) {
+            flush();
+        }
+        sender.shutdown();
+        try {
+            if (!sender.awaitTermination(FINISH_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                LOGGER.warning("Timed out waiting for upload " + uploadId);
+                failed = true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failed = true;
+        }
+        return !failed && acknowledgedBytes == queuedBytes;
+    }
+    
+    public void abort() {
+        failed = true;
+        sender.shutdownNow();
+        try {
+            chatService.abortUpload(uploadId);
+        } catch (RemoteException e) {
+            LOGGER.log(Level.FINE, "Could not abort upload " + uploadId, e);
+        }
+    }
+    
+    public boolean isFailed() {
+        return failed;
+    }
+    
+    public long getAcknowledgedBytes() {
+        return acknowledgedBytes;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,242 @@
+package com.chatapp.client;
+
+import com.chatapp.common.Message;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only local copy of one user's chat history on one server, so a reconnect or a
+ * restart only has to fetch what arrived since the last sync.
+ *
+ * The log holds two kinds of records:
+ * <pre>
+ * length:i32 (>= 0)  serialized Message
+ * -1:i32             historyId:UTF lastSequence:i64
+ * </pre>
+ * The second is a sync marker, written after each completed sync and on close: the server
+ * run the sequence numbers belong to and how far the history has been synced. Messages
+ * appended after the last marker do not move the sync point on their own, since one that
+ * arrived live while a sync failed may sit after a gap; after a crash they are fetched
+ * again and dropped as duplicates. A torn record at the end is cut off when the log is
+ * opened.
+ */
+public class HistoryStore {
+    private static final Logger LOGGER = Logger.getLogger(HistoryStore.class.getName());
+    
+    private static final int REPLAY_MESSAGES = Integer.getInteger("chatapp.history.replayMessages", 500);
+    // Rewrite the log once it holds this many times what is replayed
+    private static final int COMPACT_FACTOR = 4;
+    private static final int SYNC_MARKER = -1;
+    
+    private final Path logPath;
+    private DataOutputStream out;
+    private String historyId;
+    private long lastSequence;
+    private boolean synced;
+    private long appended;
+    
+    private HistoryStore(Path logPath) {
+        this.logPath = logPath;
+    }
+    
+    /**
+     * The store for {@code userName} on the server at {@code serverHost:serverPort}, under
+     * {@code chatapp.history.dir}.
+     */
+    public static HistoryStore forServer(String serverHost, int serverPort, String userName) {
+        return new HistoryStore(storePath(serverHost, serverPort, userName, ".log"));
+    }
+    
+    /**
+     * Where per-server, per-user client state with the given suffix is kept.
+     */
+    static Path storePath(String serverHost, int serverPort, String userName, String suffix) {
+        String directory = System.getProperty("chatapp.history.dir",
+                System.getProperty("user.home") + File.separator + ".chatapp" + File.separator + "history");
+        return Paths.get(directory, sanitize(serverHost + "_" + serverPort + "_" + userName) + suffix);
+    }
+    
+    /**
+     * Reads the log and returns its most recent {@code chatapp.history.replayMessages}
+     * messages, oldest first; afterwards new messages can be appended.
+     */
+    public synchronized List<Message> open() throws IOException {
+        Files.createDirectories(logPath.getParent());
+        Deque<Message> recent = new ArrayDeque<>();
+        long records = 0;
+        long validLength = 0;
+        
+        if (Files.exists(logPath)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logPath)))) {
+                while (true) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    try {
+                        if (length == SYNC_MARKER) {
+                            historyId = in.readUTF();
+                            lastSequence = in.readLong();
+                            validLength += 4 + 2 + historyId.getBytes(StandardCharsets.UTF_8).length + 8;
+                            continue;
+                        }
+                        byte[] data = new byte[length];
+                        in.readFully(data);
+                        Message message = deserialize(data);
+                        validLength += 4 + length;
+                        records++;
+                        recent.addLast(message);
+                        if (recent.size() > REPLAY_MESSAGES) {
+                            recent.removeFirst();
+                        }
+                    } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                        LOGGER.warning("Discarding damaged tail of " + logPath + " after " + validLength + " bytes");
+                        break;
+                    }
+                }
+            }
+            try (FileChannel channel = FileChannel.open(logPath, StandardOpenOption.WRITE)) {
+                if (channel.size() > validLength) {
+                    channel.truncate(validLength);
+                }
+            }
+        }
+        
+        List<Message> messages = new ArrayList<>(recent);
+        if (records > (long) REPLAY_MESSAGES * COMPACT_FACTOR) {
+            compact(messages);
+        }
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(logPath,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+        
+        LOGGER.info("Loaded " + messages.size() + " of " + records + " stored messages from " + logPath
+                + ", synced to sequence " + lastSequence);
+        return messages;
+    }
+    
+    /**
+     * The server run the store was last synced with, or null if never.
+     */
+    public synchronized String getHistoryId() {
+        return historyId;
+    }
+    
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+    
+    /**
+     * Records that the history of server run {@code syncedHistoryId} has been fetched up to
+     * {@code sequence}. From here on, live messages advance the sync point as they are appended.
+     */
+    public synchronized void markSynced(String syncedHistoryId, long sequence) throws IOException {
+        if (!syncedHistoryId.equals(historyId)) {
+            // The server started over and its sequence numbers with it
+            historyId = syncedHistoryId;
+            lastSequence = 0;
+        }
+        lastSequence = Math.max(lastSequence, sequence);
+        synced = true;
+        writeMarker(out);
+        out.flush();
+    }
+    
+    /**
+     * Appends a message from the server's history. Messages without a sequence number are
+     * not part of it and are ignored.
+     */
+    public synchronized void append(Message message) throws IOException {
+        if (out == null || message.getSequence() <= 0) {
+            return;
+        }
+        byte[] data = serialize(message);
+        out.writeInt(data.length);
+        out.write(data);
+        // Not forced to disk: losing the tail only means fetching it again on the next sync
+        out.flush();
+        appended++;
+        if (synced) {
+            lastSequence = Math.max(lastSequence, message.getSequence());
+        }
+    }
+    
+    public synchronized void close() {
+        if (out != null) {
+            try {
+                if (synced) {
+                    writeMarker(out);
+                }
+                out.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error closing history log " + logPath, e);
+            }
+            out = null;
+            LOGGER.info("History log closed after " + appended + " new messages, synced to sequence " + lastSequence);
+        }
+    }
+    
+    private void compact(List<Message> retained) throws IOException {
+        Path temp = logPath.resolveSibling(logPath.getFileName() + ".tmp");
+        try (DataOutputStream compacted = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            for (Message message : retained) {
+                byte[] data = serialize(message);
+                compacted.writeInt(data.length);
+                compacted.write(data);
+            }
+            if (historyId != null) {
+                writeMarker(compacted);
+            }
+        }
+        Files.move(temp, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.info("Compacted " + logPath + " to " + retained.size() + " messages");
+    }
+    
+    private void writeMarker(DataOutputStream stream) throws IOException {
+        stream.writeInt(SYNC_MARKER);
+        stream.writeUTF(historyId);
+        stream.writeLong(lastSequence);
+    }
+    
+    private static byte[] serialize(Message message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream objects = new ObjectOutputStream(bytes)) {
+            objects.writeObject(message);
+        }
+        return bytes.toByteArray();
+    }
+    
+    private static Message deserialize(byte[] data) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream objects = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            return (Message) objects.readObject();
+        }
+    }
+    
+    private static String sanitize(String name) {
+        return name.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+}
\ No newline at end of file
@@ -0,0 +1,280 @@
+package com.chatapp.client;
+
+import com.chatapp.common.Message;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Byte-budgeted store of the messages a client has received this session.
+ *
+ * Recently used messages are kept on the heap in LRU order. When the budget is exceeded
+ * the least recently used ones are serialized to an append-only spill file and only their
+ * offset is kept, so a long session costs a few dozen bytes per old message instead of
+ * its text and inline media. Looking up a spilled message reads it back with one
+ * positioned read and makes it recent again.
+ *
+ * A message changed after it was loaded (e.g. its delivery status) must be reported with
+ * {@link #markChanged} so it is written out again when evicted; stale copies in the spill
+ * file are simply left behind and the file is deleted on {@link #close}.
+ */
+public class MessageCache {
+    private static final Logger LOGGER = Logger.getLogger(MessageCache.class.getName());
+    
+    private static final long DEFAULT_MAX_BYTES = Long.getLong("chatapp.messageCache.maxBytes", 32L * 1024 * 1024);
+    // Object header, IDs, sender name, timestamps and collections of a message without content
+    private static final int MESSAGE_OVERHEAD_BYTES = 512;
+    
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> resident = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<String, long[]> spilled = new HashMap<>();
+    private final List<String> order = new ArrayList<>();
+    private long residentBytes;
+    
+    private Path spillPath;
+    private FileChannel spillChannel;
+    private long spillBytes;
+    
+    private long hits;
+    private long spillReads;
+    private long spillWrites;
+    
+    public MessageCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+    
+    public MessageCache(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+    }
+    
+    /**
+     * Adds a message, or replaces the stored copy of one with the same ID.
+     */
+    public synchronized void put(Message message) {
+        String messageId = message.getMessageId();
+        if (!resident.containsKey(messageId) && !spilled.containsKey(messageId)) {
+            order.add(messageId);
+        }
+        spilled.remove(messageId);
+        
+        long size = estimateSize(message);
+        Entry previous = resident.put(messageId, new Entry(message, size, false));
+        if (previous != null) {
+            residentBytes -= previous.size;
+        }
+        residentBytes += size;
+        evict();
+    }
+    
+    public synchronized Message get(String messageId) {
+        if (messageId == null) {
+            return null;
+        }
+        Entry entry = resident.get(messageId);
+        if (entry != null) {
+            hits++;
+            return entry.message;
+        }
+        
+        long[] location = spilled.get(messageId);
+        if (location == null) {
+            return null;
+        }
+        Message message = readSpilled(messageId, location);
+        if (message != null) {
+            // Still has an up-to-date copy on disk, so evicting it again costs no write
+            long size = estimateSize(message);
+            resident.put(messageId, new Entry(message, size, true));
+            residentBytes += size;
+            evict();
+        }
+        return message;
+    }
+    
+    public synchronized boolean contains(String messageId) {
+        return resident.containsKey(messageId) || spilled.containsKey(messageId);
+    }
+
+    /**
+     * Records that a message obtained from {@link #get} was modified in place.
+     */
+    public synchronized void markChanged(String messageId) {
+        Entry entry = resident.get(messageId);
+        if (entry != null) {
+            entry.persisted = false;
+        }
+    }
+    
+    /**
+     * All messages in the order they were added. Spilled messages are read back for this
+     * without being made resident, so it is meant for occasional use such as export.
+     */
+    public synchronized List<Message> getAll() {
+        List<Message> messages = new ArrayList<>(order.size());
+        for (String messageId : order) {
+            Entry entry = resident.get(messageId);
+            Message message = entry != null ? entry.message : readSpilled(messageId, spilled.get(messageId));
+            if (message != null) {
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
+    
+    public synchronized int size() {
+        return order.size();
+    }
+    
+    public synchronized int getResidentCount() {
+        return resident.size();
+    }
+    
+    public synchronized long getResidentBytes() {
+        return residentBytes;
+    }
+    
+    public synchronized long getSpillFileBytes() {
+        return spillBytes;
+    }
+    
+    public synchronized void close() {
+        LOGGER.info("Closing " + this);
+        if (spillChannel != null) {
+            try {
+                spillChannel.close();
+                Files.deleteIfExists(spillPath);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error deleting message spill file " + spillPath, e);
+            }
+            spillChannel = null;
+        }
+        resident.clear();
+        spilled.clear();
+        order.clear();
+        residentBytes = 0;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return String.format("MessageCache[messages=%d, resident=%d, bytes=%d/%d, hits=%d, spillReads=%d, spillWrites=%d, spillFile=%d]",
+                order.size(), resident.size(), residentBytes, maxBytes, hits, spillReads, spillWrites, spillBytes);
+    }
+    
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = resident.entrySet().iterator();
+        // Never spill the newest message; the GUI is about to render it
+        while (residentBytes > maxBytes && resident.size() > 1 && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            Entry entry = eldest.getValue();
+            if (!entry.persisted) {
+                long[] location = writeSpilled(entry.message);
+                if (location == null) {
+                    // Disk trouble: keep it on the heap rather than lose it
+                    return;
+                }
+                spilled.put(eldest.getKey(), location);
+            }
+            it.remove();
+            residentBytes -= entry.size;
+        }
+    }
+    
+    private long[] writeSpilled(Message message) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(message);
+            }
+            if (spillChannel == null) {
+                spillPath = Files.createTempFile("chatapp-messages-", ".spill");
+                spillPath.toFile().deleteOnExit();
+                spillChannel = FileChannel.open(spillPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            
+            long offset = spillBytes;
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                spillChannel.write(buffer, offset + buffer.position());
+            }
+            spillBytes += buffer.capacity();
+            spillWrites++;
+            return new long[] {offset, buffer.capacity()};
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not spill message " + message.getMessageId(), e);
+            return null;
+        }
+    }
+    
+    private Message readSpilled(String messageId, long[] location) {
+        if (location == null || spillChannel == null) {
+            return null;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate((int) location[1]);
+            while (buffer.hasRemaining()) {
+                if (spillChannel.read(buffer, location[0] + buffer.position()) < 0) {
+                    throw new IOException("Spill file truncated");
+                }
+            }
+            spillReads++;
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(buffer.array()))) {
+                return (Message) in.readObject();
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            LOGGER.log(Level.WARNING, "Could not read spilled message " + messageId, e);
+            return null;
+        }
+    }
+    
+    /**
+     * Rough heap footprint: text as UTF-16 plus any inline media and thumbnails.
+     */
+    static long estimateSize(Message message) {
+        long size = MESSAGE_OVERHEAD_BYTES;
+        if (message.getContent() != null) {
+            size += 2L * message.getContent().length();
+        }
+        if (message.getFileAttachment() != null && message.getFileAttachment().getEncodedContent() != null) {
+            size += 2L * message.getFileAttachment().getEncodedContent().length();
+        }
+        if (message.getVoiceAttachment() != null) {
+            size += length(message.getVoiceAttachment().getAudioData()) + length(message.getVoiceAttachment().getWaveform());
+        }
+        if (message.getVideoAttachment() != null) {
+            size += length(message.getVideoAttachment().getVideoData()) + length(message.getVideoAttachment().getThumbnailData());
+        }
+        return size;
+    }
+    
+    private static long length(byte[] data) {
+        return data != null ? data.length : 0;
+    }
+    
+    private static class Entry {
+        final Message message;
+        final long size;
+        boolean persisted;
+        
+        Entry(Message message, long size, boolean persisted) {
+            this.message = message;
+            this.size = size;
+            this.persisted = persisted;
+        }
+    }
+}
\ No newline at end of file
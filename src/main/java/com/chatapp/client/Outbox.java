@@ -0,0 +1,167 @@
+package com.chatapp.client;
+
+import com.chatapp.common.Message;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Messages written but not yet accepted by the server, in the order they were written.
+ *
+ * Each one is kept as its own file, {@code <order>-<messageId>.msg}, written to a temporary
+ * name and moved into place so a crash never leaves half a message behind; deleting the
+ * file is the acknowledgement. Whatever is left when the client starts again is sent then.
+ * Resending one the server already took is harmless, since the server recognises the
+ * message ID.
+ */
+public class Outbox {
+    private static final Logger LOGGER = Logger.getLogger(Outbox.class.getName());
+    
+    private static final String SUFFIX = ".msg";
+    
+    private final Path directory;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+    private long nextOrder;
+    
+    /**
+     * An outbox persisted under {@code directory}, or kept in memory only if it is null.
+     */
+    public Outbox(Path directory) {
+        this.directory = directory;
+    }
+    
+    /**
+     * The outbox for {@code userName} on the server at {@code serverHost:serverPort}, next to
+     * its {@link HistoryStore}.
+     */
+    public static Outbox forServer(String serverHost, int serverPort, String userName) {
+        return new Outbox(HistoryStore.storePath(serverHost, serverPort, userName, ".outbox"));
+    }
+    
+    /**
+     * Loads the messages left over from an earlier run, oldest first.
+     */
+    public synchronized List<Entry> open() throws IOException {
+        if (directory == null) {
+            return new ArrayList<>();
+        }
+        Files.createDirectories(directory);
+        
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        files.sort(null);
+        
+        for (Path file : files) {
+            try (ObjectInputStream in = new ObjectInputStream(Files.newInputStream(file))) {
+                String recipientId = (String) in.readObject();
+                Message message = (Message) in.readObject();
+                entries.put(message.getMessageId(), new Entry(message, recipientId, file));
+                nextOrder = Math.max(nextOrder, orderOf(file) + 1);
+            } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Dropping unreadable outbox entry " + file, e);
+                Files.deleteIfExists(file);
+            }
+        }
+        if (!entries.isEmpty()) {
+            LOGGER.info(entries.size() + " unsent messages found in " + directory);
+        }
+        return new ArrayList<>(entries.values());
+    }
+    
+    /**
+     * Queues a message. It stays queued in memory even if it cannot be written to disk.
+     */
+    public synchronized void add(Message message, String recipientId) throws IOException {
+        Entry entry = new Entry(message, recipientId, null);
+        entries.put(message.getMessageId(), entry);
+        if (directory == null) {
+            return;
+        }
+        
+        Path file = directory.resolve(String.format("%012d-%s%s", nextOrder++, message.getMessageId(), SUFFIX));
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (ObjectOutputStream out = new ObjectOutputStream(Files.newOutputStream(temp))) {
+            out.writeObject(recipientId);
+            out.writeObject(message);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+        entry.file = file;
+    }
+    
+    /**
+     * Drops a message the server has accepted or rejected for good.
+     */
+    public synchronized void remove(String messageId) {
+        Entry entry = entries.remove(messageId);
+        if (entry != null && entry.file != null) {
+            try {
+                Files.deleteIfExists(entry.file);
+            } catch (IOException e) {
+                // Sent again on the next start, where the server drops it as a duplicate
+                LOGGER.log(Level.WARNING, "Could not delete outbox entry " + entry.file, e);
+            }
+        }
+    }
+    
+    /**
+     * Up to {@code max} of the oldest queued messages.
+     */
+    public synchronized List<Entry> peek(int max) {
+        List<Entry> batch = new ArrayList<>(Math.min(max, entries.size()));
+        for (Entry entry : entries.values()) {
+            if (batch.size() == max) {
+                break;
+            }
+            batch.add(entry);
+        }
+        return batch;
+    }
+    
+    public synchronized int size() {
+        return entries.size();
+    }
+    
+    private static long orderOf(Path file) {
+        String name = file.getFileName().toString();
+        int dash = name.indexOf('-');
+        try {
+            return dash > 0 ? Long.parseLong(name.substring(0, dash)) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+    
+    public static final class Entry {
+        private final Message message;
+        private final String recipientId;
+        private Path file;
+        
+        Entry(Message message, String recipientId, Path file) {
+            this.message = message;
+            this.recipientId = recipientId;
+            this.file = file;
+        }
+        
+        public Message getMessage() {
+            return message;
+        }
+        
+        public String getRecipientId() {
+            return recipientId;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,35 @@
+package com.chatapp.client;
+
+import com.chatapp.common.ChatService;
+import com.chatapp.media.BandwidthEstimator;
+import com.chatapp.media.VoiceSource;
+
+import java.io.IOException;
+
+/**
+ * Reads a server-stored voice message range by range, so playback can start before
+ * (and without ever) downloading the whole file.
+ */
+public class RemoteVoiceSource implements VoiceSource {
+    private final ChatService chatService;
+    private final String fileId;
+    private final BandwidthEstimator linkEstimator;
+    
+    public RemoteVoiceSource(ChatService chatService, String fileId, BandwidthEstimator linkEstimator) {
+        this.chatService = chatService;
+        this.fileId = fileId;
+        this.linkEstimator = linkEstimator;
+    }
+    
+    @Override
+    public int read(long offset, byte[] buffer, int bufferOffset, int length) throws IOException {
+        long start = System.nanoTime();
+        byte[] range = chatService.getFileRange(fileId, offset, length);
+        if (range == null) {
+            throw new IOException("Voice message not found on server: " + fileId);
+        }
+        linkEstimator.recordTransfer(range.length, System.nanoTime() - start);
+        System.arraycopy(range, 0, buffer, bufferOffset, range.length);
+        return range.length;
+    }
+}
\ No newline at end of file
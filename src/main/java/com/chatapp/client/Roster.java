@@ -0,0 +1,59 @@
+package com.chatapp.client;
+
+import com.chatapp.common.ClientInfo;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Local copy of who else is online, kept current by the server's connect, disconnect,
+ * profile and presence callbacks so nothing on those paths has to ask the server.
+ * Entries are kept in the order users joined.
+ */
+public class Roster {
+    private final Map<String, ClientInfo> clients = new LinkedHashMap<>();
+    
+    public synchronized void put(ClientInfo clientInfo) {
+        clients.put(clientInfo.getId(), clientInfo);
+    }
+    
+    /**
+     * Replaces the entry of a user already on the roster; returns false if there is none.
+     */
+    public synchronized boolean update(ClientInfo clientInfo) {
+        if (!clients.containsKey(clientInfo.getId())) {
+            return false;
+        }
+        clients.put(clientInfo.getId(), clientInfo);
+        return true;
+    }
+    
+    public synchronized ClientInfo remove(String clientId) {
+        return clients.remove(clientId);
+    }
+    
+    public synchronized ClientInfo get(String clientId) {
+        return clients.get(clientId);
+    }
+    
+    public synchronized void updatePresence(String clientId, ClientInfo.PresenceStatus status) {
+        ClientInfo clientInfo = clients.get(clientId);
+        if (clientInfo != null) {
+            clientInfo.setPresenceStatus(status);
+        }
+    }
+    
+    public synchronized List<ClientInfo> getClients() {
+        return new ArrayList<>(clients.values());
+    }
+    
+    public synchronized int size() {
+        return clients.size();
+    }
+    
+    public synchronized void clear() {
+        clients.clear();
+    }
+}
\ No newline at end of file
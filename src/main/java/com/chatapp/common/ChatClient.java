@@ -21,11 +21,13 @@ public interface ChatClient extends Remote {
     
     void clientPresenceUpdated(String clientId, ClientInfo.PresenceStatus status) throws RemoteException;
     
-    void receiveVoiceCall(String callerId) throws RemoteException;
+    void receiveVoiceCall(String callerId, String callId) throws RemoteException;
     
-    void receiveVideoCall(String callerId) throws RemoteException;
+    void receiveVideoCall(String callerId, String callId) throws RemoteException;
     
-    void callAccepted(String clientId, String callId) throws RemoteException;
+    void callAccepted(String clientId, String callId, String mediaEndpoint) throws RemoteException;
     
     void callRejected(String clientId, String reason) throws RemoteException;
+    
+    void callEnded(String clientId, String callId) throws RemoteException;
 }
\ No newline at end of file
@@ -11,12 +11,40 @@ public interface ChatService extends Remote {
     
     void unregisterClient(String clientId) throws RemoteException;
     
-    void sendMessage(Message message, String senderId, String recipientId) throws RemoteException;
+    /**
+     * Registers a client that keeps its session alive with {@link #heartbeat}. Returns its
+     * client ID, a token for {@link #resumeSession} and the current history ID.
+     */
+    String[] registerSession(ChatClient client) throws RemoteException;
+    
+    /**
+     * Returns false if the session has timed out and must be resumed.
+     */
+    boolean heartbeat(String clientId) throws RemoteException;
+    
+    /**
+     * Takes a dropped session back under its old client ID, without announcing the client
+     * to the others again. Returns false if the token is wrong or the session is gone.
+     */
+    boolean resumeSession(ChatClient client, String clientId, String resumeToken) throws RemoteException;
+    
+    /**
+     * Returns the message's sequence number in the chat history.
+     */
+    long sendMessage(Message message, String senderId, String recipientId) throws RemoteException;
+    
+    /**
+     * Sends several messages in one call, each to the recipient at the same index. Returns
+     * their sequence numbers, or -1 for one the server rejected.
+     */
+    long[] sendMessages(List<Message> messages, String senderId, List<String> recipientIds) throws RemoteException;
     
     List<ClientInfo> getOnlineClients() throws RemoteException;
     
     List<Message> getChatHistory(String clientId) throws RemoteException;
     
+    HistoryDelta getChatHistorySince(String clientId, String historyId, long afterSequence) throws RemoteException;
+    
     void updateMessageStatus(String messageId, Message.MessageStatus status) throws RemoteException;
     
     void updateClientProfile(String clientId, ClientInfo clientInfo) throws RemoteException;
@@ -37,9 +65,32 @@ public interface ChatService extends Remote {
     
     Map<String, Integer> getUnreadMessageCount(String clientId) throws RemoteException;
     
-    String storeFile(String fileName, String encodedContent, long fileSize, String contentType) throws RemoteException;
+    /**
+     * Stores a file charged to the calling client's quota.
+     */
+    String storeFile(String clientId, String fileName, String encodedContent, long fileSize, String contentType) throws RemoteException;
     
     String getFileContent(String fileId) throws RemoteException;
     
+    byte[] getFileRange(String fileId, long offset, int length) throws RemoteException;
+    
     String[] getFileMetadata(String fileId) throws RemoteException;
+    
+    byte[] getFilePreview(String fileId, int maxDimension) throws RemoteException;
+    
+    String[] getRendition(String fileId, int maxDimension, int maxSampleRate) throws RemoteException;
+    
+    StorageUsage getStorageUsage(String clientId) throws RemoteException;
+    
+    String beginUpload(String clientId, String fileName, String contentType) throws RemoteException;
+    
+    long appendUpload(String uploadId, long offset, byte[] chunk) throws RemoteException;
+    
+    void abortUpload(String uploadId) throws RemoteException;
+    
+    String startCall(String callerId, String calleeId, boolean video, int mediaPort) throws RemoteException;
+    
+    String answerCall(String callId, String clientId, boolean accept, int mediaPort) throws RemoteException;
+    
+    void endCall(String callId, String clientId) throws RemoteException;
 }
\ No newline at end of file
@@ -0,0 +1,43 @@
+package com.chatapp.common;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * The part of the server's chat history a client has not seen yet.
+ */
+public class HistoryDelta implements Serializable {
+    private static final long serialVersionUID = 1L;
+    
+    private final String historyId;
+    private final List<Message> messages;
+    private final boolean complete;
+    
+    public HistoryDelta(String historyId, List<Message> messages, boolean complete) {
+        this.historyId = historyId;
+        this.messages = messages;
+        this.complete = complete;
+    }
+    
+    /**
+     * Identifies the server run the sequence numbers belong to.
+     */
+    public String getHistoryId() {
+        return historyId;
+    }
+    
+    /**
+     * New messages in sequence order.
+     */
+    public List<Message> getMessages() {
+        return messages;
+    }
+    
+    /**
+     * False when messages after the requested sequence have already been dropped from the
+     * server's history, leaving a gap before the first one returned.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+}
\ No newline at end of file
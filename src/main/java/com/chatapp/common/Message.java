@@ -23,6 +23,7 @@ public class Message implements Serializable {
     private VoiceAttachment voiceAttachment;
     private VideoAttachment videoAttachment;
     private String messageId;
+    private long sequence; // Position in the server's chat history, 0 if not part of it
     private Map<String, String> formattingTags = new HashMap<>();
     private List<MessageReaction> reactions = new ArrayList<>();
     
@@ -39,7 +40,8 @@ public class Message implements Serializable {
         SENDING,
         SENT,
         DELIVERED,
-        READ
+        READ,
+        FAILED
     }
     
     public Message(String content, String senderId, String senderName, MessageType type) {
@@ -91,6 +93,14 @@ public class Message implements Serializable {
         return senderId;
     }
     
+    /**
+     * Client IDs change between sessions, so a message written in one and sent in a later
+     * one has to be moved over to the sender's current ID.
+     */
+    public void setSenderId(String senderId) {
+        this.senderId = senderId;
+    }
+    
     public String getSenderName() {
         return senderName;
     }
@@ -107,6 +117,14 @@ public class Message implements Serializable {
         return messageId;
     }
     
+    public long getSequence() {
+        return sequence;
+    }
+    
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+    
     public String getReplyToMessageId() {
         return replyToMessageId;
     }
@@ -178,6 +196,11 @@ public class Message implements Serializable {
     public static class FileAttachment implements Serializable {
         private static final long serialVersionUID = 1L;
         
+        // Preview renditions the server generates for image attachments (longest side in pixels)
+        public static final int PREVIEW_PLACEHOLDER = 16;
+        public static final int PREVIEW_SMALL = 320;
+        public static final int PREVIEW_LARGE = 1024;
+        
         private String fileName;
         private String encodedContent;
         private long fileSize;
@@ -235,17 +258,58 @@ public class Message implements Serializable {
         
         private byte[] audioData;
         private int durationInSeconds;
-        private String format = "audio/mp3"; // Default format
+        private String format = "audio/L16;rate=44100"; // Raw 16-bit mono PCM unless the sender says otherwise
+        private String uploadId; // Upload session the audio was streamed into while recording
+        private String fileId; // ID of the audio stored on the server, replaces audioData
+        private byte[] waveform; // Peak/RMS summary for drawing the timeline, see WaveformSummary
         
         public VoiceAttachment(byte[] audioData, int durationInSeconds) {
             this.audioData = audioData;
             this.durationInSeconds = durationInSeconds;
         }
         
+        public static VoiceAttachment fromUpload(String uploadId, int durationInSeconds) {
+            VoiceAttachment attachment = new VoiceAttachment(null, durationInSeconds);
+            attachment.uploadId = uploadId;
+            return attachment;
+        }
+        
         public byte[] getAudioData() {
             return audioData;
         }
         
+        public void setAudioData(byte[] audioData) {
+            this.audioData = audioData;
+        }
+        
+        public String getUploadId() {
+            return uploadId;
+        }
+        
+        public void setUploadId(String uploadId) {
+            this.uploadId = uploadId;
+        }
+        
+        public String getFileId() {
+            return fileId;
+        }
+        
+        public void setFileId(String fileId) {
+            this.fileId = fileId;
+        }
+        
+        public boolean isStoredOnServer() {
+            return fileId != null;
+        }
+        
+        public byte[] getWaveform() {
+            return waveform;
+        }
+        
+        public void setWaveform(byte[] waveform) {
+            this.waveform = waveform;
+        }
+        
         public int getDurationInSeconds() {
             return durationInSeconds;
         }
@@ -272,6 +336,7 @@ public class Message implements Serializable {
         private byte[] thumbnailData;
         private int durationInSeconds;
         private String format = "video/mp4"; // Default format
+        private String fileId; // ID of the video stored on the server, replaces videoData
         
         public VideoAttachment(byte[] videoData, byte[] thumbnailData, int durationInSeconds) {
             this.videoData = videoData;
@@ -283,6 +348,22 @@ public class Message implements Serializable {
             return videoData;
         }
         
+        public void setVideoData(byte[] videoData) {
+            this.videoData = videoData;
+        }
+        
+        public String getFileId() {
+            return fileId;
+        }
+        
+        public void setFileId(String fileId) {
+            this.fileId = fileId;
+        }
+        
+        public boolean isStoredOnServer() {
+            return fileId != null;
+        }
+        
         public byte[] getThumbnailData() {
             return thumbnailData;
         }
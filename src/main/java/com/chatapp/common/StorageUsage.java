@@ -0,0 +1,45 @@
+package com.chatapp.common;
+
+import java.io.Serializable;
+
+public class StorageUsage implements Serializable {
+    private static final long serialVersionUID = 1L;
+    
+    private final long usedBytes;
+    private final long quotaBytes;
+    private final long fileCount;
+    private final long serverUsedBytes;
+    private final long serverQuotaBytes;
+    
+    public StorageUsage(long usedBytes, long quotaBytes, long fileCount, long serverUsedBytes, long serverQuotaBytes) {
+        this.usedBytes = usedBytes;
+        this.quotaBytes = quotaBytes;
+        this.fileCount = fileCount;
+        this.serverUsedBytes = serverUsedBytes;
+        this.serverQuotaBytes = serverQuotaBytes;
+    }
+    
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+    
+    public long getQuotaBytes() {
+        return quotaBytes;
+    }
+    
+    public long getRemainingBytes() {
+        return Math.max(0, quotaBytes - usedBytes);
+    }
+    
+    public long getFileCount() {
+        return fileCount;
+    }
+    
+    public long getServerUsedBytes() {
+        return serverUsedBytes;
+    }
+    
+    public long getServerQuotaBytes() {
+        return serverQuotaBytes;
+    }
+}
\ No newline at end of file
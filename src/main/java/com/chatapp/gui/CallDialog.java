@@ -0,0 +1,365 @@
+package com.chatapp.gui;
+
+import com.chatapp.client.ChatClientImpl;
+import com.chatapp.media.CallRateController;
+import com.chatapp.media.CameraSource;
+import com.chatapp.media.JitterBuffer;
+import com.chatapp.media.MediaChannel;
+import com.chatapp.media.VideoCall;
+import com.chatapp.media.VoiceCall;
+
+import javax.sound.sampled.LineUnavailableException;
+import javax.swing.*;
+import javax.swing.border.EmptyBorder;
+import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.awt.image.BufferedImage;
+import java.net.SocketException;
+import java.rmi.RemoteException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-call window. The dialog owns the call's {@link MediaChannel}, its {@link VoiceCall}
+ * and, for video calls, the {@link VideoCall} and camera, and follows the call's signaling
+ * through a {@link ChatClientImpl.CallListener}; hanging up or closing the window ends the
+ * call on both sides.
+ */
+public class CallDialog extends JDialog {
+    private static final Logger LOGGER = Logger.getLogger(CallDialog.class.getName());
+    
+    private final ChatClientImpl chatClient;
+    private final String peerId;
+    private final boolean video;
+    private final MediaChannel channel;
+    private final ChatClientImpl.CallListener callListener;
+    private String callId;
+    private VoiceCall voiceCall;
+    private VideoCall videoCall;
+    private CameraSource camera;
+    private CallRateController rateController;
+    private long connectedAt;
+    private boolean ended;
+    
+    private JLabel statusLabel;
+    private JLabel statsLabel;
+    private JToggleButton muteButton;
+    private VideoView videoView;
+    private long lastDisplayedFrames;
+    private Timer statsTimer;
+    
+    private CallDialog(Window owner, ChatClientImpl chatClient, String peerId, String peerName, boolean video) throws SocketException {
+        super(owner, (video ? "Video call with " : "Call with ") + peerName);
+        this.chatClient = chatClient;
+        this.peerId = peerId;
+        this.video = video;
+        this.channel = new MediaChannel();
+        channel.start();
+        
+        initComponents();
+        
+        callListener = new ChatClientImpl.CallListener() {
+            @Override
+            public void callAccepted(String clientId, String acceptedCallId, String mediaEndpoint) {
+                SwingUtilities.invokeLater(() -> {
+                    if (isThisCall(clientId, acceptedCallId)) {
+                        callId = acceptedCallId;
+                        connect(mediaEndpoint);
+                    }
+                });
+            }
+            
+            @Override
+            public void callRejected(String clientId, String reason) {
+                SwingUtilities.invokeLater(() -> {
+                    if (peerId.equals(clientId) && connectedAt == 0) {
+                        finish("Call " + reason);
+                    }
+                });
+            }
+            
+            @Override
+            public void callEnded(String clientId, String endedCallId) {
+                SwingUtilities.invokeLater(() -> {
+                    if (isThisCall(clientId, endedCallId)) {
+                        finish("Call ended");
+                    }
+                });
+            }
+        };
+        chatClient.addCallListener(callListener);
+        
+        setDefaultCloseOperation(JDialog.DO_NOTHING_ON_CLOSE);
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                hangUp();
+            }
+        });
+    }
+    
+    private boolean isThisCall(String clientId, String eventCallId) {
+        return peerId.equals(clientId) && (callId == null || callId.equals(eventCallId));
+    }
+    
+    private void initComponents() {
+        JPanel panel = new JPanel(new BorderLayout(10, 10));
+        panel.setBorder(new EmptyBorder(15, 15, 15, 15));
+        
+        statusLabel = new JLabel("Connecting...", SwingConstants.CENTER);
+        statusLabel.setFont(new Font("Arial", Font.BOLD, 14));
+        panel.add(statusLabel, BorderLayout.NORTH);
+        
+        statsLabel = new JLabel(" ", SwingConstants.CENTER);
+        statsLabel.setFont(new Font("Arial", Font.PLAIN, 11));
+        statsLabel.setForeground(Color.GRAY);
+        if (video) {
+            videoView = new VideoView();
+            videoView.setPreferredSize(new Dimension(CameraSource.DEFAULT_WIDTH * 2, CameraSource.DEFAULT_HEIGHT * 2));
+            JPanel centerPanel = new JPanel(new BorderLayout(5, 5));
+            centerPanel.add(videoView, BorderLayout.CENTER);
+            centerPanel.add(statsLabel, BorderLayout.SOUTH);
+            panel.add(centerPanel, BorderLayout.CENTER);
+        } else {
+            panel.add(statsLabel, BorderLayout.CENTER);
+        }
+        
+        JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.CENTER, 10, 0));
+        muteButton = new JToggleButton("Mute");
+        muteButton.setEnabled(false);
+        muteButton.addActionListener(e -> {
+            if (voiceCall != null) {
+                voiceCall.setMuted(muteButton.isSelected());
+            }
+        });
+        JButton hangUpButton = new JButton("Hang Up");
+        hangUpButton.setBackground(new Color(200, 60, 60));
+        hangUpButton.setForeground(Color.WHITE);
+        hangUpButton.addActionListener(e -> hangUp());
+        buttonPanel.add(muteButton);
+        buttonPanel.add(hangUpButton);
+        panel.add(buttonPanel, BorderLayout.SOUTH);
+        
+        getContentPane().add(panel);
+        if (video) {
+            pack();
+        } else {
+            setSize(360, 160);
+        }
+        
+        statsTimer = new Timer(1000, e -> updateStats());
+    }
+    
+    /**
+     * Rings {@code recipientId} and shows the dialog while waiting for an answer.
+     */
+    public static void startCall(Component parent, ChatClientImpl chatClient, String recipientId, String recipientName, boolean video) {
+        CallDialog dialog;
+        try {
+            dialog = new CallDialog(SwingUtilities.getWindowAncestor(parent), chatClient, recipientId, recipientName, video);
+        } catch (SocketException e) {
+            LOGGER.log(Level.WARNING, "Error opening call media channel", e);
+            JOptionPane.showMessageDialog(parent, "Could not start call: " + e.getMessage(), "Call Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        dialog.statusLabel.setText("Calling " + recipientName + "...");
+        dialog.setLocationRelativeTo(parent);
+        dialog.setVisible(true);
+        try {
+            String id = chatClient.startCall(recipientId, video, dialog.channel.getLocalPort());
+            if (dialog.callId == null) {
+                dialog.callId = id;
+            }
+        } catch (RemoteException e) {
+            LOGGER.log(Level.WARNING, "Error starting call", e);
+            dialog.finish("Call failed: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Accepts an incoming call and connects straight away.
+     */
+    public static void answerCall(Component parent, ChatClientImpl chatClient, String callId, String callerId, String callerName, boolean video) {
+        CallDialog dialog;
+        try {
+            dialog = new CallDialog(SwingUtilities.getWindowAncestor(parent), chatClient, callerId, callerName, video);
+        } catch (SocketException e) {
+            LOGGER.log(Level.WARNING, "Error opening call media channel", e);
+            declineCall(chatClient, callId);
+            JOptionPane.showMessageDialog(parent, "Could not answer call: " + e.getMessage(), "Call Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        dialog.callId = callId;
+        dialog.setLocationRelativeTo(parent);
+        dialog.setVisible(true);
+        try {
+            String callerEndpoint = chatClient.answerCall(callId, true, dialog.channel.getLocalPort());
+            dialog.connect(callerEndpoint);
+        } catch (RemoteException e) {
+            LOGGER.log(Level.WARNING, "Error answering call", e);
+            dialog.finish("Call failed: " + e.getMessage());
+        }
+    }
+    
+    public static void declineCall(ChatClientImpl chatClient, String callId) {
+        try {
+            chatClient.answerCall(callId, false, 0);
+        } catch (RemoteException e) {
+            LOGGER.log(Level.WARNING, "Error declining call", e);
+        }
+    }
+    
+    private void connect(String mediaEndpoint) {
+        if (ended || connectedAt != 0) {
+            return;
+        }
+        try {
+            channel.connect(mediaEndpoint);
+            voiceCall = VoiceCall.open(channel);
+        } catch (LineUnavailableException | IllegalArgumentException e) {
+            LOGGER.log(Level.WARNING, "Error starting call audio", e);
+            if (!video) {
+                hangUp();
+                JOptionPane.showMessageDialog(getOwner(), "Could not start call audio: " + e.getMessage(), "Call Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            // A video call still works without sound
+            voiceCall = null;
+        }
+        if (voiceCall != null) {
+            voiceCall.start();
+            muteButton.setEnabled(true);
+        }
+        if (video) {
+            startVideo();
+        }
+        rateController = new CallRateController(channel, voiceCall, videoCall);
+        rateController.start();
+        connectedAt = System.currentTimeMillis();
+        statusLabel.setText("Connected 0:00");
+        statsTimer.start();
+    }
+    
+    private void startVideo() {
+        videoCall = new VideoCall(channel);
+        videoCall.setFrameListener(videoView::repaint);
+        videoCall.start();
+        
+        camera = new CameraSource(CameraSource.DEFAULT_WIDTH, CameraSource.DEFAULT_HEIGHT, CameraSource.DEFAULT_FRAME_RATE);
+        camera.setCaption("LIVE", true);
+        camera.addFrameListener(videoCall::submitFrame);
+        camera.start();
+    }
+    
+    private void updateStats() {
+        long seconds = (System.currentTimeMillis() - connectedAt) / 1000;
+        statusLabel.setText(String.format("Connected %d:%02d", seconds / 60, seconds % 60));
+        
+        StringBuilder stats = new StringBuilder();
+        if (voiceCall != null) {
+            JitterBuffer jitterBuffer = voiceCall.getJitterBuffer();
+            long expected = jitterBuffer.getReceived() + jitterBuffer.getConcealed();
+            double lossPercent = expected > 0 ? 100.0 * jitterBuffer.getConcealed() / expected : 0;
+            stats.append(String.format("Jitter %.0f ms · delay %d ms · concealed %.1f%%",
+                    jitterBuffer.getJitterMillis(), voiceCall.getPlayoutDelayMillis(), lossPercent));
+        }
+        if (videoCall != null) {
+            long displayed = videoCall.getDisplayedFrames();
+            if (stats.length() > 0) {
+                stats.append(" · ");
+            }
+            stats.append(String.format("video %d fps, %d dropped", displayed - lastDisplayedFrames, videoCall.getDroppedFrames()));
+            lastDisplayedFrames = displayed;
+        }
+        if (rateController != null) {
+            if (stats.length() > 0) {
+                stats.append(" · ");
+            }
+            stats.append(String.format("%d kbit/s", rateController.getTargetBitsPerSecond() / 1000));
+        }
+        statsLabel.setText(stats.length() > 0 ? stats.toString() : " ");
+    }
+    
+    private void hangUp() {
+        if (!ended && callId != null) {
+            try {
+                chatClient.endCall(callId);
+            } catch (RemoteException e) {
+                LOGGER.log(Level.WARNING, "Error ending call", e);
+            }
+        }
+        finish(null);
+        dispose();
+    }
+    
+    /**
+     * Releases the call's resources; with a message the dialog stays up briefly to show it.
+     */
+    private void finish(String message) {
+        if (ended) {
+            return;
+        }
+        ended = true;
+        chatClient.removeCallListener(callListener);
+        statsTimer.stop();
+        if (rateController != null) {
+            LOGGER.info("Call rate: " + rateController.getStatistics());
+            rateController.close();
+        }
+        if (camera != null) {
+            camera.stop();
+        }
+        if (videoCall != null) {
+            LOGGER.info("Video call finished: " + videoCall.getStatistics());
+            videoCall.close();
+        }
+        if (voiceCall != null) {
+            LOGGER.info("Call finished: " + voiceCall.getStatistics());
+            voiceCall.close();
+        }
+        channel.close();
+        
+        if (message == null) {
+            return;
+        }
+        statusLabel.setText(message);
+        muteButton.setEnabled(false);
+        Timer closeTimer = new Timer(1500, e -> dispose());
+        closeTimer.setRepeats(false);
+        closeTimer.start();
+    }
+    
+    /**
+     * Remote picture scaled to fit, with the local camera as a small inset. Each paint
+     * takes the newest decoded frame, so repaints that Swing coalesces simply skip frames.
+     */
+    private class VideoView extends JComponent {
+        @Override
+        protected void paintComponent(Graphics g) {
+            g.setColor(Color.BLACK);
+            g.fillRect(0, 0, getWidth(), getHeight());
+            
+            Graphics2D g2d = (Graphics2D) g;
+            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            BufferedImage remote = videoCall != null ? videoCall.acquireLatestFrame() : null;
+            if (remote != null) {
+                double scale = Math.min((double) getWidth() / remote.getWidth(), (double) getHeight() / remote.getHeight());
+                int width = (int) (remote.getWidth() * scale);
+                int height = (int) (remote.getHeight() * scale);
+                g2d.drawImage(remote, (getWidth() - width) / 2, (getHeight() - height) / 2, width, height, null);
+            }
+            
+            BufferedImage local = camera != null ? camera.getCurrentFrame() : null;
+            if (local != null) {
+                int width = getWidth() / 4;
+                int height = width * local.getHeight() / local.getWidth();
+                int x = getWidth() - width - 10;
+                int y = getHeight() - height - 10;
+                g2d.drawImage(local, x, y, width, height, null);
+                g2d.setColor(Color.WHITE);
+                g2d.drawRect(x, y, width, height);
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -1,15 +1,21 @@
 package com.chatapp.gui;
 
 import com.chatapp.client.ChatClientImpl;
+import com.chatapp.client.RemoteVoiceSource;
 import com.chatapp.common.ClientInfo;
 import com.chatapp.common.Message;
+import com.chatapp.media.ImageDownscaler;
+import com.chatapp.media.WaveformSummary;
 import com.formdev.flatlaf.intellijthemes.FlatArcDarkIJTheme;
 
+import javax.imageio.ImageIO;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import javax.swing.text.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -23,6 +29,7 @@ import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -74,6 +81,12 @@ public class ClientGUI extends JFrame {
     private static final String SENT_ICON = "✓";
     private static final String DELIVERED_ICON = "✓✓";
     private static final String READ_ICON = "✓✓";  // We'll color this differently
+    private static final String SENDING_ICON = "◷";
+    private static final String FAILED_ICON = "!";
+    
+    // Longest side of inline image previews in file bubbles
+    private static final int IMAGE_PREVIEW_SIZE = 240;
+    private static final int VIDEO_PLAYER_WIDTH = 480;
     
     public ClientGUI(ChatClientImpl chatClient) {
         this.chatClient = chatClient;
@@ -103,6 +116,16 @@ public class ClientGUI extends JFrame {
             }
         });
         
+        // History loaded while connecting, before this window was listening
+        List<Message> history = chatClient.getReceivedMessages();
+        SwingUtilities.invokeLater(() -> {
+            for (Message message : history) {
+                if (!messageBubbles.containsKey(message.getMessageId())) {
+                    appendMessage(message);
+                }
+            }
+        });
+        
         chatClient.addClientStatusListener(new ChatClientImpl.ClientStatusListener() {
             @Override
             public void clientConnected(ClientInfo clientInfo) {
@@ -131,15 +154,29 @@ public class ClientGUI extends JFrame {
             });
         });
         
-        try {
-            List<ClientInfo> onlineClients = chatClient.getOnlineClients();
-            for (ClientInfo clientInfo : onlineClients) {
-                if (!clientInfo.getId().equals(chatClient.getClientId())) {
-                    addClient(clientInfo);
-                }
+        String title = getTitle();
+        chatClient.addConnectionListener(new ChatClientImpl.ConnectionListener() {
+            @Override
+            public void connectionLost() {
+                SwingUtilities.invokeLater(() -> setTitle(title + " (reconnecting...)"));
+            }
+            
+            @Override
+            public void connectionRestored() {
+                SwingUtilities.invokeLater(() -> setTitle(title));
             }
-        } catch (RemoteException e) {
-            LOGGER.log(Level.WARNING, "Error getting online clients", e);
+        });
+        
+        chatClient.addCallListener(new ChatClientImpl.CallListener() {
+            @Override
+            public void incomingCall(String callerId, String callId, boolean video) {
+                SwingUtilities.invokeLater(() -> showIncomingCall(callerId, callId, video));
+            }
+        });
+        
+        // Users who were online when we connected; later changes arrive through the listeners
+        for (ClientInfo clientInfo : chatClient.getOnlineClients()) {
+            addClient(clientInfo);
         }
         
         addWindowListener(new WindowAdapter() {
@@ -463,6 +500,14 @@ public class ClientGUI extends JFrame {
     
     private void updateStatusIcon(JLabel statusLabel, Message.MessageStatus status) {
         switch (status) {
+            case SENDING:
+                statusLabel.setText(SENDING_ICON);
+                statusLabel.setForeground(Color.GRAY);
+                break;
+            case FAILED:
+                statusLabel.setText(FAILED_ICON);
+                statusLabel.setForeground(new Color(231, 76, 60));
+                break;
             case SENT:
                 statusLabel.setText(SENT_ICON);
                 statusLabel.setForeground(Color.LIGHT_GRAY);
@@ -688,7 +733,7 @@ public class ClientGUI extends JFrame {
                     sendFileMessage(formattedContent);
                 } else {
                     // For regular messages, we can send to group if no recipient is selected
-                    chatClient.sendMessage(formattedContent, activeRecipientId);
+                    reportSendFailure(chatClient.sendMessage(formattedContent, activeRecipientId));
                 }
                 
                 inputTextPane.setText("");
@@ -703,6 +748,20 @@ public class ClientGUI extends JFrame {
         }
     }
     
+    /**
+     * Sends complete in the background; the bubble already shows whether it worked, but say why not.
+     */
+    private void reportSendFailure(CompletableFuture<Message> sending) {
+        sending.whenComplete((message, error) -> {
+            if (error != null) {
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this,
+                        "Error sending message: " + error.getMessage(),
+                        "Error",
+                        JOptionPane.ERROR_MESSAGE));
+            }
+        });
+    }
+    
     private boolean promptForRecipientSelection() {
         if (clientListModel.isEmpty()) {
             JOptionPane.showMessageDialog(this,
@@ -852,6 +911,40 @@ public class ClientGUI extends JFrame {
         });
     }
     
+    // Draws a voice message timeline straight from its precomputed summary
+    private static class WaveformView extends JComponent {
+        private static final int BAR_WIDTH = 2;
+        private static final int BAR_GAP = 1;
+        private static final Color PEAK_COLOR = new Color(255, 255, 255, 110);
+        
+        private final WaveformSummary waveform;
+        
+        WaveformView(WaveformSummary waveform) {
+            this.waveform = waveform;
+            setPreferredSize(new Dimension(150, 28));
+        }
+        
+        @Override
+        protected void paintComponent(Graphics g) {
+            Graphics2D g2d = (Graphics2D) g.create();
+            int bars = Math.max(1, getWidth() / (BAR_WIDTH + BAR_GAP));
+            int middle = getHeight() / 2;
+            
+            for (int i = 0; i < bars; i++) {
+                int bar = i * waveform.getBarCount() / bars;
+                int x = i * (BAR_WIDTH + BAR_GAP);
+                int peak = Math.max(1, Math.round(waveform.getPeak(bar) * middle));
+                int rms = Math.max(1, Math.round(waveform.getRms(bar) * middle));
+                
+                g2d.setColor(PEAK_COLOR);
+                g2d.fillRect(x, middle - peak, BAR_WIDTH, peak * 2);
+                g2d.setColor(Color.WHITE);
+                g2d.fillRect(x, middle - rms, BAR_WIDTH, rms * 2);
+            }
+            g2d.dispose();
+        }
+    }
+    
     private static class ClientListCellRenderer extends DefaultListCellRenderer {
         @Override
         public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
@@ -1014,6 +1107,20 @@ public class ClientGUI extends JFrame {
         videoMessageButton.setToolTipText("Send Video Message");
         videoMessageButton.addActionListener(e -> showVideoRecorder());
         
+        JButton callButton = new JButton("📞");
+        callButton.setFont(new Font("Arial", Font.PLAIN, 16));
+        callButton.setForeground(Color.WHITE);
+        callButton.setBackground(new Color(60, 63, 65));
+        callButton.setToolTipText("Start Voice Call");
+        callButton.addActionListener(e -> startCall(false));
+        
+        JButton videoCallButton = new JButton("🎥");
+        videoCallButton.setFont(new Font("Arial", Font.PLAIN, 16));
+        videoCallButton.setForeground(Color.WHITE);
+        videoCallButton.setBackground(new Color(60, 63, 65));
+        videoCallButton.setToolTipText("Start Video Call");
+        videoCallButton.addActionListener(e -> startCall(true));
+        
         formattingToolbar.add(boldButton);
         formattingToolbar.add(italicButton);
         formattingToolbar.add(underlineButton);
@@ -1025,6 +1132,8 @@ public class ClientGUI extends JFrame {
         formattingToolbar.add(Box.createHorizontalStrut(10));
         formattingToolbar.add(voiceMessageButton);
         formattingToolbar.add(videoMessageButton);
+        formattingToolbar.add(callButton);
+        formattingToolbar.add(videoCallButton);
     }
     
     private JButton createToolbarButton(String text, int style, String toolTip) {
@@ -1157,7 +1266,7 @@ public class ClientGUI extends JFrame {
         attachmentPanel.setVisible(false);
     }
     
-    private void sendFileMessage(String messageText) throws IOException, RemoteException {
+    private void sendFileMessage(String messageText) throws IOException {
         try {
             // Check if file still exists
             if (currentAttachment == null || !currentAttachment.exists()) {
@@ -1166,20 +1275,37 @@ public class ClientGUI extends JFrame {
             
             // Read file content as bytes
             byte[] fileBytes = Files.readAllBytes(currentAttachment.toPath());
+            String fileName = currentAttachment.getName();
+            String contentType = Files.probeContentType(currentAttachment.toPath());
+            
+            // Shrink large images to what the link can carry promptly
+            int maxDimension = chatClient.getMediaQuality().getImageMaxDimension();
+            if (maxDimension > 0 && contentType != null && contentType.startsWith("image/") && !contentType.contains("svg")) {
+                ImageDownscaler.Result scaled = ImageDownscaler.fitWithin(fileBytes, maxDimension);
+                if (scaled != null) {
+                    LOGGER.info("Scaled " + fileName + " to " + scaled.getWidth() + "x" + scaled.getHeight() +
+                            " for the link (" + fileBytes.length + " -> " + scaled.getData().length + " bytes)");
+                    fileBytes = scaled.getData();
+                    if (!scaled.getContentType().equals(contentType)) {
+                        fileName = replaceExtension(fileName, scaled.getContentType().equals("image/png") ? "png" : "jpg");
+                        contentType = scaled.getContentType();
+                    }
+                }
+            }
             
             // Encode file content
             String encodedFile = Base64.getEncoder().encodeToString(fileBytes);
             
             // Create file transfer message
             Message.FileAttachment attachment = new Message.FileAttachment(
-                    currentAttachment.getName(),
+                    fileName,
                     encodedFile,
-                    currentAttachment.length(),
-                    Files.probeContentType(currentAttachment.toPath()));
+                    fileBytes.length,
+                    contentType);
             
             // Send message with file attachment
             if (messageText.isEmpty()) {
-                messageText = "Sent a file: " + currentAttachment.getName();
+                messageText = "Sent a file: " + fileName;
             }
             
             // Ensure we have a recipient
@@ -1187,13 +1313,18 @@ public class ClientGUI extends JFrame {
                 throw new IOException("No recipient selected. Please select a user to send the file to.");
             }
             
-            chatClient.sendFileMessage(messageText, attachment, activeRecipientId);
+            reportSendFailure(chatClient.sendFileMessage(messageText, attachment, activeRecipientId));
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, "Error sending file", e);
             throw new IOException("Error sending file: " + e.getMessage(), e);
         }
     }
     
+    private static String replaceExtension(String fileName, String extension) {
+        int dot = fileName.lastIndexOf('.');
+        return (dot > 0 ? fileName.substring(0, dot) : fileName) + "." + extension;
+    }
+    
     private JPanel createFileBubble(Message message, boolean isMyMessage) {
         Message.FileAttachment attachment = message.getFileAttachment();
         
@@ -1255,6 +1386,11 @@ public class ClientGUI extends JFrame {
         fileInfoPanel.add(iconLabel, BorderLayout.WEST);
         fileInfoPanel.add(fileDetailsPanel, BorderLayout.CENTER);
         
+        // Show an inline preview for images; the server renders small versions so the full file isn't needed
+        if (contentType != null && contentType.startsWith("image/") && attachment.isStoredOnServer()) {
+            fileInfoPanel.add(createImagePreview(attachment), BorderLayout.NORTH);
+        }
+        
         // Download button
         JButton downloadButton = new JButton("Download");
         downloadButton.setForeground(Color.WHITE);
@@ -1334,6 +1470,55 @@ public class ClientGUI extends JFrame {
         return panel;
     }
     
+    private JLabel createImagePreview(Message.FileAttachment attachment) {
+        JLabel previewLabel = new JLabel();
+        previewLabel.setBorder(BorderFactory.createEmptyBorder(0, 0, 5, 0));
+        
+        new SwingWorker<Void, ImageIcon>() {
+            @Override
+            protected Void doInBackground() throws Exception {
+                // Blurred placeholder first (a few hundred bytes), then the real preview
+                int[] sizes = { Message.FileAttachment.PREVIEW_PLACEHOLDER, Message.FileAttachment.PREVIEW_SMALL };
+                for (int size : sizes) {
+                    byte[] preview = chatClient.getChatService().getFilePreview(attachment.getFileId(), size);
+                    if (preview != null) {
+                        publish(scalePreview(preview));
+                    }
+                }
+                return null;
+            }
+            
+            @Override
+            protected void process(List<ImageIcon> icons) {
+                previewLabel.setIcon(icons.get(icons.size() - 1));
+                previewLabel.revalidate();
+            }
+            
+            @Override
+            protected void done() {
+                try {
+                    get();
+                } catch (Exception e) {
+                    LOGGER.log(Level.FINE, "Could not load image preview for " + attachment.getFileName(), e);
+                }
+            }
+        }.execute();
+        
+        return previewLabel;
+    }
+    
+    private ImageIcon scalePreview(byte[] data) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+        if (image == null) {
+            throw new IOException("Unreadable preview image");
+        }
+        
+        double scale = (double) IMAGE_PREVIEW_SIZE / Math.max(image.getWidth(), image.getHeight());
+        int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        return new ImageIcon(image.getScaledInstance(width, height, Image.SCALE_SMOOTH));
+    }
+    
     private String formatFileSize(long size) {
         final String[] units = new String[] { "B", "KB", "MB", "GB", "TB" };
         int unitIndex = 0;
@@ -1363,11 +1548,13 @@ public class ClientGUI extends JFrame {
                 // Check if file is stored on server
                 if (fileAttachment.isStoredOnServer() && fileAttachment.getFileId() != null) {
                     // Retrieve file from server
+                    long started = System.nanoTime();
                     String encodedContent = chatClient.getChatService().getFileContent(fileAttachment.getFileId());
                     if (encodedContent == null) {
                         throw new IOException("File not found on server");
                     }
                     fileData = Base64.getDecoder().decode(encodedContent);
+                    chatClient.getLinkEstimator().recordTransfer(encodedContent.length(), System.nanoTime() - started);
                 } else {
                     // Use the encoded content directly
                     fileData = Base64.getDecoder().decode(fileAttachment.getEncodedContent());
@@ -1414,6 +1601,30 @@ public class ClientGUI extends JFrame {
         VideoRecorderPanel.showRecorder(this, chatClient, activeRecipientId);
     }
     
+    private void startCall(boolean video) {
+        if (activeRecipientId == null) {
+            JOptionPane.showMessageDialog(this, "Select a contact to call.", video ? "Video Call" : "Voice Call", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        CallDialog.startCall(this, chatClient, activeRecipientId, getClientName(activeRecipientId), video);
+    }
+    
+    private void showIncomingCall(String callerId, String callId, boolean video) {
+        String callerName = getClientName(callerId);
+        int choice = JOptionPane.showConfirmDialog(this, callerName + (video ? " is video calling" : " is calling") + ". Answer?",
+                video ? "Incoming Video Call" : "Incoming Call", JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
+        if (choice == JOptionPane.YES_OPTION) {
+            CallDialog.answerCall(this, chatClient, callId, callerId, callerName, video);
+        } else {
+            CallDialog.declineCall(chatClient, callId);
+        }
+    }
+    
+    private String getClientName(String clientId) {
+        ClientInfo clientInfo = chatClient.getOnlineClient(clientId);
+        return clientInfo != null ? clientInfo.getName() : "Unknown user";
+    }
+    
     private JPanel createVoiceBubble(Message message, boolean isMyMessage) {
         JPanel panel = new JPanel(new BorderLayout(5, 5));
         panel.setOpaque(false);
@@ -1476,7 +1687,18 @@ public class ClientGUI extends JFrame {
         playButton.addActionListener(e -> playVoiceMessage(voiceAttachment));
         
         voicePanel.add(voiceIcon, BorderLayout.WEST);
-        voicePanel.add(durationLabel, BorderLayout.CENTER);
+        
+        WaveformSummary waveform = WaveformSummary.fromBytes(voiceAttachment.getWaveform());
+        if (waveform != null && waveform.getBarCount() > 0) {
+            JPanel timelinePanel = new JPanel(new BorderLayout(0, 2));
+            timelinePanel.setOpaque(false);
+            timelinePanel.add(new WaveformView(waveform), BorderLayout.CENTER);
+            durationLabel.setFont(durationLabel.getFont().deriveFont(10f));
+            timelinePanel.add(durationLabel, BorderLayout.SOUTH);
+            voicePanel.add(timelinePanel, BorderLayout.CENTER);
+        } else {
+            voicePanel.add(durationLabel, BorderLayout.CENTER);
+        }
         voicePanel.add(playButton, BorderLayout.EAST);
         
         contentPanel.add(voicePanel, BorderLayout.CENTER);
@@ -1655,10 +1877,69 @@ public class ClientGUI extends JFrame {
     }
     
     private void playVoiceMessage(Message.VoiceAttachment voiceAttachment) {
-        MediaPlayerDialog.playVoiceMessage(this, voiceAttachment);
+        if (voiceAttachment.getAudioData() == null && voiceAttachment.isStoredOnServer()) {
+            new SwingWorker<String[], Void>() {
+                @Override
+                protected String[] doInBackground() {
+                    // A lower-rate rendition when the link cannot keep up with the original
+                    return chatClient.findRendition(voiceAttachment.getFileId(), voiceAttachment.getFormat(), 0);
+                }
+                
+                @Override
+                protected void done() {
+                    String[] rendition;
+                    try {
+                        rendition = get();
+                    } catch (Exception e) {
+                        rendition = new String[] {voiceAttachment.getFileId(), voiceAttachment.getFormat()};
+                    }
+                    // Stream from the server instead of downloading the whole message first
+                    MediaPlayerDialog.playVoiceMessage(ClientGUI.this, voiceAttachment,
+                            new RemoteVoiceSource(chatClient.getChatService(), rendition[0], chatClient.getLinkEstimator()),
+                            rendition[1]);
+                }
+            }.execute();
+        } else {
+            MediaPlayerDialog.playVoiceMessage(this, voiceAttachment);
+        }
     }
     
     private void playVideoMessage(Message.VideoAttachment videoAttachment) {
-        MediaPlayerDialog.playVideoMessage(this, videoAttachment);
+        if (videoAttachment.getVideoData() != null || !videoAttachment.isStoredOnServer()) {
+            MediaPlayerDialog.playVideoMessage(this, videoAttachment);
+            return;
+        }
+        
+        new SwingWorker<Message.VideoAttachment, Void>() {
+            @Override
+            protected Message.VideoAttachment doInBackground() throws Exception {
+                // The smallest rendition that still fills the player
+                String[] rendition = chatClient.findRendition(videoAttachment.getFileId(), videoAttachment.getFormat(), VIDEO_PLAYER_WIDTH);
+                long started = System.nanoTime();
+                String encodedContent = chatClient.getChatService().getFileContent(rendition[0]);
+                if (encodedContent == null) {
+                    throw new IOException("Video not found on server");
+                }
+                chatClient.getLinkEstimator().recordTransfer(encodedContent.length(), System.nanoTime() - started);
+                
+                Message.VideoAttachment playable = new Message.VideoAttachment(Base64.getDecoder().decode(encodedContent),
+                        videoAttachment.getThumbnailData(), videoAttachment.getDurationInSeconds());
+                playable.setFormat(rendition[1]);
+                return playable;
+            }
+            
+            @Override
+            protected void done() {
+                try {
+                    MediaPlayerDialog.playVideoMessage(ClientGUI.this, get());
+                } catch (Exception e) {
+                    LOGGER.log(Level.SEVERE, "Error loading video message", e);
+                    JOptionPane.showMessageDialog(ClientGUI.this,
+                            "Error loading video: " + e.getMessage(),
+                            "Error",
+                            JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }.execute();
     }
 }
\ No newline at end of file
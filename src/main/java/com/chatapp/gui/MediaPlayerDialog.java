@@ -1,7 +1,13 @@
 package com.chatapp.gui;
 
 import com.chatapp.common.Message;
+import com.chatapp.media.FrameStreamReader;
+import com.chatapp.media.StreamingVoicePlayer;
+import com.chatapp.media.VideoPlayer;
+import com.chatapp.media.VoiceFormat;
+import com.chatapp.media.VoiceSource;
 
+import javax.imageio.ImageIO;
 import javax.sound.sampled.*;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
@@ -9,7 +15,6 @@ import java.awt.*;
 import java.awt.Window;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.logging.Level;
@@ -34,18 +39,34 @@ public class MediaPlayerDialog extends JDialog {
     private boolean isPlaying = false;
     
     // For voice playback
-    private Clip audioClip;
+    private StreamingVoicePlayer voicePlayer;
+    private VoiceSource voiceSource;
+    private String voiceFormat;
     
-    // For video playback (simulated in this implementation)
+    // For video playback
+    private VideoPlayer videoPlayer;
     private byte[] thumbnailData;
-    private JLabel videoDisplayLabel;
-    private Timer videoFrameTimer;
+    private VideoView videoView;
     
     public MediaPlayerDialog(Dialog owner, String title, Message.VoiceAttachment voiceAttachment) {
+        this(owner, title, voiceAttachment, VoiceSource.of(voiceAttachment.getAudioData()));
+    }
+    
+    public MediaPlayerDialog(Dialog owner, String title, Message.VoiceAttachment voiceAttachment, VoiceSource voiceSource) {
+        this(owner, title, voiceAttachment, voiceSource, voiceAttachment.getFormat());
+    }
+    
+    /**
+     * Plays {@code voiceSource} as {@code voiceFormat}, which differs from the attachment's
+     * own format when the source is a server-side rendition.
+     */
+    public MediaPlayerDialog(Dialog owner, String title, Message.VoiceAttachment voiceAttachment, VoiceSource voiceSource, String voiceFormat) {
         super(owner, title, true);
         this.mediaType = MediaType.VOICE;
         this.mediaData = voiceAttachment.getAudioData();
         this.durationSeconds = voiceAttachment.getDurationInSeconds();
+        this.voiceFormat = voiceFormat;
+        this.voiceSource = voiceSource;
         
         initialize();
         setupVoicePlayer();
@@ -102,10 +123,11 @@ public class MediaPlayerDialog extends JDialog {
                 currentPosition = progressSlider.getValue();
                 updateTimeLabel();
                 
-                if (audioClip != null && audioClip.isOpen()) {
-                    // Set playback position
-                    long microseconds = currentPosition * 1000000L;
-                    audioClip.setMicrosecondPosition(microseconds);
+                if (voicePlayer != null) {
+                    voicePlayer.seek(currentPosition * 1000L);
+                }
+                if (videoPlayer != null) {
+                    videoPlayer.seek(currentPosition * 1000L);
                 }
             }
         });
@@ -143,21 +165,14 @@ public class MediaPlayerDialog extends JDialog {
         JPanel videoPanel = new JPanel(new BorderLayout(5, 10));
         videoPanel.setOpaque(false);
         
-        // Create video display area
-        videoDisplayLabel = new JLabel();
-        videoDisplayLabel.setHorizontalAlignment(SwingConstants.CENTER);
-        videoDisplayLabel.setVerticalAlignment(SwingConstants.CENTER);
-        videoDisplayLabel.setPreferredSize(new Dimension(420, 240));
-        videoDisplayLabel.setBackground(Color.BLACK);
-        videoDisplayLabel.setOpaque(true);
+        // Create video display area, showing the thumbnail until the first frame is decoded
+        videoView = new VideoView();
+        videoView.setPreferredSize(new Dimension(420, 240));
         
-        // Set thumbnail as initial image
         if (thumbnailData != null) {
             try {
-                ImageIcon icon = new ImageIcon(thumbnailData);
-                Image img = icon.getImage().getScaledInstance(420, 240, Image.SCALE_SMOOTH);
-                videoDisplayLabel.setIcon(new ImageIcon(img));
-            } catch (Exception e) {
+                videoView.setStill(ImageIO.read(new ByteArrayInputStream(thumbnailData)));
+            } catch (IOException e) {
                 LOGGER.log(Level.WARNING, "Error setting thumbnail", e);
             }
         }
@@ -165,7 +180,7 @@ public class MediaPlayerDialog extends JDialog {
         // Create controls similar to audio controls
         JPanel controlPanel = createAudioControls();
         
-        videoPanel.add(videoDisplayLabel, BorderLayout.CENTER);
+        videoPanel.add(videoView, BorderLayout.CENTER);
         videoPanel.add(controlPanel, BorderLayout.SOUTH);
         
         return videoPanel;
@@ -173,29 +188,25 @@ public class MediaPlayerDialog extends JDialog {
     
     private void setupVoicePlayer() {
         try {
-            AudioInputStream audioStream = AudioSystem.getAudioInputStream(
-                    new ByteArrayInputStream(mediaData));
-            
-            audioClip = AudioSystem.getClip();
-            audioClip.open(audioStream);
+            voicePlayer = new StreamingVoicePlayer(voiceSource, VoiceFormat.parse(voiceFormat));
             
-            // Add listener to update UI when playback is complete
-            audioClip.addLineListener(event -> {
-                if (event.getType() == LineEvent.Type.STOP) {
-                    SwingUtilities.invokeLater(() -> {
-                        if (!audioClip.isRunning() && currentPosition >= durationSeconds) {
-                            isPlaying = false;
-                            playPauseButton.setText("▶");
-                            currentPosition = 0;
-                            progressSlider.setValue(0);
-                            updateTimeLabel();
-                        }
-                    });
+            // Reset the UI when playback reaches the end
+            voicePlayer.setFinishedListener(() -> SwingUtilities.invokeLater(() -> {
+                isPlaying = false;
+                playPauseButton.setText("▶");
+                if (progressTimer != null) {
+                    progressTimer.stop();
                 }
-            });
+                currentPosition = 0;
+                progressSlider.setValue(0);
+                updateTimeLabel();
+                voicePlayer.seek(0);
+            }));
+            voicePlayer.open();
             
-        } catch (UnsupportedAudioFileException | IOException | LineUnavailableException e) {
+        } catch (IllegalArgumentException | LineUnavailableException e) {
             LOGGER.log(Level.SEVERE, "Error setting up audio player", e);
+            voicePlayer = null;
             JOptionPane.showMessageDialog(this,
                     "Error playing audio: " + e.getMessage(),
                     "Playback Error",
@@ -204,45 +215,31 @@ public class MediaPlayerDialog extends JDialog {
     }
     
     private void setupVideoPlayer() {
-        // This is a simulation - a real implementation would use a video player library
+        FrameStreamReader stream;
+        try {
+            stream = new FrameStreamReader(mediaData);
+        } catch (IOException e) {
+            // Older clients sent a single JPEG; there is nothing to play beyond the thumbnail
+            LOGGER.log(Level.INFO, "Video message is not a frame stream, showing its thumbnail only", e);
+            return;
+        }
         
-        // Set up a timer to simulate updating video frames
-        videoFrameTimer = new Timer(100, e -> {
-            if (isPlaying && thumbnailData != null) {
-                // In a real implementation, this would update with actual video frames
-                // For our simulation, we'll just manipulate the thumbnail to simulate "playback"
-                try {
-                    // Create a slightly different image each frame
-                    ImageIcon icon = new ImageIcon(thumbnailData);
-                    Image img = icon.getImage();
-                    
-                    // Create a modified version of the image based on current position
-                    BufferedImage modifiedImg = new BufferedImage(
-                            420, 240, BufferedImage.TYPE_INT_ARGB);
-                    Graphics2D g2d = modifiedImg.createGraphics();
-                    
-                    // Draw the base image
-                    g2d.drawImage(img, 0, 0, 420, 240, null);
-                    
-                    // Add a timestamp
-                    g2d.setColor(Color.WHITE);
-                    g2d.setFont(new Font("Arial", Font.BOLD, 16));
-                    g2d.drawString(formatDuration(currentPosition), 20, 30);
-                    
-                    // Add some animation based on current position
-                    int offset = currentPosition * 10 % 100;
-                    g2d.setColor(new Color(255, 255, 255, 100));
-                    g2d.fillOval(offset + 50, 50, 30, 30);
-                    
-                    g2d.dispose();
-                    
-                    videoDisplayLabel.setIcon(new ImageIcon(modifiedImg));
-                } catch (Exception ex) {
-                    LOGGER.log(Level.WARNING, "Error simulating video playback", ex);
-                }
+        videoPlayer = new VideoPlayer(stream);
+        videoPlayer.setFrameListener(frame -> SwingUtilities.invokeLater(() -> videoView.showFrame(frame)));
+        videoPlayer.setFinishedListener(() -> SwingUtilities.invokeLater(() -> {
+            isPlaying = false;
+            playPauseButton.setText("▶");
+            if (progressTimer != null) {
+                progressTimer.stop();
             }
-        });
-        videoFrameTimer.start();
+            currentPosition = 0;
+            progressSlider.setValue(0);
+            updateTimeLabel();
+            if (videoPlayer != null) {
+                videoPlayer.seek(0);
+            }
+        }));
+        videoPlayer.open();
     }
     
     private void togglePlayback() {
@@ -258,7 +255,16 @@ public class MediaPlayerDialog extends JDialog {
         playPauseButton.setText("⏸");
         
         // Start progress timer
-        if (progressTimer == null) {
+        if (progressTimer == null && (voicePlayer != null || videoPlayer != null)) {
+            progressTimer = new Timer(200, e -> {
+                if (isPlaying && !progressSlider.getValueIsAdjusting()) {
+                    long positionMillis = voicePlayer != null ? voicePlayer.getPositionMillis() : videoPlayer.getPositionMillis();
+                    currentPosition = (int) Math.min(durationSeconds, positionMillis / 1000);
+                    progressSlider.setValue(currentPosition);
+                    updateTimeLabel();
+                }
+            });
+        } else if (progressTimer == null) {
             progressTimer = new Timer(1000, e -> {
                 if (isPlaying && currentPosition < durationSeconds) {
                     currentPosition++;
@@ -277,11 +283,12 @@ public class MediaPlayerDialog extends JDialog {
         progressTimer.start();
         
         // Start actual playback based on media type
-        if (mediaType == MediaType.VOICE && audioClip != null) {
-            audioClip.setMicrosecondPosition(currentPosition * 1000000L);
-            audioClip.start();
+        if (mediaType == MediaType.VOICE && voicePlayer != null) {
+            voicePlayer.play();
+        }
+        if (videoPlayer != null) {
+            videoPlayer.play();
         }
-        // For video, the videoFrameTimer will handle playback simulation
     }
     
     private void pausePlayback() {
@@ -292,10 +299,12 @@ public class MediaPlayerDialog extends JDialog {
             progressTimer.stop();
         }
         
-        if (mediaType == MediaType.VOICE && audioClip != null) {
-            audioClip.stop();
+        if (mediaType == MediaType.VOICE && voicePlayer != null) {
+            voicePlayer.pause();
+        }
+        if (videoPlayer != null) {
+            videoPlayer.pause();
         }
-        // For video, the videoFrameTimer will continue but the simulation won't update
     }
     
     private void updateTimeLabel() {
@@ -314,16 +323,61 @@ public class MediaPlayerDialog extends JDialog {
             progressTimer.stop();
             progressTimer = null;
         }
-        if (videoFrameTimer != null) {
-            videoFrameTimer.stop();
-            videoFrameTimer = null;
+        if (videoPlayer != null) {
+            videoPlayer.close();
+            videoPlayer = null;
         }
         
         // Close audio resources
-        if (audioClip != null) {
-            audioClip.stop();
-            audioClip.close();
-            audioClip = null;
+        if (voicePlayer != null) {
+            voicePlayer.close();
+            voicePlayer = null;
+        }
+    }
+    
+    /**
+     * Paints the frame currently on screen, scaled to fit. Frames are swapped on the EDT, so
+     * the replaced frame can go back to the player's pool without racing a paint.
+     */
+    private static class VideoView extends JComponent {
+        private VideoPlayer.Frame frame;
+        private Image still;
+        
+        void setStill(Image still) {
+            this.still = still;
+            repaint();
+        }
+        
+        void showFrame(VideoPlayer.Frame next) {
+            VideoPlayer.Frame previous = frame;
+            frame = next;
+            repaint();
+            if (previous != null) {
+                previous.release();
+            }
+        }
+        
+        @Override
+        protected void paintComponent(Graphics g) {
+            g.setColor(Color.BLACK);
+            g.fillRect(0, 0, getWidth(), getHeight());
+            
+            Image image = frame != null ? frame.getImage() : still;
+            if (image == null) {
+                return;
+            }
+            int imageWidth = image.getWidth(null);
+            int imageHeight = image.getHeight(null);
+            if (imageWidth <= 0 || imageHeight <= 0) {
+                return;
+            }
+            double scale = Math.min((double) getWidth() / imageWidth, (double) getHeight() / imageHeight);
+            int width = (int) (imageWidth * scale);
+            int height = (int) (imageHeight * scale);
+            
+            Graphics2D g2d = (Graphics2D) g;
+            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g2d.drawImage(image, (getWidth() - width) / 2, (getHeight() - height) / 2, width, height, null);
         }
     }
     
@@ -335,6 +389,17 @@ public class MediaPlayerDialog extends JDialog {
         playerDialog.setVisible(true);
     }
     
+    public static void playVoiceMessage(Component parent, Message.VoiceAttachment voiceAttachment, VoiceSource voiceSource) {
+        playVoiceMessage(parent, voiceAttachment, voiceSource, voiceAttachment.getFormat());
+    }
+    
+    public static void playVoiceMessage(Component parent, Message.VoiceAttachment voiceAttachment, VoiceSource voiceSource, String voiceFormat) {
+        Window parentWindow = SwingUtilities.getWindowAncestor(parent);
+        JDialog parentDialog = new JDialog(parentWindow);
+        MediaPlayerDialog playerDialog = new MediaPlayerDialog(parentDialog, "Voice Message", voiceAttachment, voiceSource, voiceFormat);
+        playerDialog.setVisible(true);
+    }
+    
     public static void playVideoMessage(Component parent, Message.VideoAttachment videoAttachment) {
         Window parentWindow = SwingUtilities.getWindowAncestor(parent);
         JDialog parentDialog = new JDialog(parentWindow);
@@ -19,6 +19,7 @@ public class ServerGUI extends JFrame {
     private JTextArea logTextArea;
     private JList<String> clientList;
     private DefaultListModel<String> clientListModel;
+    private JLabel statsLabel;
     
     public ServerGUI(String hostAddress, int port) {
         try {
@@ -95,9 +96,18 @@ public class ServerGUI extends JFrame {
         JLabel statusLabel = new JLabel("Server running");
         statusLabel.setForeground(Color.GREEN.darker());
         statusPanel.add(statusLabel);
+        statsLabel = new JLabel();
+        statusPanel.add(statsLabel);
         contentPane.add(statusPanel, BorderLayout.SOUTH);
     }
     
+    /**
+     * Shows runtime statistics next to the server status.
+     */
+    public void setStatistics(String statistics) {
+        SwingUtilities.invokeLater(() -> statsLabel.setText(statistics));
+    }
+    
     public void addClient(String clientInfo) {
         SwingUtilities.invokeLater(() -> {
             clientListModel.addElement(clientInfo);
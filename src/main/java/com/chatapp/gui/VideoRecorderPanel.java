@@ -1,18 +1,18 @@
 package com.chatapp.gui;
 
 import com.chatapp.client.ChatClientImpl;
+import com.chatapp.media.CameraSource;
+import com.chatapp.media.MediaQuality;
+import com.chatapp.media.VideoFrameEncoder;
 
-import javax.imageio.ImageIO;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.rmi.RemoteException;
-import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -30,24 +30,31 @@ public class VideoRecorderPanel extends JPanel {
     private JLabel timerLabel;
     private Timer recordingTimer;
     
-    private boolean isRecording = false;
+    private volatile boolean isRecording = false;
     private int recordingDurationSecs = 0;
     private byte[] videoData;
     private byte[] thumbnailData;
+    private String videoFormat;
     
-    private Timer webcamSimulationTimer;
-    private BufferedImage currentFrame;
+    private final MediaQuality quality;
+    private final CameraSource camera;
+    private volatile BufferedImage currentFrame;
+    private volatile VideoFrameEncoder frameEncoder;
+    private long startTime;
     
     public VideoRecorderPanel(ChatClientImpl chatClient, String recipientId) {
         this.chatClient = chatClient;
         this.recipientId = recipientId;
+        this.quality = chatClient.getMediaQuality();
+        this.camera = new CameraSource(quality.getVideoWidth(), quality.getVideoHeight(), quality.getVideoFrameRate());
         
         setLayout(new BorderLayout(5, 5));
         setBorder(new EmptyBorder(10, 10, 10, 10));
         setBackground(new Color(60, 63, 65));
         
         initComponents();
-        initWebcamSimulation();
+        camera.addFrameListener(this::frameCaptured);
+        camera.start();
     }
     
     private void initComponents() {
@@ -61,7 +68,7 @@ public class VideoRecorderPanel extends JPanel {
                 }
             }
         };
-        videoPreviewPanel.setPreferredSize(new Dimension(320, 240));
+        videoPreviewPanel.setPreferredSize(new Dimension(CameraSource.DEFAULT_WIDTH, CameraSource.DEFAULT_HEIGHT));
         videoPreviewPanel.setBackground(Color.BLACK);
         
         startButton = new JButton("Start Recording");
@@ -122,59 +129,38 @@ public class VideoRecorderPanel extends JPanel {
         });
     }
     
-    private void initWebcamSimulation() {
-        webcamSimulationTimer = new Timer(100, e -> {
-            if (currentFrame == null) {
-                currentFrame = new BufferedImage(320, 240, BufferedImage.TYPE_INT_RGB);
-            }
-            
-            Graphics2D g2d = currentFrame.createGraphics();
-            g2d.setColor(Color.BLACK);
-            g2d.fillRect(0, 0, currentFrame.getWidth(), currentFrame.getHeight());
-            
-            g2d.setColor(Color.WHITE);
-            g2d.drawString("Webcam Simulation", 10, 20);
-            g2d.drawString(isRecording ? "RECORDING" : "PREVIEW", 10, 40);
-            if (isRecording) {
-                g2d.setColor(Color.RED);
-                g2d.fillOval(300, 10, 10, 10);
+    // Frames are handed to the encoder on the capture thread; the EDT only paints the preview
+    private void frameCaptured(BufferedImage frame) {
+        currentFrame = frame;
+        videoPreviewPanel.repaint();
+        
+        VideoFrameEncoder encoder = frameEncoder;
+        if (encoder != null) {
+            BufferedImage target = encoder.acquireFrame();
+            if (target != null) {
+                Graphics2D g2d = target.createGraphics();
+                g2d.drawImage(frame, 0, 0, null);
+                g2d.dispose();
+                encoder.submitFrame(target, System.currentTimeMillis() - startTime);
             }
-            
-            long time = System.currentTimeMillis() / 100;
-            int x = (int) (Math.sin(time * 0.1) * 100 + 160);
-            int y = (int) (Math.cos(time * 0.1) * 100 + 120);
-            g2d.setColor(new Color(61, 157, 232));
-            g2d.fillOval(x - 5, y - 5, 10, 10);
-            
-            g2d.dispose();
-            videoPreviewPanel.repaint();
-        });
-        webcamSimulationTimer.start();
+        }
     }
     
     private void startRecording() {
-        isRecording = true;
         recordingDurationSecs = 0;
-        
-        ByteArrayOutputStream videoBuffer = new ByteArrayOutputStream();
-        AtomicReference<BufferedImage> thumbnailFrame = new AtomicReference<>();
+        videoData = null;
+        thumbnailData = null;
+        startTime = System.currentTimeMillis();
+        frameEncoder = new VideoFrameEncoder(camera.getWidth(), camera.getHeight(), camera.getFrameRate(), quality.getVideoQuality());
+        LOGGER.info("Recording video at " + quality + " quality (" + camera.getWidth() + "x" + camera.getHeight()
+                + " @ " + camera.getFrameRate() + " fps) for link " + chatClient.getLinkEstimator());
+        isRecording = true;
+        camera.setCaption("RECORDING", true);
         
         recordingTimer = new Timer(1000, e -> {
             recordingDurationSecs++;
             timerLabel.setText(formatDuration(recordingDurationSecs));
             
-            try {
-                ByteArrayOutputStream frameBuffer = new ByteArrayOutputStream();
-                ImageIO.write(currentFrame, "jpg", frameBuffer);
-                videoBuffer.write(frameBuffer.toByteArray());
-                
-                if (recordingDurationSecs == 1) {
-                    thumbnailFrame.set(currentFrame);
-                }
-            } catch (IOException ex) {
-                LOGGER.log(Level.WARNING, "Error capturing frame", ex);
-            }
-            
             if (recordingDurationSecs >= 30) {
                 stopRecording();
             }
@@ -185,47 +171,43 @@ public class VideoRecorderPanel extends JPanel {
         stopButton.setEnabled(true);
         sendButton.setEnabled(false);
         statusLabel.setText("Recording video...");
-        
-        try {
-            videoData = videoBuffer.toByteArray();
-            
-            if (thumbnailFrame.get() != null) {
-                ByteArrayOutputStream thumbnailBuffer = new ByteArrayOutputStream();
-                ImageIO.write(thumbnailFrame.get(), "jpg", thumbnailBuffer);
-                thumbnailData = thumbnailBuffer.toByteArray();
-            }
-        } catch (Exception ex) {
-            LOGGER.log(Level.SEVERE, "Error in video capture", ex);
-        }
     }
     
     private void stopRecording() {
         if (!isRecording) return;
         
         isRecording = false;
+        camera.setCaption("PREVIEW", false);
         
         if (recordingTimer != null && recordingTimer.isRunning()) {
             recordingTimer.stop();
         }
         
-        if (thumbnailData == null) {
-            try {
-                ByteArrayOutputStream thumbnailBuffer = new ByteArrayOutputStream();
-                ImageIO.write(currentFrame, "jpg", thumbnailBuffer);
-                thumbnailData = thumbnailBuffer.toByteArray();
-            } catch (IOException ex) {
-                LOGGER.log(Level.WARNING, "Error capturing thumbnail", ex);
-            }
+        VideoFrameEncoder encoder = frameEncoder;
+        frameEncoder = null;
+        try {
+            videoData = encoder.finish();
+            thumbnailData = encoder.getThumbnail();
+            videoFormat = encoder.getFormat();
+            recordingDurationSecs = (int) Math.max(1, (encoder.getDurationMillis() + 999) / 1000);
+            
+            LOGGER.info("Recorded video: " + encoder.getStatistics());
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Error encoding video", e);
+            videoData = null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            videoData = null;
         }
         
         startButton.setEnabled(false);
         stopButton.setEnabled(false);
-        sendButton.setEnabled(true);
+        sendButton.setEnabled(videoData != null);
         statusLabel.setText("Recording stopped. Press Send to send the video or Cancel to discard it.");
     }
     
     private void sendVideoMessage() {
-        if (thumbnailData == null || recordingDurationSecs == 0) {
+        if (videoData == null || thumbnailData == null || recordingDurationSecs == 0) {
             JOptionPane.showMessageDialog(this,
                     "No video recording available to send.",
                     "Error",
@@ -241,34 +223,27 @@ public class VideoRecorderPanel extends JPanel {
             return;
         }
         
-        try {
-            ByteArrayOutputStream fakeVideoBuffer = new ByteArrayOutputStream();
-            ImageIO.write(currentFrame, "jpg", fakeVideoBuffer);
-            byte[] actualVideoData = fakeVideoBuffer.toByteArray();
-            
-            chatClient.sendVideoMessage(
-                    actualVideoData,
-                    thumbnailData,
-                    recordingDurationSecs,
-                    recipientId
-            );
-            
-            clearRecording();
-            
-            JOptionPane.showMessageDialog(this,
-                    "Video message sent successfully.",
-                    "Success",
-                    JOptionPane.INFORMATION_MESSAGE);
-            
-            SwingUtilities.getWindowAncestor(this).dispose();
-            
-        } catch (Exception e) {
-            LOGGER.log(Level.SEVERE, "Error sending video message", e);
-            JOptionPane.showMessageDialog(this,
-                    "Error sending video message: " + e.getMessage(),
-                    "Error",
-                    JOptionPane.ERROR_MESSAGE);
-        }
+        // The chat shows the message with its sending status, so the recorder can close straight away
+        Component parent = SwingUtilities.getWindowAncestor(this).getOwner();
+        chatClient.sendVideoMessage(
+                videoData,
+                thumbnailData,
+                videoFormat,
+                recordingDurationSecs,
+                recipientId
+        ).whenComplete((message, error) -> {
+            if (error != null) {
+                LOGGER.log(Level.SEVERE, "Error sending video message", error);
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(parent,
+                        "Error sending video message: " + error.getMessage(),
+                        "Error",
+                        JOptionPane.ERROR_MESSAGE));
+            }
+        });
+        
+        clearRecording();
+        
+        SwingUtilities.getWindowAncestor(this).dispose();
     }
     
     private void clearRecording() {
@@ -293,8 +268,12 @@ public class VideoRecorderPanel extends JPanel {
     public void removeNotify() {
         super.removeNotify();
         
-        if (webcamSimulationTimer != null && webcamSimulationTimer.isRunning()) {
-            webcamSimulationTimer.stop();
+        camera.stop();
+        
+        VideoFrameEncoder encoder = frameEncoder;
+        frameEncoder = null;
+        if (encoder != null) {
+            encoder.abort();
         }
         
         if (recordingTimer != null && recordingTimer.isRunning()) {
@@ -1,6 +1,11 @@
 package com.chatapp.gui;
 
 import com.chatapp.client.ChatClientImpl;
+import com.chatapp.client.ChunkedUpload;
+import com.chatapp.common.Message;
+import com.chatapp.media.VoiceActivityDetector;
+import com.chatapp.media.VoiceEncoder;
+import com.chatapp.media.WaveformSummary;
 
 import javax.sound.sampled.*;
 import javax.swing.*;
@@ -11,12 +16,18 @@ import java.awt.event.ActionListener;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.rmi.RemoteException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class VoiceRecorderPanel extends JPanel {
     private static final Logger LOGGER = Logger.getLogger(VoiceRecorderPanel.class.getName());
     
+    private static final long UPLOAD_OPEN_TIMEOUT_SECONDS = 5;
+    
     private final ChatClientImpl chatClient;
     private final String recipientId;
     private JButton recordButton;
@@ -27,11 +38,18 @@ public class VoiceRecorderPanel extends JPanel {
     private JProgressBar levelMeter;
     private javax.swing.Timer meterTimer;
     
-    private boolean isRecording = false;
+    private volatile boolean isRecording = false;
     private AudioFormat audioFormat;
     private TargetDataLine targetDataLine;
     private ByteArrayOutputStream audioStream;
+    private VoiceEncoder voiceEncoder;
+    private WaveformSummary.Builder waveform;
+    private VoiceActivityDetector activityDetector;
+    private CompletableFuture<ChunkedUpload> pendingUpload;
+    private ChunkedUpload upload;
+    private volatile int currentLevel;
     private Thread recordingThread;
+    private boolean discardRecording;
     private long startTime;
     private int recordingDurationSecs = 0;
     
@@ -92,10 +110,13 @@ public class VoiceRecorderPanel extends JPanel {
         stopButton.addActionListener(e -> stopRecording());
         sendButton.addActionListener(e -> sendVoiceMessage());
         cancelButton.addActionListener(e -> {
-            if (isRecording) {
+            if (recordingThread != null) {
+                // Cleared once the recording thread is done with the buffers
+                discardRecording = true;
                 stopRecording();
+            } else {
+                clearRecording();
             }
-            clearRecording();
         });
     }
     
@@ -129,6 +150,14 @@ public class VoiceRecorderPanel extends JPanel {
             meterTimer.start();
             
             audioStream = new ByteArrayOutputStream();
+            voiceEncoder = new VoiceEncoder((int) audioFormat.getSampleRate(), chatClient.getMediaQuality().getVoiceFormat());
+            LOGGER.info("Recording voice as " + voiceEncoder.getFormat() + " for link " + chatClient.getLinkEstimator());
+            waveform = new WaveformSummary.Builder((int) audioFormat.getSampleRate());
+            activityDetector = VoiceActivityDetector.isEnabled()
+                    ? new VoiceActivityDetector((int) audioFormat.getSampleRate()) : null;
+            // Opened in the background; the recording thread catches up once it is available
+            pendingUpload = CompletableFuture.supplyAsync(this::beginUpload);
+            upload = null;
             isRecording = true;
             startTime = System.currentTimeMillis();
             
@@ -144,7 +173,16 @@ public class VoiceRecorderPanel extends JPanel {
                 try {
                     while (isRecording) {
                         bytesRead = targetDataLine.read(buffer, 0, buffer.length);
-                        audioStream.write(buffer, 0, bytesRead);
+                        if (bytesRead <= 0) {
+                            continue;
+                        }
+                        currentLevel = calculateLevel(buffer, bytesRead);
+                        if (activityDetector != null) {
+                            byte[] voiced = activityDetector.process(buffer, 0, bytesRead);
+                            writeCaptured(voiced, voiced.length);
+                        } else {
+                            writeCaptured(buffer, bytesRead);
+                        }
                         
                         long elapsed = System.currentTimeMillis() - startTime;
                         recordingDurationSecs = (int) (elapsed / 1000);
@@ -158,8 +196,24 @@ public class VoiceRecorderPanel extends JPanel {
                         }
                     }
                     
+                    if (activityDetector != null) {
+                        byte[] voiced = activityDetector.finish();
+                        writeCaptured(voiced, voiced.length);
+                        recordingDurationSecs = (int) Math.round(activityDetector.getOutputMillis() / 1000.0);
+                    }
+                    byte[] tail = voiceEncoder.finish();
+                    audioStream.write(tail);
+                    streamToUpload(tail);
+                    if (upload == null) {
+                        awaitUpload();
+                    }
+                    LOGGER.fine(String.format("Encoded voice message as %s: %d bytes, %.1fx smaller than PCM",
+                            voiceEncoder.getFormat(), voiceEncoder.getEncodedBytes(), voiceEncoder.getCompressionRatio()));
+                    
                 } catch (Exception e) {
                     LOGGER.log(Level.WARNING, "Error during recording", e);
+                } finally {
+                    SwingUtilities.invokeLater(this::recordingFinished);
                 }
             });
             
@@ -174,6 +228,52 @@ public class VoiceRecorderPanel extends JPanel {
         }
     }
     
+    // Only audio that passed the activity detector reaches the waveform, the payload and the upload
+    private void writeCaptured(byte[] pcm, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        waveform.add(pcm, 0, length);
+        byte[] encoded = voiceEncoder.encode(pcm, 0, length);
+        audioStream.write(encoded);
+        streamToUpload(encoded);
+    }
+    
+    // On the recording thread; everything captured before the session opened is sent in one go
+    private void streamToUpload(byte[] encoded) {
+        if (upload != null) {
+            upload.write(encoded);
+        } else if (pendingUpload.isDone()) {
+            upload = pendingUpload.join();
+            if (upload != null) {
+                upload.write(audioStream.toByteArray());
+            }
+        }
+    }
+    
+    private void awaitUpload() {
+        try {
+            upload = pendingUpload.get(UPLOAD_OPEN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (upload != null) {
+                upload.write(audioStream.toByteArray());
+            }
+        } catch (TimeoutException | ExecutionException e) {
+            LOGGER.log(Level.WARNING, "Upload session did not open, voice message will be sent on completion", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    // The recording is streamed to the server as it is captured; without a session it is sent in one piece
+    private ChunkedUpload beginUpload() {
+        try {
+            return chatClient.beginUpload("voice-" + System.currentTimeMillis(), voiceEncoder.getFormat().toString());
+        } catch (RemoteException e) {
+            LOGGER.log(Level.WARNING, "Could not open upload session, voice message will be sent on completion", e);
+            return null;
+        }
+    }
+    
     private void stopRecording() {
         if (!isRecording) return;
         
@@ -191,8 +291,47 @@ public class VoiceRecorderPanel extends JPanel {
         levelMeter.setValue(0);
         recordButton.setEnabled(false);
         stopButton.setEnabled(false);
+        sendButton.setEnabled(false);
+        statusLabel.setText("Finishing recording...");
+    }
+    
+    // Posted by the recording thread once the encoder is flushed and the upload has caught up
+    private void recordingFinished() {
+        recordingThread = null;
+        if (isRecording) {
+            stopRecording();
+        }
+        if (discardRecording) {
+            discardRecording = false;
+            clearRecording();
+            return;
+        }
+        
+        if (activityDetector != null && activityDetector.getSpeechMillis() == 0) {
+            sendButton.setEnabled(false);
+            statusLabel.setText("No speech detected");
+            return;
+        }
         sendButton.setEnabled(true);
-        statusLabel.setText("Ready to send (" + formatDuration(recordingDurationSecs) + ")");
+        statusLabel.setText("Ready to send (" + formatDuration(recordingDurationSecs) + trimSummary() + ")");
+    }
+    
+    private String trimSummary() {
+        if (activityDetector == null || activityDetector.getInputMillis() == 0) {
+            return "";
+        }
+        long inputMillis = activityDetector.getInputMillis();
+        long trimmedMillis = activityDetector.getTrimmedMillis();
+        long untrimmedBytes = voiceEncoder.getFormat().getBytesPerSecond() * inputMillis / 1000;
+        int percent = (int) (trimmedMillis * 100 / inputMillis);
+        
+        LOGGER.info(String.format("Voice activity trimming: %d of %d ms removed (%d%%), payload %d bytes instead of about %d",
+                trimmedMillis, inputMillis, percent, voiceEncoder.getEncodedBytes(), untrimmedBytes));
+        
+        if (trimmedMillis < 100) {
+            return "";
+        }
+        return String.format(", %.1f s of silence trimmed, %d%% smaller", trimmedMillis / 1000.0, percent);
     }
     
     private void sendVoiceMessage() {
@@ -200,25 +339,71 @@ public class VoiceRecorderPanel extends JPanel {
             return;
         }
         
-        try {
-            chatClient.sendVoiceMessage(audioStream.toByteArray(), recordingDurationSecs, recipientId);
-            
-            clearRecording();
-            
-            statusLabel.setText("Voice message sent");
-            
-            SwingUtilities.getWindowAncestor(this).dispose();
-            
-        } catch (RemoteException e) {
-            LOGGER.log(Level.SEVERE, "Error sending voice message", e);
-            JOptionPane.showMessageDialog(this,
-                    "Error sending voice message: " + e.getMessage(),
-                    "Error",
-                    JOptionPane.ERROR_MESSAGE);
+        String format = voiceEncoder.getFormat().toString();
+        byte[] summary = waveform.toBytes(WaveformSummary.DEFAULT_BARS);
+        byte[] audioData = audioStream.toByteArray();
+        int durationSecs = recordingDurationSecs;
+        Component parent = SwingUtilities.getWindowAncestor(this).getOwner();
+        
+        // The send owns the upload from here; one that cannot be finished falls back to sending the audio inline
+        ChunkedUpload uploaded = upload;
+        if (uploaded != null) {
+            upload = null;
+            pendingUpload = null;
         }
+        new SwingWorker<CompletableFuture<Message>, Void>() {
+            @Override
+            protected CompletableFuture<Message> doInBackground() {
+                if (uploaded != null && uploaded.finish()) {
+                    return chatClient.sendUploadedVoiceMessage(uploaded, audioData, format, summary, durationSecs, recipientId);
+                }
+                if (uploaded != null) {
+                    uploaded.abort();
+                }
+                return chatClient.sendVoiceMessage(audioData, format, summary, durationSecs, recipientId);
+            }
+            
+            @Override
+            protected void done() {
+                try {
+                    get().whenComplete((message, error) -> {
+                        if (error != null) {
+                            SwingUtilities.invokeLater(() -> showSendError(parent, error));
+                        }
+                    });
+                } catch (Exception e) {
+                    showSendError(parent, e);
+                }
+            }
+        }.execute();
+        
+        clearRecording();
+        
+        statusLabel.setText("Voice message sent");
+        
+        SwingUtilities.getWindowAncestor(this).dispose();
+    }
+    
+    private static void showSendError(Component parent, Throwable error) {
+        LOGGER.log(Level.SEVERE, "Error sending voice message", error);
+        JOptionPane.showMessageDialog(parent,
+                "Error sending voice message: " + error.getMessage(),
+                "Error",
+                JOptionPane.ERROR_MESSAGE);
     }
     
     private void clearRecording() {
+        upload = null;
+        if (pendingUpload != null) {
+            // Aborting is a remote call, and the session may not even be open yet
+            pendingUpload.thenAcceptAsync(opened -> {
+                if (opened != null) {
+                    opened.abort();
+                }
+            });
+            pendingUpload = null;
+        }
+        
         if (audioStream != null) {
             try {
                 audioStream.close();
@@ -236,25 +421,17 @@ public class VoiceRecorderPanel extends JPanel {
     }
     
     private void updateLevelMeter() {
-        if (isRecording && targetDataLine != null) {
-            int level = calculateLevel();
-            levelMeter.setValue(level);
+        if (isRecording) {
+            levelMeter.setValue(currentLevel);
         }
     }
     
-    private int calculateLevel() {
-        byte[] buffer = new byte[targetDataLine.getBufferSize() / 5];
-        int bytesRead = targetDataLine.read(buffer, 0, buffer.length);
-        
-        if (bytesRead <= 0) return 0;
-        
+    // Computed on the recording thread from the captured buffer; reading the line here would steal samples
+    private int calculateLevel(byte[] buffer, int bytesRead) {
         long sum = 0;
-        for (int i = 0; i < bytesRead; i += 2) {
-            int sample = 0;
-            if (i + 1 < bytesRead) {
-                sample = (short) ((buffer[i] & 0xFF) | ((buffer[i + 1] & 0xFF) << 8));
-            }
-            sum += Math.abs(sample);
+        for (int i = 0; i + 1 < bytesRead; i += 2) {
+            int sample = (short) ((buffer[i] & 0xFF) | ((buffer[i + 1] & 0xFF) << 8));
+            sum += (long) sample * sample;
         }
         
         double rms = Math.sqrt(sum / (bytesRead / 2.0));
@@ -0,0 +1,120 @@
+package com.chatapp.media;
+
+/**
+ * Running estimate of one connection's round-trip time and usable throughput, fed by the
+ * timing of transfers that happen anyway (upload chunks, range reads, call receiver
+ * reports) rather than by dedicated probes.
+ *
+ * A timed transfer of {@code n} bytes is modelled as one round trip plus {@code n / rate};
+ * the shortest round trip seen recently is subtracted before a throughput sample is taken,
+ * and transfers too small to say anything about throughput count as RTT samples only.
+ * Throughput drops quickly on a low sample and recovers slowly, so a brief stall pushes
+ * encoders down straight away while one fast burst does not push them up.
+ */
+public class BandwidthEstimator {
+    private static final long DEFAULT_BITS_PER_SECOND = Long.getLong("chatapp.link.defaultKbps", 1000) * 1000;
+    private static final int MIN_THROUGHPUT_BYTES = 4096;
+    private static final long MIN_RTT_WINDOW_MILLIS = 30_000;
+    
+    private double smoothedRttMillis = -1;
+    private double rttVarianceMillis;
+    private double minRttMillis = Double.MAX_VALUE;
+    private double windowMinRttMillis = Double.MAX_VALUE;
+    private long windowStart = System.currentTimeMillis();
+    
+    private double bitsPerSecond = -1;
+    private long samples;
+    
+    /**
+     * Records a request/response exchange that moved {@code bytes} of payload in one direction.
+     */
+    public synchronized void recordTransfer(long bytes, long elapsedNanos) {
+        double elapsedMillis = elapsedNanos / 1e6;
+        if (bytes < MIN_THROUGHPUT_BYTES) {
+            recordRoundTrip(elapsedMillis);
+            return;
+        }
+        double baseRtt = minRttMillis != Double.MAX_VALUE ? minRttMillis : 0;
+        // Never let the round trip explain away more than most of the time
+        double transferMillis = Math.max(elapsedMillis - baseRtt, elapsedMillis * 0.1);
+        if (transferMillis <= 0) {
+            return;
+        }
+        recordDeliveryRate(bytes * 8 * 1000 / transferMillis);
+    }
+    
+    /**
+     * Records a round trip measured directly, as RFC 6298 does for TCP.
+     */
+    public synchronized void recordRoundTrip(double rttMillis) {
+        if (rttMillis < 0) {
+            return;
+        }
+        if (smoothedRttMillis < 0) {
+            smoothedRttMillis = rttMillis;
+            rttVarianceMillis = rttMillis / 2;
+        } else {
+            rttVarianceMillis += (Math.abs(smoothedRttMillis - rttMillis) - rttVarianceMillis) / 4;
+            smoothedRttMillis += (rttMillis - smoothedRttMillis) / 8;
+        }
+        
+        // Keep the minimum over the last window or two so a route change is picked up
+        long now = System.currentTimeMillis();
+        if (now - windowStart > MIN_RTT_WINDOW_MILLIS) {
+            minRttMillis = windowMinRttMillis;
+            windowMinRttMillis = Double.MAX_VALUE;
+            windowStart = now;
+        }
+        windowMinRttMillis = Math.min(windowMinRttMillis, rttMillis);
+        minRttMillis = Math.min(minRttMillis, rttMillis);
+    }
+    
+    /**
+     * Records a throughput observed directly, e.g. the receive rate a call peer reports.
+     */
+    public synchronized void recordDeliveryRate(double sampleBitsPerSecond) {
+        if (sampleBitsPerSecond <= 0) {
+            return;
+        }
+        if (bitsPerSecond < 0) {
+            bitsPerSecond = sampleBitsPerSecond;
+        } else if (sampleBitsPerSecond < bitsPerSecond) {
+            bitsPerSecond += (sampleBitsPerSecond - bitsPerSecond) / 2;
+        } else {
+            bitsPerSecond += (sampleBitsPerSecond - bitsPerSecond) / 8;
+        }
+        samples++;
+    }
+    
+    public synchronized boolean hasEstimate() {
+        return bitsPerSecond > 0;
+    }
+    
+    /**
+     * Estimated throughput, or {@code chatapp.link.defaultKbps} until something has been measured.
+     */
+    public synchronized long getBitsPerSecond() {
+        return bitsPerSecond > 0 ? (long) bitsPerSecond : DEFAULT_BITS_PER_SECOND;
+    }
+    
+    public synchronized double getRttMillis() {
+        return Math.max(0, smoothedRttMillis);
+    }
+    
+    public synchronized double getMinRttMillis() {
+        return minRttMillis != Double.MAX_VALUE ? minRttMillis : 0;
+    }
+    
+    /**
+     * How far the smoothed RTT sits above the minimum: time spent in queues along the path.
+     */
+    public synchronized double getQueueingDelayMillis() {
+        return smoothedRttMillis < 0 ? 0 : Math.max(0, smoothedRttMillis - getMinRttMillis());
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return String.format("%d kbit/s%s, rtt %.0f ms (min %.0f ms), %d samples",
+                getBitsPerSecond() / 1000, hasEstimate() ? "" : " (assumed)", getRttMillis(), getMinRttMillis(), samples);
+    }
+}
\ No newline at end of file
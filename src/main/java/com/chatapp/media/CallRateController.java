@@ -0,0 +1,202 @@
+package com.chatapp.media;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sets a call's sending rate from what the peer says it received. Once a second each side
+ * sends a receiver report on the {@link MediaChannel}:
+ * <pre>
+ * receivedBytes:u64 echoTimestampMillis:u32 holdMillis:u32
+ * </pre>
+ * echoing the timestamp of the last report it got and how long it held it, which gives
+ * the round trip. The growth of {@code receivedBytes} between two reports is the delivery
+ * rate. When less arrives than was sent, or the round trip grows well past its minimum,
+ * the link is full and the target drops just below what was delivered; otherwise it
+ * creeps up while the media actually uses it. Voice keeps its share first, switching to
+ * narrowband when the target gets small, and video gets the rest.
+ */
+public class CallRateController {
+    private static final Logger LOGGER = Logger.getLogger(CallRateController.class.getName());
+    
+    public static final int REPORT_SIZE = 16;
+    
+    private static final long START_BITS_PER_SECOND = Long.getLong("chatapp.call.startKbps", 500) * 1000;
+    private static final long MAX_BITS_PER_SECOND = Long.getLong("chatapp.call.maxKbps", 2000) * 1000;
+    private static final long MIN_BITS_PER_SECOND = 64_000;
+    private static final long MIN_VIDEO_BITS_PER_SECOND = 32_000;
+    private static final long REPORT_INTERVAL_MILLIS = 1000;
+    private static final double MAX_QUEUEING_DELAY_MILLIS = 150;
+    // Below this the wideband voice stream would leave video almost nothing
+    private static final long NARROWBAND_BELOW_BITS_PER_SECOND = 300_000;
+    
+    private final MediaChannel channel;
+    private final VoiceCall voiceCall;
+    private final VideoCall videoCall;
+    private final BandwidthEstimator estimator = new BandwidthEstimator();
+    private ScheduledExecutorService reportExecutor;
+    
+    // Report state; the peer's fields are touched only by the channel's receive thread
+    private volatile long peerTimestamp = -1;
+    private volatile long peerTimestampNanos;
+    private long lastPeerReceived = -1;
+    private long lastPeerReportTimestamp;
+    private long lastSent;
+    private long lastSentNanos;
+    
+    private volatile long targetBitsPerSecond = START_BITS_PER_SECOND;
+    private volatile long deliveredBitsPerSecond;
+    private volatile long sentBitsPerSecond;
+    private volatile long reductions;
+    
+    /**
+     * Either call may be null when the call does not carry that medium.
+     */
+    public CallRateController(MediaChannel channel, VoiceCall voiceCall, VideoCall videoCall) {
+        this.channel = channel;
+        this.voiceCall = voiceCall;
+        this.videoCall = videoCall;
+        channel.setHandler(MediaChannel.TYPE_REPORT, this::reportReceived);
+        apply();
+    }
+    
+    public synchronized void start() {
+        if (reportExecutor != null) {
+            return;
+        }
+        reportExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "call-rate");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reportExecutor.scheduleAtFixedRate(this::sendReport, REPORT_INTERVAL_MILLIS, REPORT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    
+    public synchronized void close() {
+        if (reportExecutor != null) {
+            reportExecutor.shutdownNow();
+            reportExecutor = null;
+        }
+    }
+    
+    public BandwidthEstimator getEstimator() {
+        return estimator;
+    }
+    
+    public long getTargetBitsPerSecond() {
+        return targetBitsPerSecond;
+    }
+    
+    public String getStatistics() {
+        return String.format("target %d kbit/s, sent %d kbit/s, delivered %d kbit/s, rtt %.0f ms, %d reductions",
+                targetBitsPerSecond / 1000, sentBitsPerSecond / 1000, deliveredBitsPerSecond / 1000,
+                estimator.getRttMillis(), reductions);
+    }
+    
+    private void sendReport() {
+        try {
+            byte[] packet = new byte[MediaChannel.HEADER_SIZE + REPORT_SIZE];
+            int at = MediaChannel.HEADER_SIZE;
+            writeLong(packet, at, channel.getReceivedBytes());
+            long echo = peerTimestamp;
+            long hold = echo < 0 ? 0 : (System.nanoTime() - peerTimestampNanos) / 1_000_000;
+            writeInt(packet, at + 8, Math.max(0, echo));
+            writeInt(packet, at + 12, hold);
+            channel.send(MediaChannel.TYPE_REPORT, echo < 0 ? 0 : 1, 0, VideoCall.clockMillis(), packet, REPORT_SIZE);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Error sending call report", e);
+        }
+    }
+    
+    private void reportReceived(int flags, int sequence, long timestampMillis, byte[] data, int offset, int length, long arrivalNanos) {
+        if (length != REPORT_SIZE) {
+            return;
+        }
+        peerTimestamp = timestampMillis;
+        peerTimestampNanos = arrivalNanos;
+        
+        long peerReceived = readLong(data, offset);
+        if ((flags & 1) != 0) {
+            long echo = readInt(data, offset + 8);
+            long hold = readInt(data, offset + 12);
+            long rtt = ((arrivalNanos / 1_000_000 - echo) & 0xFFFFFFFFL) - hold;
+            if (rtt >= 0 && rtt < 10_000) {
+                estimator.recordRoundTrip(rtt);
+            }
+        }
+        
+        long sent = channel.getSentBytes();
+        if (lastPeerReceived >= 0) {
+            long peerMillis = (timestampMillis - lastPeerReportTimestamp) & 0xFFFFFFFFL;
+            long localNanos = arrivalNanos - lastSentNanos;
+            if (peerMillis > 0 && localNanos > 0) {
+                long delivered = (peerReceived - lastPeerReceived) * 8 * 1000 / peerMillis;
+                long sending = (long) ((sent - lastSent) * 8 * 1e9 / localNanos);
+                estimator.recordDeliveryRate(delivered);
+                update(delivered, sending);
+            }
+        }
+        lastPeerReceived = peerReceived;
+        lastPeerReportTimestamp = timestampMillis;
+        lastSent = sent;
+        lastSentNanos = arrivalNanos;
+    }
+    
+    private void update(long delivered, long sending) {
+        deliveredBitsPerSecond = delivered;
+        sentBitsPerSecond = sending;
+        long target = targetBitsPerSecond;
+        boolean lossy = delivered < sending * 0.85;
+        boolean queueing = estimator.getQueueingDelayMillis() > MAX_QUEUEING_DELAY_MILLIS;
+        if (lossy || queueing) {
+            long reduced = (long) (Math.min(delivered, target) * 0.85);
+            target = Math.max(MIN_BITS_PER_SECOND, reduced);
+            reductions++;
+            LOGGER.fine("Call rate reduced to " + target / 1000 + " kbit/s (" + (lossy ? "loss" : "queueing") + ")");
+        } else if (sending > target * 0.7) {
+            target = Math.min(MAX_BITS_PER_SECOND, (long) (target * 1.08));
+        }
+        targetBitsPerSecond = target;
+        apply();
+    }
+    
+    private void apply() {
+        long target = targetBitsPerSecond;
+        long voiceBits = 0;
+        if (voiceCall != null) {
+            boolean narrowband = videoCall != null ? target < NARROWBAND_BELOW_BITS_PER_SECOND : target < MIN_BITS_PER_SECOND * 2;
+            voiceCall.setNarrowband(narrowband);
+            int rate = narrowband ? VoiceCall.NARROWBAND_RATE : VoiceCall.SAMPLE_RATE;
+            int packetBytes = MediaChannel.HEADER_SIZE + rate * VoiceCall.FRAME_MILLIS / 1000;
+            voiceBits = packetBytes * 8L * 1000 / VoiceCall.FRAME_MILLIS;
+        }
+        if (videoCall != null) {
+            videoCall.setBitrateBudget(Math.max(MIN_VIDEO_BITS_PER_SECOND, target - voiceBits));
+        }
+    }
+    
+    private static void writeLong(byte[] buffer, int at, long value) {
+        writeInt(buffer, at, value >>> 32);
+        writeInt(buffer, at + 4, value);
+    }
+    
+    private static void writeInt(byte[] buffer, int at, long value) {
+        buffer[at] = (byte) (value >>> 24);
+        buffer[at + 1] = (byte) (value >>> 16);
+        buffer[at + 2] = (byte) (value >>> 8);
+        buffer[at + 3] = (byte) value;
+    }
+    
+    private static long readLong(byte[] buffer, int at) {
+        return (readInt(buffer, at) << 32) | readInt(buffer, at + 4);
+    }
+    
+    private static long readInt(byte[] buffer, int at) {
+        return ((long) (buffer[at] & 0xFF) << 24) | ((buffer[at + 1] & 0xFF) << 16)
+                | ((buffer[at + 2] & 0xFF) << 8) | (buffer[at + 3] & 0xFF);
+    }
+}
\ No newline at end of file
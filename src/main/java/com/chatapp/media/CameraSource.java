@@ -0,0 +1,136 @@
+package com.chatapp.media;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Simulated webcam shared by video messages and video calls. Frames are rendered on a
+ * "video-capture" thread at a fixed rate into two alternating images and handed to the
+ * registered listeners on that thread. A frame stays untouched until the next-but-one
+ * capture, so listeners that keep it longer must copy it.
+ */
+public class CameraSource {
+    private static final Logger LOGGER = Logger.getLogger(CameraSource.class.getName());
+    
+    public static final int DEFAULT_WIDTH = 320;
+    public static final int DEFAULT_HEIGHT = 240;
+    public static final int DEFAULT_FRAME_RATE = Math.max(1, Math.min(30, Integer.getInteger("chatapp.video.fps", 15)));
+    
+    private final int width;
+    private final int height;
+    private final int frameRate;
+    private final BufferedImage[] frames;
+    private final List<Consumer<BufferedImage>> listeners = new CopyOnWriteArrayList<>();
+    
+    private ScheduledExecutorService captureExecutor;
+    private int frameIndex;
+    private volatile BufferedImage currentFrame;
+    private volatile String caption = "PREVIEW";
+    private volatile boolean indicator;
+    
+    public CameraSource(int width, int height, int frameRate) {
+        this.width = width;
+        this.height = height;
+        this.frameRate = frameRate;
+        this.frames = new BufferedImage[] {
+            new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB),
+            new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB)
+        };
+    }
+    
+    public int getWidth() {
+        return width;
+    }
+    
+    public int getHeight() {
+        return height;
+    }
+    
+    public int getFrameRate() {
+        return frameRate;
+    }
+    
+    public void addFrameListener(Consumer<BufferedImage> listener) {
+        listeners.add(listener);
+    }
+    
+    public void removeFrameListener(Consumer<BufferedImage> listener) {
+        listeners.remove(listener);
+    }
+    
+    /**
+     * Text drawn into the picture, and whether the red recording dot is shown.
+     */
+    public void setCaption(String caption, boolean indicator) {
+        this.caption = caption;
+        this.indicator = indicator;
+    }
+    
+    public BufferedImage getCurrentFrame() {
+        return currentFrame;
+    }
+    
+    public synchronized void start() {
+        if (captureExecutor != null) {
+            return;
+        }
+        captureExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "video-capture");
+            thread.setDaemon(true);
+            return thread;
+        });
+        captureExecutor.scheduleAtFixedRate(this::captureFrame, 0, 1_000_000 / frameRate, TimeUnit.MICROSECONDS);
+    }
+    
+    public synchronized void stop() {
+        if (captureExecutor != null) {
+            captureExecutor.shutdownNow();
+            captureExecutor = null;
+        }
+    }
+    
+    private void captureFrame() {
+        try {
+            frameIndex ^= 1;
+            BufferedImage frame = frames[frameIndex];
+            renderSimulatedFrame(frame);
+            currentFrame = frame;
+            for (Consumer<BufferedImage> listener : listeners) {
+                listener.accept(frame);
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Error capturing frame", e);
+        }
+    }
+    
+    private void renderSimulatedFrame(BufferedImage frame) {
+        Graphics2D g2d = frame.createGraphics();
+        g2d.setColor(Color.BLACK);
+        g2d.fillRect(0, 0, frame.getWidth(), frame.getHeight());
+        
+        g2d.setColor(Color.WHITE);
+        g2d.drawString("Webcam Simulation", 10, 20);
+        g2d.drawString(caption, 10, 40);
+        if (indicator) {
+            g2d.setColor(Color.RED);
+            g2d.fillOval(width - 20, 10, 10, 10);
+        }
+        
+        double time = System.currentTimeMillis() / 100.0;
+        int x = (int) (Math.sin(time * 0.1) * 100 + width / 2);
+        int y = (int) (Math.cos(time * 0.1) * 100 + height / 2);
+        g2d.setColor(new Color(61, 157, 232));
+        g2d.fillOval(x - 5, y - 5, 10, 10);
+        
+        g2d.dispose();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,161 @@
+package com.chatapp.media;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Random-access view of a {@link FrameStreamWriter} container. Streams cut off before the
+ * index was written are still readable; their frames are found by walking the records.
+ */
+public class FrameStreamReader {
+    private final ByteBuffer data;
+    private final int width;
+    private final int height;
+    private final int fps;
+    
+    private int[] offsets;
+    private int[] timestamps;
+    private byte[] types;
+    private int frameCount;
+    
+    public FrameStreamReader(byte[] stream) throws IOException {
+        if (stream == null || stream.length < FrameStreamWriter.HEADER_SIZE) {
+            throw new IOException("Not a video frame stream");
+        }
+        this.data = ByteBuffer.wrap(stream);
+        if (data.getInt(0) != FrameStreamWriter.MAGIC) {
+            throw new IOException("Not a video frame stream");
+        }
+        if (data.get(4) > FrameStreamWriter.VERSION) {
+            throw new IOException("Unsupported video frame stream version " + data.get(4));
+        }
+        this.width = data.getInt(5);
+        this.height = data.getInt(9);
+        this.fps = data.getInt(13);
+        
+        if (!readIndex()) {
+            scanRecords();
+        }
+    }
+    
+    private boolean readIndex() {
+        int end = data.limit();
+        if (end < FrameStreamWriter.HEADER_SIZE + FrameStreamWriter.TRAILER_SIZE
+                || data.getInt(end - 4) != FrameStreamWriter.INDEX_MAGIC) {
+            return false;
+        }
+        int count = data.getInt(end - 12);
+        int indexOffset = data.getInt(end - 8);
+        if (count < 0 || indexOffset < FrameStreamWriter.HEADER_SIZE
+                || (long) indexOffset + (long) count * FrameStreamWriter.INDEX_ENTRY_SIZE != end - FrameStreamWriter.TRAILER_SIZE) {
+            return false;
+        }
+        
+        offsets = new int[count];
+        timestamps = new int[count];
+        types = new byte[count];
+        int position = indexOffset;
+        for (int i = 0; i < count; i++) {
+            offsets[i] = data.getInt(position);
+            timestamps[i] = data.getInt(position + 4);
+            types[i] = data.get(position + 8);
+            position += FrameStreamWriter.INDEX_ENTRY_SIZE;
+            if (offsets[i] < FrameStreamWriter.HEADER_SIZE || offsets[i] > indexOffset - FrameStreamWriter.RECORD_HEADER_SIZE) {
+                return false;
+            }
+        }
+        frameCount = count;
+        return true;
+    }
+    
+    private void scanRecords() {
+        offsets = new int[64];
+        timestamps = new int[64];
+        types = new byte[64];
+        frameCount = 0;
+        
+        int position = FrameStreamWriter.HEADER_SIZE;
+        while (position + FrameStreamWriter.RECORD_HEADER_SIZE <= data.limit()) {
+            int timestamp = data.getInt(position + 1);
+            int length = data.getInt(position + 5);
+            // A partial index looks like an empty record; frames are never empty or out of order
+            if (length <= 0 || (long) position + FrameStreamWriter.RECORD_HEADER_SIZE + length > data.limit()
+                    || (frameCount > 0 && timestamp < timestamps[frameCount - 1])) {
+                break;
+            }
+            if (frameCount == offsets.length) {
+                offsets = Arrays.copyOf(offsets, frameCount * 2);
+                timestamps = Arrays.copyOf(timestamps, frameCount * 2);
+                types = Arrays.copyOf(types, frameCount * 2);
+            }
+            offsets[frameCount] = position;
+            types[frameCount] = data.get(position);
+            timestamps[frameCount] = timestamp;
+            frameCount++;
+            position += FrameStreamWriter.RECORD_HEADER_SIZE + length;
+        }
+    }
+    
+    public int getWidth() {
+        return width;
+    }
+    
+    public int getHeight() {
+        return height;
+    }
+    
+    public int getFps() {
+        return fps;
+    }
+    
+    public int getFrameCount() {
+        return frameCount;
+    }
+    
+    public long getTimestamp(int frame) {
+        return timestamps[frame];
+    }
+    
+    public byte getFrameType(int frame) {
+        return types[frame];
+    }
+    
+    public long getDurationMillis() {
+        return frameCount == 0 ? 0 : timestamps[frameCount - 1];
+    }
+    
+    /**
+     * Offset of the frame's encoded bytes within the stream.
+     */
+    public int getFrameOffset(int frame) {
+        return offsets[frame] + FrameStreamWriter.RECORD_HEADER_SIZE;
+    }
+    
+    public int getFrameLength(int frame) {
+        return data.getInt(offsets[frame] + 5);
+    }
+    
+    public byte[] getStream() {
+        return data.array();
+    }
+    
+    /**
+     * Index of the last frame whose timestamp is at or before the given time.
+     */
+    public int frameAt(long timestampMillis) {
+        int low = 0;
+        int high = frameCount - 1;
+        int found = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (timestamps[mid] <= timestampMillis) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,112 @@
+package com.chatapp.media;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Writes the video message container: a header, one length-prefixed record per frame and
+ * a trailing timestamp index so players can seek without scanning every frame.
+ *
+ * <pre>
+ * header  "CVFS" version:u8 width:i32 height:i32 fps:i32
+ * frame   type:u8 timestampMillis:i32 length:i32 data[length]
+ * index   (offset:i32 timestampMillis:i32 type:u8) * count, count:i32 indexOffset:i32 "CVFX"
+ * </pre>
+ */
+public class FrameStreamWriter {
+    public static final String MJPEG_MIME_TYPE = "video/x-chatapp-mjpeg";
+    
+    public static final byte FRAME_JPEG = 0;
+    public static final byte FRAME_KEY = 1;
+    public static final byte FRAME_DELTA = 2;
+    
+    static final int MAGIC = 0x43564653;       // "CVFS"
+    static final int INDEX_MAGIC = 0x43564658; // "CVFX"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 17;
+    static final int RECORD_HEADER_SIZE = 9;
+    static final int INDEX_ENTRY_SIZE = 9;
+    static final int TRAILER_SIZE = 12;
+    
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256 * 1024);
+    private final DataOutputStream out = new DataOutputStream(buffer);
+    
+    private int[] offsets = new int[256];
+    private int[] timestamps = new int[256];
+    private byte[] types = new byte[256];
+    private int frameCount;
+    private boolean finished;
+    
+    public FrameStreamWriter(int width, int height, int fps) {
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(fps);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    public void writeFrame(byte type, long timestampMillis, byte[] data, int offset, int length) {
+        if (finished) {
+            throw new IllegalStateException("Frame stream already finished");
+        }
+        if (frameCount == offsets.length) {
+            offsets = Arrays.copyOf(offsets, frameCount * 2);
+            timestamps = Arrays.copyOf(timestamps, frameCount * 2);
+            types = Arrays.copyOf(types, frameCount * 2);
+        }
+        offsets[frameCount] = out.size();
+        timestamps[frameCount] = (int) timestampMillis;
+        types[frameCount] = type;
+        frameCount++;
+        
+        try {
+            out.writeByte(type);
+            out.writeInt((int) timestampMillis);
+            out.writeInt(length);
+            out.write(data, offset, length);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * Appends the index and returns the complete stream.
+     */
+    public byte[] finish() {
+        if (!finished) {
+            finished = true;
+            try {
+                int indexOffset = out.size();
+                for (int i = 0; i < frameCount; i++) {
+                    out.writeInt(offsets[i]);
+                    out.writeInt(timestamps[i]);
+                    out.writeByte(types[i]);
+                }
+                out.writeInt(frameCount);
+                out.writeInt(indexOffset);
+                out.writeInt(INDEX_MAGIC);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return buffer.toByteArray();
+    }
+    
+    public int getFrameCount() {
+        return frameCount;
+    }
+    
+    public long getLastTimestamp() {
+        return frameCount == 0 ? 0 : timestamps[frameCount - 1];
+    }
+    
+    public int size() {
+        return out.size();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,119 @@
+package com.chatapp.media;
+
+/**
+ * IMA ADPCM in the mono block layout used by WAV files: a 4-byte header holding the
+ * first sample and the step index, followed by two 4-bit codes per byte, low nibble
+ * first. Blocks are self-contained, so a stream can be decoded from any block boundary.
+ */
+public final class ImaAdpcm {
+    public static final int BLOCK_SIZE = 256;
+    public static final int SAMPLES_PER_BLOCK = (BLOCK_SIZE - 4) * 2 + 1;
+    
+    private static final int[] INDEX_TABLE = {
+        -1, -1, -1, -1, 2, 4, 6, 8,
+        -1, -1, -1, -1, 2, 4, 6, 8
+    };
+    
+    private static final int[] STEP_TABLE = {
+        7, 8, 9, 10, 11, 12, 13, 14, 16, 17,
+        19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+        50, 55, 60, 66, 73, 80, 88, 97, 107, 118,
+        130, 143, 157, 173, 190, 209, 230, 253, 279, 307,
+        337, 371, 408, 449, 494, 544, 598, 658, 724, 796,
+        876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,
+        2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358,
+        5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899,
+        15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+    };
+    
+    private ImaAdpcm() {
+    }
+    
+    /**
+     * Encodes {@link #SAMPLES_PER_BLOCK} samples into one block and returns the step index to carry into the next block.
+     */
+    public static int encodeBlock(short[] samples, int offset, int index, byte[] out, int outOffset) {
+        int predictor = samples[offset];
+        out[outOffset] = (byte) predictor;
+        out[outOffset + 1] = (byte) (predictor >> 8);
+        out[outOffset + 2] = (byte) index;
+        out[outOffset + 3] = 0;
+        
+        int position = outOffset + 4;
+        for (int i = 1; i < SAMPLES_PER_BLOCK; i += 2) {
+            int low = encodeSample(samples[offset + i], predictor, index);
+            predictor = decodeSample(low, predictor, index);
+            index = nextIndex(index, low);
+            
+            int high = encodeSample(samples[offset + i + 1], predictor, index);
+            predictor = decodeSample(high, predictor, index);
+            index = nextIndex(index, high);
+            
+            out[position++] = (byte) (low | (high << 4));
+        }
+        return index;
+    }
+    
+    public static void decodeBlock(byte[] in, int offset, short[] out, int outOffset) {
+        int predictor = (short) ((in[offset] & 0xFF) | (in[offset + 1] << 8));
+        int index = Math.min(88, in[offset + 2] & 0xFF);
+        out[outOffset] = (short) predictor;
+        
+        int position = outOffset + 1;
+        for (int i = offset + 4; i < offset + BLOCK_SIZE; i++) {
+            int low = in[i] & 0x0F;
+            predictor = decodeSample(low, predictor, index);
+            index = nextIndex(index, low);
+            out[position++] = (short) predictor;
+            
+            int high = (in[i] >> 4) & 0x0F;
+            predictor = decodeSample(high, predictor, index);
+            index = nextIndex(index, high);
+            out[position++] = (short) predictor;
+        }
+    }
+    
+    private static int encodeSample(int sample, int predictor, int index) {
+        int step = STEP_TABLE[index];
+        int diff = sample - predictor;
+        int code = 0;
+        if (diff < 0) {
+            code = 8;
+            diff = -diff;
+        }
+        if (diff >= step) {
+            code |= 4;
+            diff -= step;
+        }
+        step >>= 1;
+        if (diff >= step) {
+            code |= 2;
+            diff -= step;
+        }
+        step >>= 1;
+        if (diff >= step) {
+            code |= 1;
+        }
+        return code;
+    }
+    
+    private static int decodeSample(int code, int predictor, int index) {
+        int step = STEP_TABLE[index];
+        int delta = step >> 3;
+        if ((code & 4) != 0) {
+            delta += step;
+        }
+        if ((code & 2) != 0) {
+            delta += step >> 1;
+        }
+        if ((code & 1) != 0) {
+            delta += step >> 2;
+        }
+        predictor += (code & 8) != 0 ? -delta : delta;
+        return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, predictor));
+    }
+    
+    private static int nextIndex(int index, int code) {
+        return Math.max(0, Math.min(88, index + INDEX_TABLE[code]));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,163 @@
+package com.chatapp.media;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.ConvolveOp;
+import java.awt.image.Kernel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Shrinks images before they are sent so a slow link is not tied up moving pixels the
+ * recipient will never see at full size.
+ */
+public final class ImageDownscaler {
+    private static final float JPEG_QUALITY = 0.85f;
+    
+    private ImageDownscaler() {
+    }
+    
+    /**
+     * Scales the image so neither side exceeds {@code maxDimension}. Returns the re-encoded
+     * image, JPEG or PNG when it has transparency, or null when it is already small enough,
+     * cannot be read, or would not get smaller.
+     */
+    public static Result fitWithin(byte[] data, int maxDimension) throws IOException {
+        BufferedImage original = ImageIO.read(new ByteArrayInputStream(data));
+        if (original == null || (original.getWidth() <= maxDimension && original.getHeight() <= maxDimension)) {
+            return null;
+        }
+        
+        boolean alpha = original.getColorModel().hasAlpha();
+        BufferedImage scaled = scaleDown(original, maxDimension, alpha);
+        byte[] encoded = alpha ? encodePng(scaled) : encodeJpeg(scaled, JPEG_QUALITY);
+        if (encoded.length >= data.length) {
+            return null;
+        }
+        return new Result(encoded, alpha ? "image/png" : "image/jpeg", scaled.getWidth(), scaled.getHeight());
+    }
+    
+    /**
+     * Halves the image with bilinear filtering until it is close to the target, which keeps
+     * far more detail than a single large bilinear step. Without {@code alpha} the result is
+     * opaque RGB on a white background.
+     */
+    public static BufferedImage scaleDown(BufferedImage image, int maxDimension, boolean alpha) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (width <= maxDimension && height <= maxDimension) {
+            return image;
+        }
+        
+        double scale = (double) maxDimension / Math.max(width, height);
+        int targetWidth = Math.max(1, (int) Math.round(width * scale));
+        int targetHeight = Math.max(1, (int) Math.round(height * scale));
+        int type = alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        
+        BufferedImage current = image;
+        while (width != targetWidth || height != targetHeight) {
+            width = Math.max(targetWidth, width / 2);
+            height = Math.max(targetHeight, height / 2);
+            
+            BufferedImage next = new BufferedImage(width, height, type);
+            Graphics2D g = next.createGraphics();
+            if (!alpha) {
+                g.setColor(Color.WHITE);
+                g.fillRect(0, 0, width, height);
+            }
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(current, 0, 0, width, height, null);
+            g.dispose();
+            current = next;
+        }
+        return current;
+    }
+    
+    /**
+     * The image as opaque RGB, transparent areas turned white.
+     */
+    public static BufferedImage toRgb(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_INT_RGB) {
+            return image;
+        }
+        BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = rgb.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, rgb.getWidth(), rgb.getHeight());
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return rgb;
+    }
+    
+    /**
+     * A 3x3 box blur, e.g. for placeholders that only need to suggest the picture.
+     */
+    public static BufferedImage blur(BufferedImage image) {
+        float[] kernel = new float[9];
+        Arrays.fill(kernel, 1f / 9f);
+        return new ConvolveOp(new Kernel(3, 3, kernel), ConvolveOp.EDGE_NO_OP, null).filter(image, null);
+    }
+    
+    private static byte[] encodePng(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+    
+    public static byte[] encodeJpeg(BufferedImage image, float quality) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(ios);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+    
+    /**
+     * A downscaled image and its new content type.
+     */
+    public static final class Result {
+        private final byte[] data;
+        private final String contentType;
+        private final int width;
+        private final int height;
+        
+        Result(byte[] data, String contentType, int width, int height) {
+            this.data = data;
+            this.contentType = contentType;
+            this.width = width;
+            this.height = height;
+        }
+        
+        public byte[] getData() {
+            return data;
+        }
+        
+        public String getContentType() {
+            return contentType;
+        }
+        
+        public int getWidth() {
+            return width;
+        }
+        
+        public int getHeight() {
+            return height;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,166 @@
+package com.chatapp.media;
+
+import java.util.TreeMap;
+
+/**
+ * Adaptive playout buffer for fixed-duration audio frames. Arrival jitter is tracked as in
+ * RFC 3550 and the playout delay follows it: the buffer holds back about one frame plus
+ * four times the jitter, grows by one frame whenever playout runs dry and shrinks again by
+ * skipping a frame when it holds more than it needs.
+ *
+ * {@link #take()} is called once per frame by the playout thread. It returns the next
+ * frame's payload, or null when the frame is missing; {@link #isBuffering()} then tells
+ * whether to play silence (not started yet) or conceal the gap.
+ */
+public class JitterBuffer {
+    private static final int MAX_DELAY_MILLIS = Integer.getInteger("chatapp.call.maxJitterMillis", 300);
+    private static final int REBUFFER_AFTER_MISSING = 10;
+    private static final int SHRINK_AFTER_FRAMES = 250;
+    
+    private final int frameMillis;
+    private final int maxFrames;
+    private final TreeMap<Long, byte[]> frames = new TreeMap<>();
+    
+    private long highestSequence = -1;
+    private long nextSequence;
+    private boolean buffering = true;
+    private int consecutiveMissing;
+    
+    private double jitterMillis;
+    private long lastTransitMillis;
+    private boolean hasTransit;
+    private int extraFrames;
+    private int stableFrames;
+    
+    private long received;
+    private long late;
+    private long concealed;
+    private long skipped;
+    
+    public JitterBuffer(int frameMillis) {
+        this.frameMillis = frameMillis;
+        this.maxFrames = Math.max(2, MAX_DELAY_MILLIS / frameMillis);
+    }
+    
+    public synchronized void put(int sequence, long timestampMillis, byte[] payload, long arrivalNanos) {
+        long extended = extend(sequence);
+        received++;
+        
+        long transit = arrivalNanos / 1_000_000 - timestampMillis;
+        if (hasTransit) {
+            double deviation = Math.abs(transit - lastTransitMillis);
+            jitterMillis += (deviation - jitterMillis) / 16;
+        }
+        lastTransitMillis = transit;
+        hasTransit = true;
+        
+        if (!buffering && extended < nextSequence) {
+            late++;
+            return;
+        }
+        frames.put(extended, payload);
+        while (frames.size() > maxFrames * 2) {
+            frames.pollFirstEntry();
+        }
+    }
+    
+    // Sequence numbers are 16 bits on the wire; keep a running 64-bit count
+    private long extend(int sequence) {
+        if (highestSequence < 0) {
+            highestSequence = sequence;
+            return sequence;
+        }
+        long extended = highestSequence + (short) (sequence - (int) (highestSequence & 0xFFFF));
+        if (extended > highestSequence) {
+            highestSequence = extended;
+        }
+        return extended;
+    }
+    
+    public synchronized byte[] take() {
+        if (buffering) {
+            if (frames.isEmpty() || (frames.lastKey() - frames.firstKey() + 1) < getTargetFrames()) {
+                return null;
+            }
+            buffering = false;
+            nextSequence = frames.firstKey();
+        }
+        
+        byte[] payload = frames.remove(nextSequence);
+        if (payload != null) {
+            nextSequence++;
+            consecutiveMissing = 0;
+            // Give back delay added after underruns once the link has been steady for a while
+            if (extraFrames > 0 && ++stableFrames >= SHRINK_AFTER_FRAMES) {
+                extraFrames--;
+                stableFrames = 0;
+            }
+            // Delay has built up beyond what the jitter calls for: catch up by one frame
+            if (depth() > getTargetFrames() + 1 && frames.remove(nextSequence) != null) {
+                nextSequence++;
+                skipped++;
+            }
+            return payload;
+        }
+        
+        concealed++;
+        consecutiveMissing++;
+        if (frames.isEmpty()) {
+            // Nothing newer has arrived, so the frame is late rather than lost: stretch and wait for it
+            extraFrames = Math.min(maxFrames, extraFrames + 1);
+            stableFrames = 0;
+            if (consecutiveMissing >= REBUFFER_AFTER_MISSING) {
+                buffering = true;
+            }
+        } else {
+            nextSequence++;
+            // Frames that fell behind the playout point are of no use any more
+            while (!frames.isEmpty() && frames.firstKey() < nextSequence) {
+                frames.pollFirstEntry();
+            }
+        }
+        return null;
+    }
+    
+    private long depth() {
+        return frames.isEmpty() ? 0 : frames.lastKey() - nextSequence + 1;
+    }
+    
+    public synchronized boolean isBuffering() {
+        return buffering;
+    }
+    
+    public synchronized int getTargetFrames() {
+        int target = (int) Math.ceil((frameMillis + 4 * jitterMillis) / frameMillis) + extraFrames;
+        return Math.max(1, Math.min(maxFrames, target));
+    }
+    
+    public synchronized int getTargetDelayMillis() {
+        return getTargetFrames() * frameMillis;
+    }
+    
+    public synchronized double getJitterMillis() {
+        return jitterMillis;
+    }
+    
+    public synchronized long getReceived() {
+        return received;
+    }
+    
+    public synchronized long getLate() {
+        return late;
+    }
+    
+    public synchronized long getConcealed() {
+        return concealed;
+    }
+    
+    public synchronized long getSkipped() {
+        return skipped;
+    }
+    
+    public synchronized void clear() {
+        frames.clear();
+        buffering = true;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,95 @@
+package com.chatapp.media;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * JPEG codec for video frames that keeps one {@link ImageWriter} and one output buffer
+ * for the whole recording instead of going through {@code ImageIO.write} per frame, and
+ * decodes into a caller-owned image instead of allocating one per frame.
+ * Not thread-safe; each encoding thread owns its own instance.
+ */
+public class JpegFrameCodec {
+    public static final float DEFAULT_QUALITY = Integer.getInteger("chatapp.video.quality", 70) / 100f;
+    
+    private final ImageWriter writer;
+    private final ImageWriteParam writeParam;
+    private final FrameBuffer buffer = new FrameBuffer();
+    private ImageReader reader;
+    
+    public JpegFrameCodec() {
+        this(DEFAULT_QUALITY);
+    }
+    
+    public JpegFrameCodec(float quality) {
+        this.writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        this.writeParam = writer.getDefaultWriteParam();
+        writeParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        setQuality(quality);
+    }
+    
+    public void setQuality(float quality) {
+        writeParam.setCompressionQuality(Math.max(0.05f, Math.min(1f, quality)));
+    }
+    
+    /**
+     * Encodes the image into the internal buffer and returns the encoded length; the bytes
+     * stay valid in {@link #getBuffer()} until the next call.
+     */
+    public int encode(BufferedImage image) throws IOException {
+        buffer.reset();
+        try (ImageOutputStream output = new MemoryCacheImageOutputStream(buffer)) {
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), writeParam);
+        }
+        return buffer.size();
+    }
+    
+    public byte[] getBuffer() {
+        return buffer.array();
+    }
+    
+    /**
+     * Decodes a JPEG into {@code destination}, which must match the frame size.
+     */
+    public void decode(byte[] data, int offset, int length, BufferedImage destination) throws IOException {
+        if (reader == null) {
+            reader = ImageIO.getImageReadersByFormatName("jpeg").next();
+        }
+        try (ImageInputStream input = new MemoryCacheImageInputStream(new ByteArrayInputStream(data, offset, length))) {
+            reader.setInput(input, true, true);
+            ImageReadParam readParam = reader.getDefaultReadParam();
+            readParam.setDestination(destination);
+            reader.read(0, readParam);
+        }
+    }
+    
+    public void dispose() {
+        writer.dispose();
+        if (reader != null) {
+            reader.dispose();
+        }
+    }
+    
+    private static class FrameBuffer extends ByteArrayOutputStream {
+        FrameBuffer() {
+            super(32 * 1024);
+        }
+        
+        byte[] array() {
+            return buf;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,162 @@
+package com.chatapp.media;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * UDP path for live call media. Every datagram carries an 8-byte header followed by the
+ * payload:
+ * <pre>
+ * type:u8 flags:u8 sequence:u16 timestampMillis:u32 payload
+ * </pre>
+ * Packets are dispatched to the handler registered for their type. Until the peer address
+ * is known the channel latches onto the first sender, so media flows as soon as either
+ * side starts sending.
+ */
+public class MediaChannel {
+    private static final Logger LOGGER = Logger.getLogger(MediaChannel.class.getName());
+    
+    public static final byte TYPE_VOICE = 1;
+    public static final byte TYPE_VIDEO = 2;
+    public static final byte TYPE_REPORT = 3;
+    
+    public static final int HEADER_SIZE = 8;
+    public static final int MAX_PACKET_SIZE = 1400;
+    
+    private final DatagramSocket socket;
+    private final Map<Byte, PacketHandler> handlers = new ConcurrentHashMap<>();
+    private volatile SocketAddress peer;
+    private volatile boolean closed;
+    private Thread receiveThread;
+    private final AtomicLong sentBytes = new AtomicLong();
+    private volatile long receivedBytes;
+    
+    public interface PacketHandler {
+        void packetReceived(int flags, int sequence, long timestampMillis, byte[] data, int offset, int length, long arrivalNanos);
+    }
+    
+    public MediaChannel() throws SocketException {
+        this(new DatagramSocket());
+    }
+    
+    public MediaChannel(DatagramSocket socket) throws SocketException {
+        this.socket = socket;
+        socket.setSoTimeout(500);
+        socket.setTrafficClass(0xB8); // DSCP EF, honoured on networks that care
+    }
+    
+    public int getLocalPort() {
+        return socket.getLocalPort();
+    }
+    
+    /**
+     * Sets the peer from a {@code host:port} endpoint handed out by call signaling.
+     */
+    public void connect(String endpoint) {
+        int separator = endpoint.lastIndexOf(':');
+        peer = new InetSocketAddress(endpoint.substring(0, separator), Integer.parseInt(endpoint.substring(separator + 1)));
+    }
+    
+    public void connect(SocketAddress peer) {
+        this.peer = peer;
+    }
+    
+    public void setHandler(byte type, PacketHandler handler) {
+        handlers.put(type, handler);
+    }
+    
+    public void start() {
+        receiveThread = new Thread(this::receiveLoop, "call-receive");
+        receiveThread.setDaemon(true);
+        receiveThread.setPriority(Thread.MAX_PRIORITY);
+        receiveThread.start();
+    }
+    
+    /**
+     * Sends one packet; {@code buffer} must have {@link #HEADER_SIZE} free bytes in front of
+     * the payload, which are overwritten with the header.
+     */
+    public void send(byte type, int flags, int sequence, long timestampMillis, byte[] buffer, int payloadLength) throws IOException {
+        SocketAddress target = peer;
+        if (target == null || closed) {
+            return;
+        }
+        buffer[0] = type;
+        buffer[1] = (byte) flags;
+        buffer[2] = (byte) (sequence >>> 8);
+        buffer[3] = (byte) sequence;
+        buffer[4] = (byte) (timestampMillis >>> 24);
+        buffer[5] = (byte) (timestampMillis >>> 16);
+        buffer[6] = (byte) (timestampMillis >>> 8);
+        buffer[7] = (byte) timestampMillis;
+        socket.send(new DatagramPacket(buffer, 0, HEADER_SIZE + payloadLength, target));
+        sentBytes.addAndGet(HEADER_SIZE + payloadLength);
+    }
+    
+    /**
+     * Bytes sent so far, headers included.
+     */
+    public long getSentBytes() {
+        return sentBytes.get();
+    }
+    
+    /**
+     * Bytes received from the peer so far, headers included.
+     */
+    public long getReceivedBytes() {
+        return receivedBytes;
+    }
+    
+    private void receiveLoop() {
+        byte[] buffer = new byte[MAX_PACKET_SIZE + HEADER_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!closed) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                long arrivalNanos = System.nanoTime();
+                if (packet.getLength() < HEADER_SIZE) {
+                    continue;
+                }
+                if (peer == null) {
+                    peer = packet.getSocketAddress();
+                } else if (!peer.equals(packet.getSocketAddress())) {
+                    continue;
+                }
+                receivedBytes += packet.getLength();
+                
+                PacketHandler handler = handlers.get(buffer[0]);
+                if (handler != null) {
+                    int sequence = ((buffer[2] & 0xFF) << 8) | (buffer[3] & 0xFF);
+                    long timestamp = ((long) (buffer[4] & 0xFF) << 24) | ((buffer[5] & 0xFF) << 16)
+                            | ((buffer[6] & 0xFF) << 8) | (buffer[7] & 0xFF);
+                    handler.packetReceived(buffer[1] & 0xFF, sequence, timestamp, buffer, HEADER_SIZE,
+                            packet.getLength() - HEADER_SIZE, arrivalNanos);
+                }
+            } catch (SocketTimeoutException e) {
+                // Re-check closed
+            } catch (IOException e) {
+                if (!closed) {
+                    LOGGER.log(Level.WARNING, "Error receiving call media", e);
+                }
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Error handling call media packet", e);
+            }
+        }
+    }
+    
+    public void close() {
+        closed = true;
+        socket.close();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,87 @@
+package com.chatapp.media;
+
+/**
+ * Encoding settings for recorded media, picked from the link estimate so a slow link gets
+ * small messages that still arrive promptly and a fast one gets full quality.
+ * {@code chatapp.media.quality} pins a level ({@code low}, {@code medium}, {@code high});
+ * properties that set one parameter explicitly, such as {@code chatapp.voice.sampleRate},
+ * still take precedence over the level's value.
+ */
+public enum MediaQuality {
+    LOW(0, 8000, 160, 120, 8, 0.5f, 1024),
+    MEDIUM(500_000, 16000, 320, 240, 15, 0.6f, 1600),
+    HIGH(4_000_000, 24000, 640, 480, 15, 0.7f, 0);
+    
+    private static final String PINNED = System.getProperty("chatapp.media.quality", "auto");
+    // Leave headroom for other traffic and for the estimate being optimistic
+    private static final double MAX_LINK_SHARE = 0.8;
+    
+    private final long minBitsPerSecond;
+    private final int voiceSampleRate;
+    private final int videoWidth;
+    private final int videoHeight;
+    private final int videoFrameRate;
+    private final float videoQuality;
+    private final int imageMaxDimension;
+    
+    MediaQuality(long minBitsPerSecond, int voiceSampleRate, int videoWidth, int videoHeight,
+                 int videoFrameRate, float videoQuality, int imageMaxDimension) {
+        this.minBitsPerSecond = minBitsPerSecond;
+        this.voiceSampleRate = voiceSampleRate;
+        this.videoWidth = videoWidth;
+        this.videoHeight = videoHeight;
+        this.videoFrameRate = videoFrameRate;
+        this.videoQuality = videoQuality;
+        this.imageMaxDimension = imageMaxDimension;
+    }
+    
+    public static MediaQuality forLink(BandwidthEstimator link) {
+        for (MediaQuality quality : values()) {
+            if (quality.name().equalsIgnoreCase(PINNED)) {
+                return quality;
+            }
+        }
+        long usable = (long) (link.getBitsPerSecond() * MAX_LINK_SHARE);
+        MediaQuality chosen = LOW;
+        for (MediaQuality quality : values()) {
+            if (usable >= quality.minBitsPerSecond) {
+                chosen = quality;
+            }
+        }
+        return chosen;
+    }
+    
+    /**
+     * Voice message format: the configured codec at this level's sample rate.
+     */
+    public VoiceFormat getVoiceFormat() {
+        VoiceFormat configured = VoiceEncoder.defaultFormat();
+        if (System.getProperty("chatapp.voice.sampleRate") != null) {
+            return configured;
+        }
+        return new VoiceFormat(configured.getEncoding(), voiceSampleRate);
+    }
+    
+    public int getVideoWidth() {
+        return videoWidth;
+    }
+    
+    public int getVideoHeight() {
+        return videoHeight;
+    }
+    
+    public int getVideoFrameRate() {
+        return System.getProperty("chatapp.video.fps") != null ? CameraSource.DEFAULT_FRAME_RATE : videoFrameRate;
+    }
+    
+    public float getVideoQuality() {
+        return System.getProperty("chatapp.video.quality") != null ? JpegFrameCodec.DEFAULT_QUALITY : videoQuality;
+    }
+    
+    /**
+     * Longest side images are scaled down to before sending, or 0 to send them unchanged.
+     */
+    public int getImageMaxDimension() {
+        return imageMaxDimension;
+    }
+}
\ No newline at end of file
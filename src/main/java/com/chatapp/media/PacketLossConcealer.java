@@ -0,0 +1,110 @@
+package com.chatapp.media;
+
+/**
+ * Fills gaps left by lost or late audio frames by repeating the last pitch period of the
+ * signal (in the spirit of G.711 Appendix I), fading out over a few frames so longer
+ * outages decay into silence instead of buzzing. When audio resumes, the first good frame
+ * is cross-faded with the concealed signal to avoid a click.
+ */
+public class PacketLossConcealer {
+    private static final int FADE_FRAMES = 5;
+    
+    private final int frameSamples;
+    private final int minPitch;
+    private final int maxPitch;
+    private final int overlap;
+    private final short[] history;
+    
+    private int lostFrames;
+    private int pitch;
+    private int phase;
+    
+    public PacketLossConcealer(int sampleRate, int frameSamples) {
+        this.frameSamples = frameSamples;
+        this.minPitch = sampleRate / 400;
+        this.maxPitch = sampleRate / 60;
+        this.overlap = sampleRate / 400;
+        this.history = new short[Math.max(2 * maxPitch, frameSamples)];
+    }
+    
+    /**
+     * Records a correctly received frame; after a gap its start is blended in place.
+     */
+    public void goodFrame(short[] frame) {
+        if (lostFrames > 0 && lostFrames <= FADE_FRAMES) {
+            double gain = gainAfter(lostFrames);
+            for (int i = 0; i < overlap && i < frame.length; i++) {
+                double weight = (double) i / overlap;
+                double concealed = nextConcealedSample() * gain;
+                frame[i] = clamp(concealed * (1 - weight) + frame[i] * weight);
+            }
+        }
+        lostFrames = 0;
+        remember(frame);
+    }
+    
+    /**
+     * Writes one frame of concealment into {@code out}.
+     */
+    public void conceal(short[] out) {
+        if (lostFrames == 0) {
+            pitch = estimatePitch();
+            phase = 0;
+        }
+        double startGain = gainAfter(lostFrames);
+        double endGain = gainAfter(lostFrames + 1);
+        for (int i = 0; i < frameSamples; i++) {
+            double gain = startGain + (endGain - startGain) * i / frameSamples;
+            out[i] = clamp(nextConcealedSample() * gain);
+        }
+        lostFrames++;
+    }
+    
+    public int getLostFrames() {
+        return lostFrames;
+    }
+    
+    private double gainAfter(int frames) {
+        return Math.max(0, 1 - (double) frames / FADE_FRAMES);
+    }
+    
+    // Cycles through the last pitch period before the gap; history is frozen while concealing
+    private int nextConcealedSample() {
+        int sample = history[history.length - pitch + (phase % pitch)];
+        phase++;
+        return sample;
+    }
+    
+    private void remember(short[] frame) {
+        int count = Math.min(frame.length, history.length);
+        System.arraycopy(history, count, history, 0, history.length - count);
+        System.arraycopy(frame, frame.length - count, history, history.length - count, count);
+    }
+    
+    private int estimatePitch() {
+        int window = Math.min(maxPitch, history.length - maxPitch);
+        int end = history.length;
+        int best = frameSamples;
+        double bestScore = 0;
+        for (int lag = minPitch; lag <= maxPitch; lag++) {
+            double correlation = 0;
+            double energy = 0;
+            for (int i = end - window; i < end; i++) {
+                correlation += (double) history[i] * history[i - lag];
+                energy += (double) history[i - lag] * history[i - lag];
+            }
+            if (energy > 0) {
+                double score = correlation / Math.sqrt(energy);
+                if (score > bestScore) {
+                    bestScore = score;
+                    best = lag;
+                }
+            }
+        }
+        return Math.min(best, history.length);
+    }
+    
+    private static short clamp(double value) {
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value)));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,88 @@
+package com.chatapp.media;
+
+/**
+ * Fixed-size byte ring between a decoding thread and an audio output thread.
+ *
+ * Every {@link #clear()} starts a new epoch. Writers pass the epoch they decoded for,
+ * so audio decoded before a seek is dropped instead of being played after it.
+ */
+public class PcmRingBuffer {
+    private final byte[] buffer;
+    private int readIndex;
+    private int size;
+    private int epoch;
+    private boolean closed;
+    
+    public PcmRingBuffer(int capacity) {
+        this.buffer = new byte[capacity];
+    }
+    
+    public synchronized int epoch() {
+        return epoch;
+    }
+    
+    /**
+     * Blocks until everything is written; returns false if the ring was cleared or
+     * closed in the meantime and the data is stale.
+     */
+    public synchronized boolean write(byte[] data, int offset, int length, int writerEpoch) throws InterruptedException {
+        while (length > 0) {
+            while (size == buffer.length && writerEpoch == epoch && !closed) {
+                wait();
+            }
+            if (writerEpoch != epoch || closed) {
+                return false;
+            }
+            
+            int writeIndex = (readIndex + size) % buffer.length;
+            int count = Math.min(length, Math.min(buffer.length - size, buffer.length - writeIndex));
+            System.arraycopy(data, offset, buffer, writeIndex, count);
+            size += count;
+            offset += count;
+            length -= count;
+            notifyAll();
+        }
+        return true;
+    }
+    
+    /**
+     * Reads whatever is available, waiting at most {@code timeoutMillis} for data.
+     * Returns 0 on timeout and -1 once closed.
+     */
+    public synchronized int read(byte[] data, int offset, int length, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (size == 0 && !closed) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return 0;
+            }
+            wait(remaining);
+        }
+        if (closed) {
+            return -1;
+        }
+        
+        int count = Math.min(length, Math.min(size, buffer.length - readIndex));
+        System.arraycopy(buffer, readIndex, data, offset, count);
+        readIndex = (readIndex + count) % buffer.length;
+        size -= count;
+        notifyAll();
+        return count;
+    }
+    
+    public synchronized int available() {
+        return size;
+    }
+    
+    public synchronized void clear() {
+        readIndex = 0;
+        size = 0;
+        epoch++;
+        notifyAll();
+    }
+    
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+}
\ No newline at end of file
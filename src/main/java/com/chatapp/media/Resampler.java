@@ -0,0 +1,130 @@
+package com.chatapp.media;
+
+/**
+ * Streaming sample-rate converter for mono 16-bit audio using a Blackman-windowed
+ * sinc kernel. When downsampling, the kernel cutoff sits just below the output Nyquist
+ * frequency so that content the target rate cannot represent is filtered rather than aliased.
+ */
+public class Resampler {
+    private static final int ZERO_CROSSINGS = 8;
+    private static final int KERNEL_OVERSAMPLE = 128;
+    
+    private final int inputRate;
+    private final int outputRate;
+    private final double step;
+    private final double cutoff;
+    private final int halfWidth;
+    private final float[] kernel;
+    
+    private float[] history;
+    private int historyLength;
+    private double position;
+    
+    public Resampler(int inputRate, int outputRate) {
+        this.inputRate = inputRate;
+        this.outputRate = outputRate;
+        this.step = (double) inputRate / outputRate;
+        this.cutoff = Math.min(1.0, (double) outputRate / inputRate) * 0.95;
+        this.halfWidth = (int) Math.ceil(ZERO_CROSSINGS / cutoff);
+        this.kernel = buildKernel();
+        
+        // Prime with silence so the first output sample has a full left-hand window
+        this.history = new float[halfWidth * 4 + 4096];
+        this.historyLength = halfWidth;
+        this.position = halfWidth;
+    }
+    
+    private float[] buildKernel() {
+        int length = halfWidth * KERNEL_OVERSAMPLE + 2;
+        float[] table = new float[length];
+        for (int i = 0; i < length; i++) {
+            double x = (double) i / KERNEL_OVERSAMPLE;
+            if (x >= halfWidth) {
+                table[i] = 0;
+                continue;
+            }
+            double t = cutoff * x;
+            double sinc = t == 0 ? 1.0 : Math.sin(Math.PI * t) / (Math.PI * t);
+            double w = Math.PI * x / halfWidth;
+            double window = 0.42 + 0.5 * Math.cos(w) + 0.08 * Math.cos(2 * w);
+            table[i] = (float) (cutoff * sinc * window);
+        }
+        return table;
+    }
+    
+    public boolean isPassthrough() {
+        return inputRate == outputRate;
+    }
+    
+    /**
+     * Consumes input samples and returns every output sample whose window is now complete.
+     */
+    public short[] process(short[] input, int offset, int length) {
+        if (isPassthrough()) {
+            short[] copy = new short[length];
+            System.arraycopy(input, offset, copy, 0, length);
+            return copy;
+        }
+        
+        ensureCapacity(historyLength + length);
+        for (int i = 0; i < length; i++) {
+            history[historyLength++] = input[offset + i];
+        }
+        return drain();
+    }
+    
+    /**
+     * Pads the tail with silence and returns the remaining output samples.
+     */
+    public short[] flush() {
+        if (isPassthrough()) {
+            return new short[0];
+        }
+        short[] silence = new short[halfWidth + 1];
+        return process(silence, 0, silence.length);
+    }
+    
+    private short[] drain() {
+        int available = (int) Math.max(0, Math.floor((historyLength - halfWidth - 1 - position) / step) + 1);
+        short[] output = new short[available];
+        
+        for (int n = 0; n < available; n++) {
+            output[n] = interpolate(position);
+            position += step;
+        }
+        
+        int consumed = (int) Math.floor(position) - halfWidth;
+        if (consumed > 0) {
+            System.arraycopy(history, consumed, history, 0, historyLength - consumed);
+            historyLength -= consumed;
+            position -= consumed;
+        }
+        return output;
+    }
+    
+    private short interpolate(double center) {
+        int base = (int) Math.floor(center);
+        double fraction = center - base;
+        double sum = 0;
+        
+        for (int k = -halfWidth + 1; k <= halfWidth; k++) {
+            double distance = Math.abs(k - fraction);
+            double scaled = distance * KERNEL_OVERSAMPLE;
+            int index = (int) scaled;
+            double frac = scaled - index;
+            double weight = kernel[index] + (kernel[index + 1] - kernel[index]) * frac;
+            sum += history[base + k] * weight;
+        }
+        
+        long rounded = Math.round(sum);
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, rounded));
+    }
+    
+    private void ensureCapacity(int needed) {
+        if (needed > history.length) {
+            float[] grown = new float[Math.max(needed, history.length * 2)];
+            System.arraycopy(history, 0, grown, 0, historyLength);
+            history = grown;
+        }
+    }
+}
\ No newline at end of file
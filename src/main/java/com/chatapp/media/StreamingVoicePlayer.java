@@ -0,0 +1,274 @@
+package com.chatapp.media;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Plays a voice payload through a {@link SourceDataLine} without ever holding the whole
+ * recording in memory. A decoder thread fetches and decodes a few hundred milliseconds
+ * ahead into a {@link PcmRingBuffer}; an output thread feeds the line from the ring.
+ * Seeking jumps to the enclosing codec block and discards the samples before the target.
+ */
+public class StreamingVoicePlayer {
+    private static final Logger LOGGER = Logger.getLogger(StreamingVoicePlayer.class.getName());
+    
+    private static final int READ_AHEAD_MILLIS = 1000;
+    private static final int LINE_BUFFER_MILLIS = 100;
+    private static final int WRITE_MILLIS = 20;
+    private static final int CHUNK_MILLIS = 250;
+    
+    private final VoiceSource source;
+    private final VoiceFormat format;
+    private final VoiceDecoder decoder;
+    private final AudioFormat pcmFormat;
+    private final PcmRingBuffer ring;
+    private final int bytesPerSecond;
+    
+    private SourceDataLine line;
+    private Thread decodeThread;
+    private Thread outputThread;
+    private volatile Runnable finishedListener;
+    
+    // Decoder state, guarded by this
+    private long decodeOffset;
+    private int skipBytes;
+    private int decodeEpoch;
+    private boolean endOfStream;
+    private volatile boolean playing;
+    private volatile boolean closed;
+    
+    // Output position, guarded by this
+    private long basePcmBytes;
+    private long writtenBytes;
+    
+    public StreamingVoicePlayer(VoiceSource source, VoiceFormat format) {
+        this.source = source;
+        this.format = format;
+        this.decoder = new VoiceDecoder(format);
+        this.pcmFormat = new AudioFormat(format.getSampleRate(), 16, 1, true, false);
+        this.bytesPerSecond = format.getSampleRate() * 2;
+        this.ring = new PcmRingBuffer(bytesFor(READ_AHEAD_MILLIS));
+    }
+    
+    private int bytesFor(int millis) {
+        return (int) ((long) bytesPerSecond * millis / 1000) & ~1;
+    }
+    
+    /**
+     * Opens the audio line and starts decoding ahead, so {@link #play()} has audio ready immediately.
+     */
+    public void open() throws LineUnavailableException {
+        line = AudioSystem.getSourceDataLine(pcmFormat);
+        line.open(pcmFormat, bytesFor(LINE_BUFFER_MILLIS));
+        decodeEpoch = ring.epoch();
+        
+        decodeThread = new Thread(this::decodeLoop, "voice-decoder");
+        decodeThread.setDaemon(true);
+        decodeThread.start();
+        
+        outputThread = new Thread(this::outputLoop, "voice-output");
+        outputThread.setDaemon(true);
+        outputThread.setPriority(Thread.MAX_PRIORITY);
+        outputThread.start();
+    }
+    
+    public void setFinishedListener(Runnable finishedListener) {
+        this.finishedListener = finishedListener;
+    }
+    
+    public synchronized void play() {
+        if (closed || playing) {
+            return;
+        }
+        playing = true;
+        line.start();
+        notifyAll();
+    }
+    
+    public synchronized void pause() {
+        playing = false;
+        if (line != null) {
+            line.stop();
+        }
+    }
+    
+    public boolean isPlaying() {
+        return playing;
+    }
+    
+    public synchronized void seek(long millis) {
+        long sample = Math.max(0, millis) * format.getSampleRate() / 1000;
+        long block = sample / format.getSamplesPerBlock();
+        
+        ring.clear();
+        decodeEpoch = ring.epoch();
+        decodeOffset = block * format.getBlockSize();
+        skipBytes = (int) (sample - block * format.getSamplesPerBlock()) * 2;
+        endOfStream = false;
+        
+        line.flush();
+        basePcmBytes = sample * 2;
+        writtenBytes = 0;
+        notifyAll();
+    }
+    
+    public synchronized long getPositionMillis() {
+        if (line == null) {
+            return 0;
+        }
+        long buffered = line.getBufferSize() - line.available();
+        long played = Math.max(0, writtenBytes - buffered);
+        return (basePcmBytes + played) * 1000 / bytesPerSecond;
+    }
+    
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            playing = false;
+            notifyAll();
+        }
+        ring.close();
+        if (line != null) {
+            line.stop();
+            line.close();
+        }
+        if (decodeThread != null) {
+            decodeThread.interrupt();
+        }
+        if (outputThread != null) {
+            outputThread.interrupt();
+        }
+    }
+    
+    private void decodeLoop() {
+        int blocks = Math.max(1, format.getBytesPerSecond() * CHUNK_MILLIS / 1000 / format.getBlockSize());
+        byte[] encoded = new byte[blocks * format.getBlockSize()];
+        byte[] pcm = new byte[decoder.decodedLength(encoded.length)];
+        
+        try {
+            while (true) {
+                long offset;
+                int skip;
+                int epoch;
+                synchronized (this) {
+                    while (!closed && endOfStream) {
+                        wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    offset = decodeOffset;
+                    skip = skipBytes;
+                    epoch = decodeEpoch;
+                }
+                
+                int read = readFully(offset, encoded);
+                int usable = read - read % format.getBlockSize();
+                if (usable == 0) {
+                    synchronized (this) {
+                        if (epoch == decodeEpoch) {
+                            endOfStream = true;
+                        }
+                    }
+                    continue;
+                }
+                
+                int produced = decoder.decodeInto(encoded, 0, usable, pcm);
+                int start = Math.min(skip, produced);
+                synchronized (this) {
+                    if (epoch != decodeEpoch) {
+                        continue;
+                    }
+                    decodeOffset = offset + usable;
+                    skipBytes = 0;
+                }
+                ring.write(pcm, start, produced - start, epoch);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private int readFully(long offset, byte[] buffer) {
+        try {
+            int total = 0;
+            while (total < buffer.length) {
+                int read = source.read(offset + total, buffer, total, buffer.length - total);
+                if (read <= 0) {
+                    break;
+                }
+                total += read;
+            }
+            return total;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error reading voice data at offset " + offset, e);
+            return 0;
+        }
+    }
+    
+    private void outputLoop() {
+        byte[] chunk = new byte[bytesFor(WRITE_MILLIS)];
+        
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (!closed && !playing) {
+                        wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                }
+                
+                int epoch = ring.epoch();
+                int count = ring.read(chunk, 0, chunk.length, 50);
+                if (count < 0) {
+                    return;
+                }
+                if (count == 0) {
+                    finishIfDrained(epoch);
+                    continue;
+                }
+                
+                int written = 0;
+                while (written < count && playing && epoch == ring.epoch()) {
+                    written += line.write(chunk, written, count - written);
+                }
+                synchronized (this) {
+                    if (epoch == decodeEpoch) {
+                        writtenBytes += written;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private void finishIfDrained(int epoch) {
+        synchronized (this) {
+            if (!endOfStream || epoch != decodeEpoch || ring.available() > 0) {
+                return;
+            }
+        }
+        line.drain();
+        
+        Runnable listener;
+        synchronized (this) {
+            if (!playing || epoch != decodeEpoch) {
+                return;
+            }
+            playing = false;
+            line.stop();
+            listener = finishedListener;
+        }
+        if (listener != null) {
+            listener.run();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,368 @@
+package com.chatapp.media;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Inter-frame video codec for mostly static scenes. Keyframes are plain JPEGs. In between,
+ * the frame is cut into 16x16 tiles and only tiles that moved away from what the decoder
+ * currently shows are sent, as quantized residuals against that picture. The encoder
+ * tracks the decoder's picture exactly, so errors never accumulate across frames.
+ *
+ * Delta frames are split into horizontal bands of tiles that are compared, quantized and
+ * deflated in parallel:
+ * <pre>
+ * delta   bands:u8 (length:i32 deflated[length]) * bands
+ * band    (tileIndex:u16 residuals[3 * tilePixels], planar R, G, B) * changedTiles
+ * </pre>
+ *
+ * With {@link #measureAgainstMjpeg()}, every {@code chatapp.video.mjpegSampleFrames}-th
+ * delta frame is also encoded as a JPEG and thrown away; together with the keyframes, which
+ * are plain JPEGs anyway, these samples give the size and speed of plain MJPEG on the same input.
+ */
+public class TileDeltaEncoder {
+    public static final String MIME_TYPE = "video/x-chatapp-tiles";
+    
+    static final int TILE_SIZE = 16;
+    static final int QUANTIZER = 6;
+    static final int MAX_TILE_BYTES = 2 + 3 * TILE_SIZE * TILE_SIZE;
+    private static final int CHANGE_THRESHOLD = 18;
+    
+    private static final int KEYFRAME_SECONDS = Integer.getInteger("chatapp.video.keyframeSeconds", 2);
+    private static final int MJPEG_SAMPLE_FRAMES = Integer.getInteger("chatapp.video.mjpegSampleFrames", 10);
+    
+    private final int width;
+    private final int height;
+    private final int tilesX;
+    private final int tilesY;
+    private final int keyframeInterval;
+    
+    private final BufferedImage reference;
+    private final int[] referencePixels;
+    private final JpegFrameCodec jpeg;
+    private BufferedImage converted;
+    private int mjpegSampleFrames;
+    
+    private final ExecutorService workers;
+    private final Band[] bands;
+    private final ByteArrayOutputStream frame = new ByteArrayOutputStream(16 * 1024);
+    
+    private int framesSinceKeyframe = Integer.MAX_VALUE;
+    private int lastChangedTiles;
+    
+    private long frames;
+    private long totalBytes;
+    private long totalNanos;
+    private long mjpegSamples;
+    private long mjpegBytes;
+    private long mjpegNanos;
+    
+    public TileDeltaEncoder(int width, int height, int fps) {
+        this(width, height, fps, JpegFrameCodec.DEFAULT_QUALITY);
+    }
+    
+    public TileDeltaEncoder(int width, int height, int fps, float keyframeQuality) {
+        this.jpeg = new JpegFrameCodec(keyframeQuality);
+        this.width = width;
+        this.height = height;
+        this.tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        this.tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        this.keyframeInterval = Math.max(1, fps * KEYFRAME_SECONDS);
+        this.reference = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        this.referencePixels = ((DataBufferInt) reference.getRaster().getDataBuffer()).getData();
+        
+        int threads = Math.max(1, Math.min(tilesY, Runtime.getRuntime().availableProcessors()));
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "video-tiles-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.bands = new Band[threads];
+        for (int i = 0; i < threads; i++) {
+            bands[i] = new Band(i * tilesY / threads, (i + 1) * tilesY / threads);
+        }
+    }
+    
+    /**
+     * Encodes the next frame, which must be of the stream size, and returns its frame type;
+     * the bytes are in {@link #getFrameData()}. Images other than {@code TYPE_INT_RGB} are
+     * converted first, which costs a copy.
+     */
+    public byte encode(BufferedImage image) throws IOException {
+        if (image.getWidth() != width || image.getHeight() != height) {
+            throw new IllegalArgumentException("Frame is " + image.getWidth() + "x" + image.getHeight()
+                    + ", stream is " + width + "x" + height);
+        }
+        
+        long start = System.nanoTime();
+        BufferedImage rgb = toIntRgb(image);
+        byte type;
+        if (framesSinceKeyframe >= keyframeInterval) {
+            encodeKeyframe(rgb);
+            framesSinceKeyframe = 0;
+            type = FrameStreamWriter.FRAME_KEY;
+        } else {
+            encodeDelta(((DataBufferInt) rgb.getRaster().getDataBuffer()).getData());
+            type = FrameStreamWriter.FRAME_DELTA;
+        }
+        framesSinceKeyframe++;
+        frames++;
+        totalBytes += frame.size();
+        totalNanos += System.nanoTime() - start;
+        
+        if (type == FrameStreamWriter.FRAME_DELTA && mjpegSampleFrames > 0 && frames % mjpegSampleFrames == 0) {
+            sampleMjpeg(rgb);
+        }
+        return type;
+    }
+    
+    // Deltas read the pixel array directly, which needs a TYPE_INT_RGB raster of its own (not a sub-image)
+    private BufferedImage toIntRgb(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_INT_RGB && image.getRaster().getDataBuffer().getSize() == width * height) {
+            return image;
+        }
+        if (converted == null) {
+            converted = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        }
+        Graphics2D g = converted.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return converted;
+    }
+    
+    private void sampleMjpeg(BufferedImage image) throws IOException {
+        long start = System.nanoTime();
+        int length = jpeg.encode(image);
+        mjpegNanos += System.nanoTime() - start;
+        mjpegSamples++;
+        mjpegBytes += length;
+    }
+    
+    /**
+     * Also JPEG-encodes sampled delta frames so the MJPEG figures are measured rather than
+     * taken from keyframes alone.
+     */
+    public void measureAgainstMjpeg() {
+        mjpegSampleFrames = MJPEG_SAMPLE_FRAMES;
+    }
+    
+    public byte[] getFrameData() {
+        return frame.toByteArray();
+    }
+    
+    private void encodeKeyframe(BufferedImage image) throws IOException {
+        long start = System.nanoTime();
+        int length = jpeg.encode(image);
+        mjpegNanos += System.nanoTime() - start;
+        mjpegSamples++;
+        mjpegBytes += length;
+        
+        frame.reset();
+        frame.write(jpeg.getBuffer(), 0, length);
+        // Deltas are taken against what the decoder will see, not the lossless source
+        jpeg.decode(jpeg.getBuffer(), 0, length, reference);
+        lastChangedTiles = tilesX * tilesY;
+    }
+    
+    private void encodeDelta(int[] pixels) throws IOException {
+        List<Future<Integer>> results = new ArrayList<>(bands.length);
+        for (Band band : bands) {
+            results.add(workers.submit(() -> band.encode(pixels)));
+        }
+        
+        int changed = 0;
+        try {
+            for (Future<Integer> result : results) {
+                changed += result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while encoding frame", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to encode frame: " + e.getCause().getMessage(), e.getCause());
+        }
+        lastChangedTiles = changed;
+        
+        frame.reset();
+        frame.write(bands.length);
+        for (Band band : bands) {
+            int length = band.compressedLength;
+            frame.write(length >>> 24);
+            frame.write(length >>> 16);
+            frame.write(length >>> 8);
+            frame.write(length);
+            frame.write(band.compressed, 0, length);
+        }
+    }
+    
+    public void dispose() {
+        workers.shutdownNow();
+        jpeg.dispose();
+        for (Band band : bands) {
+            band.deflater.end();
+        }
+    }
+    
+    public int getLastChangedTiles() {
+        return lastChangedTiles;
+    }
+    
+    public int getTileCount() {
+        return tilesX * tilesY;
+    }
+    
+    public double getEncodeFps() {
+        return totalNanos == 0 ? 0 : frames * 1_000_000_000.0 / totalNanos;
+    }
+    
+    /**
+     * Encode rate of plain MJPEG on this input, measured on keyframes and sampled delta frames.
+     */
+    public double getMjpegEncodeFps() {
+        return mjpegNanos == 0 ? 0 : mjpegSamples * 1_000_000_000.0 / mjpegNanos;
+    }
+    
+    /**
+     * Size of the same frames as plain MJPEG divided by the size actually produced. The MJPEG
+     * size is extrapolated from the frames that were JPEG-encoded, see {@link #getMjpegSampleCount()}.
+     */
+    public double getCompressionRatioVsMjpeg() {
+        if (mjpegSamples == 0 || totalBytes == 0) {
+            return 1.0;
+        }
+        return (double) mjpegBytes / mjpegSamples * frames / totalBytes;
+    }
+    
+    /**
+     * Number of frames the MJPEG figures are based on. Without delta samples they only cover
+     * keyframes, which tend to be the least compressible.
+     */
+    public long getMjpegSampleCount() {
+        return mjpegSamples;
+    }
+    
+    public long getFrameCount() {
+        return frames;
+    }
+    
+    static int quantize(int difference) {
+        int q = difference >= 0 ? (difference + QUANTIZER / 2) / QUANTIZER : -((-difference + QUANTIZER / 2) / QUANTIZER);
+        return Math.max(-127, Math.min(127, q));
+    }
+    
+    static int reconstruct(int reference, int quantized) {
+        return Math.max(0, Math.min(255, reference + quantized * QUANTIZER));
+    }
+    
+    /**
+     * A horizontal run of tile rows owned by one task at a time, with its own scratch
+     * buffers and deflater.
+     */
+    private class Band {
+        final int firstRow;
+        final int endRow;
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        byte[] raw;
+        int rawLength;
+        byte[] compressed = new byte[4096];
+        int compressedLength;
+        
+        Band(int firstRow, int endRow) {
+            this.firstRow = firstRow;
+            this.endRow = endRow;
+            this.raw = new byte[Math.max(1, (endRow - firstRow) * tilesX * MAX_TILE_BYTES)];
+        }
+        
+        int encode(int[] pixels) {
+            rawLength = 0;
+            int changed = 0;
+            for (int ty = firstRow; ty < endRow; ty++) {
+                for (int tx = 0; tx < tilesX; tx++) {
+                    if (isChanged(pixels, tx, ty)) {
+                        writeTile(pixels, tx, ty);
+                        changed++;
+                    }
+                }
+            }
+            compress();
+            return changed;
+        }
+        
+        private boolean isChanged(int[] pixels, int tx, int ty) {
+            int x0 = tx * TILE_SIZE;
+            int y0 = ty * TILE_SIZE;
+            int x1 = Math.min(width, x0 + TILE_SIZE);
+            int y1 = Math.min(height, y0 + TILE_SIZE);
+            for (int y = y0; y < y1; y++) {
+                int row = y * width;
+                for (int x = x0; x < x1; x++) {
+                    int a = pixels[row + x];
+                    int b = referencePixels[row + x];
+                    if (Math.abs(((a >> 16) & 0xFF) - ((b >> 16) & 0xFF)) > CHANGE_THRESHOLD
+                            || Math.abs(((a >> 8) & 0xFF) - ((b >> 8) & 0xFF)) > CHANGE_THRESHOLD
+                            || Math.abs((a & 0xFF) - (b & 0xFF)) > CHANGE_THRESHOLD) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+        
+        private void writeTile(int[] pixels, int tx, int ty) {
+            int x0 = tx * TILE_SIZE;
+            int y0 = ty * TILE_SIZE;
+            int x1 = Math.min(width, x0 + TILE_SIZE);
+            int y1 = Math.min(height, y0 + TILE_SIZE);
+            int tilePixels = (x1 - x0) * (y1 - y0);
+            int index = ty * tilesX + tx;
+            
+            raw[rawLength++] = (byte) (index >>> 8);
+            raw[rawLength++] = (byte) index;
+            int n = 0;
+            for (int y = y0; y < y1; y++) {
+                int row = y * width;
+                for (int x = x0; x < x1; x++) {
+                    int a = pixels[row + x];
+                    int b = referencePixels[row + x];
+                    int r = quantize(((a >> 16) & 0xFF) - ((b >> 16) & 0xFF));
+                    int g = quantize(((a >> 8) & 0xFF) - ((b >> 8) & 0xFF));
+                    int bl = quantize((a & 0xFF) - (b & 0xFF));
+                    raw[rawLength + n] = (byte) r;
+                    raw[rawLength + tilePixels + n] = (byte) g;
+                    raw[rawLength + 2 * tilePixels + n] = (byte) bl;
+                    referencePixels[row + x] = (reconstruct((b >> 16) & 0xFF, r) << 16)
+                            | (reconstruct((b >> 8) & 0xFF, g) << 8)
+                            | reconstruct(b & 0xFF, bl);
+                    n++;
+                }
+            }
+            rawLength += 3 * tilePixels;
+        }
+        
+        private void compress() {
+            deflater.reset();
+            deflater.setInput(raw, 0, rawLength);
+            deflater.finish();
+            compressedLength = 0;
+            while (!deflater.finished()) {
+                if (compressedLength == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                }
+                compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+            }
+        }
+    }
+}
\ No newline at end of file
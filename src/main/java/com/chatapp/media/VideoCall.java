@@ -0,0 +1,590 @@
+package com.chatapp.media;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Live video for a call, tuned for latency rather than smoothness. Every stage holds at
+ * most one frame that is waiting for it, and a newer frame replaces a waiting one instead
+ * of queueing behind it:
+ * <ul>
+ * <li>the capture thread hands frames to the "call-video-encode" thread through a
+ * one-frame slot;</li>
+ * <li>each frame is coded on its own as JPEG and split into datagrams of at most
+ * {@link MediaChannel#MAX_PACKET_SIZE} bytes, so a lost packet costs one frame and never
+ * corrupts the ones after it;</li>
+ * <li>the receiver abandons a partly received frame as soon as a newer one completes, and
+ * drops frames that arrive later than {@code chatapp.call.maxVideoLatencyMillis} behind
+ * the fastest frame seen recently;</li>
+ * <li>the "call-video-decode" thread decodes into a triple buffer from which the renderer
+ * always takes the newest picture, skipping any it did not get round to.</li>
+ * </ul>
+ *
+ * Each datagram's payload starts with a 6-byte fragment header:
+ * <pre>
+ * fragmentIndex:u8 fragmentCount:u8 width:u16 height:u16 jpegBytes
+ * </pre>
+ * The channel header's sequence number is the frame number and its timestamp the capture time.
+ *
+ * With a bitrate budget set, frames are paced so the average frame size times the frame
+ * rate stays within it, and the sender steps down a ladder of resolutions and qualities
+ * when pacing alone would leave too few frames per second. Stepping back up needs clear
+ * headroom at the next level, so the picture does not flap between sizes.
+ */
+public class VideoCall {
+    private static final Logger LOGGER = Logger.getLogger(VideoCall.class.getName());
+    
+    public static final int FRAGMENT_HEADER_SIZE = 6;
+    
+    private static final int FRAGMENT_PAYLOAD = MediaChannel.MAX_PACKET_SIZE - MediaChannel.HEADER_SIZE - FRAGMENT_HEADER_SIZE;
+    private static final int MAX_FRAGMENTS = 64;
+    static final int MAX_LATENCY_MILLIS = Integer.getInteger("chatapp.call.maxVideoLatencyMillis", 250);
+    private static final float QUALITY = Integer.getInteger("chatapp.call.videoQuality", 50) / 100f;
+    private static final int ASSEMBLY_SLOTS = 3;
+    private static final long BASELINE_WINDOW_MILLIS = 5000;
+    
+    // Encoding ladder for the bitrate budget, best last: width, height, frames per second
+    private static final int[][] LEVELS = {{160, 120, 8}, {240, 180, 12}, {320, 240, 15}};
+    private static final float[] LEVEL_QUALITY = {QUALITY * 0.8f, QUALITY * 0.9f, QUALITY};
+    private static final long LEVEL_DOWN_HOLD_NANOS = 2_000_000_000L;
+    private static final long LEVEL_UP_HOLD_NANOS = 5_000_000_000L;
+    // A frame that takes longer than this to leave at the budget rate adds visible delay
+    private static final double MAX_FRAME_SEND_SECONDS = 0.1;
+    
+    private final MediaChannel channel;
+    private volatile boolean closed;
+    
+    // Send side; the pending slot is guarded by sendLock
+    private final Object sendLock = new Object();
+    private BufferedImage pendingFrame;
+    private BufferedImage encodingFrame;
+    private long pendingTimestamp;
+    private boolean hasPending;
+    private Thread encodeThread;
+    private volatile long sentFrames;
+    private volatile long sentBytes;
+    private volatile long sendDropped;
+    private volatile long pacedFrames;
+    
+    // Rate adaptation; level and frame size are touched only by the encode thread
+    private volatile long bitrateBudget;
+    private volatile int level = LEVELS.length - 1;
+    private double averageFrameBits;
+    private long levelChangedNanos = System.nanoTime();
+    private long nextFrameNanos = System.nanoTime();
+    
+    // Reassembly, touched only by the channel's receive thread
+    private final Assembly[] assemblies = new Assembly[ASSEMBLY_SLOTS];
+    private int lastCompleted = -1;
+    private long baselineTransit = Long.MAX_VALUE;
+    private long windowTransit = Long.MAX_VALUE;
+    private long windowStart;
+    
+    // Complete frame waiting for the decoder, guarded by decodeLock
+    private final Object decodeLock = new Object();
+    private byte[] decodeData = new byte[FRAGMENT_PAYLOAD * 8];
+    private int decodeLength;
+    private long decodeTimestamp;
+    private int decodeWidth;
+    private int decodeHeight;
+    private boolean hasDecode;
+    private Thread decodeThread;
+    
+    // Triple buffer between decoder and renderer, guarded by this
+    private final BufferedImage[] pictures = new BufferedImage[3];
+    private final long[] pictureTimestamps = new long[3];
+    private int backIndex = 0;
+    private int frontIndex = 1;
+    private int spareIndex = 2;
+    private boolean spareReady;
+    private volatile Runnable frameListener;
+    
+    private volatile long receivedFrames;
+    private volatile long incompleteDropped;
+    private volatile long lateDropped;
+    private volatile long decodeDropped;
+    private volatile long renderDropped;
+    private volatile long displayedFrames;
+    private volatile long lastLatencyMillis;
+    
+    public VideoCall(MediaChannel channel) {
+        this.channel = channel;
+        for (int i = 0; i < assemblies.length; i++) {
+            assemblies[i] = new Assembly();
+        }
+        channel.setHandler(MediaChannel.TYPE_VIDEO, this::packetReceived);
+    }
+    
+    /**
+     * Media clock stamped on outgoing frames. Only differences between stamps of the same
+     * sender are meaningful on the receiving side.
+     */
+    public static long clockMillis() {
+        return (System.nanoTime() / 1_000_000) & 0xFFFFFFFFL;
+    }
+    
+    public void start() {
+        encodeThread = new Thread(this::encodeLoop, "call-video-encode");
+        encodeThread.setDaemon(true);
+        encodeThread.start();
+        
+        decodeThread = new Thread(this::decodeLoop, "call-video-decode");
+        decodeThread.setDaemon(true);
+        decodeThread.start();
+    }
+    
+    /**
+     * Called with every new picture; typically just schedules a repaint, which then takes
+     * the newest frame with {@link #acquireLatestFrame()}.
+     */
+    public void setFrameListener(Runnable frameListener) {
+        this.frameListener = frameListener;
+    }
+    
+    /**
+     * Limits the video to about {@code bitsPerSecond}, headers included; 0 lifts the limit.
+     */
+    public void setBitrateBudget(long bitsPerSecond) {
+        this.bitrateBudget = Math.max(0, bitsPerSecond);
+    }
+    
+    public long getBitrateBudget() {
+        return bitrateBudget;
+    }
+    
+    /**
+     * Offers a captured frame for sending. The image is copied, scaled to the current
+     * ladder level, so the caller may reuse it; a frame still waiting from the previous
+     * call is replaced, and one that comes sooner than the pacing allows is skipped.
+     */
+    public void submitFrame(BufferedImage frame) {
+        synchronized (sendLock) {
+            if (closed) {
+                return;
+            }
+            if (System.nanoTime() - nextFrameNanos < 0) {
+                pacedFrames++;
+                return;
+            }
+            if (hasPending) {
+                sendDropped++;
+            }
+            int[] size = LEVELS[level];
+            int width = Math.min(frame.getWidth(), size[0]);
+            int height = Math.min(frame.getHeight(), size[1]);
+            if (pendingFrame == null || pendingFrame.getWidth() != width || pendingFrame.getHeight() != height) {
+                pendingFrame = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            }
+            Graphics2D g2d = pendingFrame.createGraphics();
+            if (width != frame.getWidth() || height != frame.getHeight()) {
+                g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            }
+            g2d.drawImage(frame, 0, 0, width, height, null);
+            g2d.dispose();
+            pendingTimestamp = clockMillis();
+            hasPending = true;
+            sendLock.notifyAll();
+        }
+    }
+    
+    /**
+     * Returns the newest decoded picture, or null before the first one. The image stays
+     * valid until the next call.
+     */
+    public synchronized BufferedImage acquireLatestFrame() {
+        if (spareReady) {
+            int newest = spareIndex;
+            spareIndex = frontIndex;
+            frontIndex = newest;
+            spareReady = false;
+            displayedFrames++;
+            lastLatencyMillis = (clockMillis() - pictureTimestamps[frontIndex]) & 0xFFFFFFFFL;
+        }
+        return pictures[frontIndex];
+    }
+    
+    /**
+     * Capture timestamp of the picture last returned by {@link #acquireLatestFrame()}.
+     */
+    public synchronized long getFrameTimestampMillis() {
+        return pictureTimestamps[frontIndex];
+    }
+    
+    public void close() {
+        closed = true;
+        synchronized (sendLock) {
+            sendLock.notifyAll();
+        }
+        synchronized (decodeLock) {
+            decodeLock.notifyAll();
+        }
+    }
+    
+    private void encodeLoop() {
+        JpegFrameCodec codec = new JpegFrameCodec(QUALITY);
+        byte[] packet = new byte[MediaChannel.MAX_PACKET_SIZE];
+        int frameNumber = 0;
+        int codedLevel = level;
+        try {
+            while (true) {
+                long timestamp;
+                synchronized (sendLock) {
+                    while (!hasPending && !closed) {
+                        sendLock.wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    BufferedImage next = pendingFrame;
+                    pendingFrame = encodingFrame;
+                    encodingFrame = next;
+                    timestamp = pendingTimestamp;
+                    hasPending = false;
+                }
+                
+                if (codedLevel != level) {
+                    codedLevel = level;
+                    codec.setQuality(LEVEL_QUALITY[codedLevel]);
+                }
+                int length = codec.encode(encodingFrame);
+                int fragments = (length + FRAGMENT_PAYLOAD - 1) / FRAGMENT_PAYLOAD;
+                if (fragments > MAX_FRAGMENTS) {
+                    synchronized (sendLock) {
+                        sendDropped++;
+                    }
+                    continue;
+                }
+                byte[] data = codec.getBuffer();
+                int width = encodingFrame.getWidth();
+                int height = encodingFrame.getHeight();
+                for (int i = 0; i < fragments; i++) {
+                    int offset = i * FRAGMENT_PAYLOAD;
+                    int chunk = Math.min(FRAGMENT_PAYLOAD, length - offset);
+                    int at = MediaChannel.HEADER_SIZE;
+                    packet[at] = (byte) i;
+                    packet[at + 1] = (byte) fragments;
+                    packet[at + 2] = (byte) (width >>> 8);
+                    packet[at + 3] = (byte) width;
+                    packet[at + 4] = (byte) (height >>> 8);
+                    packet[at + 5] = (byte) height;
+                    System.arraycopy(data, offset, packet, at + FRAGMENT_HEADER_SIZE, chunk);
+                    channel.send(MediaChannel.TYPE_VIDEO, 0, frameNumber, timestamp, packet, FRAGMENT_HEADER_SIZE + chunk);
+                }
+                frameNumber = (frameNumber + 1) & 0xFFFF;
+                sentFrames++;
+                sentBytes += length;
+                adapt(length + fragments * (MediaChannel.HEADER_SIZE + FRAGMENT_HEADER_SIZE));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            if (!closed) {
+                LOGGER.log(Level.WARNING, "Error sending call video", e);
+            }
+        } finally {
+            codec.dispose();
+        }
+    }
+    
+    /**
+     * Sets when the next frame may be taken and moves along the ladder after a frame of
+     * {@code frameBytes} went out.
+     */
+    private void adapt(int frameBytes) {
+        long now = System.nanoTime();
+        averageFrameBits = averageFrameBits == 0 ? frameBytes * 8.0 : averageFrameBits + (frameBytes * 8.0 - averageFrameBits) / 8;
+        long budget = bitrateBudget;
+        int current = level;
+        // A little slack on the frame rate cap so capture timing jitter does not skip frames
+        long fpsInterval = 1_000_000_000L / LEVELS[current][2];
+        long interval = fpsInterval - fpsInterval / 4;
+        if (budget > 0) {
+            interval = Math.max(interval, (long) (frameBytes * 8 * 1e9 / budget));
+            
+            double affordableFps = budget / averageFrameBits;
+            if (current > 0 && now - levelChangedNanos > LEVEL_DOWN_HOLD_NANOS
+                    && (affordableFps < LEVELS[current][2] / 2.0 || averageFrameBits / budget > MAX_FRAME_SEND_SECONDS)) {
+                setLevel(current - 1, now);
+            } else if (current < LEVELS.length - 1 && now - levelChangedNanos > LEVEL_UP_HOLD_NANOS) {
+                double nextFrameBits = averageFrameBits * pixelRatio(current + 1, current);
+                if (budget > nextFrameBits * LEVELS[current + 1][2] * 1.25
+                        && nextFrameBits / budget < MAX_FRAME_SEND_SECONDS / 1.25) {
+                    setLevel(current + 1, now);
+                }
+            }
+        } else if (current != LEVELS.length - 1) {
+            setLevel(LEVELS.length - 1, now);
+        }
+        synchronized (sendLock) {
+            nextFrameNanos = now + interval;
+        }
+    }
+    
+    private void setLevel(int next, long now) {
+        averageFrameBits *= pixelRatio(next, level);
+        LOGGER.info(String.format("Call video switched to %dx%d at %d fps (budget %d kbit/s)",
+                LEVELS[next][0], LEVELS[next][1], LEVELS[next][2], bitrateBudget / 1000));
+        level = next;
+        levelChangedNanos = now;
+    }
+    
+    private static double pixelRatio(int to, int from) {
+        return (double) (LEVELS[to][0] * LEVELS[to][1]) / (LEVELS[from][0] * LEVELS[from][1]);
+    }
+    
+    private void packetReceived(int flags, int sequence, long timestampMillis, byte[] data, int offset, int length, long arrivalNanos) {
+        if (length <= FRAGMENT_HEADER_SIZE) {
+            return;
+        }
+        int index = data[offset] & 0xFF;
+        int count = data[offset + 1] & 0xFF;
+        int width = ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+        int height = ((data[offset + 4] & 0xFF) << 8) | (data[offset + 5] & 0xFF);
+        if (count == 0 || count > MAX_FRAGMENTS || index >= count || width == 0 || height == 0) {
+            return;
+        }
+        // Fragments of frames older than the last completed one can no longer be shown
+        if (lastCompleted >= 0 && (short) (sequence - lastCompleted) <= 0) {
+            return;
+        }
+        
+        Assembly assembly = assemblyFor(sequence, count);
+        if (!assembly.add(index, data, offset + FRAGMENT_HEADER_SIZE, length - FRAGMENT_HEADER_SIZE)) {
+            return;
+        }
+        
+        lastCompleted = sequence;
+        for (Assembly other : assemblies) {
+            if (other != assembly && other.inUse && (short) (other.frameNumber - sequence) < 0) {
+                other.inUse = false;
+                incompleteDropped++;
+            }
+        }
+        assembly.inUse = false;
+        receivedFrames++;
+        
+        if (isLate(arrivalNanos / 1_000_000 - timestampMillis)) {
+            lateDropped++;
+            return;
+        }
+        synchronized (decodeLock) {
+            if (hasDecode) {
+                decodeDropped++;
+            }
+            byte[] swap = decodeData;
+            decodeData = assembly.data;
+            assembly.data = swap;
+            decodeLength = assembly.length;
+            decodeTimestamp = timestampMillis;
+            decodeWidth = width;
+            decodeHeight = height;
+            hasDecode = true;
+            decodeLock.notifyAll();
+        }
+    }
+    
+    private Assembly assemblyFor(int sequence, int count) {
+        Assembly oldest = null;
+        for (Assembly assembly : assemblies) {
+            if (assembly.inUse && assembly.frameNumber == sequence) {
+                return assembly;
+            }
+            if (!assembly.inUse) {
+                oldest = assembly;
+            } else if (oldest == null || (oldest.inUse && (short) (assembly.frameNumber - oldest.frameNumber) < 0)) {
+                oldest = assembly;
+            }
+        }
+        if (oldest.inUse) {
+            incompleteDropped++;
+        }
+        oldest.reset(sequence, count);
+        return oldest;
+    }
+    
+    /**
+     * Compares the frame's transit time with the fastest one seen over the last few
+     * seconds; the difference is how far behind real time the frame is, whatever the
+     * offset between the two clocks.
+     */
+    private boolean isLate(long transitMillis) {
+        long now = System.currentTimeMillis();
+        if (now - windowStart > BASELINE_WINDOW_MILLIS) {
+            baselineTransit = windowTransit;
+            windowTransit = Long.MAX_VALUE;
+            windowStart = now;
+        }
+        windowTransit = Math.min(windowTransit, transitMillis);
+        long baseline = Math.min(baselineTransit, windowTransit);
+        return transitMillis - baseline > MAX_LATENCY_MILLIS;
+    }
+    
+    private void decodeLoop() {
+        JpegFrameCodec codec = new JpegFrameCodec(QUALITY);
+        byte[] working = new byte[decodeData.length];
+        try {
+            while (true) {
+                int length;
+                long timestamp;
+                int width;
+                int height;
+                synchronized (decodeLock) {
+                    while (!hasDecode && !closed) {
+                        decodeLock.wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    byte[] swap = working;
+                    working = decodeData;
+                    decodeData = swap;
+                    length = decodeLength;
+                    timestamp = decodeTimestamp;
+                    width = decodeWidth;
+                    height = decodeHeight;
+                    hasDecode = false;
+                }
+                
+                BufferedImage target = backPicture(width, height);
+                try {
+                    codec.decode(working, 0, length, target);
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.log(Level.FINE, "Dropping undecodable video frame", e);
+                    continue;
+                }
+                publish(timestamp);
+                Runnable listener = frameListener;
+                if (listener != null) {
+                    listener.run();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            codec.dispose();
+        }
+    }
+    
+    private synchronized BufferedImage backPicture(int width, int height) {
+        BufferedImage picture = pictures[backIndex];
+        if (picture == null || picture.getWidth() != width || picture.getHeight() != height) {
+            picture = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            pictures[backIndex] = picture;
+        }
+        return picture;
+    }
+    
+    private synchronized void publish(long timestamp) {
+        if (spareReady) {
+            renderDropped++;
+        }
+        pictureTimestamps[backIndex] = timestamp;
+        int written = backIndex;
+        backIndex = spareIndex;
+        spareIndex = written;
+        spareReady = true;
+    }
+    
+    public long getSentFrames() {
+        return sentFrames;
+    }
+    
+    public long getSentBytes() {
+        return sentBytes;
+    }
+    
+    public long getSendDropped() {
+        return sendDropped;
+    }
+    
+    /**
+     * Captured frames skipped to stay within the bitrate budget.
+     */
+    public long getPacedFrames() {
+        return pacedFrames;
+    }
+    
+    /**
+     * Current ladder level as {@code WIDTHxHEIGHT@FPS}.
+     */
+    public String getLevelDescription() {
+        int[] size = LEVELS[level];
+        return size[0] + "x" + size[1] + "@" + size[2];
+    }
+    
+    public long getReceivedFrames() {
+        return receivedFrames;
+    }
+    
+    public long getDisplayedFrames() {
+        return displayedFrames;
+    }
+    
+    /**
+     * Frames received or started but never shown: incomplete, late, or overtaken by a
+     * newer frame before decoding or rendering.
+     */
+    public long getDroppedFrames() {
+        return incompleteDropped + lateDropped + decodeDropped + renderDropped;
+    }
+    
+    /**
+     * Capture-to-display delay of the last frame shown; meaningful only when both ends
+     * share a clock, as in a loopback test.
+     */
+    public long getLastLatencyMillis() {
+        return lastLatencyMillis;
+    }
+    
+    public String getStatistics() {
+        return String.format("sent %d (%d dropped before sending, %d paced) at %s, received %d, displayed %d, "
+                        + "dropped %d incomplete / %d late / %d behind decoder / %d behind renderer",
+                sentFrames, sendDropped, pacedFrames, getLevelDescription(), receivedFrames, displayedFrames,
+                incompleteDropped, lateDropped, decodeDropped, renderDropped);
+    }
+    
+    private static class Assembly {
+        boolean inUse;
+        int frameNumber;
+        int fragmentCount;
+        int received;
+        long receivedMask;
+        int length;
+        byte[] data = new byte[FRAGMENT_PAYLOAD * 8];
+        
+        void reset(int frameNumber, int fragmentCount) {
+            this.inUse = true;
+            this.frameNumber = frameNumber;
+            this.fragmentCount = fragmentCount;
+            this.received = 0;
+            this.receivedMask = 0;
+            this.length = 0;
+            if (data.length < fragmentCount * FRAGMENT_PAYLOAD) {
+                data = new byte[fragmentCount * FRAGMENT_PAYLOAD];
+            }
+        }
+        
+        /**
+         * Stores one fragment; returns true once the frame is complete.
+         */
+        boolean add(int index, byte[] source, int offset, int length) {
+            if (index >= fragmentCount || (receivedMask & (1L << index)) != 0) {
+                return false;
+            }
+            if (index < fragmentCount - 1 && length != FRAGMENT_PAYLOAD) {
+                return false;
+            }
+            System.arraycopy(source, offset, data, index * FRAGMENT_PAYLOAD, length);
+            receivedMask |= 1L << index;
+            received++;
+            if (index == fragmentCount - 1) {
+                this.length = index * FRAGMENT_PAYLOAD + length;
+            }
+            return received == fragmentCount;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,131 @@
+package com.chatapp.media;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes frames of a {@link FrameStreamReader} stream, both plain JPEG frames and
+ * {@link TileDeltaEncoder} key/delta frames, into one picture that is updated in place.
+ * Delta frames must be decoded in order starting from a keyframe.
+ */
+public class VideoFrameDecoder {
+    private final int width;
+    private final int height;
+    private final int tilesX;
+    private final BufferedImage picture;
+    private final int[] pixels;
+    
+    private final JpegFrameCodec jpeg = new JpegFrameCodec();
+    private final Inflater inflater = new Inflater();
+    private byte[] raw;
+    
+    public VideoFrameDecoder(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.tilesX = (width + TileDeltaEncoder.TILE_SIZE - 1) / TileDeltaEncoder.TILE_SIZE;
+        int tilesY = (height + TileDeltaEncoder.TILE_SIZE - 1) / TileDeltaEncoder.TILE_SIZE;
+        this.picture = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        this.pixels = ((DataBufferInt) picture.getRaster().getDataBuffer()).getData();
+        this.raw = new byte[tilesX * tilesY * TileDeltaEncoder.MAX_TILE_BYTES];
+    }
+    
+    /**
+     * Applies a frame and returns the decoded picture, which stays owned by the decoder
+     * and changes with the next call.
+     */
+    public BufferedImage decode(byte type, byte[] data, int offset, int length) throws IOException {
+        switch (type) {
+            case FrameStreamWriter.FRAME_JPEG:
+            case FrameStreamWriter.FRAME_KEY:
+                jpeg.decode(data, offset, length, picture);
+                break;
+            case FrameStreamWriter.FRAME_DELTA:
+                applyDelta(data, offset, length);
+                break;
+            default:
+                throw new IOException("Unknown video frame type " + type);
+        }
+        return picture;
+    }
+    
+    private void applyDelta(byte[] data, int offset, int length) throws IOException {
+        int end = offset + length;
+        int bandCount = data[offset++] & 0xFF;
+        for (int band = 0; band < bandCount; band++) {
+            if (offset + 4 > end) {
+                throw new IOException("Truncated video delta frame");
+            }
+            int bandLength = ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                    | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+            offset += 4;
+            if (bandLength < 0 || offset + bandLength > end) {
+                throw new IOException("Truncated video delta frame");
+            }
+            applyBand(inflate(data, offset, bandLength));
+            offset += bandLength;
+        }
+    }
+    
+    private int inflate(byte[] data, int offset, int length) throws IOException {
+        inflater.reset();
+        inflater.setInput(data, offset, length);
+        try {
+            int total = 0;
+            while (!inflater.finished()) {
+                int count = inflater.inflate(raw, total, raw.length - total);
+                if (count == 0 && (inflater.needsInput() || total == raw.length)) {
+                    throw new IOException("Corrupt video delta frame");
+                }
+                total += count;
+            }
+            return total;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt video delta frame", e);
+        }
+    }
+    
+    private void applyBand(int rawLength) throws IOException {
+        int position = 0;
+        while (position + 2 <= rawLength) {
+            int index = ((raw[position] & 0xFF) << 8) | (raw[position + 1] & 0xFF);
+            position += 2;
+            int x0 = (index % tilesX) * TileDeltaEncoder.TILE_SIZE;
+            int y0 = (index / tilesX) * TileDeltaEncoder.TILE_SIZE;
+            int x1 = Math.min(width, x0 + TileDeltaEncoder.TILE_SIZE);
+            int y1 = Math.min(height, y0 + TileDeltaEncoder.TILE_SIZE);
+            int tilePixels = (x1 - x0) * (y1 - y0);
+            if (y0 >= height || position + 3 * tilePixels > rawLength) {
+                throw new IOException("Corrupt video delta frame");
+            }
+            
+            int n = 0;
+            for (int y = y0; y < y1; y++) {
+                int row = y * width;
+                for (int x = x0; x < x1; x++) {
+                    int b = pixels[row + x];
+                    pixels[row + x] = (TileDeltaEncoder.reconstruct((b >> 16) & 0xFF, raw[position + n]) << 16)
+                            | (TileDeltaEncoder.reconstruct((b >> 8) & 0xFF, raw[position + tilePixels + n]) << 8)
+                            | TileDeltaEncoder.reconstruct(b & 0xFF, raw[position + 2 * tilePixels + n]);
+                    n++;
+                }
+            }
+            position += 3 * tilePixels;
+        }
+    }
+    
+    public int getWidth() {
+        return width;
+    }
+    
+    public int getHeight() {
+        return height;
+    }
+    
+    public void dispose() {
+        jpeg.dispose();
+        inflater.end();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,191 @@
+package com.chatapp.media;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Encodes captured video frames on a dedicated thread. The capture side borrows a frame
+ * from a small pool, draws into it and submits it; the pooled image goes back to the pool
+ * once it has been encoded. If the encoder falls behind the pool runs dry and the capture
+ * side drops frames instead of queueing them without bound.
+ *
+ * Frames are coded with {@link TileDeltaEncoder} unless {@code chatapp.video.codec=mjpeg}
+ * selects plain JPEG frames.
+ */
+public class VideoFrameEncoder {
+    private static final Logger LOGGER = Logger.getLogger(VideoFrameEncoder.class.getName());
+    
+    private static final int POOL_SIZE = 4;
+    private static final boolean USE_TILE_CODEC = !"mjpeg".equalsIgnoreCase(System.getProperty("chatapp.video.codec", "tiles"));
+    
+    private final BlockingQueue<BufferedImage> freeFrames = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final BlockingQueue<PendingFrame> pendingFrames = new ArrayBlockingQueue<>(POOL_SIZE + 1);
+    private final FrameStreamWriter stream;
+    private final JpegFrameCodec codec;
+    private final TileDeltaEncoder tileEncoder;
+    private final Thread thread;
+    
+    private final AtomicInteger droppedFrames = new AtomicInteger();
+    private volatile byte[] thumbnail;
+    private volatile long encodeNanos;
+    private volatile IOException failure;
+    
+    public VideoFrameEncoder(int width, int height, int fps) {
+        this(width, height, fps, JpegFrameCodec.DEFAULT_QUALITY);
+    }
+    
+    public VideoFrameEncoder(int width, int height, int fps, float quality) {
+        for (int i = 0; i < POOL_SIZE; i++) {
+            freeFrames.add(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB));
+        }
+        this.stream = new FrameStreamWriter(width, height, fps);
+        this.codec = USE_TILE_CODEC ? null : new JpegFrameCodec(quality);
+        this.tileEncoder = USE_TILE_CODEC ? new TileDeltaEncoder(width, height, fps, quality) : null;
+        if (tileEncoder != null) {
+            tileEncoder.measureAgainstMjpeg();
+        }
+        this.thread = new Thread(this::run, "video-encoder");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Borrows a frame to draw into, or returns null (and counts a dropped frame) when every
+     * pooled frame is still waiting to be encoded.
+     */
+    public BufferedImage acquireFrame() {
+        BufferedImage frame = freeFrames.poll();
+        if (frame == null) {
+            droppedFrames.incrementAndGet();
+        }
+        return frame;
+    }
+    
+    public void submitFrame(BufferedImage frame, long timestampMillis) {
+        pendingFrames.add(new PendingFrame(frame, timestampMillis));
+    }
+    
+    private void run() {
+        try {
+            while (true) {
+                PendingFrame pending = pendingFrames.take();
+                if (pending.image == null) {
+                    break;
+                }
+                try {
+                    if (failure == null) {
+                        encodeFrame(pending);
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Error encoding video frame", e);
+                    failure = e;
+                } finally {
+                    freeFrames.add(pending.image);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (tileEncoder != null) {
+                tileEncoder.dispose();
+            } else {
+                codec.dispose();
+            }
+        }
+    }
+    
+    private void encodeFrame(PendingFrame pending) throws IOException {
+        long start = System.nanoTime();
+        if (tileEncoder != null) {
+            byte type = tileEncoder.encode(pending.image);
+            byte[] data = tileEncoder.getFrameData();
+            stream.writeFrame(type, pending.timestampMillis, data, 0, data.length);
+            if (thumbnail == null) {
+                thumbnail = data;
+            }
+        } else {
+            int length = codec.encode(pending.image);
+            stream.writeFrame(FrameStreamWriter.FRAME_JPEG, pending.timestampMillis, codec.getBuffer(), 0, length);
+            if (thumbnail == null) {
+                thumbnail = Arrays.copyOf(codec.getBuffer(), length);
+            }
+        }
+        encodeNanos += System.nanoTime() - start;
+    }
+    
+    /**
+     * Waits for queued frames to be encoded and returns the finished stream.
+     */
+    public byte[] finish() throws IOException, InterruptedException {
+        pendingFrames.put(PendingFrame.END);
+        thread.join();
+        if (failure != null) {
+            throw failure;
+        }
+        return stream.finish();
+    }
+    
+    public void abort() {
+        thread.interrupt();
+    }
+    
+    public String getFormat() {
+        return tileEncoder != null ? TileDeltaEncoder.MIME_TYPE : FrameStreamWriter.MJPEG_MIME_TYPE;
+    }
+    
+    /**
+     * JPEG of the first encoded frame.
+     */
+    public byte[] getThumbnail() {
+        return thumbnail;
+    }
+    
+    public int getEncodedFrames() {
+        return stream.getFrameCount();
+    }
+    
+    public int getDroppedFrames() {
+        return droppedFrames.get();
+    }
+    
+    public long getDurationMillis() {
+        return stream.getLastTimestamp();
+    }
+    
+    public double getEncodeFps() {
+        return encodeNanos == 0 ? 0 : stream.getFrameCount() * 1_000_000_000.0 / encodeNanos;
+    }
+    
+    /**
+     * One-line summary of the recording for logs; with the tile codec it includes the size
+     * and encode speed relative to plain MJPEG.
+     */
+    public String getStatistics() {
+        StringBuilder summary = new StringBuilder(String.format("%s, %d frames (%d dropped), %d bytes, encoder at %.0f fps",
+                getFormat(), getEncodedFrames(), getDroppedFrames(), stream.size(), getEncodeFps()));
+        if (tileEncoder != null) {
+            summary.append(String.format(", %.1fx smaller than MJPEG (MJPEG encodes at %.0f fps, measured on %d of %d frames)",
+                    tileEncoder.getCompressionRatioVsMjpeg(), tileEncoder.getMjpegEncodeFps(),
+                    tileEncoder.getMjpegSampleCount(), tileEncoder.getFrameCount()));
+        }
+        return summary.toString();
+    }
+    
+    private static class PendingFrame {
+        static final PendingFrame END = new PendingFrame(null, 0);
+        
+        final BufferedImage image;
+        final long timestampMillis;
+        
+        PendingFrame(BufferedImage image, long timestampMillis) {
+            this.image = image;
+            this.timestampMillis = timestampMillis;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,304 @@
+package com.chatapp.media;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Plays a recorded frame stream. A decoder thread decodes a bounded window of frames ahead
+ * into a fixed pool of reusable images; a presenter thread hands each one to the frame
+ * listener when its timestamp comes up on the playback clock, dropping frames that are
+ * already overdue so playback never falls behind.
+ *
+ * The listener owns a frame until it calls {@link Frame#release()}, normally when the next
+ * frame replaces it on screen.
+ */
+public class VideoPlayer {
+    private static final Logger LOGGER = Logger.getLogger(VideoPlayer.class.getName());
+    
+    private static final int PREFETCH_FRAMES = Math.max(2, Integer.getInteger("chatapp.video.prefetchFrames", 8));
+    private static final long MAX_WAIT_MILLIS = 20;
+    
+    private final FrameStreamReader stream;
+    private final VideoFrameDecoder decoder;
+    private final long durationMillis;
+    
+    private Thread decodeThread;
+    private Thread presentThread;
+    private volatile Consumer<Frame> frameListener;
+    private volatile Runnable finishedListener;
+    
+    // Guarded by this
+    private final ArrayDeque<Frame> freeFrames = new ArrayDeque<>();
+    private final ArrayDeque<Frame> readyFrames = new ArrayDeque<>();
+    private int epoch;
+    private int nextFrame;
+    private long skipUntilMillis;
+    private boolean endOfStream;
+    private boolean playing;
+    private boolean closed;
+    private long basePositionMillis;
+    private long playStartNanos;
+    private long droppedFrames;
+    
+    public VideoPlayer(FrameStreamReader stream) {
+        this.stream = stream;
+        this.decoder = new VideoFrameDecoder(stream.getWidth(), stream.getHeight());
+        this.durationMillis = stream.getDurationMillis();
+        
+        // One extra frame for the one on screen and one for the presenter in hand-over
+        for (int i = 0; i < PREFETCH_FRAMES + 2; i++) {
+            freeFrames.add(new Frame(new BufferedImage(stream.getWidth(), stream.getHeight(), BufferedImage.TYPE_INT_RGB)));
+        }
+        endOfStream = stream.getFrameCount() == 0;
+    }
+    
+    public void setFrameListener(Consumer<Frame> frameListener) {
+        this.frameListener = frameListener;
+    }
+    
+    public void setFinishedListener(Runnable finishedListener) {
+        this.finishedListener = finishedListener;
+    }
+    
+    /**
+     * Starts decoding ahead; the first frame is presented straight away as a poster.
+     */
+    public void open() {
+        decodeThread = new Thread(this::decodeLoop, "video-decoder");
+        decodeThread.setDaemon(true);
+        decodeThread.start();
+        
+        presentThread = new Thread(this::presentLoop, "video-presenter");
+        presentThread.setDaemon(true);
+        presentThread.start();
+    }
+    
+    public synchronized void play() {
+        if (closed || playing) {
+            return;
+        }
+        playing = true;
+        playStartNanos = System.nanoTime();
+        notifyAll();
+    }
+    
+    public synchronized void pause() {
+        basePositionMillis = currentPosition();
+        playing = false;
+        notifyAll();
+    }
+    
+    public synchronized boolean isPlaying() {
+        return playing;
+    }
+    
+    public synchronized void seek(long millis) {
+        long target = Math.max(0, Math.min(durationMillis, millis));
+        int frame = stream.frameAt(target);
+        while (frame > 0 && stream.getFrameType(frame) == FrameStreamWriter.FRAME_DELTA) {
+            frame--;
+        }
+        
+        epoch++;
+        nextFrame = frame;
+        skipUntilMillis = target;
+        endOfStream = stream.getFrameCount() == 0;
+        while (!readyFrames.isEmpty()) {
+            freeFrames.add(readyFrames.pollFirst());
+        }
+        
+        basePositionMillis = target;
+        playStartNanos = System.nanoTime();
+        notifyAll();
+    }
+    
+    public synchronized long getPositionMillis() {
+        return currentPosition();
+    }
+    
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+    
+    public synchronized long getDroppedFrames() {
+        return droppedFrames;
+    }
+    
+    private long currentPosition() {
+        if (!playing) {
+            return basePositionMillis;
+        }
+        return Math.min(durationMillis, basePositionMillis + (System.nanoTime() - playStartNanos) / 1_000_000);
+    }
+    
+    private synchronized void release(Frame frame) {
+        if (!closed) {
+            freeFrames.add(frame);
+            notifyAll();
+        }
+    }
+    
+    private void decodeLoop() {
+        try {
+            while (true) {
+                int frameEpoch;
+                int index;
+                long skipUntil;
+                synchronized (this) {
+                    while (!closed && (endOfStream || freeFrames.isEmpty())) {
+                        wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    frameEpoch = epoch;
+                    index = nextFrame;
+                    skipUntil = skipUntilMillis;
+                }
+                
+                BufferedImage picture;
+                try {
+                    picture = decoder.decode(stream.getFrameType(index), stream.getStream(),
+                            stream.getFrameOffset(index), stream.getFrameLength(index));
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Error decoding video frame " + index, e);
+                    synchronized (this) {
+                        if (frameEpoch == epoch) {
+                            endOfStream = true;
+                        }
+                    }
+                    continue;
+                }
+                // After a seek, frames before the target are decoded for their content but not shown
+                boolean shown = index + 1 >= stream.getFrameCount() || stream.getTimestamp(index + 1) > skipUntil;
+                
+                synchronized (this) {
+                    if (frameEpoch != epoch) {
+                        continue;
+                    }
+                    nextFrame = index + 1;
+                    endOfStream = nextFrame >= stream.getFrameCount();
+                    if (shown) {
+                        Frame frame = freeFrames.pollFirst();
+                        frame.copyFrom(picture, stream.getTimestamp(index));
+                        readyFrames.addLast(frame);
+                        notifyAll();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            decoder.dispose();
+        }
+    }
+    
+    private void presentLoop() {
+        try {
+            while (true) {
+                Frame present = null;
+                boolean finished = false;
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+                    Frame head = readyFrames.peekFirst();
+                    long position = currentPosition();
+                    if (head == null) {
+                        if (playing && endOfStream && position >= durationMillis) {
+                            basePositionMillis = durationMillis;
+                            playing = false;
+                            finished = true;
+                        } else {
+                            wait(playing ? MAX_WAIT_MILLIS : 0);
+                        }
+                    } else if (head.timestampMillis > position) {
+                        if (playing) {
+                            wait(Math.min(MAX_WAIT_MILLIS, head.timestampMillis - position));
+                        } else {
+                            wait();
+                        }
+                    } else {
+                        readyFrames.pollFirst();
+                        Frame following = readyFrames.peekFirst();
+                        if (following != null && following.timestampMillis <= position) {
+                            freeFrames.add(head);
+                            droppedFrames++;
+                            notifyAll();
+                        } else {
+                            present = head;
+                        }
+                    }
+                }
+                
+                if (present != null) {
+                    Consumer<Frame> listener = frameListener;
+                    if (listener != null) {
+                        listener.accept(present);
+                    } else {
+                        present.release();
+                    }
+                }
+                if (finished && finishedListener != null) {
+                    finishedListener.run();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            playing = false;
+            notifyAll();
+        }
+        if (decodeThread != null) {
+            decodeThread.interrupt();
+        }
+        if (presentThread != null) {
+            presentThread.interrupt();
+        }
+    }
+    
+    /**
+     * A decoded picture from the player's pool.
+     */
+    public class Frame {
+        private final BufferedImage image;
+        private final int[] pixels;
+        private long timestampMillis;
+        
+        Frame(BufferedImage image) {
+            this.image = image;
+            this.pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        }
+        
+        void copyFrom(BufferedImage picture, long timestampMillis) {
+            int[] source = ((DataBufferInt) picture.getRaster().getDataBuffer()).getData();
+            System.arraycopy(source, 0, pixels, 0, pixels.length);
+            this.timestampMillis = timestampMillis;
+        }
+        
+        public BufferedImage getImage() {
+            return image;
+        }
+        
+        public long getTimestampMillis() {
+            return timestampMillis;
+        }
+        
+        /**
+         * Returns the frame to the pool; the image must not be drawn afterwards.
+         */
+        public void release() {
+            VideoPlayer.this.release(this);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,172 @@
+package com.chatapp.media;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+
+/**
+ * Streaming voice-activity gate for 16-bit little-endian mono PCM. Each 20 ms frame is
+ * classified from its energy relative to an adaptive noise floor and its zero-crossing
+ * rate (to keep quiet fricatives). Non-speech is then trimmed:
+ * <ul>
+ *   <li>leading silence is cut to a short pre-roll,</li>
+ *   <li>pauses are shortened to a maximum length,</li>
+ *   <li>trailing silence is dropped after a short hangover.</li>
+ * </ul>
+ */
+public class VoiceActivityDetector {
+    private static final int FRAME_MILLIS = 20;
+    private static final int PRE_ROLL_MILLIS = 150;
+    private static final int HANGOVER_MILLIS = 250;
+    private static final int DEFAULT_MAX_PAUSE_MILLIS = Integer.getInteger("chatapp.voice.maxPauseMillis", 700);
+    
+    private static final double SILENCE_GATE_DB = -55;
+    private static final double INITIAL_FLOOR_DB = -60;
+    private static final double MAX_FLOOR_DB = -30;
+    private static final double FLOOR_RISE_DB = 0.05;
+    private static final double VOICED_MARGIN_DB = 9;
+    private static final double UNVOICED_MARGIN_DB = 3;
+    
+    private final int frameBytes;
+    private final int preRollFrames;
+    private final int hangoverFrames;
+    private final int maxHeldFrames;
+    
+    private final byte[] frame;
+    private int frameFill;
+    
+    private final ArrayDeque<byte[]> held = new ArrayDeque<>();
+    private boolean speechStarted;
+    private int silenceRun;
+    private double noiseFloorDb = INITIAL_FLOOR_DB;
+    
+    private long inputFrames;
+    private long outputFrames;
+    private long speechFrames;
+    
+    public VoiceActivityDetector(int sampleRate) {
+        this(sampleRate, DEFAULT_MAX_PAUSE_MILLIS);
+    }
+    
+    public VoiceActivityDetector(int sampleRate, int maxPauseMillis) {
+        this.frameBytes = sampleRate * FRAME_MILLIS / 1000 * 2;
+        this.frame = new byte[frameBytes];
+        this.preRollFrames = PRE_ROLL_MILLIS / FRAME_MILLIS;
+        this.hangoverFrames = HANGOVER_MILLIS / FRAME_MILLIS;
+        this.maxHeldFrames = Math.max(preRollFrames, (maxPauseMillis - HANGOVER_MILLIS) / FRAME_MILLIS);
+    }
+    
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(System.getProperty("chatapp.voice.vad", "true"));
+    }
+    
+    /**
+     * Consumes captured PCM and returns the part that survives trimming so far.
+     */
+    public byte[] process(byte[] pcm, int offset, int length) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+        int end = offset + length;
+        while (offset < end) {
+            int count = Math.min(end - offset, frameBytes - frameFill);
+            System.arraycopy(pcm, offset, frame, frameFill, count);
+            frameFill += count;
+            offset += count;
+            if (frameFill == frameBytes) {
+                processFrame(frame.clone(), out);
+                frameFill = 0;
+            }
+        }
+        return out.toByteArray();
+    }
+    
+    /**
+     * Ends the stream: held trailing silence is dropped, a partial final frame is kept if it follows speech.
+     */
+    public byte[] finish() {
+        held.clear();
+        if (frameFill > 0 && speechStarted && silenceRun <= hangoverFrames) {
+            byte[] tail = new byte[frameFill];
+            System.arraycopy(frame, 0, tail, 0, frameFill);
+            frameFill = 0;
+            return tail;
+        }
+        frameFill = 0;
+        return new byte[0];
+    }
+    
+    private void processFrame(byte[] data, ByteArrayOutputStream out) {
+        inputFrames++;
+        if (isSpeech(data)) {
+            speechFrames++;
+            speechStarted = true;
+            silenceRun = 0;
+            while (!held.isEmpty()) {
+                emit(held.pollFirst(), out);
+            }
+            emit(data, out);
+            return;
+        }
+        
+        silenceRun++;
+        if (speechStarted && silenceRun <= hangoverFrames) {
+            emit(data, out);
+            return;
+        }
+        
+        // Keep only the most recent frames: they become the pause remainder or the pre-roll of the next word
+        held.addLast(data);
+        int limit = speechStarted ? maxHeldFrames : preRollFrames;
+        while (held.size() > limit) {
+            held.pollFirst();
+        }
+    }
+    
+    private void emit(byte[] data, ByteArrayOutputStream out) {
+        out.write(data, 0, data.length);
+        outputFrames++;
+    }
+    
+    private boolean isSpeech(byte[] data) {
+        double energy = 0;
+        int crossings = 0;
+        int previous = 0;
+        int samples = data.length / 2;
+        for (int i = 0; i < samples; i++) {
+            int sample = (short) ((data[i * 2] & 0xFF) | (data[i * 2 + 1] << 8));
+            energy += (double) sample * sample;
+            if ((sample >= 0) != (previous >= 0)) {
+                crossings++;
+            }
+            previous = sample;
+        }
+        double rms = Math.sqrt(energy / samples);
+        double energyDb = 20 * Math.log10(Math.max(rms, 1) / 32768.0);
+        double zeroCrossingRate = (double) crossings / samples;
+        
+        // Floor follows quiet frames down immediately and creeps up slowly, so speech cannot drag it along
+        noiseFloorDb = Math.min(MAX_FLOOR_DB, Math.min(energyDb, noiseFloorDb + FLOOR_RISE_DB));
+        
+        if (energyDb < SILENCE_GATE_DB) {
+            return false;
+        }
+        if (energyDb > noiseFloorDb + VOICED_MARGIN_DB) {
+            return true;
+        }
+        return energyDb > noiseFloorDb + UNVOICED_MARGIN_DB && zeroCrossingRate > 0.15 && zeroCrossingRate < 0.5;
+    }
+    
+    public long getInputMillis() {
+        return inputFrames * FRAME_MILLIS;
+    }
+    
+    public long getOutputMillis() {
+        return outputFrames * FRAME_MILLIS;
+    }
+    
+    public long getSpeechMillis() {
+        return speechFrames * FRAME_MILLIS;
+    }
+    
+    public long getTrimmedMillis() {
+        return getInputMillis() - getOutputMillis();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,322 @@
+package com.chatapp.media;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import javax.sound.sampled.TargetDataLine;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Live two-way audio for a call. The send thread captures 20 ms frames, encodes them as
+ * μ-law and sends one frame per datagram over the {@link MediaChannel}; the playout thread
+ * pulls one frame every 20 ms from a {@link JitterBuffer} and hides gaps with a
+ * {@link PacketLossConcealer}. Both loops are paced by the blocking audio lines, so no
+ * more audio is queued anywhere than the lines themselves need.
+ *
+ * On a constrained link the sender can switch to narrowband, halving the bitrate by sending
+ * 8 kHz frames; the channel header's flags carry the frame's rate in kHz, and the receiver
+ * interpolates narrowband frames back up to the playout rate.
+ */
+public class VoiceCall {
+    private static final Logger LOGGER = Logger.getLogger(VoiceCall.class.getName());
+    
+    public static final int FRAME_MILLIS = 20;
+    public static final int SAMPLE_RATE = 16000;
+    public static final int FRAME_SAMPLES = SAMPLE_RATE * FRAME_MILLIS / 1000;
+    public static final int NARROWBAND_RATE = 8000;
+    
+    private static final int OUTPUT_BUFFER_MILLIS = 60;
+    
+    private final MediaChannel channel;
+    private final AudioInput input;
+    private final AudioOutput output;
+    private final JitterBuffer jitterBuffer = new JitterBuffer(FRAME_MILLIS);
+    private final PacketLossConcealer concealer = new PacketLossConcealer(SAMPLE_RATE, FRAME_SAMPLES);
+    private final long startNanos = System.nanoTime();
+    
+    private Thread sendThread;
+    private Thread playoutThread;
+    private volatile boolean muted;
+    private volatile boolean narrowband;
+    private volatile boolean closed;
+    private volatile long sentFrames;
+    
+    /**
+     * Blocking source of captured audio, one frame per call.
+     */
+    public interface AudioInput {
+        void read(short[] frame) throws IOException;
+        
+        default void close() {
+        }
+    }
+    
+    /**
+     * Blocking audio sink; {@link #write} returns once the frame has been queued for playback.
+     */
+    public interface AudioOutput {
+        void write(short[] frame) throws IOException;
+        
+        int getLatencyMillis();
+        
+        default void close() {
+        }
+    }
+    
+    public VoiceCall(MediaChannel channel, AudioInput input, AudioOutput output) {
+        this.channel = channel;
+        this.input = input;
+        this.output = output;
+        channel.setHandler(MediaChannel.TYPE_VOICE, this::packetReceived);
+    }
+    
+    /**
+     * Creates a call on the default microphone and speaker.
+     */
+    public static VoiceCall open(MediaChannel channel) throws LineUnavailableException {
+        AudioFormat format = new AudioFormat(SAMPLE_RATE, 16, 1, true, false);
+        int frameBytes = FRAME_SAMPLES * 2;
+        
+        TargetDataLine microphone = AudioSystem.getTargetDataLine(format);
+        microphone.open(format, frameBytes * 4);
+        SourceDataLine speaker = AudioSystem.getSourceDataLine(format);
+        try {
+            speaker.open(format, frameBytes * (OUTPUT_BUFFER_MILLIS / FRAME_MILLIS));
+        } catch (LineUnavailableException e) {
+            microphone.close();
+            throw e;
+        }
+        microphone.start();
+        speaker.start();
+        return new VoiceCall(channel, new LineInput(microphone), new LineOutput(speaker));
+    }
+    
+    public void start() {
+        sendThread = new Thread(this::sendLoop, "call-send");
+        sendThread.setDaemon(true);
+        sendThread.setPriority(Thread.MAX_PRIORITY);
+        sendThread.start();
+        
+        playoutThread = new Thread(this::playoutLoop, "call-playout");
+        playoutThread.setDaemon(true);
+        playoutThread.setPriority(Thread.MAX_PRIORITY);
+        playoutThread.start();
+    }
+    
+    public void setMuted(boolean muted) {
+        this.muted = muted;
+    }
+    
+    public boolean isMuted() {
+        return muted;
+    }
+    
+    /**
+     * Sends 8 kHz audio, about half the bitrate, from the next frame on.
+     */
+    public void setNarrowband(boolean narrowband) {
+        if (this.narrowband != narrowband) {
+            LOGGER.info("Call audio switched to " + (narrowband ? NARROWBAND_RATE : SAMPLE_RATE) + " Hz");
+        }
+        this.narrowband = narrowband;
+    }
+    
+    public boolean isNarrowband() {
+        return narrowband;
+    }
+    
+    public JitterBuffer getJitterBuffer() {
+        return jitterBuffer;
+    }
+    
+    public long getSentFrames() {
+        return sentFrames;
+    }
+    
+    /**
+     * Receive-side playout delay: jitter buffer target plus what the output line holds.
+     */
+    public int getPlayoutDelayMillis() {
+        return jitterBuffer.getTargetDelayMillis() + output.getLatencyMillis();
+    }
+    
+    public String getStatistics() {
+        return String.format("sent %d, received %d, late %d, concealed %d, skipped %d, jitter %.1f ms, playout delay %d ms",
+                sentFrames, jitterBuffer.getReceived(), jitterBuffer.getLate(), jitterBuffer.getConcealed(),
+                jitterBuffer.getSkipped(), jitterBuffer.getJitterMillis(), getPlayoutDelayMillis());
+    }
+    
+    public void close() {
+        closed = true;
+        if (sendThread != null) {
+            sendThread.interrupt();
+        }
+        if (playoutThread != null) {
+            playoutThread.interrupt();
+        }
+        input.close();
+        output.close();
+    }
+    
+    private long mediaClockMillis() {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+    
+    private void sendLoop() {
+        short[] frame = new short[FRAME_SAMPLES];
+        byte[] packet = new byte[MediaChannel.HEADER_SIZE + FRAME_SAMPLES];
+        int sequence = 0;
+        while (!closed) {
+            try {
+                input.read(frame);
+                // Stamp with the capture time of the frame's first sample
+                long timestamp = mediaClockMillis() - FRAME_MILLIS;
+                if (muted) {
+                    Arrays.fill(frame, (short) 0);
+                }
+                int rate = SAMPLE_RATE;
+                int samples = FRAME_SAMPLES;
+                if (narrowband) {
+                    // [1 2 1] low-pass ahead of dropping every other sample
+                    rate = NARROWBAND_RATE;
+                    samples = FRAME_SAMPLES / 2;
+                    for (int i = 0; i < samples; i++) {
+                        int previous = i > 0 ? frame[2 * i - 1] : frame[0];
+                        int filtered = (previous + 2 * frame[2 * i] + frame[2 * i + 1]) / 4;
+                        packet[MediaChannel.HEADER_SIZE + i] = MuLaw.encode((short) filtered);
+                    }
+                } else {
+                    for (int i = 0; i < FRAME_SAMPLES; i++) {
+                        packet[MediaChannel.HEADER_SIZE + i] = MuLaw.encode(frame[i]);
+                    }
+                }
+                channel.send(MediaChannel.TYPE_VOICE, rate / 1000, sequence, timestamp, packet, samples);
+                sequence = (sequence + 1) & 0xFFFF;
+                sentFrames++;
+            } catch (IOException e) {
+                if (!closed) {
+                    LOGGER.log(Level.WARNING, "Error sending call audio", e);
+                }
+                return;
+            }
+        }
+    }
+    
+    private void packetReceived(int flags, int sequence, long timestampMillis, byte[] data, int offset, int length, long arrivalNanos) {
+        if ((flags != SAMPLE_RATE / 1000 && flags != NARROWBAND_RATE / 1000) || length != flags * FRAME_MILLIS) {
+            return;
+        }
+        byte[] payload = new byte[length];
+        System.arraycopy(data, offset, payload, 0, length);
+        jitterBuffer.put(sequence, timestampMillis, payload, arrivalNanos - startNanos);
+    }
+    
+    private void playoutLoop() {
+        short[] frame = new short[FRAME_SAMPLES];
+        while (!closed) {
+            try {
+                byte[] payload = jitterBuffer.take();
+                if (payload != null) {
+                    if (payload.length == FRAME_SAMPLES) {
+                        for (int i = 0; i < FRAME_SAMPLES; i++) {
+                            frame[i] = MuLaw.decode(payload[i]);
+                        }
+                    } else {
+                        upsample(payload, frame);
+                    }
+                    concealer.goodFrame(frame);
+                } else if (jitterBuffer.isBuffering()) {
+                    Arrays.fill(frame, (short) 0);
+                } else {
+                    concealer.conceal(frame);
+                }
+                output.write(frame);
+            } catch (IOException e) {
+                if (!closed) {
+                    LOGGER.log(Level.WARNING, "Error playing call audio", e);
+                }
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Doubles a narrowband frame to the playout rate by linear interpolation.
+     */
+    private static void upsample(byte[] payload, short[] frame) {
+        int samples = payload.length;
+        for (int i = 0; i < samples; i++) {
+            short current = MuLaw.decode(payload[i]);
+            short next = i + 1 < samples ? MuLaw.decode(payload[i + 1]) : current;
+            frame[2 * i] = current;
+            frame[2 * i + 1] = (short) ((current + next) / 2);
+        }
+    }
+    
+    private static class LineInput implements AudioInput {
+        private final TargetDataLine line;
+        private final byte[] buffer = new byte[FRAME_SAMPLES * 2];
+        
+        LineInput(TargetDataLine line) {
+            this.line = line;
+        }
+        
+        @Override
+        public void read(short[] frame) throws IOException {
+            int read = 0;
+            while (read < buffer.length) {
+                int count = line.read(buffer, read, buffer.length - read);
+                if (count <= 0 && !line.isOpen()) {
+                    throw new IOException("Microphone closed");
+                }
+                read += Math.max(0, count);
+            }
+            for (int i = 0; i < frame.length; i++) {
+                frame[i] = (short) ((buffer[2 * i] & 0xFF) | (buffer[2 * i + 1] << 8));
+            }
+        }
+        
+        @Override
+        public void close() {
+            line.stop();
+            line.close();
+        }
+    }
+    
+    private static class LineOutput implements AudioOutput {
+        private final SourceDataLine line;
+        private final byte[] buffer = new byte[FRAME_SAMPLES * 2];
+        
+        LineOutput(SourceDataLine line) {
+            this.line = line;
+        }
+        
+        @Override
+        public void write(short[] frame) throws IOException {
+            if (!line.isOpen()) {
+                throw new IOException("Speaker closed");
+            }
+            for (int i = 0; i < frame.length; i++) {
+                buffer[2 * i] = (byte) frame[i];
+                buffer[2 * i + 1] = (byte) (frame[i] >> 8);
+            }
+            line.write(buffer, 0, buffer.length);
+        }
+        
+        @Override
+        public int getLatencyMillis() {
+            int queued = line.getBufferSize() - line.available();
+            return queued * 1000 / (SAMPLE_RATE * 2);
+        }
+        
+        @Override
+        public void close() {
+            line.stop();
+            line.close();
+        }
+    }
+}
\ No newline at end of file
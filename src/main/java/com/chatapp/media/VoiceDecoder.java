@@ -0,0 +1,78 @@
+package com.chatapp.media;
+
+/**
+ * Inverse of {@link VoiceEncoder}: turns a voice payload back into 16-bit signed
+ * little-endian mono PCM at the payload's own sample rate.
+ */
+public class VoiceDecoder {
+    private final VoiceFormat format;
+    private final short[] samples = new short[ImaAdpcm.SAMPLES_PER_BLOCK];
+    
+    public VoiceDecoder(VoiceFormat format) {
+        this.format = format;
+    }
+    
+    public VoiceFormat getFormat() {
+        return format;
+    }
+    
+    public static byte[] decodeAll(byte[] data, String format) {
+        return new VoiceDecoder(VoiceFormat.parse(format)).decode(data, 0, data.length);
+    }
+    
+    /**
+     * Number of decoded PCM bytes {@code encodedLength} payload bytes expand to.
+     */
+    public int decodedLength(int encodedLength) {
+        switch (format.getEncoding()) {
+            case IMA_ADPCM:
+                return encodedLength / ImaAdpcm.BLOCK_SIZE * ImaAdpcm.SAMPLES_PER_BLOCK * 2;
+            case MULAW:
+                return encodedLength * 2;
+            default:
+                return encodedLength & ~1;
+        }
+    }
+    
+    /**
+     * Decodes a range of the payload. For IMA ADPCM the range must start on a block
+     * boundary; a trailing partial block is ignored.
+     */
+    public byte[] decode(byte[] data, int offset, int length) {
+        byte[] pcm = new byte[decodedLength(length)];
+        decodeInto(data, offset, length, pcm);
+        return pcm;
+    }
+    
+    /**
+     * Like {@link #decode}, but writes into a caller-owned buffer of at least
+     * {@link #decodedLength} bytes and returns the number of bytes produced.
+     */
+    public int decodeInto(byte[] data, int offset, int length, byte[] pcm) {
+        int produced = decodedLength(length);
+        
+        switch (format.getEncoding()) {
+            case IMA_ADPCM:
+                int position = 0;
+                for (int block = offset; block + ImaAdpcm.BLOCK_SIZE <= offset + length; block += ImaAdpcm.BLOCK_SIZE) {
+                    ImaAdpcm.decodeBlock(data, block, samples, 0);
+                    for (short sample : samples) {
+                        pcm[position++] = (byte) sample;
+                        pcm[position++] = (byte) (sample >> 8);
+                    }
+                }
+                break;
+            case MULAW:
+                for (int i = 0; i < length; i++) {
+                    short sample = MuLaw.decode(data[offset + i]);
+                    pcm[i * 2] = (byte) sample;
+                    pcm[i * 2 + 1] = (byte) (sample >> 8);
+                }
+                break;
+            default:
+                System.arraycopy(data, offset, pcm, 0, produced);
+                break;
+        }
+        return produced;
+    }
+}
\ No newline at end of file
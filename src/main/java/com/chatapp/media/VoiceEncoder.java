@@ -0,0 +1,137 @@
+package com.chatapp.media;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Turns raw capture PCM (16-bit signed little-endian mono) into a compact voice payload:
+ * resample to the target rate, then IMA ADPCM or μ-law. The encoder is incremental so it
+ * can run inside the capture loop; each call returns only the bytes that are final.
+ */
+public class VoiceEncoder {
+    public static final int DEFAULT_SAMPLE_RATE = Integer.getInteger("chatapp.voice.sampleRate", 16000);
+    
+    private final VoiceFormat format;
+    private final Resampler resampler;
+    
+    private final short[] blockSamples = new short[ImaAdpcm.SAMPLES_PER_BLOCK];
+    private int blockFill;
+    private int stepIndex;
+    private int pendingByte = -1;
+    
+    private long inputSamples;
+    private long encodedBytes;
+    
+    public VoiceEncoder(int captureRate) {
+        this(captureRate, defaultFormat());
+    }
+    
+    public VoiceEncoder(int captureRate, VoiceFormat format) {
+        this.format = format;
+        this.resampler = new Resampler(captureRate, format.getSampleRate());
+    }
+    
+    /**
+     * IMA ADPCM unless {@code chatapp.voice.codec=mulaw} selects the μ-law fallback.
+     */
+    public static VoiceFormat defaultFormat() {
+        String codec = System.getProperty("chatapp.voice.codec", "adpcm");
+        if ("mulaw".equalsIgnoreCase(codec)) {
+            return new VoiceFormat(VoiceFormat.Encoding.MULAW, DEFAULT_SAMPLE_RATE);
+        } else if ("pcm".equalsIgnoreCase(codec)) {
+            return new VoiceFormat(VoiceFormat.Encoding.PCM, DEFAULT_SAMPLE_RATE);
+        }
+        return new VoiceFormat(VoiceFormat.Encoding.IMA_ADPCM, DEFAULT_SAMPLE_RATE);
+    }
+    
+    public VoiceFormat getFormat() {
+        return format;
+    }
+    
+    public byte[] encode(byte[] pcm, int offset, int length) {
+        short[] samples = toSamples(pcm, offset, length);
+        inputSamples += samples.length;
+        return emit(resampler.process(samples, 0, samples.length), false);
+    }
+    
+    /**
+     * Flushes the resampler and pads the final ADPCM block; the encoder cannot be used afterwards.
+     */
+    public byte[] finish() {
+        return emit(resampler.flush(), true);
+    }
+    
+    private short[] toSamples(byte[] pcm, int offset, int length) {
+        int start = offset;
+        int end = offset + length;
+        int count = (length + (pendingByte >= 0 ? 1 : 0)) / 2;
+        short[] samples = new short[count];
+        int n = 0;
+        
+        if (pendingByte >= 0 && start < end) {
+            samples[n++] = (short) (pendingByte | (pcm[start++] << 8));
+            pendingByte = -1;
+        }
+        while (start + 1 < end) {
+            samples[n++] = (short) ((pcm[start] & 0xFF) | (pcm[start + 1] << 8));
+            start += 2;
+        }
+        if (start < end) {
+            pendingByte = pcm[start] & 0xFF;
+        }
+        return samples;
+    }
+    
+    private byte[] emit(short[] samples, boolean last) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(format.getBytesPerSecond() / 10);
+        
+        switch (format.getEncoding()) {
+            case IMA_ADPCM:
+                byte[] block = new byte[ImaAdpcm.BLOCK_SIZE];
+                for (short sample : samples) {
+                    blockSamples[blockFill++] = sample;
+                    if (blockFill == ImaAdpcm.SAMPLES_PER_BLOCK) {
+                        stepIndex = ImaAdpcm.encodeBlock(blockSamples, 0, stepIndex, block, 0);
+                        out.write(block, 0, block.length);
+                        blockFill = 0;
+                    }
+                }
+                if (last && blockFill > 0) {
+                    short tail = blockSamples[blockFill - 1];
+                    while (blockFill < ImaAdpcm.SAMPLES_PER_BLOCK) {
+                        // Decay towards silence rather than holding a DC offset
+                        tail = (short) (tail / 2);
+                        blockSamples[blockFill++] = tail;
+                    }
+                    stepIndex = ImaAdpcm.encodeBlock(blockSamples, 0, stepIndex, block, 0);
+                    out.write(block, 0, block.length);
+                    blockFill = 0;
+                }
+                break;
+            case MULAW:
+                for (short sample : samples) {
+                    out.write(MuLaw.encode(sample));
+                }
+                break;
+            default:
+                for (short sample : samples) {
+                    out.write(sample & 0xFF);
+                    out.write((sample >> 8) & 0xFF);
+                }
+                break;
+        }
+        
+        encodedBytes += out.size();
+        return out.toByteArray();
+    }
+    
+    public long getEncodedBytes() {
+        return encodedBytes;
+    }
+    
+    /**
+     * Compression relative to the 16-bit capture PCM consumed so far.
+     */
+    public double getCompressionRatio() {
+        return encodedBytes == 0 ? 0 : (double) (inputSamples * 2) / encodedBytes;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,117 @@
+package com.chatapp.media;
+
+import java.util.Locale;
+
+/**
+ * Encoding and sample rate of a voice payload, carried as a MIME-style string in
+ * {@code VoiceAttachment.format}, e.g. {@code audio/x-ima-adpcm;rate=16000}.
+ * All encodings are mono; decoded audio is always 16-bit signed little-endian PCM.
+ */
+public final class VoiceFormat {
+    public static final String PCM_MIME = "audio/L16";
+    public static final String IMA_ADPCM_MIME = "audio/x-ima-adpcm";
+    public static final String MULAW_MIME = "audio/basic";
+    
+    // What VoiceRecorderPanel captured before voice encoding existed (despite being labelled audio/mp3)
+    public static final VoiceFormat LEGACY_PCM = new VoiceFormat(Encoding.PCM, 44100);
+    
+    public enum Encoding {
+        PCM,
+        IMA_ADPCM,
+        MULAW
+    }
+    
+    private final Encoding encoding;
+    private final int sampleRate;
+    
+    public VoiceFormat(Encoding encoding, int sampleRate) {
+        this.encoding = encoding;
+        this.sampleRate = sampleRate;
+    }
+    
+    public static VoiceFormat parse(String format) {
+        if (format == null) {
+            return LEGACY_PCM;
+        }
+        
+        String[] parts = format.toLowerCase(Locale.ROOT).split(";");
+        String mime = parts[0].trim();
+        int rate = -1;
+        for (int i = 1; i < parts.length; i++) {
+            String part = parts[i].trim();
+            if (part.startsWith("rate=")) {
+                try {
+                    rate = Integer.parseInt(part.substring("rate=".length()));
+                } catch (NumberFormatException e) {
+                    rate = -1;
+                }
+            }
+        }
+        
+        if (mime.equals(IMA_ADPCM_MIME)) {
+            return new VoiceFormat(Encoding.IMA_ADPCM, rate > 0 ? rate : 16000);
+        } else if (mime.equals(MULAW_MIME)) {
+            return new VoiceFormat(Encoding.MULAW, rate > 0 ? rate : 8000);
+        } else if (mime.equals(PCM_MIME.toLowerCase(Locale.ROOT))) {
+            return new VoiceFormat(Encoding.PCM, rate > 0 ? rate : 44100);
+        }
+        return LEGACY_PCM;
+    }
+    
+    public Encoding getEncoding() {
+        return encoding;
+    }
+    
+    public int getSampleRate() {
+        return sampleRate;
+    }
+    
+    /**
+     * Smallest independently decodable unit of the payload, in bytes.
+     */
+    public int getBlockSize() {
+        switch (encoding) {
+            case IMA_ADPCM:
+                return ImaAdpcm.BLOCK_SIZE;
+            case MULAW:
+                return 1;
+            default:
+                return 2;
+        }
+    }
+    
+    public int getSamplesPerBlock() {
+        return encoding == Encoding.IMA_ADPCM ? ImaAdpcm.SAMPLES_PER_BLOCK : 1;
+    }
+    
+    /**
+     * Approximate encoded size of one second of audio.
+     */
+    public int getBytesPerSecond() {
+        switch (encoding) {
+            case IMA_ADPCM:
+                return sampleRate * ImaAdpcm.BLOCK_SIZE / ImaAdpcm.SAMPLES_PER_BLOCK;
+            case MULAW:
+                return sampleRate;
+            default:
+                return sampleRate * 2;
+        }
+    }
+    
+    @Override
+    public String toString() {
+        String mime;
+        switch (encoding) {
+            case IMA_ADPCM:
+                mime = IMA_ADPCM_MIME;
+                break;
+            case MULAW:
+                mime = MULAW_MIME;
+                break;
+            default:
+                mime = PCM_MIME;
+                break;
+        }
+        return mime + ";rate=" + sampleRate;
+    }
+}
\ No newline at end of file
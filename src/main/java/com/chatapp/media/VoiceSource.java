@@ -0,0 +1,28 @@
+package com.chatapp.media;
+
+import java.io.IOException;
+
+/**
+ * Random-access view of an encoded voice payload, so the player can fetch just the
+ * part it is about to play instead of loading the whole message.
+ */
+public interface VoiceSource {
+    
+    /**
+     * Reads up to {@code length} payload bytes starting at {@code offset} into
+     * {@code buffer[bufferOffset..]}; returns the number of bytes read, or 0 once the
+     * offset is past the end of the payload.
+     */
+    int read(long offset, byte[] buffer, int bufferOffset, int length) throws IOException;
+    
+    static VoiceSource of(byte[] data) {
+        return (offset, buffer, bufferOffset, length) -> {
+            if (offset >= data.length) {
+                return 0;
+            }
+            int count = (int) Math.min(length, data.length - offset);
+            System.arraycopy(data, (int) offset, buffer, bufferOffset, count);
+            return count;
+        };
+    }
+}
\ No newline at end of file
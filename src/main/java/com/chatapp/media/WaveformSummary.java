@@ -0,0 +1,156 @@
+package com.chatapp.media;
+
+import java.util.Arrays;
+
+/**
+ * Compact peak/RMS outline of a recording for drawing voice message timelines without
+ * decoding the audio. The serialized form is a bar count followed by one peak byte and
+ * one RMS byte per bar, on a square-root scale so quiet speech stays visible.
+ */
+public final class WaveformSummary {
+    public static final int DEFAULT_BARS = 100;
+    
+    private static final int WINDOW_MILLIS = 10;
+    
+    private final byte[] peaks;
+    private final byte[] rms;
+    
+    private WaveformSummary(byte[] peaks, byte[] rms) {
+        this.peaks = peaks;
+        this.rms = rms;
+    }
+    
+    public static WaveformSummary fromBytes(byte[] data) {
+        if (data == null || data.length < 1) {
+            return null;
+        }
+        int bars = data[0] & 0xFF;
+        if (data.length < 1 + bars * 2) {
+            return null;
+        }
+        return new WaveformSummary(
+                Arrays.copyOfRange(data, 1, 1 + bars),
+                Arrays.copyOfRange(data, 1 + bars, 1 + bars * 2));
+    }
+    
+    /**
+     * Builds a summary from a complete voice payload, for messages that arrive without one.
+     */
+    public static byte[] fromPayload(byte[] payload, String format) {
+        VoiceFormat voiceFormat = VoiceFormat.parse(format);
+        Builder builder = new Builder(voiceFormat.getSampleRate());
+        byte[] pcm = new VoiceDecoder(voiceFormat).decode(payload, 0, payload.length);
+        builder.add(pcm, 0, pcm.length);
+        return builder.toBytes(DEFAULT_BARS);
+    }
+    
+    public byte[] toBytes() {
+        byte[] data = new byte[1 + peaks.length * 2];
+        data[0] = (byte) peaks.length;
+        System.arraycopy(peaks, 0, data, 1, peaks.length);
+        System.arraycopy(rms, 0, data, 1 + peaks.length, rms.length);
+        return data;
+    }
+    
+    public int getBarCount() {
+        return peaks.length;
+    }
+    
+    /**
+     * Peak level of a bar between 0 and 1.
+     */
+    public float getPeak(int bar) {
+        return (peaks[bar] & 0xFF) / 255f;
+    }
+    
+    public float getRms(int bar) {
+        return (rms[bar] & 0xFF) / 255f;
+    }
+    
+    private static byte scale(double amplitude) {
+        double normalized = Math.min(1.0, amplitude / 32768.0);
+        return (byte) Math.round(Math.sqrt(normalized) * 255);
+    }
+    
+    /**
+     * Accumulates 10 ms windows from 16-bit little-endian mono PCM as it is captured and
+     * folds them into the requested number of bars at the end.
+     */
+    public static class Builder {
+        private final int windowSamples;
+        private float[] windowPeaks = new float[1024];
+        private float[] windowEnergy = new float[1024];
+        private int windows;
+        
+        private int windowFill;
+        private int currentPeak;
+        private double currentEnergy;
+        private int pendingByte = -1;
+        
+        public Builder(int sampleRate) {
+            this.windowSamples = Math.max(1, sampleRate * WINDOW_MILLIS / 1000);
+        }
+        
+        public void add(byte[] pcm, int offset, int length) {
+            int index = offset;
+            int end = offset + length;
+            if (pendingByte >= 0 && index < end) {
+                addSample((short) (pendingByte | (pcm[index++] << 8)));
+                pendingByte = -1;
+            }
+            for (; index + 1 < end; index += 2) {
+                addSample((short) ((pcm[index] & 0xFF) | (pcm[index + 1] << 8)));
+            }
+            if (index < end) {
+                pendingByte = pcm[index] & 0xFF;
+            }
+        }
+        
+        private void addSample(short sample) {
+            int magnitude = Math.abs((int) sample);
+            if (magnitude > currentPeak) {
+                currentPeak = magnitude;
+            }
+            currentEnergy += (double) sample * sample;
+            if (++windowFill == windowSamples) {
+                closeWindow();
+            }
+        }
+        
+        private void closeWindow() {
+            if (windows == windowPeaks.length) {
+                windowPeaks = Arrays.copyOf(windowPeaks, windows * 2);
+                windowEnergy = Arrays.copyOf(windowEnergy, windows * 2);
+            }
+            windowPeaks[windows] = currentPeak;
+            windowEnergy[windows] = (float) (currentEnergy / windowFill);
+            windows++;
+            windowFill = 0;
+            currentPeak = 0;
+            currentEnergy = 0;
+        }
+        
+        public byte[] toBytes(int bars) {
+            if (windowFill > 0) {
+                closeWindow();
+            }
+            int count = Math.min(Math.min(bars, 255), windows);
+            byte[] peaks = new byte[count];
+            byte[] rms = new byte[count];
+            
+            for (int bar = 0; bar < count; bar++) {
+                int from = (int) ((long) bar * windows / count);
+                int to = (int) ((long) (bar + 1) * windows / count);
+                float peak = 0;
+                double energy = 0;
+                for (int w = from; w < to; w++) {
+                    peak = Math.max(peak, windowPeaks[w]);
+                    energy += windowEnergy[w];
+                }
+                peaks[bar] = scale(peak);
+                rms[bar] = scale(Math.sqrt(energy / Math.max(1, to - from)));
+            }
+            return new WaveformSummary(peaks, rms).toBytes();
+        }
+    }
+}
\ No newline at end of file
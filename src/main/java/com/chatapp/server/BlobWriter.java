@@ -0,0 +1,318 @@
+package com.chatapp.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Single writer thread for stored blobs.
+ *
+ * Each blob is written to a temporary file and renamed into place, data before
+ * metadata, so a crash never leaves a metadata file pointing at partial data.
+ * In {@link DurabilityMode#GROUP_COMMIT} every upload that queued up while the
+ * previous batch was syncing is flushed together: all of its files are written
+ * first and only then synced, so the first sync commits the whole batch to the
+ * filesystem journal and the rest find little left to do. The directory syncs
+ * are shared by the batch as well, and nothing is acknowledged before they ran.
+ */
+public class BlobWriter implements AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(BlobWriter.class.getName());
+    
+    private static final int MAX_BATCH = 64;
+    private static final String TEMP_SUFFIX = ".tmp";
+    
+    public enum DurabilityMode {
+        NONE,
+        GROUP_COMMIT,
+        SYNC;
+        
+        public static DurabilityMode fromString(String value) {
+            try {
+                return valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (Exception e) {
+                LOGGER.warning("Unknown durability mode '" + value + "', using GROUP_COMMIT");
+                return GROUP_COMMIT;
+            }
+        }
+    }
+    
+    private final DurabilityMode durabilityMode;
+    private final BlockingQueue<WriteRequest> queue = new LinkedBlockingQueue<>();
+    private final Thread writerThread;
+    private final Object submitLock = new Object();
+    private volatile boolean running = true;
+    
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong fsyncs = new AtomicLong();
+    
+    public BlobWriter(DurabilityMode durabilityMode) {
+        this.durabilityMode = durabilityMode;
+        this.writerThread = new Thread(this::runWriter, "blob-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+        
+        LOGGER.info("Blob writer started with durability mode " + durabilityMode);
+    }
+    
+    /**
+     * Queues a blob and its metadata. The future completes once the write meets the configured durability mode.
+     */
+    public CompletableFuture<Void> submit(Path dataPath, byte[] data, Path metadataPath, byte[] metadata) {
+        return enqueue(new WriteRequest(dataPath, data, null, metadataPath, metadata));
+    }
+    
+    /**
+     * Like {@link #submit}, but the data is an existing file on the same file system that is
+     * moved into place instead of being rewritten. If the write fails the source is left where it was.
+     */
+    public CompletableFuture<Void> submitMove(Path dataPath, Path source, Path metadataPath, byte[] metadata) {
+        return enqueue(new WriteRequest(dataPath, null, source, metadataPath, metadata));
+    }
+    
+    private CompletableFuture<Void> enqueue(WriteRequest request) {
+        // Same lock as close(), so nothing is queued after the writer decided it can drain and exit
+        synchronized (submitLock) {
+            if (!running) {
+                request.future.completeExceptionally(new IOException("Blob writer is shut down"));
+                return request.future;
+            }
+            queue.add(request);
+        }
+        return request.future;
+    }
+    
+    private void runWriter() {
+        List<WriteRequest> batch = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                WriteRequest first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                if (durabilityMode != DurabilityMode.SYNC) {
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                }
+                
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+        
+        WriteRequest remaining;
+        while ((remaining = queue.poll()) != null) {
+            remaining.future.completeExceptionally(new IOException("Blob writer stopped before the write completed"));
+        }
+    }
+    
+    private void writeBatch(List<WriteRequest> batch) {
+        boolean durable = durabilityMode != DurabilityMode.NONE;
+        List<WriteRequest> written = new ArrayList<>(batch.size());
+        
+        long fsyncsBefore = fsyncs.get();
+        
+        for (WriteRequest request : batch) {
+            try {
+                if (request.source == null) {
+                    writeTemp(request.dataPath, request.data);
+                }
+                writeTemp(request.metadataPath, request.metadata);
+                written.add(request);
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Failed to write blob: " + request.dataPath, e);
+                deleteTemp(request);
+                request.future.completeExceptionally(e);
+            }
+        }
+        
+        if (durable) {
+            // Only once the whole batch is written, so the syncs can share one journal commit
+            for (Iterator<WriteRequest> it = written.iterator(); it.hasNext(); ) {
+                WriteRequest request = it.next();
+                try {
+                    syncFile(request.source != null ? request.source : tempPath(request.dataPath));
+                    syncFile(tempPath(request.metadataPath));
+                } catch (IOException e) {
+                    LOGGER.log(Level.SEVERE, "Failed to sync blob: " + request.dataPath, e);
+                    deleteTemp(request);
+                    request.future.completeExceptionally(e);
+                    it.remove();
+                }
+            }
+        }
+        
+        Set<Path> directories = new LinkedHashSet<>();
+        List<WriteRequest> committed = new ArrayList<>(written.size());
+        for (WriteRequest request : written) {
+            try {
+                commit(request);
+                directories.add(request.dataPath.getParent());
+                committed.add(request);
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Failed to commit blob: " + request.dataPath, e);
+                deleteTemp(request);
+                request.future.completeExceptionally(e);
+            }
+        }
+        
+        if (durable) {
+            for (Path directory : directories) {
+                syncDirectory(directory);
+            }
+        }
+        
+        for (WriteRequest request : committed) {
+            request.future.complete(null);
+        }
+        
+        writes.addAndGet(committed.size());
+        batches.incrementAndGet();
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Committed " + committed.size() + " of " + batch.size() + " blobs with "
+                    + (fsyncs.get() - fsyncsBefore) + " fsyncs");
+        }
+    }
+    
+    private void writeTemp(Path target, byte[] content) throws IOException {
+        try (FileChannel channel = FileChannel.open(tempPath(target), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(content);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+    
+    private void syncFile(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.force(false);
+            fsyncs.incrementAndGet();
+        }
+    }
+    
+    private void commit(WriteRequest request) throws IOException {
+        if (request.source == null) {
+            moveIntoPlace(request.dataPath);
+            moveIntoPlace(request.metadataPath);
+            return;
+        }
+        
+        Files.move(request.source, request.dataPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        try {
+            moveIntoPlace(request.metadataPath);
+        } catch (IOException e) {
+            // Give the source back so the caller still has it
+            try {
+                Files.move(request.dataPath, request.source, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException restoreError) {
+                e.addSuppressed(restoreError);
+            }
+            throw e;
+        }
+    }
+    
+    private void moveIntoPlace(Path target) throws IOException {
+        Files.move(tempPath(target), target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+    
+    private void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+            fsyncs.incrementAndGet();
+        } catch (IOException e) {
+            // Some platforms (Windows) cannot open directories; the renames are still atomic there
+            LOGGER.log(Level.FINE, "Directory sync not supported for " + directory, e);
+        }
+    }
+    
+    private void deleteTemp(WriteRequest request) {
+        try {
+            Files.deleteIfExists(tempPath(request.dataPath));
+            Files.deleteIfExists(tempPath(request.metadataPath));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to clean up temporary files for " + request.dataPath, e);
+        }
+    }
+    
+    private static Path tempPath(Path target) {
+        return target.resolveSibling(target.getFileName() + TEMP_SUFFIX);
+    }
+    
+    public DurabilityMode getDurabilityMode() {
+        return durabilityMode;
+    }
+    
+    public int getQueueDepth() {
+        return queue.size();
+    }
+    
+    public long getWriteCount() {
+        return writes.get();
+    }
+    
+    public long getBatchCount() {
+        return batches.get();
+    }
+    
+    public long getFsyncCount() {
+        return fsyncs.get();
+    }
+    
+    public double getFsyncsPerBatch() {
+        long count = batches.get();
+        return count == 0 ? 0 : (double) fsyncs.get() / count;
+    }
+    
+    @Override
+    public void close() {
+        synchronized (submitLock) {
+            running = false;
+        }
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        LOGGER.info(String.format("Blob writer stopped after %d writes in %d batches, %.1f fsyncs per batch",
+                writes.get(), batches.get(), getFsyncsPerBatch()));
+    }
+    
+    private static class WriteRequest {
+        final Path dataPath;
+        final byte[] data;
+        final Path source;
+        final Path metadataPath;
+        final byte[] metadata;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        
+        WriteRequest(Path dataPath, byte[] data, Path source, Path metadataPath, byte[] metadata) {
+            this.dataPath = dataPath;
+            this.data = data;
+            this.source = source;
+            this.metadataPath = metadataPath;
+            this.metadata = metadata;
+        }
+    }
+}
\ No newline at end of file
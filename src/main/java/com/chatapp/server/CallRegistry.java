@@ -0,0 +1,85 @@
+package com.chatapp.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Signaling state for voice and video calls. The server only brokers call setup and the
+ * media endpoints of both sides; audio and video flow directly between the clients.
+ */
+public class CallRegistry {
+    private static final long RING_TIMEOUT_MILLIS = Long.getLong("chatapp.call.ringTimeoutSeconds", 45) * 1000;
+    
+    private final Map<String, Call> calls = new ConcurrentHashMap<>();
+    
+    public Call create(String callerId, String calleeId, boolean video, String callerEndpoint) {
+        expireUnanswered();
+        Call call = new Call(UUID.randomUUID().toString(), callerId, calleeId, video, callerEndpoint);
+        calls.put(call.callId, call);
+        return call;
+    }
+    
+    public Call get(String callId) {
+        return callId != null ? calls.get(callId) : null;
+    }
+    
+    public Call remove(String callId) {
+        return callId != null ? calls.remove(callId) : null;
+    }
+    
+    public boolean isBusy(String clientId) {
+        for (Call call : calls.values()) {
+            if (call.involves(clientId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Removes and returns every call the client takes part in, e.g. when it disconnects.
+     */
+    public List<Call> removeAll(String clientId) {
+        List<Call> removed = new ArrayList<>();
+        for (Call call : calls.values()) {
+            if (call.involves(clientId) && calls.remove(call.callId) != null) {
+                removed.add(call);
+            }
+        }
+        return removed;
+    }
+    
+    private void expireUnanswered() {
+        long now = System.currentTimeMillis();
+        calls.values().removeIf(call -> call.calleeEndpoint == null && now - call.createdAt > RING_TIMEOUT_MILLIS);
+    }
+    
+    public static class Call {
+        final String callId;
+        final String callerId;
+        final String calleeId;
+        final boolean video;
+        final String callerEndpoint;
+        final long createdAt = System.currentTimeMillis();
+        volatile String calleeEndpoint;
+        
+        Call(String callId, String callerId, String calleeId, boolean video, String callerEndpoint) {
+            this.callId = callId;
+            this.callerId = callerId;
+            this.calleeId = calleeId;
+            this.video = video;
+            this.callerEndpoint = callerEndpoint;
+        }
+        
+        boolean involves(String clientId) {
+            return callerId.equals(clientId) || calleeId.equals(clientId);
+        }
+        
+        String peerOf(String clientId) {
+            return callerId.equals(clientId) ? calleeId : callerId;
+        }
+    }
+}
\ No newline at end of file
@@ -3,11 +3,19 @@ package com.chatapp.server;
 import com.chatapp.common.ChatClient;
 import com.chatapp.common.ChatService;
 import com.chatapp.common.ClientInfo;
+import com.chatapp.common.HistoryDelta;
 import com.chatapp.common.Message;
+import com.chatapp.common.StorageUsage;
+import com.chatapp.media.WaveformSummary;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.net.InetAddress;
 import java.rmi.RemoteException;
+import java.rmi.server.RemoteServer;
+import java.rmi.server.ServerNotActiveException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.*;
 import java.util.Base64;
@@ -27,17 +35,47 @@ public class ChatServerImpl extends UnicastRemoteObject implements ChatService {
     
     private static final int MAX_HISTORY_SIZE = 500;
     
+    // Changes on every start, since sequence numbers start over with the in-memory history
+    private final String historyId = UUID.randomUUID().toString();
+    
+    private long lastSequence;
+    
+    private final IdempotencyCache acceptedMessages = new IdempotencyCache();
+    
+    private static final int MAX_RANGE_BYTES = 1024 * 1024;
+    
     private final Map<String, Message> messagesById = new ConcurrentHashMap<>();
     
     private final Map<String, Set<String>> unreadMessages = new ConcurrentHashMap<>();
     
     private final FileStorageService fileStorage;
     
+    private final FileReferenceTracker fileReferences = new FileReferenceTracker();
+    
+    private final StorageSweeper storageSweeper;
+    
+    private final TranscodeService transcodeService;
+    
+    private final IntegrityScrubber integrityScrubber;
+    
+    private final UploadSessions uploadSessions;
+    
+    private final CallRegistry callRegistry = new CallRegistry();
+    
+    private final ClientSessions sessions = new ClientSessions(this::suspendClient, this::expireClient);
+    
     public ChatServerImpl() throws RemoteException {
         super();
         String userHome = System.getProperty("user.home");
         String storageDir = userHome + File.separator + "ChatAppFiles";
         this.fileStorage = new FileStorageService(storageDir);
+        this.storageSweeper = new StorageSweeper(fileStorage, fileReferences);
+        this.storageSweeper.start();
+        this.transcodeService = new TranscodeService(fileStorage);
+        this.integrityScrubber = new IntegrityScrubber(fileStorage);
+        this.integrityScrubber.start();
+        this.uploadSessions = new UploadSessions(fileStorage);
+        this.sessions.start();
         LOGGER.info("Chat server started with enhanced features and permanent file storage");
     }
     
@@ -61,45 +99,179 @@ public class ChatServerImpl extends UnicastRemoteObject implements ChatService {
         return clientId;
     }
     
+    @Override
+    public String[] registerSession(ChatClient client) throws RemoteException {
+        String clientId = registerClient(client);
+        return new String[] {clientId, sessions.open(clientId), historyId};
+    }
+    
+    @Override
+    public boolean heartbeat(String clientId) throws RemoteException {
+        return sessions.touch(clientId);
+    }
+    
+    @Override
+    public boolean resumeSession(ChatClient client, String clientId, String resumeToken) throws RemoteException {
+        ClientInfo clientInfo = clientInfos.get(clientId);
+        if (clientInfo == null || !sessions.resume(clientId, resumeToken)) {
+            LOGGER.info("Session of " + clientId + " cannot be resumed");
+            return false;
+        }
+        clients.put(clientId, client);
+        clientInfo.setOnline(true);
+        unreadMessages.computeIfAbsent(clientId, id -> new HashSet<>());
+        
+        LOGGER.info("Client resumed: " + clientInfo.getName() + " (" + clientId + ")");
+        return true;
+    }
+    
     @Override
     public void unregisterClient(String clientId) throws RemoteException {
-        if (clients.containsKey(clientId)) {
-            ClientInfo clientInfo = clientInfos.get(clientId);
-            clients.remove(clientId);
+        boolean suspended = sessions.close(clientId);
+        if (clients.remove(clientId) != null || suspended) {
+            dropClient(clientId);
+            LOGGER.info("Client unregistered: " + clientInfos.get(clientId).getName() + " (" + clientId + ")");
+        }
+    }
+    
+    // Stop calling it back but keep its identity, so it can resume without the others noticing
+    private void suspendClient(String clientId) {
+        if (clients.remove(clientId) != null) {
+            LOGGER.info("No heartbeat from " + clientId + ", session suspended");
+        }
+    }
+    
+    private void expireClient(String clientId) {
+        dropClient(clientId);
+        LOGGER.info("Session of " + clientId + " expired");
+    }
+    
+    private void dropClient(String clientId) {
+        ClientInfo clientInfo = clientInfos.get(clientId);
+        if (clientInfo != null) {
             clientInfo.setOnline(false);
-            
-            broadcastClientDisconnected(clientId);
-            
-            LOGGER.info("Client unregistered: " + clientInfo.getName() + " (" + clientId + ")");
         }
+        for (CallRegistry.Call call : callRegistry.removeAll(clientId)) {
+            notifyCallEnded(call, clientId);
+        }
+        broadcastClientDisconnected(clientId);
     }
     
     @Override
-    public void sendMessage(Message message, String senderId, String recipientId) throws RemoteException {
+    public long sendMessage(Message message, String senderId, String recipientId) throws RemoteException {
+        Long accepted;
+        try {
+            accepted = acceptedMessages.claim(message.getMessageId());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for message " + message.getMessageId());
+        }
+        if (accepted != null) {
+            // A resend after a lost acknowledgement; the original already went out
+            LOGGER.fine("Duplicate message " + message.getMessageId() + " from " + senderId + " ignored");
+            return accepted;
+        }
+        try {
+            return acceptMessage(message, senderId, recipientId);
+        } finally {
+            // Lets a retry through if the message was rejected before it got a sequence
+            acceptedMessages.release(message.getMessageId());
+        }
+    }
+    
+    private long acceptMessage(Message message, String senderId, String recipientId) throws RemoteException {
+        // Recipients waiting on the message's media, which decides how soon it is transcoded
+        int demand = recipientId == null ? Math.max(1, clients.size() - 1) : 1;
+        
         if (message.getType() == Message.MessageType.FILE && 
             message.getFileAttachment() != null && 
             message.getFileAttachment().getEncodedContent() != null) {
             
             try {
                 String fileId = storeFile(
+                    ownerOf(senderId),
                     message.getFileAttachment().getFileName(),
                     message.getFileAttachment().getEncodedContent(),
-                    message.getFileAttachment().getFileSize(),
-                    message.getFileAttachment().getContentType()
+                    message.getFileAttachment().getContentType(),
+                    demand
                 );
                 
                 message.getFileAttachment().setFileId(fileId);
+            } catch (StorageAccounting.QuotaExceededException e) {
+                LOGGER.warning("Rejected file from " + senderId + ": " + e.getMessage());
+                throw new RemoteException(e.getMessage(), e);
             } catch (Exception e) {
                 LOGGER.log(Level.SEVERE, "Failed to store file", e);
             }
         }
         
-        chatHistory.add(message);
+        if (message.getType() == Message.MessageType.VOICE &&
+            message.getVoiceAttachment() != null &&
+            message.getVoiceAttachment().getUploadId() != null) {
+            
+            Message.VoiceAttachment voiceAttachment = message.getVoiceAttachment();
+            try {
+                String fileId = uploadSessions.finish(voiceAttachment.getUploadId(), ownerOf(senderId));
+                voiceAttachment.setFileId(fileId);
+                voiceAttachment.setUploadId(null);
+                transcodeService.schedule(fileId, voiceAttachment.getFormat(), demand);
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Failed to finish voice upload: " + voiceAttachment.getUploadId(), e);
+                throw new RemoteException("Failed to finish voice upload: " + e.getMessage(), e);
+            }
+        }
+        
+        if (message.getType() == Message.MessageType.VOICE &&
+            message.getVoiceAttachment() != null &&
+            message.getVoiceAttachment().getWaveform() == null &&
+            message.getVoiceAttachment().getAudioData() != null) {
+            
+            // Older clients do not send a summary; build it once here rather than on every receiver
+            Message.VoiceAttachment voiceAttachment = message.getVoiceAttachment();
+            try {
+                voiceAttachment.setWaveform(WaveformSummary.fromPayload(voiceAttachment.getAudioData(), voiceAttachment.getFormat()));
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Could not summarize voice message " + message.getMessageId(), e);
+            }
+        }
+        
+        if (message.getType() == Message.MessageType.VIDEO &&
+            message.getVideoAttachment() != null &&
+            message.getVideoAttachment().getVideoData() != null &&
+            TranscodeService.supports(message.getVideoAttachment().getFormat())) {
+            
+            // Store the recording so each receiver downloads the rendition that fits its display
+            Message.VideoAttachment videoAttachment = message.getVideoAttachment();
+            try {
+                String fileId = fileStorage.storeFile(ownerOf(senderId), videoAttachment.getVideoData(),
+                        "video-" + message.getMessageId(), videoAttachment.getFormat());
+                videoAttachment.setFileId(fileId);
+                videoAttachment.setVideoData(null);
+                transcodeService.schedule(fileId, videoAttachment.getFormat(), demand);
+            } catch (StorageAccounting.QuotaExceededException e) {
+                LOGGER.warning("Rejected video from " + senderId + ": " + e.getMessage());
+                throw new RemoteException(e.getMessage(), e);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to store video message, sending it inline", e);
+            }
+        }
+        
+        synchronized (chatHistory) {
+            message.setSequence(++lastSequence);
+            chatHistory.add(message);
+        }
+        acceptedMessages.record(message.getMessageId(), message.getSequence());
         messagesById.put(message.getMessageId(), message);
+        fileReferences.retain(message);
         
         if (chatHistory.size() > MAX_HISTORY_SIZE) {
             Message removed = chatHistory.remove(0);
             messagesById.remove(removed.getMessageId());
+            
+            String releasedFileId = fileReferences.release(removed);
+            if (releasedFileId != null) {
+                storageSweeper.fileReleased(releasedFileId);
+            }
         }
         
         message.setStatus(Message.MessageStatus.SENT);
@@ -129,6 +301,21 @@ public class ChatServerImpl extends UnicastRemoteObject implements ChatService {
                 }
             }
         }
+        return message.getSequence();
+    }
+    
+    @Override
+    public long[] sendMessages(List<Message> messages, String senderId, List<String> recipientIds) throws RemoteException {
+        long[] sequences = new long[messages.size()];
+        for (int i = 0; i < sequences.length; i++) {
+            try {
+                sequences[i] = sendMessage(messages.get(i), senderId, recipientIds.get(i));
+            } catch (RemoteException e) {
+                LOGGER.warning("Rejected message " + messages.get(i).getMessageId() + " in batch from " + senderId + ": " + e.getMessage());
+                sequences[i] = -1;
+            }
+        }
+        return sequences;
     }
     
     @Override
@@ -141,6 +328,20 @@ public class ChatServerImpl extends UnicastRemoteObject implements ChatService {
         return new ArrayList<>(chatHistory);
     }
     
+    @Override
+    public HistoryDelta getChatHistorySince(String clientId, String historyId, long afterSequence) throws RemoteException {
+        // A client synced against an earlier run of the server has to start over
+        long after = this.historyId.equals(historyId) ? afterSequence : 0;
+        synchronized (chatHistory) {
+            int from = chatHistory.size();
+            while (from > 0 && chatHistory.get(from - 1).getSequence() > after) {
+                from--;
+            }
+            boolean complete = from > 0 || chatHistory.isEmpty() || chatHistory.get(0).getSequence() <= after + 1;
+            return new HistoryDelta(this.historyId, new ArrayList<>(chatHistory.subList(from, chatHistory.size())), complete);
+        }
+    }
+    
     @Override
     public void updateMessageStatus(String messageId, Message.MessageStatus status) throws RemoteException {
         Message message = messagesById.get(messageId);
@@ -309,16 +510,27 @@ public class ChatServerImpl extends UnicastRemoteObject implements ChatService {
             if (!entry.getKey().equals(clientInfo.getId())) {
                 try {
                     entry.getValue().clientConnected(clientInfo);
-                    
-                    ChatClient newClient = clients.get(clientInfo.getId());
-                    if (newClient != null) {
-                        newClient.clientConnected(clientInfos.get(entry.getKey()));
-                    }
                 } catch (RemoteException e) {
                     LOGGER.log(Level.WARNING, "Failed to notify client about new connection: " + entry.getKey(), e);
                 }
             }
         }
+        
+        // Including suspended clients: they are still online and will not announce themselves on resume
+        ChatClient newClient = clients.get(clientInfo.getId());
+        if (newClient == null) {
+            return;
+        }
+        for (ClientInfo peer : clientInfos.values()) {
+            if (peer.isOnline() && !peer.getId().equals(clientInfo.getId())) {
+                try {
+                    newClient.clientConnected(peer);
+                } catch (RemoteException e) {
+                    LOGGER.log(Level.WARNING, "Failed to tell new client " + clientInfo.getId() + " about " + peer.getId(), e);
+                    return;
+                }
+            }
+        }
     }
     
     private void broadcastClientDisconnected(String clientId) {
@@ -333,30 +545,93 @@ public class ChatServerImpl extends UnicastRemoteObject implements ChatService {
         }
     }
     
+    public FileCache getFileCache() {
+        return fileStorage.getCache();
+    }
+    
+    public void shutdown() {
+        sessions.stop();
+        storageSweeper.stop();
+        integrityScrubber.stop();
+        transcodeService.shutdown();
+        uploadSessions.abortAll();
+        fileStorage.close();
+    }
+    
     @Override
-    public String storeFile(String fileName, String encodedContent, long fileSize, String contentType) throws RemoteException {
+    public String storeFile(String clientId, String fileName, String encodedContent, long fileSize, String contentType) throws RemoteException {
+        if (clientId == null || !clientInfos.containsKey(clientId)) {
+            throw new RemoteException("Unknown client: " + clientId);
+        }
         try {
-            return fileStorage.storeFile(encodedContent, fileName, contentType);
+            return storeFile(ownerOf(clientId), fileName, encodedContent, contentType, 1);
         } catch (IOException e) {
             LOGGER.log(Level.SEVERE, "Failed to store file: " + fileName, e);
             throw new RemoteException("Failed to store file: " + e.getMessage(), e);
         }
     }
     
+    private String storeFile(String owner, String fileName, String encodedContent, String contentType, int demand) throws IOException {
+        String fileId = fileStorage.storeFile(owner, encodedContent, fileName, contentType);
+        transcodeService.schedule(fileId, contentType, demand);
+        return fileId;
+    }
+    
+    // Quotas follow the user name, since client IDs change on every connection
+    private String ownerOf(String clientId) {
+        ClientInfo clientInfo = clientId != null ? clientInfos.get(clientId) : null;
+        return clientInfo != null && clientInfo.getName() != null ? clientInfo.getName() : FileStorageService.UNKNOWN_OWNER;
+    }
+    
+    @Override
+    public StorageUsage getStorageUsage(String clientId) throws RemoteException {
+        StorageAccounting accounting = fileStorage.getAccounting();
+        String owner = ownerOf(clientId);
+        return new StorageUsage(
+            accounting.getUsage(owner),
+            accounting.getUserQuotaBytes(),
+            accounting.getFileCount(owner),
+            accounting.getTotalUsage(),
+            accounting.getTotalQuotaBytes()
+        );
+    }
+    
     @Override
     public String getFileContent(String fileId) throws RemoteException {
         try {
-            byte[] content = fileStorage.getFileContent(fileId);
+            ByteBuffer content = fileStorage.getFileBuffer(fileId);
             if (content == null) {
                 return null;
             }
-            return Base64.getEncoder().encodeToString(content);
+            ByteBuffer encoded = Base64.getEncoder().encode(content);
+            return new String(encoded.array(), encoded.arrayOffset(), encoded.remaining(), StandardCharsets.ISO_8859_1);
         } catch (IOException e) {
             LOGGER.log(Level.SEVERE, "Failed to get file content: " + fileId, e);
             throw new RemoteException("Failed to get file content: " + e.getMessage(), e);
         }
     }
     
+    @Override
+    public byte[] getFileRange(String fileId, long offset, int length) throws RemoteException {
+        try {
+            ByteBuffer content = fileStorage.getFileBuffer(fileId);
+            if (content == null) {
+                return null;
+            }
+            if (offset < 0 || offset >= content.remaining()) {
+                return new byte[0];
+            }
+            int count = (int) Math.min(Math.min(length, MAX_RANGE_BYTES), content.remaining() - offset);
+            byte[] range = new byte[count];
+            content.position(content.position() + (int) offset);
+            content.get(range);
+            return range;
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to get file range: " + fileId, e);
+            throw new RemoteException("Failed to get file range: " + e.getMessage(), e);
+        }
+    }
+    
     @Override
     public String[] getFileMetadata(String fileId) throws RemoteException {
         try {
@@ -366,4 +641,155 @@ public class ChatServerImpl extends UnicastRemoteObject implements ChatService {
             throw new RemoteException("Failed to get file metadata: " + e.getMessage(), e);
         }
     }
+    
+    @Override
+    public byte[] getFilePreview(String fileId, int maxDimension) throws RemoteException {
+        try {
+            return transcodeService.getPreview(fileId, maxDimension);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to get file preview: " + fileId, e);
+            throw new RemoteException("Failed to get file preview: " + e.getMessage(), e);
+        }
+    }
+    
+    @Override
+    public String[] getRendition(String fileId, int maxDimension, int maxSampleRate) throws RemoteException {
+        try {
+            return transcodeService.getRendition(fileId, maxDimension, maxSampleRate);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to get file rendition: " + fileId, e);
+            throw new RemoteException("Failed to get file rendition: " + e.getMessage(), e);
+        }
+    }
+    
+    public TranscodeService getTranscodeService() {
+        return transcodeService;
+    }
+    
+    @Override
+    public String beginUpload(String clientId, String fileName, String contentType) throws RemoteException {
+        if (clientId == null || !clientInfos.containsKey(clientId)) {
+            throw new RemoteException("Unknown client: " + clientId);
+        }
+        try {
+            return uploadSessions.begin(ownerOf(clientId), fileName, contentType);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to begin upload: " + fileName, e);
+            throw new RemoteException("Failed to begin upload: " + e.getMessage(), e);
+        }
+    }
+    
+    @Override
+    public long appendUpload(String uploadId, long offset, byte[] chunk) throws RemoteException {
+        try {
+            return uploadSessions.append(uploadId, offset, chunk);
+        } catch (StorageAccounting.QuotaExceededException e) {
+            LOGGER.warning("Rejected upload chunk for " + uploadId + ": " + e.getMessage());
+            throw new RemoteException(e.getMessage(), e);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to append upload: " + uploadId, e);
+            throw new RemoteException("Failed to append upload: " + e.getMessage(), e);
+        }
+    }
+    
+    @Override
+    public void abortUpload(String uploadId) throws RemoteException {
+        uploadSessions.abort(uploadId);
+    }
+    
+    @Override
+    public String startCall(String callerId, String calleeId, boolean video, int mediaPort) throws RemoteException {
+        ChatClient callee = clients.get(calleeId);
+        if (callee == null) {
+            throw new RemoteException("Failed to start call: recipient is not online");
+        }
+        if (callRegistry.isBusy(calleeId)) {
+            throw new RemoteException("Failed to start call: recipient is busy");
+        }
+        
+        CallRegistry.Call call = callRegistry.create(callerId, calleeId, video, mediaEndpoint(mediaPort));
+        try {
+            if (video) {
+                callee.receiveVideoCall(callerId, call.callId);
+            } else {
+                callee.receiveVoiceCall(callerId, call.callId);
+            }
+        } catch (RemoteException e) {
+            callRegistry.remove(call.callId);
+            LOGGER.log(Level.WARNING, "Failed to ring client: " + calleeId, e);
+            throw new RemoteException("Failed to start call: " + e.getMessage(), e);
+        }
+        LOGGER.info("Call " + call.callId + " ringing: " + callerId + " -> " + calleeId + (video ? " (video)" : ""));
+        return call.callId;
+    }
+    
+    @Override
+    public String answerCall(String callId, String clientId, boolean accept, int mediaPort) throws RemoteException {
+        CallRegistry.Call call = callRegistry.get(callId);
+        if (call == null || !call.calleeId.equals(clientId)) {
+            throw new RemoteException("Failed to answer call: call is no longer active");
+        }
+        ChatClient caller = clients.get(call.callerId);
+        
+        if (!accept) {
+            callRegistry.remove(callId);
+            if (caller != null) {
+                try {
+                    caller.callRejected(clientId, "declined");
+                } catch (RemoteException e) {
+                    LOGGER.log(Level.WARNING, "Failed to notify caller about rejected call: " + call.callerId, e);
+                }
+            }
+            return null;
+        }
+        
+        call.calleeEndpoint = mediaEndpoint(mediaPort);
+        try {
+            if (caller == null) {
+                throw new RemoteException("caller has disconnected");
+            }
+            caller.callAccepted(clientId, callId, call.calleeEndpoint);
+        } catch (RemoteException e) {
+            callRegistry.remove(callId);
+            LOGGER.log(Level.WARNING, "Failed to notify caller about accepted call: " + call.callerId, e);
+            throw new RemoteException("Failed to answer call: " + e.getMessage(), e);
+        }
+        return call.callerEndpoint;
+    }
+    
+    @Override
+    public void endCall(String callId, String clientId) throws RemoteException {
+        // Only a party to the call may end it
+        CallRegistry.Call call = callRegistry.get(callId);
+        if (call == null || !call.involves(clientId)) {
+            return;
+        }
+        if (callRegistry.remove(callId) == call) {
+            notifyCallEnded(call, clientId);
+        }
+    }
+    
+    private void notifyCallEnded(CallRegistry.Call call, String endedBy) {
+        String peerId = call.peerOf(endedBy);
+        ChatClient peer = clients.get(peerId);
+        if (peer == null) {
+            return;
+        }
+        try {
+            peer.callEnded(endedBy, call.callId);
+        } catch (RemoteException e) {
+            LOGGER.log(Level.WARNING, "Failed to notify client about ended call: " + peerId, e);
+        }
+    }
+    
+    // Media flows peer to peer, so each side is reached at the address the server sees it calling from
+    private String mediaEndpoint(int mediaPort) {
+        String host;
+        try {
+            host = RemoteServer.getClientHost();
+        } catch (ServerNotActiveException e) {
+            host = InetAddress.getLoopbackAddress().getHostAddress();
+        }
+        return host + ":" + mediaPort;
+    }
 }
\ No newline at end of file
@@ -3,6 +3,7 @@ package com.chatapp.server;
 import com.chatapp.common.ChatService;
 import com.chatapp.gui.ServerGUI;
 
+import javax.swing.Timer;
 import java.net.InetAddress;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
@@ -16,7 +17,10 @@ public class ChatServerMain {
     
     private Registry registry;
     private ChatServerImpl chatServer;
+    private static final int STATISTICS_INTERVAL_MILLIS = 5000;
+    
     private ServerGUI serverGUI;
+    private Timer statisticsTimer;
     
     public void startServer() {
         try {
@@ -38,6 +42,11 @@ public class ChatServerMain {
             
             serverGUI = new ServerGUI(hostAddress, RMI_PORT);
             serverGUI.setVisible(true);
+            
+            FileCache fileCache = chatServer.getFileCache();
+            statisticsTimer = new Timer(STATISTICS_INTERVAL_MILLIS, e -> serverGUI.setStatistics(fileCache.getSummary()));
+            statisticsTimer.setInitialDelay(0);
+            statisticsTimer.start();
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, "Failed to start chat server", e);
         }
@@ -45,8 +54,12 @@ public class ChatServerMain {
     
     public void stopServer() {
         try {
+            if (statisticsTimer != null) {
+                statisticsTimer.stop();
+            }
             if (registry != null && chatServer != null) {
                 registry.unbind(SERVICE_NAME);
+                chatServer.shutdown();
                 LOGGER.info("Chat server stopped");
             }
         } catch (Exception e) {
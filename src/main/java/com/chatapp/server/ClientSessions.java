@@ -0,0 +1,162 @@
+package com.chatapp.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Liveness and resume state of clients that registered with a session.
+ *
+ * A client proves it is alive with a heartbeat. One that stays silent for
+ * {@code chatapp.session.timeoutSeconds} is suspended: the server stops calling it back
+ * but keeps its identity, and other clients still see it online. Within
+ * {@code chatapp.session.resumeSeconds} it can come back under the same client ID by
+ * presenting its resume token; after that it is dropped as if it had left.
+ */
+public class ClientSessions {
+    private static final Logger LOGGER = Logger.getLogger(ClientSessions.class.getName());
+    
+    private static final long TIMEOUT_MILLIS = Long.getLong("chatapp.session.timeoutSeconds", 30) * 1000;
+    private static final long RESUME_MILLIS = Long.getLong("chatapp.session.resumeSeconds", 300) * 1000;
+    private static final long CHECK_SECONDS = 5;
+    
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final Consumer<String> onSuspend;
+    private final Consumer<String> onExpire;
+    private final ScheduledExecutorService scheduler;
+    
+    /**
+     * @param onSuspend called with the ID of a client that stopped sending heartbeats
+     * @param onExpire called with the ID of a suspended client that did not come back in time
+     */
+    public ClientSessions(Consumer<String> onSuspend, Consumer<String> onExpire) {
+        this.onSuspend = onSuspend;
+        this.onExpire = onExpire;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "session-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::check, CHECK_SECONDS, CHECK_SECONDS, TimeUnit.SECONDS);
+        LOGGER.info("Client sessions time out after " + TIMEOUT_MILLIS / 1000 + " s without a heartbeat and can be resumed for "
+                + RESUME_MILLIS / 1000 + " s");
+    }
+    
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+    
+    /**
+     * Starts a session for a newly registered client and returns its resume token.
+     */
+    public String open(String clientId) {
+        Session session = new Session(UUID.randomUUID().toString());
+        sessions.put(clientId, session);
+        return session.token;
+    }
+    
+    /**
+     * Records a heartbeat. Returns false if the client has no live session, in which case it
+     * is no longer being called back and has to resume.
+     */
+    public boolean touch(String clientId) {
+        Session session = sessions.get(clientId);
+        if (session == null) {
+            return false;
+        }
+        synchronized (session) {
+            if (session.suspendedAt > 0) {
+                return false;
+            }
+            session.lastSeen = System.currentTimeMillis();
+            return true;
+        }
+    }
+    
+    /**
+     * Brings a session back to life if the token matches. Also succeeds for a session the
+     * server had not given up on yet, since the client cannot tell the difference.
+     */
+    public boolean resume(String clientId, String token) {
+        Session session = sessions.get(clientId);
+        if (session == null || token == null || !MessageDigest.isEqual(
+                session.token.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8))) {
+            return false;
+        }
+        synchronized (session) {
+            if (session.expired) {
+                return false;
+            }
+            session.suspendedAt = 0;
+            session.lastSeen = System.currentTimeMillis();
+            return true;
+        }
+    }
+    
+    /**
+     * Ends a session for good. Returns true if it was suspended, i.e. the client was no
+     * longer among the ones being called back.
+     */
+    public boolean close(String clientId) {
+        Session session = clientId != null ? sessions.remove(clientId) : null;
+        if (session == null) {
+            return false;
+        }
+        synchronized (session) {
+            session.expired = true;
+            return session.suspendedAt > 0;
+        }
+    }
+    
+    public int size() {
+        return sessions.size();
+    }
+    
+    private void check() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+            Session session = entry.getValue();
+            boolean expire = false;
+            try {
+                synchronized (session) {
+                    if (session.suspendedAt == 0 && now - session.lastSeen > TIMEOUT_MILLIS) {
+                        session.suspendedAt = now;
+                        // Under the lock, so a resume cannot slip in before the client is dropped
+                        onSuspend.accept(entry.getKey());
+                    } else if (session.suspendedAt > 0 && now - session.suspendedAt > RESUME_MILLIS) {
+                        session.expired = true;
+                        expire = true;
+                    }
+                }
+                if (expire) {
+                    sessions.remove(entry.getKey(), session);
+                    onExpire.accept(entry.getKey());
+                }
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Error handling timed out session " + entry.getKey(), e);
+            }
+        }
+    }
+    
+    private static class Session {
+        final String token;
+        long lastSeen = System.currentTimeMillis();
+        long suspendedAt;
+        boolean expired;
+        
+        Session(String token) {
+            this.token = token;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,115 @@
+package com.chatapp.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decides which stored blobs are worth compressing and does the (de)compression.
+ * Blobs are written with plain deflate and marked in the metadata with
+ * {@code encoding=deflate}; anything else is stored as-is.
+ */
+public final class CompressionPolicy {
+    public static final String ENCODING_IDENTITY = "identity";
+    public static final String ENCODING_DEFLATE = "deflate";
+    
+    private static final int SAMPLE_CHUNK = 1024;
+    private static final int MIN_SIZE = 512;
+    private static final double KNOWN_TYPE_MAX_ENTROPY = 7.5;
+    private static final double UNKNOWN_TYPE_MAX_ENTROPY = 6.0;
+    private static final double MAX_USEFUL_RATIO = 0.9;
+    
+    private static final String[] COMPRESSIBLE_TYPES = {
+        "text/", "application/json", "application/xml", "application/javascript",
+        "application/x-ndjson", "application/csv", "application/x-log",
+        "audio/wav", "audio/x-wav", "audio/wave", "audio/pcm", "audio/l16", "image/bmp", "image/svg+xml"
+    };
+    
+    private static final String[] PRECOMPRESSED_TYPES = {
+        "image/jpeg", "image/png", "image/gif", "image/webp", "video/", "audio/mp3", "audio/mpeg",
+        "audio/ogg", "audio/aac", "application/zip", "application/gzip", "application/x-7z-compressed",
+        "application/x-rar-compressed", "application/pdf"
+    };
+    
+    private CompressionPolicy() {
+    }
+    
+    public static boolean shouldCompress(String contentType, byte[] data) {
+        if (data.length < MIN_SIZE) {
+            return false;
+        }
+        
+        String type = contentType != null ? contentType.toLowerCase(Locale.ROOT) : "";
+        if (matches(type, PRECOMPRESSED_TYPES)) {
+            return false;
+        }
+        
+        double maxEntropy = matches(type, COMPRESSIBLE_TYPES) ? KNOWN_TYPE_MAX_ENTROPY : UNKNOWN_TYPE_MAX_ENTROPY;
+        return sampleEntropy(data) <= maxEntropy;
+    }
+    
+    /**
+     * Returns the compressed form, or {@code null} when compression would not save enough to be worth it.
+     */
+    public static byte[] compress(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try (DeflaterOutputStream dos = new DeflaterOutputStream(out, deflater)) {
+            dos.write(data);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            deflater.end();
+        }
+        
+        byte[] compressed = out.toByteArray();
+        return compressed.length <= data.length * MAX_USEFUL_RATIO ? compressed : null;
+    }
+    
+    public static InputStream decompressing(InputStream in) {
+        return new InflaterInputStream(in);
+    }
+    
+    /**
+     * Shannon entropy in bits per byte over the start, middle and end of the data.
+     */
+    static double sampleEntropy(byte[] data) {
+        int[] counts = new int[256];
+        int sampled = 0;
+        
+        int chunk = Math.min(SAMPLE_CHUNK, data.length);
+        int[] offsets = { 0, Math.max(0, data.length / 2 - chunk / 2), data.length - chunk };
+        int previousEnd = 0;
+        for (int offset : offsets) {
+            int start = Math.max(offset, previousEnd);
+            int end = offset + chunk;
+            for (int i = start; i < end; i++) {
+                counts[data[i] & 0xFF]++;
+            }
+            sampled += Math.max(0, end - start);
+            previousEnd = Math.max(previousEnd, end);
+        }
+        
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / sampled;
+                entropy -= p * (Math.log(p) / Math.log(2));
+            }
+        }
+        return entropy;
+    }
+    
+    private static boolean matches(String type, String[] prefixes) {
+        for (String prefix : prefixes) {
+            if (type.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,309 @@
+package com.chatapp.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Byte-budgeted read cache for stored files.
+ *
+ * New entries land in a small LRU window. Entries pushed out of the window only
+ * enter the main region if the frequency sketch says they are accessed more often
+ * than the entries they would displace (W-TinyLFU admission), so a burst of
+ * one-off downloads cannot flush the files everybody keeps fetching.
+ *
+ * Files at or above the mapping threshold are held as read-only
+ * {@link java.nio.MappedByteBuffer} regions, so they live in the page cache
+ * instead of being copied onto the heap.
+ */
+public class FileCache {
+    private static final Logger LOGGER = Logger.getLogger(FileCache.class.getName());
+    
+    private static final int WINDOW_PERCENT = 1;
+    
+    private final long maxBytes;
+    private final long windowMaxBytes;
+    private final long mainMaxBytes;
+    private final long mappedThreshold;
+    
+    private final FrequencySketch sketch = new FrequencySketch(4096);
+    private final LinkedHashMap<String, ByteBuffer> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, ByteBuffer> main = new LinkedHashMap<>(64, 0.75f, true);
+    private long windowBytes;
+    private long mainBytes;
+    // Loads in progress by file ID; invalidating a file drops its entry so a stale load is not admitted
+    private final Map<String, Object> loading = new HashMap<>();
+    
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+    private final AtomicLong mappedReads = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    
+    public FileCache(long maxBytes, long mappedThreshold) {
+        this.maxBytes = Math.max(0, maxBytes);
+        this.windowMaxBytes = this.maxBytes * WINDOW_PERCENT / 100;
+        this.mainMaxBytes = this.maxBytes - windowMaxBytes;
+        this.mappedThreshold = mappedThreshold;
+        
+        LOGGER.info("File cache initialized with budget " + this.maxBytes + " bytes, mapping files >= " + mappedThreshold + " bytes");
+    }
+    
+    /**
+     * Returns a read-only view of the file, loading and possibly admitting it on a miss.
+     * Each caller gets its own buffer position, so the result can be consumed freely.
+     */
+    public ByteBuffer get(String fileId, Loader loader) throws IOException {
+        ByteBuffer cached;
+        Object load = new Object();
+        synchronized (this) {
+            sketch.increment(fileId);
+            cached = window.get(fileId);
+            if (cached == null) {
+                cached = main.get(fileId);
+            }
+            if (cached == null) {
+                loading.put(fileId, load);
+            }
+        }
+        
+        if (cached != null) {
+            hits.incrementAndGet();
+            bytesSaved.addAndGet(cached.capacity());
+            return cached.duplicate();
+        }
+        
+        misses.incrementAndGet();
+        ByteBuffer loaded;
+        try {
+            loaded = loader.load();
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                loading.remove(fileId, load);
+            }
+            throw e;
+        }
+        admit(fileId, load, loaded);
+        return loaded.duplicate();
+    }
+    
+    public synchronized void invalidate(String fileId) {
+        loading.remove(fileId);
+        ByteBuffer removed = window.remove(fileId);
+        if (removed != null) {
+            windowBytes -= removed.capacity();
+        }
+        removed = main.remove(fileId);
+        if (removed != null) {
+            mainBytes -= removed.capacity();
+        }
+    }
+    
+    /**
+     * Reads a file as-is, mapping it when it is large enough.
+     */
+    public ByteBuffer read(Path path) throws IOException {
+        long size = Files.size(path);
+        if (size >= mappedThreshold) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                mappedReads.incrementAndGet();
+                // The mapping stays valid after the channel is closed and is released when the buffer is collected
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+        }
+        return ByteBuffer.wrap(Files.readAllBytes(path)).asReadOnlyBuffer();
+    }
+    
+    private synchronized void admit(String fileId, Object load, ByteBuffer data) {
+        if (!loading.remove(fileId, load)) {
+            // Invalidated while loading, or overtaken by a newer load of the same file
+            return;
+        }
+        long size = data.capacity();
+        if (size > mainMaxBytes || window.containsKey(fileId) || main.containsKey(fileId)) {
+            return;
+        }
+        
+        window.put(fileId, data);
+        windowBytes += size;
+        
+        while (windowBytes > windowMaxBytes && !window.isEmpty()) {
+            Iterator<Map.Entry<String, ByteBuffer>> it = window.entrySet().iterator();
+            Map.Entry<String, ByteBuffer> eldest = it.next();
+            it.remove();
+            windowBytes -= eldest.getValue().capacity();
+            promote(eldest.getKey(), eldest.getValue());
+        }
+    }
+    
+    private void promote(String candidateId, ByteBuffer candidate) {
+        long size = candidate.capacity();
+        long needed = mainBytes + size - mainMaxBytes;
+        
+        if (needed > 0) {
+            int candidateFrequency = sketch.frequency(candidateId);
+            List<String> victims = new ArrayList<>();
+            long freed = 0;
+            
+            for (Map.Entry<String, ByteBuffer> entry : main.entrySet()) {
+                if (freed >= needed) {
+                    break;
+                }
+                if (sketch.frequency(entry.getKey()) >= candidateFrequency) {
+                    rejections.incrementAndGet();
+                    return;
+                }
+                victims.add(entry.getKey());
+                freed += entry.getValue().capacity();
+            }
+            
+            for (String victimId : victims) {
+                mainBytes -= main.remove(victimId).capacity();
+                evictions.incrementAndGet();
+            }
+        }
+        
+        main.put(candidateId, candidate);
+        mainBytes += size;
+    }
+    
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+    
+    public synchronized long getCachedBytes() {
+        return windowBytes + mainBytes;
+    }
+    
+    public synchronized int getEntryCount() {
+        return window.size() + main.size();
+    }
+    
+    public long getHitCount() {
+        return hits.get();
+    }
+    
+    public long getMissCount() {
+        return misses.get();
+    }
+    
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+    
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+    
+    public long getMappedReadCount() {
+        return mappedReads.get();
+    }
+    
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+    
+    public long getRejectionCount() {
+        return rejections.get();
+    }
+    
+    /**
+     * One line for the server status bar.
+     */
+    public String getSummary() {
+        return String.format("File cache: %d files, %d of %d MB, %.0f%% hits (%d/%d), %d evictions, %d rejected",
+                getEntryCount(), getCachedBytes() >> 20, maxBytes >> 20, getHitRate() * 100, getHitCount(),
+                getHitCount() + getMissCount(), getEvictionCount(), getRejectionCount());
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("FileCache[entries=%d, bytes=%d/%d, hitRate=%.1f%%, bytesSaved=%d, mapped=%d, evictions=%d, rejected=%d]",
+                getEntryCount(), getCachedBytes(), maxBytes, getHitRate() * 100, getBytesSaved(),
+                getMappedReadCount(), getEvictionCount(), getRejectionCount());
+    }
+    
+    public interface Loader {
+        ByteBuffer load() throws IOException;
+    }
+    
+    /**
+     * Count-min sketch with periodic halving so old popularity fades out.
+     */
+    private static class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = { 0x97cb3127, 0xc2b2ae35, 0x85ebca6b, 0x27d4eb2f };
+        
+        private final int[][] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+        
+        FrequencySketch(int width) {
+            int size = Integer.highestOneBit(Math.max(16, width - 1) << 1);
+            this.table = new int[DEPTH][size];
+            this.mask = size - 1;
+            this.sampleSize = size * 10;
+        }
+        
+        void increment(String key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int i = 0; i < DEPTH; i++) {
+                int index = indexOf(hash, i);
+                if (table[i][index] < MAX_COUNT) {
+                    table[i][index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+        
+        int frequency(String key) {
+            int hash = spread(key.hashCode());
+            int min = MAX_COUNT;
+            for (int i = 0; i < DEPTH; i++) {
+                min = Math.min(min, table[i][indexOf(hash, i)]);
+            }
+            return min;
+        }
+        
+        private int indexOf(int hash, int row) {
+            int h = (hash + SEEDS[row]) * SEEDS[row];
+            return (h ^ (h >>> 16)) & mask;
+        }
+        
+        private void reset() {
+            for (int[] row : table) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] >>>= 1;
+                }
+            }
+            additions /= 2;
+        }
+        
+        private static int spread(int h) {
+            h ^= h >>> 17;
+            h *= 0xed5ad4bb;
+            h ^= h >>> 11;
+            return h;
+        }
+    }
+}
\ No newline at end of file
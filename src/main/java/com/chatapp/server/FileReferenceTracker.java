@@ -0,0 +1,53 @@
+package com.chatapp.server;
+
+import com.chatapp.common.Message;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Counts how many messages in the server history point at each stored file.
+ */
+public class FileReferenceTracker {
+    private final Map<String, Integer> references = new ConcurrentHashMap<>();
+    
+    public void retain(Message message) {
+        String fileId = fileIdOf(message);
+        if (fileId != null) {
+            references.merge(fileId, 1, Integer::sum);
+        }
+    }
+    
+    /**
+     * Drops the message's reference and returns the file ID if nothing points at it any more.
+     */
+    public String release(Message message) {
+        String fileId = fileIdOf(message);
+        if (fileId == null) {
+            return null;
+        }
+        Integer remaining = references.computeIfPresent(fileId, (id, count) -> count > 1 ? count - 1 : null);
+        return remaining == null ? fileId : null;
+    }
+    
+    public boolean isReferenced(String fileId) {
+        return references.containsKey(fileId);
+    }
+    
+    public int getReferencedFileCount() {
+        return references.size();
+    }
+    
+    private static String fileIdOf(Message message) {
+        Message.FileAttachment attachment = message.getFileAttachment();
+        if (attachment != null) {
+            return attachment.getFileId();
+        }
+        Message.VoiceAttachment voiceAttachment = message.getVoiceAttachment();
+        if (voiceAttachment != null) {
+            return voiceAttachment.getFileId();
+        }
+        Message.VideoAttachment videoAttachment = message.getVideoAttachment();
+        return videoAttachment != null ? videoAttachment.getFileId() : null;
+    }
+}
\ No newline at end of file
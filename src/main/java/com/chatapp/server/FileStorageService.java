@@ -1,24 +1,69 @@
 package com.chatapp.server;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
+import java.util.zip.CRC32C;
 
 public class FileStorageService {
     private static final Logger LOGGER = Logger.getLogger(FileStorageService.class.getName());
     
+    private static final long DEFAULT_CACHE_BYTES = Long.getLong("chatapp.fileCache.maxBytes", 64L * 1024 * 1024);
+    private static final long DEFAULT_MAPPED_THRESHOLD = Long.getLong("chatapp.fileCache.mapThreshold", 1024L * 1024);
+    private static final BlobWriter.DurabilityMode DEFAULT_DURABILITY =
+            BlobWriter.DurabilityMode.fromString(System.getProperty("chatapp.storage.durability", "GROUP_COMMIT"));
+    
+    private static final long USER_QUOTA_BYTES = Long.getLong("chatapp.quota.userBytes", 1024L * 1024 * 1024);
+    private static final long TOTAL_QUOTA_BYTES = Long.getLong("chatapp.quota.totalBytes", 0);
+    private static final long WRITE_TIMEOUT_SECONDS = Long.getLong("chatapp.storage.writeTimeoutSeconds", 60);
+    
+    public static final String UNKNOWN_OWNER = "unknown";
+    private static final String UPLOAD_DIRECTORY = "uploads";
+    
+    private static final String PREVIEW_INFIX = ".preview-";
+    private static final String RENDITION_INFIX = ".rendition-";
+    private static final String CHECKSUM_PREFIX = "crc32c:";
+    
     private final String storageDirectory;
+    private final FileCache cache;
+    private final BlobWriter writer;
+    private final AtomicLong checksumFailures = new AtomicLong();
+    private final StorageAccounting accounting = new StorageAccounting(USER_QUOTA_BYTES, TOTAL_QUOTA_BYTES);
     
     public FileStorageService(String storageDirectory) {
+        this(storageDirectory, DEFAULT_CACHE_BYTES, DEFAULT_DURABILITY);
+    }
+    
+    public FileStorageService(String storageDirectory, long cacheBytes) {
+        this(storageDirectory, cacheBytes, DEFAULT_DURABILITY);
+    }
+    
+    public FileStorageService(String storageDirectory, long cacheBytes, BlobWriter.DurabilityMode durabilityMode) {
         this.storageDirectory = storageDirectory;
+        this.cache = new FileCache(cacheBytes, DEFAULT_MAPPED_THRESHOLD);
+        this.writer = new BlobWriter(durabilityMode);
         
         File directory = new File(storageDirectory);
         if (!directory.exists()) {
@@ -28,10 +73,86 @@ public class FileStorageService {
             }
         }
         
+        rebuildUsage();
+        
         LOGGER.info("File storage service initialized with directory: " + storageDirectory);
     }
     
+    /**
+     * Loads the usage counters from the stored metadata. This is the only full walk of the store;
+     * from here on the counters are kept current by store and delete.
+     */
+    private void rebuildUsage() {
+        for (String subDir : listSubdirectories()) {
+            Map<String, String> owners = new HashMap<>();
+            for (String fileId : listMetadataIds(subDir)) {
+                try {
+                    Map<String, String> metadata = readMetadata(fileId);
+                    if (metadata != null) {
+                        accounting.add(ownerOf(metadata), storedSizeOf(fileId, metadata));
+                        owners.put(fileId, ownerOf(metadata));
+                    }
+                } catch (IOException | NumberFormatException e) {
+                    LOGGER.log(Level.WARNING, "Could not account for file: " + fileId, e);
+                }
+            }
+            
+            // Renditions are charged to whoever owns the original
+            File[] renditions = new File(storageDirectory, subDir).listFiles((dir, name) ->
+                    name.contains(RENDITION_INFIX) && !name.endsWith(".tmp"));
+            if (renditions != null) {
+                for (File rendition : renditions) {
+                    String owner = owners.get(rendition.getName().substring(0, rendition.getName().indexOf(RENDITION_INFIX)));
+                    if (owner != null) {
+                        accounting.charge(owner, rendition.length());
+                    }
+                }
+            }
+        }
+        accounting.logSummary();
+    }
+    
+    private static String ownerOf(Map<String, String> metadata) {
+        return metadata.getOrDefault("owner", UNKNOWN_OWNER);
+    }
+    
+    private long storedSizeOf(String fileId, Map<String, String> metadata) {
+        String storedSize = metadata.get("storedSize");
+        if (storedSize != null) {
+            return Long.parseLong(storedSize);
+        }
+        File file = getFilePath(fileId).toFile();
+        return file.exists() ? file.length() : 0;
+    }
+    
     public String storeFile(String fileData, String fileName, String contentType) throws IOException {
+        return storeFile(UNKNOWN_OWNER, fileData, fileName, contentType);
+    }
+    
+    public String storeFile(String owner, String fileData, String fileName, String contentType) throws IOException {
+        return awaitStored(storeFileAsync(owner, Base64.getDecoder().decode(fileData), fileName, contentType));
+    }
+    
+    public String storeFile(String owner, byte[] decodedData, String fileName, String contentType) throws IOException {
+        return awaitStored(storeFileAsync(owner, decodedData, fileName, contentType));
+    }
+    
+    /**
+     * Checks the owner's quota, compresses and queues the file for writing; the future completes
+     * with the file ID once it is durable.
+     */
+    public CompletableFuture<String> storeFileAsync(String owner, byte[] decodedData, String fileName, String contentType) throws IOException {
+        long reserved = decodedData.length;
+        accounting.reserve(owner, reserved);
+        try {
+            return writeFile(owner, reserved, decodedData, fileName, contentType);
+        } catch (IOException | RuntimeException e) {
+            accounting.release(owner, reserved);
+            throw e;
+        }
+    }
+    
+    private CompletableFuture<String> writeFile(String owner, long reserved, byte[] decodedData, String fileName, String contentType) throws IOException {
         String fileId = UUID.randomUUID().toString();
         
         String subDir = fileId.substring(0, 2);
@@ -43,62 +164,239 @@ public class FileStorageService {
             }
         }
         
-        byte[] decodedData = Base64.getDecoder().decode(fileData);
+        byte[] storedData = decodedData;
+        String encoding = CompressionPolicy.ENCODING_IDENTITY;
+        if (CompressionPolicy.shouldCompress(contentType, decodedData)) {
+            byte[] compressed = CompressionPolicy.compress(decodedData);
+            if (compressed != null) {
+                storedData = compressed;
+                encoding = CompressionPolicy.ENCODING_DEFLATE;
+            }
+        }
         
         String metadataPath = storageDirectory + File.separator + subDir + File.separator + fileId + ".meta";
-        String metadata = "fileName=" + fileName + "\n" +
-                          "contentType=" + contentType + "\n" +
-                          "size=" + decodedData.length;
-        Files.write(Paths.get(metadataPath), metadata.getBytes());
-        
+        String metadata = buildMetadata(fileName, contentType, owner, decodedData.length, encoding, storedData.length,
+                checksumOf(ByteBuffer.wrap(storedData)));
         String filePath = storageDirectory + File.separator + subDir + File.separator + fileId;
-        try (FileOutputStream fos = new FileOutputStream(filePath)) {
-            fos.write(decodedData);
-        }
         
-        LOGGER.info("File stored: " + fileName + " with ID: " + fileId);
-        return fileId;
+        long originalSize = decodedData.length;
+        long storedSize = storedData.length;
+        return writer.submit(Paths.get(filePath), storedData, Paths.get(metadataPath), metadata.getBytes())
+                .whenComplete((ignored, error) -> {
+                    if (error != null) {
+                        accounting.release(owner, reserved);
+                    } else {
+                        accounting.settle(owner, reserved, storedSize);
+                    }
+                })
+                .thenApply(ignored -> {
+                    LOGGER.info("File stored: " + fileName + " with ID: " + fileId +
+                            (storedSize != originalSize ? " (compressed " + originalSize + " -> " + storedSize + " bytes)" : ""));
+                    return fileId;
+                });
+    }
+    
+    /**
+     * Stores a finished upload by moving its file into place instead of reading and rewriting
+     * it; the content is kept as uploaded. The owner must already hold a reservation of
+     * {@code reserved} bytes, which is settled once the file is stored and left untouched if
+     * storing fails, together with the source file.
+     */
+    public String storeUpload(String owner, long reserved, Path source, String checksum, String fileName, String contentType) throws IOException {
+        String fileId = UUID.randomUUID().toString();
+        Path filePath = getFilePath(fileId);
+        Files.createDirectories(filePath.getParent());
+        
+        long size = Files.size(source);
+        String metadata = buildMetadata(fileName, contentType, owner, size, CompressionPolicy.ENCODING_IDENTITY, size, checksum);
+        CompletableFuture<String> stored = writer.submitMove(filePath, source, filePath.resolveSibling(fileId + ".meta"), metadata.getBytes())
+                .thenApply(ignored -> {
+                    accounting.settle(owner, reserved, size);
+                    LOGGER.info("File stored: " + fileName + " with ID: " + fileId + " (moved from upload)");
+                    return fileId;
+                });
+        return awaitStored(stored);
+    }
+    
+    private static String buildMetadata(String fileName, String contentType, String owner, long size, String encoding,
+            long storedSize, String checksum) {
+        double ratio = size == 0 ? 1.0 : (double) storedSize / size;
+        return "fileName=" + fileName + "\n" +
+               "contentType=" + contentType + "\n" +
+               "owner=" + owner + "\n" +
+               "size=" + size + "\n" +
+               "encoding=" + encoding + "\n" +
+               "storedSize=" + storedSize + "\n" +
+               "compressionRatio=" + String.format(Locale.ROOT, "%.3f", ratio) + "\n" +
+               "checksum=" + checksum;
+    }
+    
+    private static String awaitStored(CompletableFuture<String> future) throws IOException {
+        try {
+            return future.get(WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            // The write may still land later; the sweeper removes it once it is an orphan
+            throw new IOException("Timed out after " + WRITE_TIMEOUT_SECONDS + " s waiting for the file to be stored", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while storing file", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to store file", e.getCause());
+        }
     }
     
     public byte[] getFileContent(String fileId) throws IOException {
-        String subDir = fileId.substring(0, 2);
-        String filePath = storageDirectory + File.separator + subDir + File.separator + fileId;
+        ByteBuffer buffer = getFileBuffer(fileId);
+        if (buffer == null) {
+            return null;
+        }
         
-        File file = new File(filePath);
+        byte[] content = new byte[buffer.remaining()];
+        buffer.get(content);
+        return content;
+    }
+    
+    /**
+     * The decoded content of a stored file, or null if there is none. A cache hit touches
+     * neither the file nor its metadata; both are only read when the file is loaded.
+     */
+    public ByteBuffer getFileBuffer(String fileId) throws IOException {
+        try {
+            return cache.get(fileId, () -> load(fileId));
+        } catch (NoSuchFileException e) {
+            LOGGER.warning("File not found: " + fileId);
+            return null;
+        }
+    }
+    
+    private ByteBuffer load(String fileId) throws IOException {
+        File file = getFilePath(fileId).toFile();
+        if (!file.exists()) {
+            throw new NoSuchFileException(fileId);
+        }
+        
+        Map<String, String> metadata = readMetadata(fileId);
+        String expectedChecksum = metadata != null ? metadata.get("checksum") : null;
+        if (metadata != null && CompressionPolicy.ENCODING_DEFLATE.equals(metadata.get("encoding"))) {
+            int size = Integer.parseInt(metadata.getOrDefault("size", "0"));
+            return inflate(fileId, file, size, expectedChecksum);
+        }
+        return verify(fileId, cache.read(file.toPath()), expectedChecksum);
+    }
+    
+    public InputStream openFileStream(String fileId) throws IOException {
+        String subDir = fileId.substring(0, 2);
+        File file = new File(storageDirectory + File.separator + subDir + File.separator + fileId);
         if (!file.exists()) {
             LOGGER.warning("File not found: " + fileId);
             return null;
         }
         
-        return Files.readAllBytes(file.toPath());
+        InputStream in = Files.newInputStream(file.toPath());
+        Map<String, String> metadata = readMetadata(fileId);
+        if (metadata != null && CompressionPolicy.ENCODING_DEFLATE.equals(metadata.get("encoding"))) {
+            return CompressionPolicy.decompressing(in);
+        }
+        return in;
+    }
+    
+    private ByteBuffer inflate(String fileId, File file, int size, String expectedChecksum) throws IOException {
+        byte[] stored = Files.readAllBytes(file.toPath());
+        verify(fileId, ByteBuffer.wrap(stored), expectedChecksum);
+        
+        byte[] content = new byte[size];
+        try (InputStream in = CompressionPolicy.decompressing(new ByteArrayInputStream(stored))) {
+            int offset = 0;
+            while (offset < size) {
+                int read = in.read(content, offset, size - offset);
+                if (read < 0) {
+                    throw new IOException("Compressed file is truncated: " + file.getName());
+                }
+                offset += read;
+            }
+        }
+        return ByteBuffer.wrap(content).asReadOnlyBuffer();
+    }
+    
+    /**
+     * Checks the stored bytes against the checksum recorded at store time. Files stored before
+     * checksums were recorded have none and are accepted as-is.
+     */
+    private ByteBuffer verify(String fileId, ByteBuffer stored, String expectedChecksum) throws IOException {
+        if (expectedChecksum != null && !expectedChecksum.equals(checksumOf(stored))) {
+            checksumFailures.incrementAndGet();
+            LOGGER.severe("Checksum mismatch for file: " + fileId);
+            throw new IOException("Stored file is corrupt: " + fileId);
+        }
+        return stored;
+    }
+    
+    public static String checksumOf(ByteBuffer data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data.duplicate());
+        return formatChecksum(crc.getValue());
+    }
+    
+    public static String formatChecksum(long value) {
+        return CHECKSUM_PREFIX + String.format("%08x", value);
+    }
+    
+    public long getChecksumFailures() {
+        return checksumFailures.get();
+    }
+    
+    public StorageAccounting getAccounting() {
+        return accounting;
+    }
+    
+    public FileCache getCache() {
+        return cache;
+    }
+    
+    public BlobWriter getWriter() {
+        return writer;
+    }
+    
+    public void close() {
+        writer.close();
+        LOGGER.info("File storage closed. " + cache);
     }
     
     public String[] getFileMetadata(String fileId) throws IOException {
+        Map<String, String> metadata = readMetadata(fileId);
+        if (metadata == null) {
+            LOGGER.warning("Metadata not found for file: " + fileId);
+            return null;
+        }
+        
+        return new String[] {
+            metadata.getOrDefault("fileName", ""),
+            metadata.getOrDefault("contentType", ""),
+            metadata.getOrDefault("size", "0")
+        };
+    }
+    
+    public Map<String, String> readMetadata(String fileId) throws IOException {
         String subDir = fileId.substring(0, 2);
         String metadataPath = storageDirectory + File.separator + subDir + File.separator + fileId + ".meta";
         
         File metadataFile = new File(metadataPath);
         if (!metadataFile.exists()) {
-            LOGGER.warning("Metadata not found for file: " + fileId);
             return null;
         }
         
+        Map<String, String> metadata = new HashMap<>();
         List<String> lines = Files.readAllLines(Paths.get(metadataPath));
-        String fileName = "";
-        String contentType = "";
-        String size = "0";
-        
         for (String line : lines) {
-            if (line.startsWith("fileName=")) {
-                fileName = line.substring("fileName=".length());
-            } else if (line.startsWith("contentType=")) {
-                contentType = line.substring("contentType=".length());
-            } else if (line.startsWith("size=")) {
-                size = line.substring("size=".length());
+            int separator = line.indexOf('=');
+            if (separator > 0) {
+                metadata.put(line.substring(0, separator), line.substring(separator + 1));
             }
         }
-        
-        return new String[] { fileName, contentType, size };
+        return metadata;
     }
     
     public boolean fileExists(String fileId) {
@@ -113,6 +411,152 @@ public class FileStorageService {
         return file.exists();
     }
     
+    /**
+     * Removes a blob and its metadata. Returns the number of bytes freed on disk, or -1 if the file did not exist.
+     */
+    public long deleteFile(String fileId) throws IOException {
+        if (fileId == null || fileId.length() < 2) {
+            return -1;
+        }
+        
+        String subDir = fileId.substring(0, 2);
+        Path filePath = Paths.get(storageDirectory, subDir, fileId);
+        Path metadataPath = Paths.get(storageDirectory, subDir, fileId + ".meta");
+        
+        cache.invalidate(fileId);
+        
+        Map<String, String> metadata = readMetadata(fileId);
+        long freed = Files.exists(filePath) ? Files.size(filePath) : -1;
+        Files.deleteIfExists(filePath);
+        Files.deleteIfExists(metadataPath);
+        
+        if (metadata != null) {
+            try {
+                accounting.remove(ownerOf(metadata), Long.parseLong(metadata.getOrDefault("storedSize", String.valueOf(Math.max(freed, 0)))));
+            } catch (NumberFormatException e) {
+                accounting.remove(ownerOf(metadata), Math.max(freed, 0));
+            }
+        }
+        
+        File[] previews = new File(storageDirectory, subDir).listFiles((dir, name) ->
+                name.startsWith(fileId + PREVIEW_INFIX) || name.startsWith(fileId + RENDITION_INFIX));
+        if (previews != null) {
+            for (File preview : previews) {
+                cache.invalidate(preview.getName());
+                long length = preview.length();
+                if (Files.deleteIfExists(preview.toPath()) && metadata != null
+                        && preview.getName().startsWith(fileId + RENDITION_INFIX) && !preview.getName().endsWith(".tmp")) {
+                    accounting.charge(ownerOf(metadata), -length);
+                }
+            }
+        }
+        
+        if (freed >= 0) {
+            LOGGER.info("File deleted: " + fileId + " (" + freed + " bytes)");
+        }
+        return freed;
+    }
+    
+    public List<String> listSubdirectories() {
+        List<String> subDirs = new ArrayList<>();
+        File[] entries = new File(storageDirectory).listFiles(entry -> entry.isDirectory() && !entry.getName().equals(UPLOAD_DIRECTORY));
+        if (entries != null) {
+            for (File entry : entries) {
+                subDirs.add(entry.getName());
+            }
+        }
+        Collections.sort(subDirs);
+        return subDirs;
+    }
+    
+    public List<String> listFileIds(String subDir) {
+        List<String> fileIds = new ArrayList<>();
+        File[] entries = new File(storageDirectory, subDir).listFiles();
+        if (entries != null) {
+            for (File entry : entries) {
+                String name = entry.getName();
+                // Blob files are bare UUIDs; metadata, previews and temporary files all carry a suffix
+                if (entry.isFile() && name.indexOf('.') < 0) {
+                    fileIds.add(name);
+                }
+            }
+        }
+        return fileIds;
+    }
+    
+    public void storePreview(String fileId, int size, byte[] data) throws IOException {
+        Files.write(previewPath(fileId, size), data);
+    }
+    
+    public byte[] getPreview(String fileId, int size) throws IOException {
+        Path path = previewPath(fileId, size);
+        return Files.exists(path) ? Files.readAllBytes(path) : null;
+    }
+    
+    private Path previewPath(String fileId, int size) {
+        return Paths.get(storageDirectory, fileId.substring(0, 2), fileId + PREVIEW_INFIX + size + ".jpg");
+    }
+    
+    /**
+     * ID under which a rendition of a file can be read like any stored file, through
+     * {@link #getFileBuffer(String)}. Renditions carry no metadata of their own and are
+     * removed together with the original.
+     */
+    public String renditionId(String fileId, String name) {
+        return fileId + RENDITION_INFIX + name;
+    }
+    
+    public boolean hasRendition(String fileId, String name) {
+        return Files.exists(getFilePath(renditionId(fileId, name)));
+    }
+    
+    /**
+     * Writes a rendition under a temporary name first, so readers never see a partial one,
+     * and charges it to the owner of the original.
+     */
+    public void storeRendition(String fileId, String name, byte[] data) throws IOException {
+        Path path = getFilePath(renditionId(fileId, name));
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temporary, data);
+        long replaced = Files.exists(path) ? Files.size(path) : 0;
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        cache.invalidate(renditionId(fileId, name));
+        
+        Map<String, String> metadata = readMetadata(fileId);
+        accounting.charge(metadata != null ? ownerOf(metadata) : UNKNOWN_OWNER, data.length - replaced);
+    }
+    
+    public List<String> listMetadataIds(String subDir) {
+        List<String> fileIds = new ArrayList<>();
+        String[] names = new File(storageDirectory, subDir).list((dir, name) -> name.endsWith(".meta"));
+        if (names != null) {
+            for (String name : names) {
+                fileIds.add(name.substring(0, name.length() - ".meta".length()));
+            }
+        }
+        return fileIds;
+    }
+    
+    /**
+     * Directory for in-progress upload sessions; kept out of {@link #listSubdirectories()}.
+     */
+    public Path getUploadDirectory() {
+        File directory = new File(storageDirectory, UPLOAD_DIRECTORY);
+        if (!directory.exists() && !directory.mkdirs()) {
+            LOGGER.log(Level.SEVERE, "Failed to create upload directory: " + directory);
+        }
+        return directory.toPath();
+    }
+    
+    public Path getFilePath(String fileId) {
+        return Paths.get(storageDirectory, fileId.substring(0, 2), fileId);
+    }
+    
+    public long getLastModified(String fileId) {
+        String subDir = fileId.substring(0, 2);
+        return new File(storageDirectory + File.separator + subDir + File.separator + fileId).lastModified();
+    }
+    
     public String getOriginalFileName(String fileId) throws IOException {
         String[] metadata = getFileMetadata(fileId);
         return metadata != null ? metadata[0] : null;
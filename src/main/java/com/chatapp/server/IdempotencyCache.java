@@ -0,0 +1,81 @@
+package com.chatapp.server;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers the history sequence assigned to recently accepted message IDs, so a client
+ * resending a message whose acknowledgement it never got is answered with the original
+ * sequence instead of the message being posted twice. Bounded by entry count, oldest
+ * first out; the bound only has to cover how far back a client may still be retrying.
+ *
+ * A message ID is claimed before the message is processed, so a resend arriving while the
+ * original call is still running waits for its outcome instead of being processed as well.
+ */
+public class IdempotencyCache {
+    private static final int DEFAULT_MAX_ENTRIES = Integer.getInteger("chatapp.idempotency.maxEntries", 10_000);
+    
+    private final int maxEntries;
+    private final LinkedHashMap<String, Long> sequences;
+    private final Set<String> inFlight = new HashSet<>();
+    private long duplicates;
+    
+    public IdempotencyCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+    
+    public IdempotencyCache(int maxEntries) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.sequences = new LinkedHashMap<String, Long>(256, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > IdempotencyCache.this.maxEntries;
+            }
+        };
+    }
+    
+    /**
+     * Returns the sequence a message with this ID was accepted under, or null if it is new,
+     * in which case the caller now owns the ID and must {@link #record} or {@link #release}
+     * it. If another call holds the ID, waits until that one is done.
+     */
+    public synchronized Long claim(String messageId) throws InterruptedException {
+        while (inFlight.contains(messageId)) {
+            wait();
+        }
+        Long sequence = sequences.get(messageId);
+        if (sequence != null) {
+            duplicates++;
+            return sequence;
+        }
+        inFlight.add(messageId);
+        return null;
+    }
+    
+    public synchronized void record(String messageId, long sequence) {
+        sequences.put(messageId, sequence);
+        if (inFlight.remove(messageId)) {
+            notifyAll();
+        }
+    }
+    
+    /**
+     * Gives up a claim that was not recorded, e.g. because the message was rejected, so a
+     * retry is processed afresh. Does nothing once the ID has been recorded.
+     */
+    public synchronized void release(String messageId) {
+        if (inFlight.remove(messageId)) {
+            notifyAll();
+        }
+    }
+    
+    public synchronized int size() {
+        return sequences.size();
+    }
+    
+    public synchronized long getDuplicateCount() {
+        return duplicates;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,175 @@
+package com.chatapp.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+/**
+ * Periodically re-reads every stored blob and compares it with the checksum in its
+ * metadata. Reads are paced to a fixed number of bytes per second so a pass over a
+ * large store never saturates the disk.
+ */
+public class IntegrityScrubber {
+    private static final Logger LOGGER = Logger.getLogger(IntegrityScrubber.class.getName());
+    
+    private static final long BYTES_PER_SECOND = Long.getLong("chatapp.scrub.bytesPerSecond", 4L * 1024 * 1024);
+    private static final long PASS_INTERVAL_MINUTES = Long.getLong("chatapp.scrub.intervalMinutes", 60);
+    private static final int CHUNK_SIZE = 64 * 1024;
+    
+    private final FileStorageService fileStorage;
+    private final ScheduledExecutorService scheduler;
+    
+    private final Set<String> corruptFiles = ConcurrentHashMap.newKeySet();
+    private final Set<String> missingFiles = ConcurrentHashMap.newKeySet();
+    
+    private final AtomicLong passes = new AtomicLong();
+    private final AtomicLong filesVerified = new AtomicLong();
+    private final AtomicLong bytesVerified = new AtomicLong();
+    
+    private long windowStart;
+    private long windowBytes;
+    
+    public IntegrityScrubber(FileStorageService fileStorage) {
+        this.fileStorage = fileStorage;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "integrity-scrubber");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+    
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::runPass, 1, PASS_INTERVAL_MINUTES, TimeUnit.MINUTES);
+        LOGGER.info("Integrity scrubber started (" + BYTES_PER_SECOND + " bytes/s, pass every " + PASS_INTERVAL_MINUTES + " min)");
+    }
+    
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+    
+    private void runPass() {
+        long started = System.currentTimeMillis();
+        long verifiedBefore = filesVerified.get();
+        windowStart = System.nanoTime();
+        windowBytes = 0;
+        
+        try {
+            for (String subDir : fileStorage.listSubdirectories()) {
+                for (String fileId : fileStorage.listMetadataIds(subDir)) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    scrub(fileId);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Integrity scrub failed", e);
+            return;
+        }
+        
+        passes.incrementAndGet();
+        LOGGER.info("Integrity scrub finished: " + (filesVerified.get() - verifiedBefore) + " files in " +
+                (System.currentTimeMillis() - started) / 1000 + "s, " + corruptFiles.size() + " corrupt, " +
+                missingFiles.size() + " missing");
+    }
+    
+    private void scrub(String fileId) throws IOException, InterruptedException {
+        Map<String, String> metadata = fileStorage.readMetadata(fileId);
+        if (metadata == null) {
+            // Deleted since the directory was listed
+            forget(fileId);
+            return;
+        }
+        
+        Path path = fileStorage.getFilePath(fileId);
+        String expected = metadata.get("checksum");
+        CRC32C crc = new CRC32C();
+        byte[] buffer = new byte[CHUNK_SIZE];
+        
+        try (InputStream in = Files.newInputStream(path)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+                bytesVerified.addAndGet(read);
+                throttle(read);
+            }
+        } catch (NoSuchFileException e) {
+            if (fileStorage.readMetadata(fileId) != null) {
+                if (missingFiles.add(fileId)) {
+                    LOGGER.warning("Stored file is missing its data: " + fileId);
+                }
+            }
+            return;
+        }
+        
+        missingFiles.remove(fileId);
+        filesVerified.incrementAndGet();
+        
+        if (expected == null) {
+            return;
+        }
+        if (!expected.equals(FileStorageService.formatChecksum(crc.getValue()))) {
+            if (corruptFiles.add(fileId)) {
+                LOGGER.severe("Integrity scrub found corrupt file: " + fileId);
+            }
+        } else {
+            corruptFiles.remove(fileId);
+        }
+    }
+    
+    private void forget(String fileId) {
+        corruptFiles.remove(fileId);
+        missingFiles.remove(fileId);
+    }
+    
+    private void throttle(int bytes) throws InterruptedException {
+        windowBytes += bytes;
+        long elapsedNanos = System.nanoTime() - windowStart;
+        long allowedNanos = windowBytes * TimeUnit.SECONDS.toNanos(1) / BYTES_PER_SECOND;
+        if (allowedNanos > elapsedNanos) {
+            TimeUnit.NANOSECONDS.sleep(allowedNanos - elapsedNanos);
+        }
+        if (elapsedNanos > TimeUnit.SECONDS.toNanos(10)) {
+            // Restart the window so idle time between files doesn't turn into a burst credit
+            windowStart = System.nanoTime();
+            windowBytes = 0;
+        }
+    }
+    
+    public Set<String> getCorruptFiles() {
+        return Collections.unmodifiableSet(corruptFiles);
+    }
+    
+    public Set<String> getMissingFiles() {
+        return Collections.unmodifiableSet(missingFiles);
+    }
+    
+    public long getPassCount() {
+        return passes.get();
+    }
+    
+    public long getFilesVerified() {
+        return filesVerified.get();
+    }
+    
+    public long getBytesVerified() {
+        return bytesVerified.get();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,122 @@
+package com.chatapp.server;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Running byte counters per owner and for the whole store, so quota checks never
+ * have to walk the storage directory.
+ *
+ * Uploads reserve their size before any data is written; the reservation is then
+ * either settled to the bytes actually stored or released if the write fails.
+ */
+public class StorageAccounting {
+    private static final Logger LOGGER = Logger.getLogger(StorageAccounting.class.getName());
+    
+    private final long userQuotaBytes;
+    private final long totalQuotaBytes;
+    
+    private final Map<String, AtomicLong> usageByOwner = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> filesByOwner = new ConcurrentHashMap<>();
+    private final AtomicLong totalUsage = new AtomicLong();
+    
+    public StorageAccounting(long userQuotaBytes, long totalQuotaBytes) {
+        this.userQuotaBytes = userQuotaBytes > 0 ? userQuotaBytes : Long.MAX_VALUE;
+        this.totalQuotaBytes = totalQuotaBytes > 0 ? totalQuotaBytes : Long.MAX_VALUE;
+    }
+    
+    /**
+     * Reserves space for an upload, or throws if it would push the owner or the store over quota.
+     */
+    public synchronized void reserve(String owner, long bytes) throws QuotaExceededException {
+        AtomicLong ownerUsage = usageByOwner.computeIfAbsent(owner, o -> new AtomicLong());
+        if (ownerUsage.get() + bytes > userQuotaBytes) {
+            throw new QuotaExceededException("Storage quota exceeded for " + owner + ": " +
+                    ownerUsage.get() + " of " + userQuotaBytes + " bytes used");
+        }
+        if (totalUsage.get() + bytes > totalQuotaBytes) {
+            throw new QuotaExceededException("Server storage is full: " +
+                    totalUsage.get() + " of " + totalQuotaBytes + " bytes used");
+        }
+        ownerUsage.addAndGet(bytes);
+        totalUsage.addAndGet(bytes);
+    }
+    
+    /**
+     * Replaces a reservation with the number of bytes that actually ended up on disk.
+     */
+    public void settle(String owner, long reservedBytes, long storedBytes) {
+        adjust(owner, storedBytes - reservedBytes);
+        filesByOwner.computeIfAbsent(owner, o -> new AtomicLong()).incrementAndGet();
+    }
+    
+    public void release(String owner, long bytes) {
+        adjust(owner, -bytes);
+    }
+    
+    /**
+     * Accounts for a file that already exists on disk, used when rebuilding the counters at startup.
+     */
+    public void add(String owner, long storedBytes) {
+        adjust(owner, storedBytes);
+        filesByOwner.computeIfAbsent(owner, o -> new AtomicLong()).incrementAndGet();
+    }
+    
+    /**
+     * Charges (or, if negative, credits) bytes that belong to one of the owner's existing
+     * files, such as its renditions, without counting another file.
+     */
+    public void charge(String owner, long bytes) {
+        adjust(owner, bytes);
+    }
+    
+    public void remove(String owner, long storedBytes) {
+        adjust(owner, -storedBytes);
+        AtomicLong files = filesByOwner.get(owner);
+        if (files != null) {
+            files.decrementAndGet();
+        }
+    }
+    
+    private void adjust(String owner, long delta) {
+        usageByOwner.computeIfAbsent(owner, o -> new AtomicLong()).addAndGet(delta);
+        totalUsage.addAndGet(delta);
+    }
+    
+    public long getUsage(String owner) {
+        AtomicLong usage = usageByOwner.get(owner);
+        return usage != null ? usage.get() : 0;
+    }
+    
+    public long getFileCount(String owner) {
+        AtomicLong files = filesByOwner.get(owner);
+        return files != null ? files.get() : 0;
+    }
+    
+    public long getTotalUsage() {
+        return totalUsage.get();
+    }
+    
+    public long getUserQuotaBytes() {
+        return userQuotaBytes;
+    }
+    
+    public long getTotalQuotaBytes() {
+        return totalQuotaBytes;
+    }
+    
+    public void logSummary() {
+        LOGGER.info("Storage usage: " + totalUsage.get() + " bytes across " + usageByOwner.size() + " owners");
+    }
+    
+    public static class QuotaExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+        
+        public QuotaExceededException(String message) {
+            super(message);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,205 @@
+package com.chatapp.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Background garbage collector for the file store.
+ *
+ * Files released by history eviction are checked first, but like any other blob
+ * they are only deleted once past the retention age for their content type, since
+ * clients may still show them from their local history. Besides that, every tick
+ * scans a single storage subdirectory and removes blobs that no message references
+ * once they are older than the orphan grace period, plus blobs past their retention
+ * age. References only cover the in-memory history, so only blobs stored since this
+ * server started can be recognised as orphans; older ones are left to the retention
+ * rules. Each tick deletes at most a fixed number of files so a large backlog is
+ * reclaimed gradually instead of in one I/O burst.
+ */
+public class StorageSweeper {
+    private static final Logger LOGGER = Logger.getLogger(StorageSweeper.class.getName());
+    
+    private static final long TICK_SECONDS = Long.getLong("chatapp.gc.intervalSeconds", 5);
+    private static final int MAX_DELETES_PER_TICK = Integer.getInteger("chatapp.gc.maxDeletesPerTick", 20);
+    private static final long ORPHAN_GRACE_MILLIS = TimeUnit.HOURS.toMillis(Long.getLong("chatapp.gc.orphanGraceHours", 24));
+    private static final String RETENTION_RULES = System.getProperty("chatapp.retention", "");
+    
+    private final FileStorageService fileStorage;
+    private final FileReferenceTracker references;
+    private final Map<String, Long> retentionByType;
+    private final Queue<String> releasedFiles = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService scheduler;
+    private final long startedAt = System.currentTimeMillis();
+    
+    private List<String> subDirs = new ArrayList<>();
+    private int subDirCursor;
+    
+    private final AtomicLong filesDeleted = new AtomicLong();
+    private final AtomicLong bytesReclaimed = new AtomicLong();
+    private final AtomicLong filesScanned = new AtomicLong();
+    
+    public StorageSweeper(FileStorageService fileStorage, FileReferenceTracker references) {
+        this.fileStorage = fileStorage;
+        this.references = references;
+        this.retentionByType = parseRetentionRules(RETENTION_RULES);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "storage-sweeper");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+    
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::tick, TICK_SECONDS, TICK_SECONDS, TimeUnit.SECONDS);
+        LOGGER.info("Storage sweeper started (every " + TICK_SECONDS + "s, max " + MAX_DELETES_PER_TICK +
+                " deletes per tick, retention " + retentionByType + ")");
+    }
+    
+    public void stop() {
+        scheduler.shutdownNow();
+        LOGGER.info("Storage sweeper stopped after reclaiming " + bytesReclaimed.get() + " bytes in " + filesDeleted.get() + " files");
+    }
+    
+    /**
+     * Queues a file that just lost its last reference so the next tick reclaims it if it
+     * is already past its retention age. Otherwise the regular scan picks it up later.
+     */
+    public void fileReleased(String fileId) {
+        releasedFiles.add(fileId);
+    }
+    
+    private void tick() {
+        try {
+            int budget = MAX_DELETES_PER_TICK;
+            
+            String fileId;
+            long now = System.currentTimeMillis();
+            while (budget > 0 && (fileId = releasedFiles.poll()) != null) {
+                if (!references.isReferenced(fileId) && isExpired(fileId, now) && delete(fileId, "released")) {
+                    budget--;
+                }
+            }
+            
+            if (budget > 0) {
+                scanNextSubdirectory(budget);
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Storage sweep failed", e);
+        }
+    }
+    
+    private void scanNextSubdirectory(int budget) throws IOException {
+        if (subDirCursor >= subDirs.size()) {
+            subDirs = fileStorage.listSubdirectories();
+            subDirCursor = 0;
+            if (subDirs.isEmpty()) {
+                return;
+            }
+        }
+        
+        String subDir = subDirs.get(subDirCursor);
+        long now = System.currentTimeMillis();
+        
+        for (String fileId : fileStorage.listFileIds(subDir)) {
+            if (budget == 0) {
+                // Come back to this directory next tick
+                return;
+            }
+            filesScanned.incrementAndGet();
+            
+            long lastModified = fileStorage.getLastModified(fileId);
+            long age = now - lastModified;
+            if (lastModified >= startedAt && !references.isReferenced(fileId) && age > ORPHAN_GRACE_MILLIS) {
+                if (delete(fileId, "orphaned")) {
+                    budget--;
+                }
+                continue;
+            }
+            
+            if (isExpired(fileId, now) && delete(fileId, "expired")) {
+                budget--;
+            }
+        }
+        
+        subDirCursor++;
+    }
+    
+    private boolean isExpired(String fileId, long now) throws IOException {
+        Long maxAge = retentionFor(fileStorage.getContentType(fileId));
+        return maxAge != null && now - fileStorage.getLastModified(fileId) > maxAge;
+    }
+    
+    private boolean delete(String fileId, String reason) {
+        try {
+            long freed = fileStorage.deleteFile(fileId);
+            if (freed < 0) {
+                return false;
+            }
+            filesDeleted.incrementAndGet();
+            bytesReclaimed.addAndGet(freed);
+            LOGGER.fine("Reclaimed " + reason + " file " + fileId);
+            return true;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to delete file: " + fileId, e);
+            return false;
+        }
+    }
+    
+    private Long retentionFor(String contentType) {
+        if (retentionByType.isEmpty()) {
+            return null;
+        }
+        String type = contentType != null ? contentType.toLowerCase(Locale.ROOT) : "";
+        for (Map.Entry<String, Long> rule : retentionByType.entrySet()) {
+            if (!rule.getKey().equals("*") && type.startsWith(rule.getKey())) {
+                return rule.getValue();
+            }
+        }
+        return retentionByType.get("*");
+    }
+    
+    /**
+     * Parses rules such as {@code video/=30,audio/=90,*=365}: content type prefix to maximum age in days.
+     */
+    static Map<String, Long> parseRetentionRules(String rules) {
+        Map<String, Long> parsed = new LinkedHashMap<>();
+        for (String rule : rules.split(",")) {
+            int separator = rule.indexOf('=');
+            if (separator <= 0) {
+                continue;
+            }
+            try {
+                long days = Long.parseLong(rule.substring(separator + 1).trim());
+                parsed.put(rule.substring(0, separator).trim().toLowerCase(Locale.ROOT), TimeUnit.DAYS.toMillis(days));
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Ignoring invalid retention rule: " + rule);
+            }
+        }
+        return parsed;
+    }
+    
+    public long getFilesDeleted() {
+        return filesDeleted.get();
+    }
+    
+    public long getBytesReclaimed() {
+        return bytesReclaimed.get();
+    }
+    
+    public long getFilesScanned() {
+        return filesScanned.get();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,462 @@
+package com.chatapp.server;
+
+import com.chatapp.common.Message;
+import com.chatapp.media.FrameStreamReader;
+import com.chatapp.media.FrameStreamWriter;
+import com.chatapp.media.ImageDownscaler;
+import com.chatapp.media.TileDeltaEncoder;
+import com.chatapp.media.VideoFrameDecoder;
+import com.chatapp.media.VoiceDecoder;
+import com.chatapp.media.VoiceEncoder;
+import com.chatapp.media.VoiceFormat;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Normalizes uploaded media on a bounded worker pool and stores the results next to the
+ * original blob, so receivers fetch a compact version that fits their display and link
+ * instead of decoding whatever the sender captured:
+ * <ul>
+ * <li>images get downscaled JPEG previews;</li>
+ * <li>voice gets IMA ADPCM renditions at 16 kHz (the canonical format) and 8 kHz;</li>
+ * <li>frame stream video gets tile-codec renditions 320 and 160 pixels wide.</li>
+ * </ul>
+ * Renditions never exceed the original, and one identical to it is skipped.
+ *
+ * Jobs are ordered by demand: the number of recipients a file was sent to, plus one for
+ * every request that found its renditions still missing. Queue depth and the time from
+ * queueing to completion are tracked for monitoring.
+ */
+public class TranscodeService {
+    private static final Logger LOGGER = Logger.getLogger(TranscodeService.class.getName());
+    
+    private static final int[] SIZES = {
+        Message.FileAttachment.PREVIEW_PLACEHOLDER,
+        Message.FileAttachment.PREVIEW_SMALL,
+        Message.FileAttachment.PREVIEW_LARGE
+    };
+    private static final int[] VOICE_RATES = {16000, 8000};
+    private static final int[] VIDEO_WIDTHS = {320, 160};
+    private static final float VIDEO_QUALITY = 0.6f;
+    
+    private static final int THREADS = Integer.getInteger("chatapp.transcode.threads",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int QUEUE_CAPACITY = Integer.getInteger("chatapp.transcode.queueCapacity", 256);
+    private static final long WAIT_MILLIS = 2000;
+    
+    private final FileStorageService fileStorage;
+    private final ThreadPoolExecutor workers;
+    private final PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<>();
+    private final Map<String, Job> pending = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    
+    private final AtomicLong completedJobs = new AtomicLong();
+    private final AtomicLong failedJobs = new AtomicLong();
+    private final AtomicLong rejectedJobs = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+    private final AtomicLong totalWorkNanos = new AtomicLong();
+    
+    public TranscodeService(FileStorageService fileStorage) {
+        this.fileStorage = fileStorage;
+        
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(THREADS, THREADS, 0L, TimeUnit.MILLISECONDS, queue, r -> {
+            Thread thread = new Thread(r, "transcode-worker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        });
+        
+        LOGGER.info("Transcode service started with " + THREADS + " workers, queue capacity " + QUEUE_CAPACITY);
+    }
+    
+    public static boolean supportsPreview(String contentType) {
+        return contentType != null && contentType.startsWith("image/") && !contentType.contains("svg");
+    }
+    
+    public static boolean supports(String contentType) {
+        return supportsPreview(contentType) || isVoice(contentType) || isVideo(contentType);
+    }
+    
+    private static boolean isVoice(String contentType) {
+        return contentType != null && (contentType.startsWith(VoiceFormat.IMA_ADPCM_MIME)
+                || contentType.startsWith(VoiceFormat.MULAW_MIME) || contentType.startsWith(VoiceFormat.PCM_MIME));
+    }
+    
+    private static boolean isVideo(String contentType) {
+        return TileDeltaEncoder.MIME_TYPE.equals(contentType) || FrameStreamWriter.MJPEG_MIME_TYPE.equals(contentType);
+    }
+    
+    /**
+     * Queues transcoding of a freshly stored file for {@code demand} recipients. Files of
+     * other types are ignored; a file already queued just gains the demand.
+     */
+    public CompletableFuture<Void> schedule(String fileId, String contentType, int demand) {
+        if (!supports(contentType)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        
+        Job job = new Job(fileId, contentType, Math.max(1, demand), sequence.incrementAndGet());
+        Job existing = pending.putIfAbsent(fileId, job);
+        if (existing != null) {
+            addDemand(existing, demand);
+            return existing.future;
+        }
+        
+        if (queue.size() >= QUEUE_CAPACITY) {
+            rejectedJobs.incrementAndGet();
+            LOGGER.warning("Transcode queue full, deferring file: " + fileId);
+            pending.remove(fileId);
+            job.future.completeExceptionally(new RejectedExecutionException("Transcode queue full"));
+            return job.future;
+        }
+        try {
+            workers.execute(job);
+        } catch (RejectedExecutionException e) {
+            rejectedJobs.incrementAndGet();
+            pending.remove(fileId);
+            job.future.completeExceptionally(e);
+        }
+        return job.future;
+    }
+    
+    /**
+     * Counts a request for a file whose renditions may still be queued, moving its job forward.
+     */
+    public void recordDemand(String fileId) {
+        Job job = pending.get(fileId);
+        if (job != null) {
+            addDemand(job, 1);
+        }
+    }
+    
+    // The queue orders jobs when they are inserted, so a job is taken out before its demand changes
+    private void addDemand(Job job, int demand) {
+        synchronized (job) {
+            if (queue.remove(job)) {
+                job.demand += demand;
+                queue.add(job);
+            }
+        }
+    }
+    
+    /**
+     * Returns the smallest stored preview at least {@code maxDimension} wide or high, generating
+     * the previews first if they are missing. Returns {@code null} if the file is not an image.
+     */
+    public byte[] getPreview(String fileId, int maxDimension) throws IOException {
+        int size = pickSize(maxDimension);
+        byte[] preview = fileStorage.getPreview(fileId, size);
+        if (preview != null) {
+            return preview;
+        }
+        
+        String contentType = fileStorage.getContentType(fileId);
+        if (!supportsPreview(contentType)) {
+            return null;
+        }
+        
+        try {
+            schedule(fileId, contentType, 1).get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            recordDemand(fileId);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Preview generation failed for file: " + fileId, e);
+            return null;
+        }
+        return fileStorage.getPreview(fileId, size);
+    }
+    
+    /**
+     * Picks the version of a voice or video file to download: for video the narrowest one at
+     * least {@code maxDimension} wide, for voice the best one at no more than
+     * {@code maxSampleRate}; 0 means no limit. Returns {@code {fileId, contentType}}, which is
+     * the original when no rendition fits better, or null if the file does not exist.
+     */
+    public String[] getRendition(String fileId, int maxDimension, int maxSampleRate) throws IOException {
+        String contentType = fileStorage.getContentType(fileId);
+        if (contentType == null) {
+            return null;
+        }
+        if (pending.containsKey(fileId)) {
+            recordDemand(fileId);
+        }
+        
+        if (isVoice(contentType)) {
+            int originalRate = VoiceFormat.parse(contentType).getSampleRate();
+            int limit = maxSampleRate > 0 ? maxSampleRate : Integer.MAX_VALUE;
+            // Canonical renditions win over an original of the same rate, being compact
+            String best = null;
+            int bestRate = originalRate <= limit ? originalRate : -1;
+            int lowestRate = originalRate;
+            String lowest = null;
+            for (int rate : VOICE_RATES) {
+                String name = voiceRendition(rate);
+                if (!fileStorage.hasRendition(fileId, name)) {
+                    continue;
+                }
+                if (rate <= limit && rate >= bestRate) {
+                    best = name;
+                    bestRate = rate;
+                }
+                if (rate < lowestRate) {
+                    lowest = name;
+                    lowestRate = rate;
+                }
+            }
+            if (bestRate < 0) {
+                best = lowest;
+                bestRate = lowestRate;
+            }
+            return best == null ? new String[] {fileId, contentType}
+                    : new String[] {fileStorage.renditionId(fileId, best), voiceFormat(bestRate).toString()};
+        }
+        
+        if (isVideo(contentType) && maxDimension > 0) {
+            for (int i = VIDEO_WIDTHS.length - 1; i >= 0; i--) {
+                String name = videoRendition(VIDEO_WIDTHS[i]);
+                if (VIDEO_WIDTHS[i] >= maxDimension && fileStorage.hasRendition(fileId, name)) {
+                    return new String[] {fileStorage.renditionId(fileId, name), TileDeltaEncoder.MIME_TYPE};
+                }
+            }
+        }
+        return new String[] {fileId, contentType};
+    }
+    
+    public int getQueueDepth() {
+        return queue.size();
+    }
+    
+    public long getCompletedJobs() {
+        return completedJobs.get();
+    }
+    
+    /**
+     * Mean time from queueing to completion over all finished jobs.
+     */
+    public double getAverageLatencyMillis() {
+        long completed = completedJobs.get() + failedJobs.get();
+        return completed == 0 ? 0 : totalLatencyNanos.get() / 1e6 / completed;
+    }
+    
+    public double getMaxLatencyMillis() {
+        return maxLatencyNanos.get() / 1e6;
+    }
+    
+    public String getStatistics() {
+        long finished = completedJobs.get() + failedJobs.get();
+        return String.format("%d queued, %d done, %d failed, %d rejected; latency mean %.0f ms, max %.0f ms; work mean %.0f ms",
+                getQueueDepth(), completedJobs.get(), failedJobs.get(), rejectedJobs.get(),
+                getAverageLatencyMillis(), getMaxLatencyMillis(), finished == 0 ? 0 : totalWorkNanos.get() / 1e6 / finished);
+    }
+    
+    public void shutdown() {
+        workers.shutdownNow();
+        LOGGER.info("Transcode service stopped: " + getStatistics());
+    }
+    
+    private static int pickSize(int maxDimension) {
+        for (int size : SIZES) {
+            if (size >= maxDimension) {
+                return size;
+            }
+        }
+        return SIZES[SIZES.length - 1];
+    }
+    
+    private static String voiceRendition(int sampleRate) {
+        return "voice-" + sampleRate;
+    }
+    
+    private static String videoRendition(int width) {
+        return "video-" + width;
+    }
+    
+    private static VoiceFormat voiceFormat(int sampleRate) {
+        return new VoiceFormat(VoiceFormat.Encoding.IMA_ADPCM, sampleRate);
+    }
+    
+    private void run(Job job) {
+        long started = System.nanoTime();
+        try {
+            byte[] content = fileStorage.getFileContent(job.fileId);
+            if (content != null) {
+                if (supportsPreview(job.contentType)) {
+                    generatePreviews(job.fileId, content);
+                } else if (isVoice(job.contentType)) {
+                    transcodeVoice(job.fileId, job.contentType, content);
+                } else {
+                    transcodeVideo(job.fileId, content);
+                }
+            }
+            completedJobs.incrementAndGet();
+            job.future.complete(null);
+        } catch (Exception e) {
+            failedJobs.incrementAndGet();
+            LOGGER.log(Level.WARNING, "Failed to transcode file: " + job.fileId, e);
+            job.future.completeExceptionally(e);
+        } finally {
+            pending.remove(job.fileId);
+            long finished = System.nanoTime();
+            long latency = finished - job.queuedNanos;
+            totalLatencyNanos.addAndGet(latency);
+            totalWorkNanos.addAndGet(finished - started);
+            maxLatencyNanos.accumulateAndGet(latency, Math::max);
+            LOGGER.fine(String.format("Transcoded %s (%s, demand %d) in %d ms, %d ms after queueing",
+                    job.fileId, job.contentType, job.demand, TimeUnit.NANOSECONDS.toMillis(finished - started),
+                    TimeUnit.NANOSECONDS.toMillis(latency)));
+        }
+    }
+    
+    private void generatePreviews(String fileId, byte[] content) throws IOException {
+        BufferedImage original = ImageIO.read(new ByteArrayInputStream(content));
+        if (original == null) {
+            LOGGER.fine("No image reader for file: " + fileId);
+            return;
+        }
+        
+        BufferedImage source = ImageDownscaler.toRgb(original);
+        // Largest first, so each smaller rendition is scaled from the previous one
+        for (int i = SIZES.length - 1; i >= 0; i--) {
+            source = ImageDownscaler.scaleDown(source, SIZES[i], false);
+            BufferedImage output = SIZES[i] == Message.FileAttachment.PREVIEW_PLACEHOLDER ? ImageDownscaler.blur(source) : source;
+            float quality = SIZES[i] == Message.FileAttachment.PREVIEW_PLACEHOLDER ? 0.5f : 0.8f;
+            fileStorage.storePreview(fileId, SIZES[i], ImageDownscaler.encodeJpeg(output, quality));
+        }
+    }
+    
+    private void transcodeVoice(String fileId, String contentType, byte[] content) throws IOException {
+        VoiceFormat source = VoiceFormat.parse(contentType);
+        byte[] pcm = VoiceDecoder.decodeAll(content, contentType);
+        for (int rate : VOICE_RATES) {
+            boolean canonical = source.getEncoding() == VoiceFormat.Encoding.IMA_ADPCM && source.getSampleRate() == rate;
+            if (rate > source.getSampleRate() || canonical) {
+                continue;
+            }
+            VoiceEncoder encoder = new VoiceEncoder(source.getSampleRate(), voiceFormat(rate));
+            byte[] head = encoder.encode(pcm, 0, pcm.length);
+            byte[] tail = encoder.finish();
+            byte[] encoded = Arrays.copyOf(head, head.length + tail.length);
+            System.arraycopy(tail, 0, encoded, head.length, tail.length);
+            fileStorage.storeRendition(fileId, voiceRendition(rate), encoded);
+        }
+    }
+    
+    /**
+     * Decodes the stream once and re-encodes every narrower rendition from the same pictures.
+     */
+    private void transcodeVideo(String fileId, byte[] content) throws IOException {
+        FrameStreamReader reader = new FrameStreamReader(content);
+        int count = 0;
+        for (int width : VIDEO_WIDTHS) {
+            if (width < reader.getWidth()) {
+                count++;
+            }
+        }
+        if (count == 0 || reader.getFrameCount() == 0) {
+            return;
+        }
+        
+        int[] widths = new int[count];
+        TileDeltaEncoder[] encoders = new TileDeltaEncoder[count];
+        FrameStreamWriter[] writers = new FrameStreamWriter[count];
+        BufferedImage[] scaled = new BufferedImage[count];
+        VideoFrameDecoder decoder = new VideoFrameDecoder(reader.getWidth(), reader.getHeight());
+        try {
+            int next = 0;
+            for (int width : VIDEO_WIDTHS) {
+                if (width >= reader.getWidth()) {
+                    continue;
+                }
+                // Even height, since JPEG subsamples chroma in 2x2 blocks
+                int height = Math.max(2, (int) Math.round((double) reader.getHeight() * width / reader.getWidth()) & ~1);
+                widths[next] = width;
+                encoders[next] = new TileDeltaEncoder(width, height, reader.getFps(), VIDEO_QUALITY);
+                writers[next] = new FrameStreamWriter(width, height, reader.getFps());
+                scaled[next] = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                next++;
+            }
+            
+            byte[] stream = reader.getStream();
+            for (int frame = 0; frame < reader.getFrameCount(); frame++) {
+                BufferedImage picture = decoder.decode(reader.getFrameType(frame), stream,
+                        reader.getFrameOffset(frame), reader.getFrameLength(frame));
+                for (int i = 0; i < count; i++) {
+                    Graphics2D g = scaled[i].createGraphics();
+                    g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                    g.drawImage(picture, 0, 0, scaled[i].getWidth(), scaled[i].getHeight(), null);
+                    g.dispose();
+                    byte type = encoders[i].encode(scaled[i]);
+                    byte[] data = encoders[i].getFrameData();
+                    writers[i].writeFrame(type, reader.getTimestamp(frame), data, 0, data.length);
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                fileStorage.storeRendition(fileId, videoRendition(widths[i]), writers[i].finish());
+            }
+        } finally {
+            decoder.dispose();
+            for (TileDeltaEncoder encoder : encoders) {
+                if (encoder != null) {
+                    encoder.dispose();
+                }
+            }
+        }
+    }
+    
+    /**
+     * One queued file. Higher demand runs first, then older jobs; the demand is only changed
+     * while the job is out of the queue.
+     */
+    private final class Job implements Runnable, Comparable<Job> {
+        final String fileId;
+        final String contentType;
+        final long order;
+        final long queuedNanos = System.nanoTime();
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        volatile int demand;
+        
+        Job(String fileId, String contentType, int demand, long order) {
+            this.fileId = fileId;
+            this.contentType = contentType;
+            this.demand = demand;
+            this.order = order;
+        }
+        
+        @Override
+        public void run() {
+            TranscodeService.this.run(this);
+        }
+        
+        @Override
+        public int compareTo(Job other) {
+            if (demand != other.demand) {
+                return Integer.compare(other.demand, demand);
+            }
+            return Long.compare(order, other.order);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,222 @@
+package com.chatapp.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+/**
+ * Server side of incremental uploads. Clients open a session, append chunks while the
+ * content is still being produced (e.g. a voice note being recorded) and the session is
+ * turned into a regular stored file once the message that uses it is sent.
+ *
+ * Chunks are appended to a temporary file under the storage directory and count against
+ * the owner's quota as they arrive, so an abandoned session cannot grow without bound.
+ */
+public class UploadSessions {
+    private static final Logger LOGGER = Logger.getLogger(UploadSessions.class.getName());
+    
+    private static final long IDLE_TIMEOUT_MILLIS = Long.getLong("chatapp.upload.idleTimeoutSeconds", 600) * 1000;
+    private static final String PART_SUFFIX = ".part";
+    
+    private final FileStorageService fileStorage;
+    private final StorageAccounting accounting;
+    private final Path directory;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    
+    public UploadSessions(FileStorageService fileStorage) {
+        this.fileStorage = fileStorage;
+        this.accounting = fileStorage.getAccounting();
+        this.directory = fileStorage.getUploadDirectory();
+        
+        // Sessions do not survive a restart, so anything left over is garbage
+        File[] leftovers = directory.toFile().listFiles((dir, name) -> name.endsWith(PART_SUFFIX));
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                if (!leftover.delete()) {
+                    LOGGER.warning("Could not delete stale upload: " + leftover);
+                }
+            }
+        }
+    }
+    
+    public String begin(String owner, String fileName, String contentType) throws IOException {
+        expireIdle();
+        
+        String uploadId = UUID.randomUUID().toString();
+        Path path = directory.resolve(uploadId + PART_SUFFIX);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        sessions.put(uploadId, new Session(owner, fileName, contentType, path, channel));
+        
+        LOGGER.fine("Upload session opened: " + uploadId + " for " + owner);
+        return uploadId;
+    }
+    
+    /**
+     * Appends a chunk at the given offset and returns the session length. A chunk that was
+     * already received (a client retry) is acknowledged without being written twice.
+     */
+    public long append(String uploadId, long offset, byte[] chunk) throws IOException {
+        Session session = getSession(uploadId);
+        synchronized (session) {
+            if (session.closed) {
+                throw new IOException("Upload session is closed: " + uploadId);
+            }
+            if (offset + chunk.length <= session.length) {
+                return session.length;
+            }
+            if (offset != session.length) {
+                throw new IOException("Upload " + uploadId + " expected offset " + session.length + " but got " + offset);
+            }
+            
+            accounting.reserve(session.owner, chunk.length);
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(chunk);
+                while (buffer.hasRemaining()) {
+                    session.channel.write(buffer);
+                }
+            } catch (IOException e) {
+                accounting.release(session.owner, chunk.length);
+                throw e;
+            }
+            session.length += chunk.length;
+            session.checksum.update(chunk);
+            session.lastActivity = System.currentTimeMillis();
+            return session.length;
+        }
+    }
+    
+    /**
+     * Stores the session's content as a regular file and closes it, returning the file ID.
+     * The part file is moved into the store along with its quota reservation; if that fails
+     * the session stays open so it can still be finished again or aborted.
+     */
+    public String finish(String uploadId, String owner) throws IOException {
+        Session session = getSession(uploadId);
+        if (!session.owner.equals(owner)) {
+            throw new IOException("Upload " + uploadId + " does not belong to " + owner);
+        }
+        
+        synchronized (session) {
+            if (session.closed) {
+                throw new IOException("Upload session is closed: " + uploadId);
+            }
+            session.channel.close();
+            String fileId;
+            try {
+                fileId = fileStorage.storeUpload(session.owner, session.length, session.path,
+                        FileStorageService.formatChecksum(session.checksum.getValue()), session.fileName, session.contentType);
+            } catch (IOException | RuntimeException e) {
+                reopen(uploadId, session, e);
+                throw e;
+            }
+            session.closed = true;
+            sessions.remove(uploadId, session);
+            LOGGER.info("Upload " + uploadId + " finished as " + fileId + " (" + session.length + " bytes)");
+            return fileId;
+        }
+    }
+    
+    private void reopen(String uploadId, Session session, Exception cause) {
+        try {
+            session.channel = FileChannel.open(session.path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+            LOGGER.log(Level.WARNING, "Could not reopen upload " + uploadId + ", dropping it", e);
+            sessions.remove(uploadId, session);
+            session.closed = true;
+            accounting.release(session.owner, session.length);
+            deleteQuietly(session.path);
+        }
+    }
+    
+    public void abort(String uploadId) {
+        Session session = sessions.remove(uploadId);
+        if (session != null) {
+            discard(session);
+            LOGGER.fine("Upload session aborted: " + uploadId);
+        }
+    }
+    
+    public void abortAll() {
+        for (String uploadId : new ArrayList<>(sessions.keySet())) {
+            abort(uploadId);
+        }
+    }
+    
+    public int getOpenSessionCount() {
+        return sessions.size();
+    }
+    
+    private void expireIdle() {
+        long cutoff = System.currentTimeMillis() - IDLE_TIMEOUT_MILLIS;
+        for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+            if (entry.getValue().lastActivity < cutoff && sessions.remove(entry.getKey(), entry.getValue())) {
+                discard(entry.getValue());
+                LOGGER.info("Upload session expired: " + entry.getKey());
+            }
+        }
+    }
+    
+    private Session getSession(String uploadId) throws IOException {
+        Session session = uploadId != null ? sessions.get(uploadId) : null;
+        if (session == null) {
+            throw new IOException("Unknown upload session: " + uploadId);
+        }
+        return session;
+    }
+    
+    private void discard(Session session) {
+        synchronized (session) {
+            if (session.closed) {
+                return;
+            }
+            session.closed = true;
+            try {
+                session.channel.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error closing upload: " + session.path, e);
+            }
+            accounting.release(session.owner, session.length);
+        }
+        deleteQuietly(session.path);
+    }
+    
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not delete upload: " + path, e);
+        }
+    }
+    
+    private static class Session {
+        final String owner;
+        final String fileName;
+        final String contentType;
+        final Path path;
+        final CRC32C checksum = new CRC32C();
+        FileChannel channel;
+        long length;
+        volatile long lastActivity = System.currentTimeMillis();
+        boolean closed;
+        
+        Session(String owner, String fileName, String contentType, Path path, FileChannel channel) {
+            this.owner = owner;
+            this.fileName = fileName;
+            this.contentType = contentType;
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+}
\ No newline at end of file
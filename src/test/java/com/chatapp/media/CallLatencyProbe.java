@@ -0,0 +1,305 @@
+package com.chatapp.media;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Loopback measurement of call mouth-to-ear latency. Two {@link VoiceCall}s talk over
+ * localhost, optionally through a relay that adds random delay and loss. The sending side
+ * captures a paced synthetic signal with a click every 500 ms; the receiving side plays into
+ * a simulated output line of the same size as the real one and notes when each click would
+ * reach the speaker.
+ *
+ * The probe fails if the 95th percentile exceeds {@code maxP95Millis}, by default the
+ * 150 ms one-way delay conversations stay comfortable under. It is a development tool and
+ * lives with the test sources so it does not ship:
+ * <pre>
+ * java -cp target/classes:target/test-classes com.chatapp.media.CallLatencyProbe \
+ *     [seconds] [jitterMillis] [lossPercent] [maxP95Millis]
+ * </pre>
+ */
+public class CallLatencyProbe {
+    private static final Logger LOGGER = Logger.getLogger(CallLatencyProbe.class.getName());
+    
+    private static final int CLICK_INTERVAL_FRAMES = 25;
+    private static final short CLICK_LEVEL = 24000;
+    private static final int CLICK_THRESHOLD = 16000;
+    private static final int OUTPUT_FRAMES = 3;
+    private static final int DEFAULT_MAX_P95_MILLIS = 150;
+    
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int jitterMillis = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+        double loss = args.length > 2 ? Double.parseDouble(args[2]) / 100 : 0;
+        int maxP95Millis = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_MAX_P95_MILLIS;
+        
+        List<Long> clickNanos = Collections.synchronizedList(new ArrayList<>());
+        List<Double> latencies = Collections.synchronizedList(new ArrayList<>());
+        
+        MediaChannel receiverChannel = new MediaChannel();
+        MediaChannel senderChannel = new MediaChannel();
+        Relay relay = null;
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        if (jitterMillis > 0 || loss > 0) {
+            relay = new Relay(new InetSocketAddress(loopback, receiverChannel.getLocalPort()), jitterMillis, loss);
+            senderChannel.connect(new InetSocketAddress(loopback, relay.getPort()));
+        } else {
+            senderChannel.connect(new InetSocketAddress(loopback, receiverChannel.getLocalPort()));
+        }
+        
+        VoiceCall receiver = new VoiceCall(receiverChannel, new IdleInput(), new SimulatedOutput(clickNanos, latencies));
+        VoiceCall sender = new VoiceCall(senderChannel, new SyntheticInput(clickNanos), new SimulatedOutput(null, null));
+        receiverChannel.start();
+        senderChannel.start();
+        receiver.start();
+        sender.start();
+        
+        Thread.sleep(seconds * 1000L);
+        
+        sender.close();
+        receiver.close();
+        senderChannel.close();
+        receiverChannel.close();
+        if (relay != null) {
+            relay.close();
+        }
+        
+        List<Double> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        LOGGER.info(String.format("Relay jitter %d ms, loss %.1f%%", jitterMillis, loss * 100));
+        if (sorted.isEmpty()) {
+            throw new AssertionError("No clicks arrived");
+        }
+        double sum = 0;
+        for (double latency : sorted) {
+            sum += latency;
+        }
+        double p95 = sorted.get((int) (sorted.size() * 0.95));
+        LOGGER.info(String.format("Mouth-to-ear: mean %.1f ms, p95 %.1f ms, max %.1f ms over %d clicks",
+                sum / sorted.size(), p95, sorted.get(sorted.size() - 1), sorted.size()));
+        LOGGER.info("Receiver: " + receiver.getStatistics());
+        
+        if (p95 > maxP95Millis) {
+            throw new AssertionError(String.format("p95 mouth-to-ear latency of %.1f ms exceeds %d ms", p95, maxP95Millis));
+        }
+    }
+    
+    /**
+     * Microphone of the listening side, which stays quiet so only one direction is measured.
+     */
+    private static class IdleInput implements VoiceCall.AudioInput {
+        @Override
+        public void read(short[] frame) throws IOException {
+            try {
+                Thread.sleep(Long.MAX_VALUE);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+        }
+    }
+    
+    /**
+     * Stands in for a microphone: returns one frame every 20 ms of wall-clock time.
+     */
+    private static class SyntheticInput implements VoiceCall.AudioInput {
+        private final List<Long> clickNanos;
+        private long nextFrameNanos = System.nanoTime();
+        private long frames;
+        
+        SyntheticInput(List<Long> clickNanos) {
+            this.clickNanos = clickNanos;
+        }
+        
+        @Override
+        public void read(short[] frame) throws IOException {
+            nextFrameNanos += VoiceCall.FRAME_MILLIS * 1_000_000L;
+            long wait = nextFrameNanos - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted");
+                }
+            }
+            for (int i = 0; i < frame.length; i++) {
+                frame[i] = (short) (2000 * Math.sin(2 * Math.PI * 220 * (frames * frame.length + i) / VoiceCall.SAMPLE_RATE));
+            }
+            if (frames % CLICK_INTERVAL_FRAMES == 0) {
+                // The frame's first sample was spoken one frame ago
+                frame[0] = CLICK_LEVEL;
+                clickNanos.add(nextFrameNanos - VoiceCall.FRAME_MILLIS * 1_000_000L);
+            }
+            frames++;
+        }
+    }
+    
+    /**
+     * Stands in for a speaker line that holds {@link #OUTPUT_FRAMES} frames and drains in real time.
+     */
+    private static class SimulatedOutput implements VoiceCall.AudioOutput {
+        private static final long FRAME_NANOS = VoiceCall.FRAME_MILLIS * 1_000_000L;
+        
+        private final List<Long> clickNanos;
+        private final List<Double> latencies;
+        private long startNanos = -1;
+        private long writtenFrames;
+        private int matchedClicks;
+        
+        SimulatedOutput(List<Long> clickNanos, List<Double> latencies) {
+            this.clickNanos = clickNanos;
+            this.latencies = latencies;
+        }
+        
+        @Override
+        public void write(short[] frame) throws IOException {
+            long now = System.nanoTime();
+            if (startNanos < 0 || playedFrames(now) >= writtenFrames) {
+                // Underrun: playback restarts from what is written now
+                startNanos = now - writtenFrames * FRAME_NANOS;
+            }
+            long waitNanos = (writtenFrames - OUTPUT_FRAMES) * FRAME_NANOS + startNanos - now;
+            if (waitNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted");
+                }
+            }
+            if (latencies != null) {
+                for (int i = 0; i < frame.length; i++) {
+                    if (frame[i] > CLICK_THRESHOLD) {
+                        long earNanos = startNanos + writtenFrames * FRAME_NANOS + i * FRAME_NANOS / frame.length;
+                        matchClick(earNanos);
+                        break;
+                    }
+                }
+            }
+            writtenFrames++;
+        }
+        
+        private long playedFrames(long now) {
+            return (now - startNanos) / FRAME_NANOS;
+        }
+        
+        // Pairs a click with the latest one spoken before it; repeats from concealment are ignored
+        private void matchClick(long earNanos) {
+            synchronized (clickNanos) {
+                int index = -1;
+                for (int i = clickNanos.size() - 1; i >= 0; i--) {
+                    if (clickNanos.get(i) <= earNanos) {
+                        index = i;
+                        break;
+                    }
+                }
+                if (index >= matchedClicks) {
+                    latencies.add((earNanos - clickNanos.get(index)) / 1e6);
+                    matchedClicks = index + 1;
+                }
+            }
+        }
+        
+        @Override
+        public int getLatencyMillis() {
+            if (startNanos < 0) {
+                return 0;
+            }
+            long queued = Math.max(0, writtenFrames - playedFrames(System.nanoTime()));
+            return (int) (queued * VoiceCall.FRAME_MILLIS);
+        }
+    }
+    
+    /**
+     * Forwards datagrams to {@code target} with random delay and loss, optionally through a
+     * bottleneck of {@code rateKbps} that queues up to {@link #MAX_QUEUE_MILLIS} and drops
+     * beyond. Replies from the target go straight back to the last sender.
+     */
+    static class Relay {
+        static final long MAX_QUEUE_MILLIS = 200;
+        
+        private final DatagramSocket socket;
+        private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        private final Random random = new Random(41);
+        private volatile boolean closed;
+        private SocketAddress source;
+        private long linkFreeNanos;
+        
+        Relay(InetSocketAddress target, int jitterMillis, double loss) throws SocketException {
+            this(target, jitterMillis, loss, 0);
+        }
+        
+        Relay(InetSocketAddress target, int jitterMillis, double loss, int rateKbps) throws SocketException {
+            socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[MediaChannel.MAX_PACKET_SIZE + MediaChannel.HEADER_SIZE];
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                while (!closed) {
+                    try {
+                        packet.setLength(buffer.length);
+                        socket.receive(packet);
+                        byte[] copy = new byte[packet.getLength()];
+                        System.arraycopy(buffer, 0, copy, 0, copy.length);
+                        if (target.equals(packet.getSocketAddress())) {
+                            if (source != null) {
+                                forward(copy, source);
+                            }
+                            continue;
+                        }
+                        source = packet.getSocketAddress();
+                        if (random.nextDouble() < loss) {
+                            continue;
+                        }
+                        long delayMicros = jitterMillis > 0 ? random.nextInt(jitterMillis + 1) * 1000L : 0;
+                        if (rateKbps > 0) {
+                            long now = System.nanoTime();
+                            long start = Math.max(now, linkFreeNanos);
+                            if (start - now > MAX_QUEUE_MILLIS * 1_000_000) {
+                                continue;
+                            }
+                            linkFreeNanos = start + copy.length * 8 * 1_000_000L / rateKbps;
+                            delayMicros += (linkFreeNanos - now) / 1000;
+                        }
+                        scheduler.schedule(() -> forward(copy, target), delayMicros, TimeUnit.MICROSECONDS);
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }, "call-relay");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        
+        private void forward(byte[] data, SocketAddress target) {
+            try {
+                socket.send(new DatagramPacket(data, data.length, target));
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+        
+        int getPort() {
+            return socket.getLocalPort();
+        }
+        
+        void close() {
+            closed = true;
+            scheduler.shutdownNow();
+            socket.close();
+        }
+    }
+}
\ No newline at end of file
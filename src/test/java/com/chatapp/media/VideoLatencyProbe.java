@@ -0,0 +1,141 @@
+package com.chatapp.media;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Loopback measurement of call video latency. A {@link CameraSource} feeds one
+ * {@link VideoCall}; a second one receives over localhost, optionally through a relay with
+ * random delay and loss, and a simulated renderer takes the newest frame whenever it is
+ * told one is ready, spending {@code renderMillis} on each. The capture-to-display delay
+ * of every frame shown is recorded. With {@code bottleneckKbps} the relay also limits the
+ * rate, and both ends run a {@link CallRateController} as a real call does.
+ *
+ * The probe fails if the 95th percentile exceeds {@code maxP95Millis}, by default the
+ * latency beyond which {@link VideoCall} drops frames. It is a development tool and lives
+ * with the test sources so it does not ship:
+ * <pre>
+ * java -cp target/classes:target/test-classes com.chatapp.media.VideoLatencyProbe \
+ *     [seconds] [jitterMillis] [lossPercent] [renderMillis] [bottleneckKbps] [maxP95Millis]
+ * </pre>
+ */
+public class VideoLatencyProbe {
+    private static final Logger LOGGER = Logger.getLogger(VideoLatencyProbe.class.getName());
+    
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int jitterMillis = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+        double loss = args.length > 2 ? Double.parseDouble(args[2]) / 100 : 0;
+        int renderMillis = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+        int bottleneckKbps = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+        int maxP95Millis = args.length > 5 ? Integer.parseInt(args[5]) : VideoCall.MAX_LATENCY_MILLIS;
+        
+        MediaChannel receiverChannel = new MediaChannel();
+        MediaChannel senderChannel = new MediaChannel();
+        CallLatencyProbe.Relay relay = null;
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        if (jitterMillis > 0 || loss > 0 || bottleneckKbps > 0) {
+            relay = new CallLatencyProbe.Relay(new InetSocketAddress(loopback, receiverChannel.getLocalPort()),
+                    jitterMillis, loss, bottleneckKbps);
+            senderChannel.connect(new InetSocketAddress(loopback, relay.getPort()));
+        } else {
+            senderChannel.connect(new InetSocketAddress(loopback, receiverChannel.getLocalPort()));
+        }
+        
+        VideoCall receiver = new VideoCall(receiverChannel);
+        VideoCall sender = new VideoCall(senderChannel);
+        CallRateController senderRate = null;
+        CallRateController receiverRate = null;
+        if (bottleneckKbps > 0) {
+            senderRate = new CallRateController(senderChannel, null, sender);
+            receiverRate = new CallRateController(receiverChannel, null, receiver);
+        }
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        Object renderLock = new Object();
+        boolean[] frameReady = new boolean[1];
+        receiver.setFrameListener(() -> {
+            synchronized (renderLock) {
+                frameReady[0] = true;
+                renderLock.notifyAll();
+            }
+        });
+        Thread renderer = new Thread(() -> {
+            try {
+                while (true) {
+                    synchronized (renderLock) {
+                        while (!frameReady[0]) {
+                            renderLock.wait();
+                        }
+                        frameReady[0] = false;
+                    }
+                    if (receiver.acquireLatestFrame() != null) {
+                        Thread.sleep(renderMillis);
+                        latencies.add((VideoCall.clockMillis() - receiver.getFrameTimestampMillis()) & 0xFFFFFFFFL);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Done
+            }
+        }, "probe-renderer");
+        renderer.setDaemon(true);
+        
+        CameraSource camera = new CameraSource(CameraSource.DEFAULT_WIDTH, CameraSource.DEFAULT_HEIGHT, CameraSource.DEFAULT_FRAME_RATE);
+        camera.addFrameListener(sender::submitFrame);
+        
+        receiverChannel.start();
+        senderChannel.start();
+        receiver.start();
+        sender.start();
+        renderer.start();
+        camera.start();
+        if (senderRate != null) {
+            senderRate.start();
+            receiverRate.start();
+        }
+        
+        Thread.sleep(seconds * 1000L);
+        
+        camera.stop();
+        renderer.interrupt();
+        if (senderRate != null) {
+            senderRate.close();
+            receiverRate.close();
+        }
+        sender.close();
+        receiver.close();
+        senderChannel.close();
+        receiverChannel.close();
+        if (relay != null) {
+            relay.close();
+        }
+        
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        LOGGER.info(String.format("Relay jitter %d ms, loss %.1f%%, render %d ms/frame, bottleneck %d kbit/s",
+                jitterMillis, loss * 100, renderMillis, bottleneckKbps));
+        if (senderRate != null) {
+            LOGGER.info("Rate: " + senderRate.getStatistics());
+        }
+        if (sorted.isEmpty()) {
+            throw new AssertionError("No frames displayed");
+        }
+        double sum = 0;
+        for (long latency : sorted) {
+            sum += latency;
+        }
+        long p95 = sorted.get((int) (sorted.size() * 0.95));
+        LOGGER.info(String.format("Capture-to-display: mean %.1f ms, p95 %d ms, max %d ms; %.1f fps shown, %.0f kbit/s",
+                sum / sorted.size(), p95, sorted.get(sorted.size() - 1),
+                sorted.size() / (double) seconds, sender.getSentBytes() * 8 / 1000.0 / seconds));
+        LOGGER.info("Sender: " + sender.getStatistics());
+        LOGGER.info("Receiver: " + receiver.getStatistics());
+        
+        if (p95 > maxP95Millis) {
+            throw new AssertionError("p95 capture-to-display latency of " + p95 + " ms exceeds " + maxP95Millis + " ms");
+        }
+    }
+}
\ No newline at end of file